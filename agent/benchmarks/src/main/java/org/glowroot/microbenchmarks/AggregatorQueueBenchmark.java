@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.agent.util.CaptureTimeOrderedQueue;
+
+// compares contended throughput of the transaction queue in Aggregator before (queueLock + sleep
+// polling) and after (lock free CaptureTimeOrderedQueue + park/unpark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(Threads.MAX)
+public class AggregatorQueueBenchmark {
+
+    @Param
+    private QueueType queueType;
+
+    private LockingQueue lockingQueue;
+    private CaptureTimeOrderedQueue<Object> lockFreeQueue;
+
+    private volatile boolean closed;
+    private Thread consumerThread;
+
+    @Setup
+    public void setup() {
+        lockingQueue = new LockingQueue();
+        lockFreeQueue = new CaptureTimeOrderedQueue<Object>();
+        closed = false;
+        consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        consumeOne();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        });
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        closed = true;
+        lockFreeQueue.wakeConsumer();
+        consumerThread.join();
+    }
+
+    @Benchmark
+    public long execute() {
+        switch (queueType) {
+            case LOCKING:
+                return lockingQueue.add(this);
+            case LOCK_FREE:
+                return lockFreeQueue.add(this, System.currentTimeMillis());
+            default:
+                throw new AssertionError("Unexpected queue type: " + queueType);
+        }
+    }
+
+    private void consumeOne() throws InterruptedException {
+        switch (queueType) {
+            case LOCKING:
+                if (!lockingQueue.poll()) {
+                    Thread.sleep(1);
+                }
+                break;
+            case LOCK_FREE:
+                if (lockFreeQueue.poll() == null) {
+                    lockFreeQueue.await(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                break;
+        }
+    }
+
+    public enum QueueType {
+        LOCKING, LOCK_FREE
+    }
+
+    // this is the transaction queue that was previously embedded in Aggregator
+    private static class LockingQueue {
+
+        private final Node head = new Node();
+        private Node tail = head;
+        private final Object queueLock = new Object();
+        private int queueLength;
+
+        private long add(Object element) {
+            Node newTail = new Node();
+            newTail.element = element;
+            long captureTime;
+            synchronized (queueLock) {
+                captureTime = System.currentTimeMillis();
+                newTail.captureTime = captureTime;
+                tail.next = newTail;
+                tail = newTail;
+                queueLength++;
+            }
+            return captureTime;
+        }
+
+        private boolean poll() {
+            Node node = head.next;
+            if (node == null) {
+                return false;
+            }
+            synchronized (queueLock) {
+                Node next = node.next;
+                head.next = next;
+                if (next == null) {
+                    tail = head;
+                }
+                queueLength--;
+            }
+            return true;
+        }
+    }
+
+    private static class Node {
+
+        private Object element;
+        private volatile long captureTime;
+        private volatile Node next;
+    }
+}
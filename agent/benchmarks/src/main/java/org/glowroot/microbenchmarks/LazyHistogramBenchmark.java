@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// valueCount is the number of transactions per aggregate, and mergeCount is the number of
+// aggregates merged when rolling up or when reading percentiles for a chart
+//
+// run with -jvmArgs -Dglowroot.histogram.compact=true (and optionally
+// -Dglowroot.histogram.significantDigits=3) to compare the compact recording mode
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LazyHistogramBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    private int valueCount;
+
+    @Param({"60"})
+    private int mergeCount;
+
+    private long[] values;
+    private LazyHistogram histogram;
+    private List<Aggregate.Histogram> encodedHistograms;
+    private LazyHistogram reusedHistogram;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random();
+        values = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            // log-normal distribution of durations, with median around 20 milliseconds
+            values[i] = (long) Math.exp(17 + random.nextGaussian());
+        }
+        histogram = createHistogram();
+        scratchBuffer = new ScratchBuffer();
+        encodedHistograms = Lists.newArrayList();
+        for (int i = 0; i < mergeCount; i++) {
+            encodedHistograms.add(histogram.toProto(scratchBuffer));
+        }
+        reusedHistogram = new LazyHistogram();
+    }
+
+    @Benchmark
+    public LazyHistogram add() {
+        return createHistogram();
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encode() {
+        return histogram.toProto(scratchBuffer);
+    }
+
+    // this is the rollup pattern, merging many encoded histograms into one
+    @Benchmark
+    public long merge() {
+        LazyHistogram merged = new LazyHistogram();
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            merged.merge(encodedHistogram);
+        }
+        return merged.getValueAtPercentile(99);
+    }
+
+    // this is the chart pattern, reading a percentile from each of many encoded histograms
+    @Benchmark
+    public long decodeEach() {
+        long total = 0;
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            total += new LazyHistogram(encodedHistogram).getValueAtPercentile(99);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long decodeEachReused() {
+        long total = 0;
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            reusedHistogram.reset();
+            reusedHistogram.merge(encodedHistogram);
+            total += reusedHistogram.getValueAtPercentile(99);
+        }
+        return total;
+    }
+
+    private LazyHistogram createHistogram() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (long value : values) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.model.Profile;
+
+// run with -prof gc, gc.alloc.rate.norm is then the memory allocated per stack trace sample
+// (including the amortized growth of the profile itself, but not the ThreadInfo which is captured
+// up front)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    private static final int DISTINCT_STACK_TRACES = 10;
+
+    @Param({"50", "200"})
+    private int stackTraceDepth;
+
+    private ThreadInfo[] threadInfos;
+    private CountDownLatch blockedThreadLatch;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        blockedThreadLatch = new CountDownLatch(1);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadInfos = new ThreadInfo[DISTINCT_STACK_TRACES];
+        for (int i = 0; i < DISTINCT_STACK_TRACES; i++) {
+            // vary the depth a little so the samples share a common trunk but not the same leaf
+            Thread thread = startBlockedThread(stackTraceDepth + i);
+            threadInfos[i] = threadBean.getThreadInfo(thread.getId(), Integer.MAX_VALUE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        blockedThreadLatch.countDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DISTINCT_STACK_TRACES * 100)
+    public Profile addStackTraces() {
+        Profile profile = new Profile();
+        for (int i = 0; i < 100; i++) {
+            for (ThreadInfo threadInfo : threadInfos) {
+                profile.addStackTrace(threadInfo, Integer.MAX_VALUE);
+            }
+        }
+        return profile;
+    }
+
+    private Thread startBlockedThread(final int depth) throws InterruptedException {
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recurse(depth, startedLatch);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        startedLatch.await();
+        // give the thread time to reach await() below
+        Thread.sleep(10);
+        return thread;
+    }
+
+    private void recurse(int depth, CountDownLatch startedLatch) {
+        if (depth == 0) {
+            startedLatch.countDown();
+            try {
+                blockedThreadLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        recurse(depth - 1, startedLatch);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,10 @@ import org.openjdk.jmh.annotations.State;
 import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with -prof gc to compare the allocation rate (gc.alloc.rate.norm) with and without
+// -jvmArgsAppend -Dglowroot.traceEntryPool.maxEntriesPerThread=2000, which pools the trace entries
+// of transactions whose traces are not stored (each invocation is a transaction with 2000 trace
+// entries, which is below the default slow threshold)
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
@@ -15,21 +15,28 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
@@ -37,6 +44,9 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 
+// to measure the per class overhead with many advisors (e.g. hundreds of custom instrumentation
+// configs), first generate a config.json using main() below, and then run the benchmarks with
+// -jvmArgsAppend -Dglowroot.conf.dir=<that directory>
 @BenchmarkMode(Mode.SingleShotTime)
 @Warmup(iterations = 0)
 @Measurement(iterations = 1)
@@ -44,11 +54,14 @@ import org.openjdk.jmh.annotations.Warmup;
 @State(Scope.Thread)
 public class WeavingBenchmark {
 
+    private static final int PER_CLASS_COUNT = 1000;
+
     private Set<String> classNames;
 
     @Setup
     public void setup() throws IOException {
-        classNames = new HashSet<String>();
+        // sorted so that the same classes are used by perClass() across runs
+        classNames = new TreeSet<String>();
         for (String path : getClassPath()) {
             if (!path.endsWith(".jar")) {
                 continue;
@@ -78,6 +91,49 @@ public class WeavingBenchmark {
 
     @Benchmark
     public void execute() throws ClassNotFoundException {
+        loadClasses(classNames);
+    }
+
+    // classes are only loaded (and therefore woven) once per jvm, so this needs to run in its own
+    // fork in order to not be skewed by execute() above, e.g. -f 1 (the default) and
+    // ".*WeavingBenchmark.perClass"
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(PER_CLASS_COUNT)
+    public void perClass() throws ClassNotFoundException {
+        loadClasses(Iterables.limit(classNames, PER_CLASS_COUNT));
+    }
+
+    // generates config.json with the given number of custom instrumentation configs, using a mix
+    // of exact class names and class name wildcards (none of which match the spring classes that
+    // are loaded by the benchmarks, which is the common case)
+    public static void main(String[] args) throws IOException {
+        File confDir = new File(args[0]);
+        int count = Integer.parseInt(args[1]);
+        List<String> instrumentationConfigs = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            String className;
+            if (i % 3 == 0) {
+                className = "com.example.app" + i + ".service.*Service";
+            } else {
+                className = "com.example.app" + i + ".service.SomeService";
+            }
+            instrumentationConfigs.add("    {\n"
+                    + "      \"className\": \"" + className + "\",\n"
+                    + "      \"methodName\": \"execute" + i + "\",\n"
+                    + "      \"methodParameterTypes\": [ \"..\" ],\n"
+                    + "      \"captureKind\": \"timer\",\n"
+                    + "      \"timerName\": \"timer " + i + "\"\n"
+                    + "    }");
+        }
+        String json = "{\n  \"instrumentation\": [\n"
+                + Joiner.on(",\n").join(instrumentationConfigs)
+                + "\n  ]\n}\n";
+        confDir.mkdirs();
+        Files.write(json, new File(confDir, "config.json"), Charsets.UTF_8);
+    }
+
+    private static void loadClasses(Iterable<String> classNames) throws ClassNotFoundException {
         for (String className : classNames) {
             try {
                 Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
@@ -186,7 +186,14 @@ public class MainEntryPoint {
             if (customCollector != null) {
                 startupLogger.info("using collector: {}", customCollector.getClass().getName());
             }
-            glowrootAgentInit = new NonEmbeddedGlowrootAgentInit(collectorAddress, customCollector);
+            File spoolDir = null;
+            if (customCollector == null && !Strings
+                    .isNullOrEmpty(properties.get("glowroot.collector.spool.maxSizeMb"))) {
+                // the spool is only used when sending data to the central collector
+                spoolDir = new File(directories.getDataDir(), "spool");
+            }
+            glowrootAgentInit =
+                    new NonEmbeddedGlowrootAgentInit(collectorAddress, customCollector, spoolDir);
         }
         glowrootAgentInit.init(directories.getPluginsDir(), directories.getConfDir(),
                 directories.getSharedConfDir(), directories.getLogDir(), directories.getTmpDir(),
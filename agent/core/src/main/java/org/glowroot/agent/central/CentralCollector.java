@@ -15,11 +15,17 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
@@ -27,15 +33,22 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.protobuf.MessageLite;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.Segment;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.model.GaugeValueBatches;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -61,6 +74,9 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggrega
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class CentralCollector implements Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(CentralCollector.class);
@@ -68,6 +84,10 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final int SPOOL_AGGREGATES = 1;
+    private static final int SPOOL_GAUGE_VALUES = 2;
+    private static final int SPOOL_TRACE = 3;
+
     private final String agentId;
     private final String agentRollupId;
     private final String collectorAddress;
@@ -77,11 +97,28 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    // data that could not be sent to the central collector is written to the spool (if enabled)
+    // and sent later once the central collector is reachable again
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ExecutorService spoolDrainExecutor;
+    private final int spoolDrainIntervalMillis;
+
     private volatile int nextAggregateDelayMillis;
 
+    // gauge values are sent as a delta-encoded batch once the central collector confirms (in the
+    // init response) that it supports it, older central collectors silently ignore the batch
+    //
+    // spooled messages are stored as sent, so gauge value batches that are spooled and then
+    // replayed after the central collector has been downgraded to a version that does not support
+    // them are silently dropped by the central collector
+    private volatile boolean gaugeValueBatchSupported;
+
+    private volatile boolean closed;
+
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
+            @Nullable File spoolDir, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, LazyPlatformMBeanServer lazyPlatformMBeanServer)
             throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
@@ -105,6 +142,26 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        int spoolMaxSizeMb =
+                getIntProperty(properties, "glowroot.collector.spool.maxSizeMb", 0);
+        if (spoolDir == null || spoolMaxSizeMb <= 0) {
+            spool = null;
+            spoolDrainExecutor = null;
+            spoolDrainIntervalMillis = 0;
+        } else {
+            spool = CentralSpool.create(spoolDir, spoolMaxSizeMb * 1024L * 1024,
+                    Clock.systemClock());
+            lazyPlatformMBeanServer.lazyRegisterMBean(spool, "org.glowroot:type=CentralSpool");
+            // rate limited so that draining a large spool does not overwhelm the central
+            // collector (or the agent) once the central collector is reachable again
+            int drainRatePerSecond =
+                    getIntProperty(properties, "glowroot.collector.spool.drainRatePerSecond", 10);
+            spoolDrainIntervalMillis = 1000 / Math.max(drainRatePerSecond, 1);
+            spoolDrainExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Collector-Spool-Drain"));
+            spoolDrainExecutor.execute(new SpoolDrainLoop(spool));
+        }
     }
 
     @Override
@@ -127,6 +184,7 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
                         collectorAddress, response.getGlowrootCentralVersion());
+                gaugeValueBatchSupported = response.getGaugeValueBatchSupported();
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -147,16 +205,27 @@ public class CentralCollector implements Collector {
     }
 
     @Override
-    public void collectGaugeValues(List<GaugeValue> gaugeValues) {
-        final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
-                .setAgentId(agentId)
-                .addAllGaugeValues(gaugeValues)
-                .build();
+    public void collectGaugeValues(final List<GaugeValue> gaugeValues) throws IOException {
+        GaugeValueMessage.Builder builder = GaugeValueMessage.newBuilder()
+                .setAgentId(agentId);
+        if (gaugeValueBatchSupported) {
+            builder.setGaugeValueBatch(GaugeValueBatches.encode(gaugeValues));
+        } else {
+            builder.addAllGaugeValues(gaugeValues);
+        }
+        final GaugeValueMessage gaugeValueMessage = builder.build();
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
+            @Override
+            void onGiveUp() {
+                if (spool != null && !gaugeValues.isEmpty()) {
+                    spool.append(SPOOL_GAUGE_VALUES, gaugeValues.get(0).getCaptureTime(),
+                            gaugeValueMessage.toByteArray());
+                }
+            }
         });
     }
 
@@ -194,15 +263,37 @@ public class CentralCollector implements Collector {
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        closed = true;
+        if (spoolDrainExecutor != null) {
+            spoolDrainExecutor.shutdownNow();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
+        if (spoolDrainExecutor != null && !spoolDrainExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
     }
 
+    private static int getIntProperty(Map<String, String> properties, String name,
+            int defaultValue) {
+        String value = properties.get(name);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("invalid {} value: {}", name, value);
+            logger.debug(e.getMessage(), e);
+            return defaultValue;
+        }
+    }
+
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
@@ -258,8 +349,29 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
+            writeTo(collectorServiceStub.collectAggregateStream(responseObserver));
+        }
+
+        @Override
+        public void doWithResponse(AggregateResponseMessage response) {
+            // Math.min is just for safety
+            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+        }
+
+        @Override
+        void onGiveUp() {
+            if (spool != null) {
+                SpoolWriter<AggregateStreamMessage> spoolWriter =
+                        new SpoolWriter<AggregateStreamMessage>();
+                writeTo(spoolWriter);
+                spoolWriter.appendTo(spool, SPOOL_AGGREGATES, aggregateReader.captureTime());
+            }
+        }
+
+        private void writeTo(StreamObserver<AggregateStreamMessage> requestObserver) {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -276,15 +388,6 @@ public class CentralCollector implements Collector {
             }
             requestObserver.onCompleted();
         }
-
-        @Override
-        public void doWithResponse(AggregateResponseMessage response) {
-            // Math.min is just for safety
-            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-            }
-        }
     }
 
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
@@ -299,8 +402,29 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<EmptyMessage> responseObserver) {
-            StreamObserver<TraceStreamMessage> requestObserver =
-                    collectorServiceStub.collectTraceStream(responseObserver);
+            writeTo(collectorServiceStub.collectTraceStream(responseObserver));
+        }
+
+        @Override
+        public void doWithResponse(EmptyMessage response) {
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+        }
+
+        @Override
+        void onGiveUp() {
+            // partial traces are not spooled for the same reason they are not retried (see
+            // collectTrace() above)
+            if (spool != null && !traceReader.partial()) {
+                SpoolWriter<TraceStreamMessage> spoolWriter =
+                        new SpoolWriter<TraceStreamMessage>();
+                writeTo(spoolWriter);
+                spoolWriter.appendTo(spool, SPOOL_TRACE, traceReader.captureTime());
+            }
+        }
+
+        private void writeTo(StreamObserver<TraceStreamMessage> requestObserver) {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -324,13 +448,6 @@ public class CentralCollector implements Collector {
                     .build());
             requestObserver.onCompleted();
         }
-
-        @Override
-        public void doWithResponse(EmptyMessage response) {
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-            }
-        }
     }
 
     private class TraceVisitorImpl implements TraceVisitor {
@@ -399,4 +516,152 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class SpoolDrainLoop implements Runnable {
+
+        private final CentralSpool spool;
+
+        private SpoolDrainLoop(CentralSpool spool) {
+            this.spool = spool;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    drain();
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                    return;
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    try {
+                        SECONDS.sleep(30);
+                    } catch (InterruptedException e) {
+                        logger.debug(e.getMessage(), e);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void drain() throws Exception {
+            if (!centralConnection.isConnected() || spool.isEmpty()) {
+                SECONDS.sleep(1);
+                return;
+            }
+            Segment segment = spool.getOldestSegment();
+            if (segment == null) {
+                return;
+            }
+            for (SpooledRecord record : spool.read(segment)) {
+                if (!send(record)) {
+                    // the whole segment will be re-sent, which is ok since the calls to the
+                    // central collector are idempotent
+                    SECONDS.sleep(30);
+                    return;
+                }
+                MILLISECONDS.sleep(spoolDrainIntervalMillis);
+            }
+            spool.remove(segment);
+        }
+
+        private boolean send(SpooledRecord record) throws Exception {
+            InputStream in = new ByteArrayInputStream(record.payload());
+            switch (record.type()) {
+                case SPOOL_AGGREGATES: {
+                    BlockingStreamObserver<AggregateResponseMessage> responseObserver =
+                            new BlockingStreamObserver<AggregateResponseMessage>();
+                    StreamObserver<AggregateStreamMessage> requestObserver =
+                            collectorServiceStub.collectAggregateStream(responseObserver);
+                    AggregateStreamMessage message;
+                    while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                        requestObserver.onNext(message);
+                    }
+                    requestObserver.onCompleted();
+                    return responseObserver.await();
+                }
+                case SPOOL_GAUGE_VALUES: {
+                    BlockingStreamObserver<EmptyMessage> responseObserver =
+                            new BlockingStreamObserver<EmptyMessage>();
+                    collectorServiceStub.collectGaugeValues(GaugeValueMessage.parseFrom(in),
+                            responseObserver);
+                    return responseObserver.await();
+                }
+                case SPOOL_TRACE: {
+                    BlockingStreamObserver<EmptyMessage> responseObserver =
+                            new BlockingStreamObserver<EmptyMessage>();
+                    StreamObserver<TraceStreamMessage> requestObserver =
+                            collectorServiceStub.collectTraceStream(responseObserver);
+                    TraceStreamMessage message;
+                    while ((message = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+                        requestObserver.onNext(message);
+                    }
+                    requestObserver.onCompleted();
+                    return responseObserver.await();
+                }
+                default:
+                    logger.warn("unexpected spool record type: {}", record.type());
+                    return true;
+            }
+        }
+    }
+
+    // collects the messages that would have been streamed to the central collector, so they can be
+    // written to the spool
+    private static class SpoolWriter<T extends MessageLite> implements StreamObserver<T> {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean completed;
+
+        @Override
+        public void onNext(T value) {
+            try {
+                value.writeDelimitedTo(out);
+            } catch (IOException e) {
+                // ByteArrayOutputStream does not throw IOException
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+
+        private void appendTo(CentralSpool spool, int type, long captureTime) {
+            if (completed) {
+                spool.append(type, captureTime, out.toByteArray());
+            }
+        }
+    }
+
+    private static class BlockingStreamObserver<T> implements StreamObserver<T> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean success;
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug(t.getMessage(), t);
+            latch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            success = true;
+            latch.countDown();
+        }
+
+        private boolean await() throws InterruptedException {
+            return latch.await(60, SECONDS) && success;
+        }
+    }
 }
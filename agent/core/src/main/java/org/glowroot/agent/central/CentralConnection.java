@@ -147,6 +147,7 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.onGiveUp();
             return;
         }
         synchronized (discardingDataLogger) {
@@ -158,6 +159,7 @@ class CentralConnection {
                                 + " because pending request limit ({}) exceeded", PENDING_LIMIT);
                     }
                 });
+                call.onGiveUp();
                 return;
             }
             pendingRequestCount++;
@@ -197,6 +199,10 @@ class CentralConnection {
         call.call(new RetryingStreamObserver<T>(call, 15, -1, true));
     }
 
+    boolean isConnected() {
+        return initCallSucceeded && !inConnectionFailure.get();
+    }
+
     void suppressLogCollector(Runnable runnable) {
         boolean priorValue = suppressLogCollector.get();
         suppressLogCollector.set(true);
@@ -266,6 +272,9 @@ class CentralConnection {
     abstract static class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when the data is discarded, either without being sent (e.g. due to connection
+        // failure) or after the retries are exhausted
+        void onGiveUp() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -311,6 +320,9 @@ class CentralConnection {
             }
             if (inConnectionFailure.get()) {
                 decrementPendingRequestCount();
+                if (!init) {
+                    grpcCall.onGiveUp();
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -332,6 +344,7 @@ class CentralConnection {
                     });
                 }
                 decrementPendingRequestCount();
+                grpcCall.onGiveUp();
                 return;
             }
 
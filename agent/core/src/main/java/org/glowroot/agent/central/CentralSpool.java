@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Clock;
+
+// append-only spool for data that could not be sent to the central collector
+//
+// records are appended to pre-sized memory-mapped segment files, and segments are read back and
+// deleted oldest first once the central collector is reachable again, so spooled data survives
+// both long central collector outages and agent restarts
+//
+// each record is: int payload length, long capture time, byte record type, payload (segment files
+// are zero filled, so a payload length of zero marks the end of the records in a segment)
+class CentralSpool implements CentralSpoolMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".spool";
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final int segmentSize;
+    private final Clock clock;
+
+    private final Object lock = new Object();
+
+    // oldest first, does not include the current segment
+    @GuardedBy("lock")
+    private final Deque<Segment> closedSegments;
+    @GuardedBy("lock")
+    private @Nullable Segment currSegment;
+    @GuardedBy("lock")
+    private @Nullable MappedByteBuffer currBuffer;
+    @GuardedBy("lock")
+    private long nextSegmentId;
+    @GuardedBy("lock")
+    private long sizeBytes;
+    @GuardedBy("lock")
+    private long droppedRecordCount;
+
+    private CentralSpool(File dir, long maxSizeBytes, Clock clock, Deque<Segment> closedSegments,
+            long nextSegmentId) {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.clock = clock;
+        this.closedSegments = closedSegments;
+        this.nextSegmentId = nextSegmentId;
+        // segments are kept small relative to the max size so that dropping the oldest segment
+        // when the spool is full only drops a small fraction of the spooled data
+        segmentSize =
+                (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSizeBytes / 8));
+        for (Segment segment : closedSegments) {
+            sizeBytes += segment.file.length();
+        }
+    }
+
+    static CentralSpool create(File dir, long maxSizeBytes, Clock clock) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        // pick up segments that were spooled prior to agent restart
+        List<Segment> segments = Lists.newArrayList();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Segment segment = Segment.fromFile(file);
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment left, Segment right) {
+                return Longs.compare(left.id, right.id);
+            }
+        });
+        Deque<Segment> closedSegments = new ArrayDeque<Segment>();
+        long nextSegmentId = 0;
+        for (Segment segment : segments) {
+            nextSegmentId = segment.id + 1;
+            for (SpooledRecord record : readRecords(segment.file)) {
+                segment.recordAdded(record.captureTime);
+            }
+            if (segment.recordCount == 0) {
+                delete(segment.file);
+            } else {
+                closedSegments.add(segment);
+            }
+        }
+        return new CentralSpool(dir, maxSizeBytes, clock, closedSegments, nextSegmentId);
+    }
+
+    // returns false if the record could not be spooled
+    boolean append(int type, long captureTime, byte[] payload) {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        synchronized (lock) {
+            if (recordSize > maxSizeBytes) {
+                droppedRecordCount++;
+                return false;
+            }
+            try {
+                if (currSegment == null || currBuffer == null
+                        || currSegment.position + recordSize > currBuffer.capacity()) {
+                    closeCurrentSegment();
+                    openNewSegment(Math.max(segmentSize, recordSize));
+                }
+                Segment segment = checkCurrSegment();
+                MappedByteBuffer buffer = checkCurrBuffer();
+                int position = segment.position;
+                buffer.putLong(position + 4, captureTime);
+                buffer.put(position + 12, (byte) type);
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.put(payload);
+                // length is written last, so that a partially written record is never read back
+                buffer.putInt(position, payload.length);
+                segment.position += recordSize;
+                segment.recordAdded(captureTime);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                droppedRecordCount++;
+                return false;
+            }
+            // drop the oldest segments if over the max size
+            while (sizeBytes > maxSizeBytes && !closedSegments.isEmpty()) {
+                removeClosedSegment(closedSegments.getFirst());
+            }
+            return true;
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (lock) {
+            return closedSegments.isEmpty()
+                    && (currSegment == null || currSegment.recordCount == 0);
+        }
+    }
+
+    // returns the oldest segment, closing the current segment first if it is the only one with
+    // records, or returns null if the spool is empty
+    @Nullable
+    Segment getOldestSegment() throws IOException {
+        synchronized (lock) {
+            if (closedSegments.isEmpty() && currSegment != null && currSegment.recordCount > 0) {
+                closeCurrentSegment();
+            }
+            return closedSegments.peekFirst();
+        }
+    }
+
+    // records are returned in capture time order
+    List<SpooledRecord> read(Segment segment) throws IOException {
+        List<SpooledRecord> records = readRecords(segment.file);
+        Collections.sort(records, new Comparator<SpooledRecord>() {
+            @Override
+            public int compare(SpooledRecord left, SpooledRecord right) {
+                return Longs.compare(left.captureTime, right.captureTime);
+            }
+        });
+        return records;
+    }
+
+    void remove(Segment segment) {
+        synchronized (lock) {
+            // the segment may have already been removed if the spool filled up while it was being
+            // drained
+            if (closedSegments.remove(segment)) {
+                sizeBytes -= segment.file.length();
+                delete(segment.file);
+            }
+        }
+    }
+
+    @Override
+    public long getSpoolSizeBytes() {
+        synchronized (lock) {
+            return sizeBytes;
+        }
+    }
+
+    @Override
+    public int getSpooledRecordCount() {
+        synchronized (lock) {
+            int recordCount = currSegment == null ? 0 : currSegment.recordCount;
+            for (Segment segment : closedSegments) {
+                recordCount += segment.recordCount;
+            }
+            return recordCount;
+        }
+    }
+
+    @Override
+    public long getDrainLagMillis() {
+        synchronized (lock) {
+            long minCaptureTime = currSegment == null ? Long.MAX_VALUE : currSegment.minCaptureTime;
+            for (Segment segment : closedSegments) {
+                minCaptureTime = Math.min(minCaptureTime, segment.minCaptureTime);
+            }
+            if (minCaptureTime == Long.MAX_VALUE) {
+                return 0;
+            }
+            return Math.max(0, clock.currentTimeMillis() - minCaptureTime);
+        }
+    }
+
+    @Override
+    public long getDroppedRecordCount() {
+        synchronized (lock) {
+            return droppedRecordCount;
+        }
+    }
+
+    // requires lock
+    private void openNewSegment(int size) throws IOException {
+        long id = nextSegmentId++;
+        File file = new File(dir, id + SEGMENT_FILE_SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(size);
+            // the mapping remains valid after the file is closed
+            currBuffer = out.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            out.close();
+        }
+        currSegment = new Segment(file, id);
+        sizeBytes += size;
+    }
+
+    // requires lock
+    private void closeCurrentSegment() {
+        Segment segment = currSegment;
+        if (segment == null) {
+            return;
+        }
+        if (currBuffer != null) {
+            currBuffer.force();
+        }
+        currSegment = null;
+        currBuffer = null;
+        if (segment.recordCount == 0) {
+            sizeBytes -= segment.file.length();
+            delete(segment.file);
+        } else {
+            closedSegments.add(segment);
+        }
+    }
+
+    // requires lock
+    private void removeClosedSegment(Segment segment) {
+        closedSegments.remove(segment);
+        sizeBytes -= segment.file.length();
+        droppedRecordCount += segment.recordCount;
+        delete(segment.file);
+    }
+
+    // requires lock
+    private Segment checkCurrSegment() {
+        if (currSegment == null) {
+            throw new AssertionError("Current segment is null");
+        }
+        return currSegment;
+    }
+
+    // requires lock
+    private MappedByteBuffer checkCurrBuffer() {
+        if (currBuffer == null) {
+            throw new AssertionError("Current buffer is null");
+        }
+        return currBuffer;
+    }
+
+    private static List<SpooledRecord> readRecords(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(file));
+        List<SpooledRecord> records = Lists.newArrayList();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < RECORD_HEADER_SIZE - 4 + length) {
+                // end of records (or truncated record)
+                break;
+            }
+            long captureTime = buffer.getLong();
+            int type = buffer.get();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            records.add(new SpooledRecord(type, captureTime, payload));
+        }
+        return records;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            // this can happen on windows while the file is still memory-mapped
+            logger.debug("unable to delete spool file: {}", file.getAbsolutePath());
+            file.deleteOnExit();
+        }
+    }
+
+    static class Segment {
+
+        private final File file;
+        private final long id;
+
+        // these are guarded by the spool lock
+        private int position;
+        private int recordCount;
+        private long minCaptureTime = Long.MAX_VALUE;
+
+        private Segment(File file, long id) {
+            this.file = file;
+            this.id = id;
+        }
+
+        private void recordAdded(long captureTime) {
+            recordCount++;
+            minCaptureTime = Math.min(minCaptureTime, captureTime);
+        }
+
+        private static @Nullable Segment fromFile(File file) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                return null;
+            }
+            try {
+                return new Segment(file, Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
+
+    static class SpooledRecord {
+
+        private final int type;
+        private final long captureTime;
+        private final byte[] payload;
+
+        private SpooledRecord(int type, long captureTime, byte[] payload) {
+            this.type = type;
+            this.captureTime = captureTime;
+            this.payload = payload;
+        }
+
+        int type() {
+            return type;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+    }
+}
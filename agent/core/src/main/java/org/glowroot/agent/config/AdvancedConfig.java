@@ -80,6 +80,17 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    @Value.Default
+    public int traceCollectorThreads() {
+        return 2;
+    }
+
+    // back pressure on trace collection
+    @Value.Default
+    public int maxPendingTraces() {
+        return 100;
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setWeavingTimer(weavingTimer())
@@ -91,6 +102,8 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setTraceCollectorThreads(of(traceCollectorThreads()))
+                .setMaxPendingTraces(of(maxPendingTraces()))
                 .build();
     }
 
@@ -124,6 +137,12 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasTraceCollectorThreads()) {
+            builder.traceCollectorThreads(config.getTraceCollectorThreads().getValue());
+        }
+        if (config.hasMaxPendingTraces()) {
+            builder.maxPendingTraces(config.getMaxPendingTraces().getValue());
+        }
         return builder.build();
     }
 
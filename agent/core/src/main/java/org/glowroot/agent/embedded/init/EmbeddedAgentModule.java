@@ -66,6 +66,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Versions;
 import org.glowroot.ui.CreateUiModuleBuilder;
+import org.glowroot.ui.HttpServiceExecutorMXBean;
 import org.glowroot.ui.SessionMapFactory;
 import org.glowroot.ui.UiModule;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -242,6 +243,14 @@ class EmbeddedAgentModule {
                     .numWorkerThreads(2)
                     .version(version)
                     .build();
+            HttpServiceExecutorMXBean httpServiceExecutorStats =
+                    uiModule.getHttpServiceExecutorStats();
+            if (httpServiceExecutorStats != null) {
+                agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(
+                        httpServiceExecutorStats, "org.glowroot:type=HttpServiceExecutor");
+            }
+            agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(
+                    uiModule.getAggregateCacheStats(), "org.glowroot:type=AggregateCache");
         } else {
             checkNotNull(viewerAgentModule);
             uiModule = new CreateUiModuleBuilder()
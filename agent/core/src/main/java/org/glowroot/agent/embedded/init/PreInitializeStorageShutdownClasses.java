@@ -64,6 +64,7 @@ class PreInitializeStorageShutdownClasses {
     static List<String> usedTypes() {
         List<String> types = Lists.newArrayList();
         types.addAll(getGlowrootUsedTypes());
+        types.addAll(getGuavaUsedTypes());
         types.addAll(getH2UsedTypes());
         return types;
     }
@@ -71,13 +72,24 @@ class PreInitializeStorageShutdownClasses {
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
         types.add("org.glowroot.agent.embedded.util.CappedDatabase");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$1");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$CompressionBuffer");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$CachingConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
         return types;
     }
 
+    private static List<String> getGuavaUsedTypes() {
+        List<String> types = Lists.newArrayList();
+        types.add("com.google.common.base.Function");
+        types.add("com.google.common.cache.Cache");
+        types.add("com.google.common.cache.LoadingCache");
+        return types;
+    }
+
     private static List<String> getH2UsedTypes() {
         List<String> types = Lists.newArrayList();
         types.add("org.h2.api.ErrorCode");
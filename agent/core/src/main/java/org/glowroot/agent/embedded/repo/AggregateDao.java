@@ -39,6 +39,7 @@ import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.RowMappers;
@@ -83,6 +84,10 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    // rolled up aggregates are inserted in batches of (at most) this size, which avoids a round trip
+    // per rolled up aggregate while still bounding how long each batch holds the writer connection
+    private static final int ROLLUP_INSERT_BATCH_SIZE = 100;
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -417,6 +422,16 @@ public class AggregateDao implements AggregateRepository {
         return dataSource.query(new ShouldHaveSomethingQuery(query, "service_calls_capped_id"));
     }
 
+    @Override
+    public long readLastCompleteCaptureTime(String agentRollupId, int rollupLevel) {
+        if (rollupLevel == 0) {
+            // level 0 aggregates are stored as they are collected
+            return Long.MAX_VALUE;
+        }
+        // rollups are performed during store(), up to the last safe rollup time
+        return lastRollupTimes.get(rollupLevel);
+    }
+
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
@@ -427,10 +442,13 @@ public class AggregateDao implements AggregateRepository {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+            // the rolled up aggregates are inserted only after each query has returned, since the
+            // query may be executed on a read connection, and writing while holding a read
+            // connection can deadlock with DataSource.defrag() and DataSource.deleteAll()
+            insert(dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
+                    fromRollupLevel, toRollupLevel)));
+            insert(dataSource.query(new RollupTransactionAggregates(rollupTime,
+                    fixedIntervalMillis, fromRollupLevel, toRollupLevel)));
         }
     }
 
@@ -976,7 +994,14 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
+    private void insert(List<AggregateInsert> aggregateInserts) throws Exception {
+        for (List<AggregateInsert> batch : Lists.partition(aggregateInserts,
+                ROLLUP_INSERT_BATCH_SIZE)) {
+            dataSource.batchUpdate(new AggregateInsertBatch(batch));
+        }
+    }
+
+    private class RollupOverallAggregates implements JdbcQuery<List<AggregateInsert>> {
 
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
@@ -1014,16 +1039,17 @@ public class AggregateDao implements AggregateRepository {
         }
 
         @Override
-        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+        public List<AggregateInsert> processResultSet(ResultSet resultSet) throws Exception {
             int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
             int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+            List<AggregateInsert> aggregateInserts = Lists.newArrayList();
             MutableOverallAggregate curr = null;
             while (resultSet.next()) {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
+                        aggregateInserts.add(new AggregateInsert(curr.transactionType(), null,
                                 rollupCaptureTime, curr.aggregate(), toRollupLevel,
                                 cappedDatabase, scratchBuffer));
                     }
@@ -1034,20 +1060,19 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
-                        scratchBuffer));
+                aggregateInserts.add(new AggregateInsert(curr.transactionType(), null, rollupCaptureTime,
+                        curr.aggregate(), toRollupLevel, cappedDatabase, scratchBuffer));
             }
-            return null;
+            return aggregateInserts;
         }
 
         @Override
-        public @Nullable Void valueIfDataSourceClosed() {
-            return null;
+        public List<AggregateInsert> valueIfDataSourceClosed() {
+            return ImmutableList.of();
         }
     }
 
-    private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
+    private class RollupTransactionAggregates implements JdbcQuery<List<AggregateInsert>> {
 
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
@@ -1085,11 +1110,12 @@ public class AggregateDao implements AggregateRepository {
         }
 
         @Override
-        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+        public List<AggregateInsert> processResultSet(ResultSet resultSet) throws Exception {
             int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
             int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
             ScratchBuffer scratchBuffer = new ScratchBuffer();
+            List<AggregateInsert> aggregateInserts = Lists.newArrayList();
             MutableTransactionAggregate curr = null;
             while (resultSet.next()) {
                 int i = 1;
@@ -1098,7 +1124,7 @@ public class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
+                        aggregateInserts.add(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
                                 toRollupLevel, cappedDatabase, scratchBuffer));
                     }
@@ -1109,16 +1135,39 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, i++, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                        cappedDatabase, scratchBuffer));
+                aggregateInserts.add(new AggregateInsert(curr.transactionType(), curr.transactionName(),
+                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
+                        scratchBuffer));
             }
-            return null;
+            return aggregateInserts;
         }
 
         @Override
-        public @Nullable Void valueIfDataSourceClosed() {
-            return null;
+        public List<AggregateInsert> valueIfDataSourceClosed() {
+            return ImmutableList.of();
+        }
+    }
+
+    private static class AggregateInsertBatch implements JdbcUpdate {
+
+        // all inserts in a batch are for the same table
+        private final List<AggregateInsert> aggregateInserts;
+
+        private AggregateInsertBatch(List<AggregateInsert> aggregateInserts) {
+            this.aggregateInserts = aggregateInserts;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return aggregateInserts.get(0).getSql();
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (AggregateInsert aggregateInsert : aggregateInserts) {
+                aggregateInsert.bind(preparedStatement);
+                preparedStatement.addBatch();
+            }
         }
     }
 
@@ -31,12 +31,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.embedded.repo.TraceTokens.FieldToken;
+import org.glowroot.agent.embedded.repo.TraceTokens.SearchToken;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
@@ -62,10 +65,12 @@ import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
@@ -101,6 +106,16 @@ public class TraceDao implements TraceRepository {
                     ImmutableColumn.of("value", ColumnType.VARCHAR),
                     ImmutableColumn.of("capture_time", ColumnType.BIGINT));
 
+    // inverted index for trace point queries that filter on headline, error message, user or
+    // attribute value, see TraceTokens
+    //
+    // capture_time column is used for expiring records without using FK with on delete cascade
+    private static final ImmutableList<Column> traceTokenColumns =
+            ImmutableList.<Column>of(ImmutableColumn.of("field", ColumnType.VARCHAR),
+                    ImmutableColumn.of("token", ColumnType.VARCHAR),
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+                    ImmutableColumn.of("trace_id", ColumnType.VARCHAR));
+
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
             // duration_nanos, id and error columns are included so database can return the
             // result set directly from the index without having to reference the table for each row
@@ -130,6 +145,20 @@ public class TraceDao implements TraceRepository {
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
             ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
 
+    private static final ImmutableList<Index> traceTokenIndexes = ImmutableList.<Index>of(
+            // trace_id is included so database can return the trace ids for a given token and
+            // capture time range directly from the index
+            ImmutableIndex.of("trace_token_idx",
+                    ImmutableList.of("field", "token", "capture_time", "trace_id")),
+            // trace_token_capture_time_idx is for reaper, and for deleting the tokens of a trace
+            // when it is updated (there is no index on trace_id in order to minimize the overhead
+            // of storing traces)
+            ImmutableIndex.of("trace_token_capture_time_idx", ImmutableList.of("capture_time")));
+
+    // tokens with at least this many matching rows in the capture time range are not used to
+    // narrow down trace point queries
+    private static final int SEARCH_TOKEN_COUNT_LIMIT = 10000;
+
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
     private final TransactionTypeDao transactionTypeDao;
@@ -152,10 +181,21 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column shared_query_texts_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        boolean backfillTraceTokens =
+                dataSource.tableExists("trace") && !dataSource.tableExists("trace_token");
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        dataSource.syncTable("trace_token", traceTokenColumns);
+        dataSource.syncIndexes("trace_token", traceTokenIndexes);
+        if (backfillTraceTokens) {
+            // upgrade to 0.9.25
+            startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
+                    + " few minutes (depending on data size)...");
+            backfillTraceTokens();
+            startupLogger.info("glowroot schema upgrade complete");
+        }
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -170,6 +210,14 @@ public class TraceDao implements TraceRepository {
         Trace.Header header = trace.getHeader();
 
         dataSource.update(new TraceMerge(trace, traceVisitor.sharedQueryTexts));
+        if (trace.getUpdate()) {
+            // capture time of the previously stored trace is somewhere between the start time and
+            // the capture time of the updated trace
+            dataSource.update("delete from trace_token where capture_time >= ?"
+                    + " and capture_time <= ? and trace_id = ?", header.getStartTime(),
+                    header.getCaptureTime(), trace.getId());
+        }
+        dataSource.batchUpdate(new TraceTokenInsert(trace.getId(), header));
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
                 dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
@@ -317,17 +365,62 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        dataSource.deleteBefore("trace_token", captureTime);
+    }
+
+    private void backfillTraceTokens() throws Exception {
+        Long minCaptureTime =
+                dataSource.queryForOptionalLong("select min(capture_time) from trace");
+        if (minCaptureTime == null) {
+            return;
+        }
+        long maxCaptureTime = dataSource.queryForLong("select max(capture_time) from trace");
+        // reading one hour of traces at a time so that the whole table is not loaded into memory
+        // at once
+        for (long from = minCaptureTime; from <= maxCaptureTime; from += HOURS.toMillis(1)) {
+            List<TraceHeaderRow> rows = dataSource
+                    .query(new TraceHeaderBackfillQuery(from, from + HOURS.toMillis(1)));
+            for (TraceHeaderRow row : rows) {
+                dataSource.batchUpdate(new TraceTokenInsert(row.traceId(), row.header()));
+            }
+        }
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
+        SearchToken searchToken =
+                getMostSelectiveSearchToken(TracePointQueryBuilder.getSearchTokens(filter), query);
         ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
+                new TracePointQueryBuilder(traceKind, query, filter, searchToken, limit)
+                        .getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return Result.create(points, limit);
     }
 
+    private @Nullable SearchToken getMostSelectiveSearchToken(List<SearchToken> searchTokens,
+            TraceQuery query) throws Exception {
+        // token length is not a good enough estimate of selectivity (e.g. short numeric tokens are
+        // often much more selective than long words), so the matching rows in the trace_token index
+        // are counted (up to a limit so that very common tokens do not take long to count)
+        SearchToken mostSelective = null;
+        long minCount = SEARCH_TOKEN_COUNT_LIMIT;
+        for (SearchToken searchToken : searchTokens) {
+            ParameterizedSql parameterizedSql = TracePointQueryBuilder
+                    .getSearchTokenCountSql(searchToken, query, SEARCH_TOKEN_COUNT_LIMIT);
+            long count = dataSource.queryForLong(parameterizedSql.sql(),
+                    parameterizedSql.args().toArray());
+            if (count < minCount) {
+                mostSelective = searchToken;
+                minCount = count;
+            }
+        }
+        // returns null if none of the tokens are selective enough, in which case scanning the trace
+        // table over the capture time range is faster than looking up a large number of traces by
+        // id
+        return mostSelective;
+    }
+
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
             ErrorMessageFilter filter) {
         sql.append(" and transaction_type = ?");
@@ -537,6 +630,37 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceTokenInsert implements JdbcUpdate {
+
+        private final String traceId;
+        private final long captureTime;
+        private final List<FieldToken> fieldTokens;
+
+        private TraceTokenInsert(String traceId, Trace.Header header) {
+            this.traceId = traceId;
+            captureTime = header.getCaptureTime();
+            fieldTokens = TraceTokens.getTokens(header);
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into trace_token (field, token, capture_time, trace_id)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (FieldToken fieldToken : fieldTokens) {
+                int i = 1;
+                preparedStatement.setString(i++, fieldToken.field());
+                preparedStatement.setString(i++, fieldToken.token());
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.setString(i++, traceId);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
 
         private final ParameterizedSql parameterizedSql;
@@ -626,6 +750,44 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceHeaderBackfillQuery implements JdbcRowQuery<TraceHeaderRow> {
+
+        private final long from;
+        private final long to;
+
+        private TraceHeaderBackfillQuery(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select id, headline, user, header from trace where capture_time >= ?"
+                    + " and capture_time < ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public TraceHeaderRow mapRow(ResultSet resultSet) throws Exception {
+            int i = 1;
+            String traceId = checkNotNull(resultSet.getString(i++));
+            String headline = checkNotNull(resultSet.getString(i++));
+            String user = resultSet.getString(i++);
+            byte[] headerBytes = checkNotNull(resultSet.getBytes(i++));
+            Trace.Header header = Trace.Header.parseFrom(headerBytes).toBuilder()
+                    .setHeadline(headline)
+                    .setUser(Strings.nullToEmpty(user))
+                    .build();
+            return ImmutableTraceHeaderRow.of(traceId, header);
+        }
+    }
+
     private class EntriesQuery implements JdbcQuery</*@Nullable*/ Entries> {
 
         private final String traceId;
@@ -752,4 +914,11 @@ public class TraceDao implements TraceRepository {
                     .build();
         }
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TraceHeaderRow {
+        String traceId();
+        Trace.Header header();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,7 @@ import com.google.common.collect.Lists;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
 
+import org.glowroot.agent.embedded.repo.TraceTokens.SearchToken;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
@@ -37,13 +38,15 @@ class TracePointQueryBuilder {
     private final TraceKind traceKind;
     private final TraceQuery query;
     private final TracePointFilter filter;
+    private final @Nullable SearchToken searchToken;
     private final int limit;
 
     TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+            @Nullable SearchToken searchToken, int limit) {
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
+        this.searchToken = searchToken;
         this.limit = limit;
     }
 
@@ -68,6 +71,7 @@ class TracePointQueryBuilder {
         builder.appendText(" trace.capture_time > ? and trace.capture_time <= ?");
         builder.addArg(query.from());
         builder.addArg(query.to());
+        appendTraceTokenCriteria(builder);
         appendTraceKindCriteria(builder);
         appendTransactionTypeCriteria(builder);
         appendTransactionNameCriteria(builder);
@@ -99,6 +103,18 @@ class TracePointQueryBuilder {
         }
     }
 
+    // the trace_token inverted index is used to narrow down the traces using a single token, the
+    // original criteria are still applied below since the inverted index only returns a superset of
+    // the matching traces
+    private void appendTraceTokenCriteria(ParameterizedSqlBuilder builder) {
+        if (searchToken == null) {
+            return;
+        }
+        builder.appendText(" and trace.id in (select trace_id from trace_token where");
+        appendSearchTokenCriteria(builder, searchToken, query);
+        builder.appendText(")");
+    }
+
     private void appendTraceKindCriteria(ParameterizedSqlBuilder builder) {
         if (traceKind == TraceKind.SLOW) {
             builder.appendText(" and trace.slow = ?");
@@ -161,6 +177,58 @@ class TracePointQueryBuilder {
         }
     }
 
+    // returns the tokens that every trace matching the filter must have in the trace_token
+    // inverted index
+    static List<SearchToken> getSearchTokens(TracePointFilter filter) {
+        List<SearchToken> searchTokens = Lists.newArrayList();
+        addSearchTokens(searchTokens, TraceTokens.HEADLINE, filter.headlineComparator(),
+                filter.headline());
+        addSearchTokens(searchTokens, TraceTokens.ERROR_MESSAGE, filter.errorMessageComparator(),
+                filter.errorMessage());
+        addSearchTokens(searchTokens, TraceTokens.USER, filter.userComparator(), filter.user());
+        addSearchTokens(searchTokens, TraceTokens.ATTRIBUTE, filter.attributeValueComparator(),
+                filter.attributeValue());
+        return searchTokens;
+    }
+
+    // used to estimate the selectivity of each search token, by counting its matching rows in the
+    // trace_token index (up to the given limit)
+    static ParameterizedSql getSearchTokenCountSql(SearchToken searchToken, TraceQuery query,
+            int limit) {
+        ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
+        builder.appendText("select count(*) from (select 1 from trace_token where");
+        appendSearchTokenCriteria(builder, searchToken, query);
+        builder.appendText(" limit ?)");
+        builder.addArg(limit);
+        return builder.build();
+    }
+
+    private static void appendSearchTokenCriteria(ParameterizedSqlBuilder builder,
+            SearchToken searchToken, TraceQuery query) {
+        builder.appendText(" field = ?");
+        builder.addArg(searchToken.field());
+        if (searchToken.prefix()) {
+            // using range instead of like since h2 does not use the index for like with a bind
+            // parameter
+            builder.appendText(" and token >= ? and token <= ?");
+            builder.addArg(searchToken.token());
+            builder.addArg(searchToken.token() + Character.MAX_VALUE);
+        } else {
+            builder.appendText(" and token = ?");
+            builder.addArg(searchToken.token());
+        }
+        builder.appendText(" and capture_time > ? and capture_time <= ?");
+        builder.addArg(query.from());
+        builder.addArg(query.to());
+    }
+
+    private static void addSearchTokens(List<SearchToken> searchTokens, String field,
+            @Nullable StringComparator comparator, @Nullable String value) {
+        if (comparator != null && !Strings.isNullOrEmpty(value)) {
+            searchTokens.addAll(TraceTokens.getSearchTokens(field, comparator, value));
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParameterizedSql {
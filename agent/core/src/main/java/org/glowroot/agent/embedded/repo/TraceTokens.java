@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// tokens for the trace_token inverted index, which is used to narrow down trace point queries that
+// filter on headline, error message, user or attribute value, instead of evaluating upper(..) like
+// against every trace in the capture time range
+//
+// a token is a maximal run of letters and digits in the upper-cased text, the inverted index only
+// has to return a superset of the matching traces since the original filter is still applied to
+// the narrowed down traces
+class TraceTokens {
+
+    static final String HEADLINE = "headline";
+    static final String ERROR_MESSAGE = "error";
+    static final String USER = "user";
+    static final String ATTRIBUTE = "attribute";
+
+    // single character tokens are too common to be worth indexing
+    private static final int MIN_TOKEN_LENGTH = 2;
+    // long tokens (e.g. ids embedded in urls) are truncated, which is fine since the index only has
+    // to return a superset of the matching traces
+    private static final int MAX_TOKEN_LENGTH = 32;
+
+    private TraceTokens() {}
+
+    static List<FieldToken> getTokens(Trace.Header header) {
+        List<FieldToken> fieldTokens = Lists.newArrayList();
+        addTokens(fieldTokens, HEADLINE, header.getHeadline());
+        if (header.hasError()) {
+            addTokens(fieldTokens, ERROR_MESSAGE, header.getError().getMessage());
+        }
+        addTokens(fieldTokens, USER, header.getUser());
+        StringBuilder attributeValues = new StringBuilder();
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            for (String value : attribute.getValueList()) {
+                // space separator so that tokens do not span across values
+                attributeValues.append(value).append(' ');
+            }
+        }
+        addTokens(fieldTokens, ATTRIBUTE, attributeValues.toString());
+        return fieldTokens;
+    }
+
+    // returns the tokens that every text matching the filter must have, which can be empty (e.g.
+    // NOT_CONTAINS, or single character filter value)
+    static List<SearchToken> getSearchTokens(String field, StringComparator comparator,
+            String value) {
+        if (comparator == StringComparator.NOT_CONTAINS) {
+            return ImmutableList.of();
+        }
+        if (value.indexOf('%') != -1 || value.indexOf('_') != -1) {
+            // these are sql like wildcards, and are passed through as wildcards by the original
+            // filter, so the filter value cannot be tokenized
+            return ImmutableList.of();
+        }
+        boolean anchoredAtStart =
+                comparator == StringComparator.EQUALS || comparator == StringComparator.BEGINS;
+        boolean anchoredAtEnd =
+                comparator == StringComparator.EQUALS || comparator == StringComparator.ENDS;
+        String upper = value.toUpperCase(Locale.ENGLISH);
+        List<SearchToken> searchTokens = Lists.newArrayList();
+        int length = upper.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(upper.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(upper.charAt(i))) {
+                i++;
+            }
+            // a token at the start of the filter value may be the end of a longer token in the
+            // matching text (unless the filter is anchored at the start), in which case it cannot
+            // be looked up in the index
+            if (start == 0 && !anchoredAtStart) {
+                continue;
+            }
+            // a token at the end of the filter value may be the beginning of a longer token in
+            // the matching text (unless the filter is anchored at the end), in which case it can
+            // still be looked up in the index as a prefix
+            boolean prefix = i == length && !anchoredAtEnd;
+            int tokenLength = i - start;
+            if (tokenLength < MIN_TOKEN_LENGTH) {
+                // shorter tokens are not indexed
+                continue;
+            }
+            if (tokenLength >= MAX_TOKEN_LENGTH) {
+                tokenLength = MAX_TOKEN_LENGTH;
+                // a prefix of max length matches exactly since indexed tokens are truncated
+                prefix = false;
+            }
+            SearchToken searchToken = ImmutableSearchToken.of(field,
+                    upper.substring(start, start + tokenLength), prefix);
+            if (!searchTokens.contains(searchToken)) {
+                searchTokens.add(searchToken);
+            }
+        }
+        return searchTokens;
+    }
+
+    private static void addTokens(List<FieldToken> fieldTokens, String field, String text) {
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        Set<String> tokens = Sets.newHashSet();
+        int length = upper.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(upper.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(upper.charAt(i))) {
+                i++;
+            }
+            if (i - start >= MIN_TOKEN_LENGTH) {
+                String token = upper.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH));
+                if (tokens.add(token)) {
+                    fieldTokens.add(ImmutableFieldToken.of(field, token));
+                }
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface FieldToken {
+        String field();
+        String token();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SearchToken {
+        String field();
+        String token();
+        // whether the token should be matched as a prefix of indexed tokens
+        boolean prefix();
+    }
+}
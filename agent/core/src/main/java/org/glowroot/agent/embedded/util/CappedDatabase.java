@@ -16,14 +16,19 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +53,7 @@ import com.ning.compress.lzf.util.ChunkEncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.embedded.util.CappedDatabaseOutputStream.Layout;
 import org.glowroot.agent.util.AppServerDetection;
 import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -57,16 +63,35 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // compression buffers larger than this are not retained for re-use
+    private static final int MAX_RETAINED_COMPRESSION_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<CompressionBuffer> compressionBuffers =
+            new ThreadLocal<CompressionBuffer>() {
+                @Override
+                protected CompressionBuffer initialValue() {
+                    return new CompressionBuffer();
+                }
+            };
+
     private final File file;
+    // the lock is only needed for writing (and resizing), reads use positional reads on a
+    // separate file channel and then check afterwards whether the block was overwritten while
+    // reading it
     private final Object lock = new Object();
-    @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
+    // this lock is only used for replacing inFile
+    private final Object inFileLock = new Object();
+    @GuardedBy("inFileLock")
     private RandomAccessFile inFile;
+    // the layout and the channel are published together so that a read never converts an index
+    // using one layout and then reads the bytes from a file with a different layout
+    private volatile ReadSnapshot readSnapshot;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
+    @GuardedBy("lock")
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
@@ -74,6 +99,7 @@ public class CappedDatabase {
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
         inFile = new RandomAccessFile(file, "r");
+        readSnapshot = new ReadSnapshot(out.getLayout(), inFile.getChannel());
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -100,11 +126,13 @@ public class CappedDatabase {
     }
 
     public CappedDatabaseStats getStats(String type) {
-        CappedDatabaseStats stats = statsByType.get(type);
-        if (stats == null) {
-            return new CappedDatabaseStats();
+        synchronized (lock) {
+            CappedDatabaseStats stats = statsByType.get(type);
+            if (stats == null) {
+                return new CappedDatabaseStats();
+            }
+            return stats;
         }
-        return stats;
     }
 
     @OnlyUsedByTests
@@ -118,38 +146,50 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
-        synchronized (lock) {
-            if (closed) {
-                return -1;
-            }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
+        if (closed) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        CompressionBuffer compressionBuffer = compressionBuffers.get();
+        try {
+            // compress outside of the lock so that concurrent writes are only serialized on
+            // copying the compressed bytes to the file
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(newLZFOutputStream(compressionBuffer));
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+            long lockRequestTick = ticker.read();
+            synchronized (lock) {
+                if (closed) {
+                    return -1;
+                }
+                long lockAcquiredTick = ticker.read();
+                out.startBlock();
+                compressionBuffer.writeTo(out);
+                long cappedId = out.endBlock();
+                long endTick = ticker.read();
+                CappedDatabaseStats stats = statsByType.get(type);
+                if (stats == null) {
+                    stats = new CappedDatabaseStats();
+                    statsByType.put(type, stats);
+                }
+                stats.record(countingStreamBeforeCompression.getCount(), compressionBuffer.size(),
+                        endTick - startTick, lockAcquiredTick - lockRequestTick);
+                return cappedId;
+            }
+        } finally {
+            if (compressionBuffer.capacity() > MAX_RETAINED_COMPRESSION_BUFFER_SIZE) {
+                compressionBuffers.remove();
+            } else {
+                compressionBuffer.reset();
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
         }
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return null;
         }
@@ -162,7 +202,7 @@ public class CappedDatabase {
             return null;
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = newLZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -180,12 +220,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/MessageLite> List<T> readMessages(long cappedId, Parser<T> parser)
             throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return ImmutableList.of();
         }
@@ -198,7 +234,7 @@ public class CappedDatabase {
             return ImmutableList.of();
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = newLZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -227,15 +263,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return out.isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return out.getSmallestNonOverwrittenId();
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -243,9 +275,17 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            synchronized (inFileLock) {
+                // in-flight reads on the closed channel will re-read using the new layout and
+                // channel
+                inFile.close();
+                try {
+                    out.resize(newSizeKb);
+                } finally {
+                    inFile = new RandomAccessFile(file, "r");
+                    readSnapshot = new ReadSnapshot(out.getLayout(), inFile.getChannel());
+                }
+            }
         }
     }
 
@@ -254,11 +294,73 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            synchronized (inFileLock) {
+                inFile.close();
+            }
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    // reads up to maxLen bytes starting at the given index (stopping early at the end of the file
+    // since the capped database wraps around there), and returns the number of bytes read
+    //
+    // the file position and the bytes are read using the same snapshot, and if the database is
+    // resized during the read then the bytes are re-read using the new snapshot
+    private int read(long index, byte[] bytes, int off, int maxLen) throws IOException {
+        while (true) {
+            ReadSnapshot snapshot = readSnapshot;
+            if (index < snapshot.layout.getBaseIndex()) {
+                // resized smaller since the caller last checked
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            long filePosition = snapshot.layout.convertToFilePosition(index);
+            int len = (int) Math.min(maxLen, snapshot.layout.getSizeBytes() - filePosition);
+            try {
+                readFully(snapshot.channel,
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition, bytes, off,
+                        len);
+            } catch (ClosedByInterruptException e) {
+                // this thread was interrupted while reading from the channel, which closes the
+                // channel, so re-open it for other readers
+                reopenInChannelIfNeeded(snapshot);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // either resize() replaced the channel, or another thread was interrupted while
+                // reading from the channel which closes the channel
+                logger.debug(e.getMessage(), e);
+                reopenInChannelIfNeeded(snapshot);
+                continue;
+            }
+            if (readSnapshot == snapshot) {
+                return len;
+            }
+        }
+    }
+
+    private void reopenInChannelIfNeeded(ReadSnapshot closedSnapshot) throws IOException {
+        synchronized (inFileLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (readSnapshot == closedSnapshot) {
+                inFile.close();
+                inFile = new RandomAccessFile(file, "r");
+                readSnapshot = new ReadSnapshot(closedSnapshot.layout, inFile.getChannel());
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, long filePosition, byte[] bytes, int off,
+            int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, off, len);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, filePosition + buffer.position() - off);
+            if (n == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (AppServerDetection.isIbmJvm() && JavaVersion.isJava6()) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -287,7 +389,7 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads from the underlying FileChannel
             final int bufferSize = 32768;
             return new InputStreamReader(newLZFInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
@@ -310,24 +412,31 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            checkNotOverwritten();
+            if (blockLength == -1) {
+                byte[] blockLengthBytes = new byte[Longs.BYTES];
+                int numRead = 0;
+                while (numRead < Longs.BYTES) {
+                    numRead += CappedDatabase.this.read(cappedId + numRead, blockLengthBytes,
+                            numRead, Longs.BYTES - numRead);
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                checkNotOverwritten();
+                blockLength = Longs.fromByteArray(blockLengthBytes);
+            }
+            long blockRemaining = blockLength - blockIndex;
+            int numRead = CappedDatabase.this.read(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex,
+                    bytes, off, (int) Math.min(len, blockRemaining));
+            // need to check again after reading since the bytes may have been overwritten while
+            // reading them
+            checkNotOverwritten();
+            blockIndex += numRead;
+            return numRead;
+        }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
         }
 
@@ -355,7 +464,9 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    synchronized (inFileLock) {
+                        inFile.close();
+                    }
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -363,6 +474,17 @@ public class CappedDatabase {
         }
     }
 
+    private static class ReadSnapshot {
+
+        private final Layout layout;
+        private final FileChannel channel;
+
+        private ReadSnapshot(Layout layout, FileChannel channel) {
+            this.layout = layout;
+            this.channel = channel;
+        }
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
@@ -374,31 +496,14 @@ public class CappedDatabase {
         }
     }
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
-
-        private long count;
+    private static class CompressionBuffer extends ByteArrayOutputStream {
 
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
+        private CompressionBuffer() {
+            super(32768);
         }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            count += len;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            count++;
-        }
-
-        @Override
-        public void close() {}
-
-        private long getCount() {
-            return count;
+        private int capacity() {
+            return buf.length;
         }
     }
 }
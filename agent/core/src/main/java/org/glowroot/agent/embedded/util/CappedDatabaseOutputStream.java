@@ -23,6 +23,9 @@ import java.io.RandomAccessFile;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
+//
+// isOverwritten(), getCurrIndex() and getLayout() can be called without the external
+// synchronization, which is what allows reads that don't block writes.
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -35,13 +38,19 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    private volatile long currIndex;
+    // reservedIndex is always >= currIndex, and is advanced prior to writing bytes (as opposed to
+    // currIndex which is advanced after writing bytes), so that readers which are not externally
+    // synchronized can detect that the bytes they just read may have been overwritten
+    private volatile long reservedIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
-    // sizeKb is volatile so it can be read outside of the external synchronization around
-    // startBlock()/write()/endBlock()
-    private volatile int sizeKb;
+    private int sizeKb;
     private long sizeBytes;
+    // the above three fields are only accessed under the external synchronization, readers
+    // outside of it use this snapshot instead, which is only replaced once a resize is complete,
+    // so that they never see a base index and size from two different layouts
+    private volatile Layout layout;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +75,8 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        reservedIndex = currIndex;
+        layout = new Layout(lastResizeBaseIndex, sizeBytes);
     }
 
     void startBlock() {
@@ -79,6 +90,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        reservedIndex = Math.max(reservedIndex, currIndex);
     }
 
     long endBlock() throws IOException {
@@ -95,7 +107,11 @@ class CappedDatabaseOutputStream extends OutputStream {
     long getSmallestNonOverwrittenId() {
         // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
         // currIndex - sizeBytes would be less than lastResizeBaseIndex
-        return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
+        //
+        // using reservedIndex instead of currIndex so that bytes that are in the process of being
+        // written are considered overwritten
+        Layout layout = this.layout;
+        return Math.max(layout.baseIndex, reservedIndex - layout.sizeBytes);
     }
 
     long getCurrIndex() {
@@ -103,12 +119,8 @@ class CappedDatabaseOutputStream extends OutputStream {
     }
 
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
-    int getSizeKb() {
-        return sizeKb;
-    }
-
-    long convertToFilePosition(long index) {
-        return (index - lastResizeBaseIndex) % sizeBytes;
+    Layout getLayout() {
+        return layout;
     }
 
     // perform resize in-place to avoid using extra disk space
@@ -122,7 +134,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         long numKeepBytes = numKeepKb * 1024L;
         // at this point, because of the two shortcut conditionals above, currIndex must be >=
         // either the current or new capped size (numKeepBytes)
-        long startPosition = convertToFilePosition(currIndex - numKeepBytes);
+        long startPosition = (currIndex - numKeepBytes - lastResizeBaseIndex) % sizeBytes;
         lastResizeBaseIndex = currIndex - numKeepBytes;
         File tmpCappedFile = new File(file.getPath() + ".resizing.tmp");
         RandomAccessFile tmpOut = new RandomAccessFile(tmpCappedFile, "rw");
@@ -152,6 +164,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
         out = new RandomAccessFile(file, "rw");
+        layout = new Layout(lastResizeBaseIndex, sizeBytes);
     }
 
     @Override
@@ -175,6 +188,9 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        if (currIndex + len > reservedIndex) {
+            reservedIndex = currIndex + len;
+        }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -201,6 +217,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             out.writeInt(newSizeKb);
             sizeKb = newSizeKb;
             sizeBytes = newSizeBytes;
+            layout = new Layout(lastResizeBaseIndex, sizeBytes);
             return true;
         }
         return false;
@@ -234,4 +251,27 @@ class CappedDatabaseOutputStream extends OutputStream {
             total += n;
         }
     }
+
+    static class Layout {
+
+        private final long baseIndex;
+        private final long sizeBytes;
+
+        private Layout(long baseIndex, long sizeBytes) {
+            this.baseIndex = baseIndex;
+            this.sizeBytes = sizeBytes;
+        }
+
+        long convertToFilePosition(long index) {
+            return (index - baseIndex) % sizeBytes;
+        }
+
+        long getBaseIndex() {
+            return baseIndex;
+        }
+
+        long getSizeBytes() {
+            return sizeBytes;
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,7 @@ public class CappedDatabaseStats {
     private long totalBytesBeforeCompression;
     private long totalBytesAfterCompression;
     private long totalNanos;
+    private long totalLockWaitNanos;
     private long writeCount;
 
     public long getTotalBytesBeforeCompression() {
@@ -34,6 +35,11 @@ public class CappedDatabaseStats {
         return totalNanos / 1000000.0;
     }
 
+    // time spent waiting on other writes, this is included in total millis
+    public double getTotalLockWaitMillis() {
+        return totalLockWaitNanos / 1000000.0;
+    }
+
     public long getWriteCount() {
         return writeCount;
     }
@@ -55,10 +61,16 @@ public class CappedDatabaseStats {
         return totalNanos / (1000 * 1000 * (double) writeCount);
     }
 
-    void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos) {
+    public double getAverageLockWaitMillisPerWrite() {
+        return totalLockWaitNanos / (1000 * 1000 * (double) writeCount);
+    }
+
+    void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos,
+            long lockWaitNanos) {
         totalBytesBeforeCompression += bytesBeforeCompression;
         totalBytesAfterCompression += bytesAfterCompression;
         totalNanos += nanos;
+        totalLockWaitNanos += lockWaitNanos;
         writeCount++;
     }
 }
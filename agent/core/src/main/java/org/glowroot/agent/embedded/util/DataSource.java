@@ -25,7 +25,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -39,6 +41,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
@@ -60,38 +63,65 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // when greater than zero, queries are executed on a pool of read connections instead of on the
+    // single (writer) connection, so that long running UI queries don't block (and aren't blocked
+    // by) the background writes
+    private static final int READ_CONNECTION_POOL_SIZE =
+            Integer.getInteger("glowroot.internal.h2.readConnectionPoolSize", 0);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private CachingConnection connection;
     private volatile boolean closed;
 
+    private final int readConnectionPoolSize;
+    // null when not using read connection pool, in which case queries are executed on the writer
+    // connection under the lock
+    private final @Nullable BlockingQueue<CachingConnection> readConnections;
+    // all of the current read connections (including those that are in use), so that they can be
+    // closed by the shutdown hook without waiting for in-flight queries to complete (array instead
+    // of collection to minimize the classes used by the shutdown hook)
+    private volatile CachingConnection[] allReadConnections = new CachingConnection[0];
+    // taking all of the read connections out of the pool (in order to close them) happens under
+    // this lock and NOT under the writer lock, since a thread that is holding a read connection
+    // may be waiting on the writer lock, and two threads that each took only some of the read
+    // connections would otherwise wait on each other forever
+    private final Object takeAllReadConnectionsLock = new Object();
+
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder()
-                    .weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        // each connection to an unnamed in-memory database gets its own database, so cannot use
+        // read connection pool
+        readConnectionPoolSize = 0;
+        readConnections = null;
+        connection = new CachingConnection(createConnection(null, false));
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTION_POOL_SIZE);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnectionPoolSize) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.readConnectionPoolSize = readConnectionPoolSize;
+        boolean multiThreaded = readConnectionPoolSize > 0;
+        connection = new CachingConnection(createConnection(dbFile, multiThreaded));
+        if (multiThreaded) {
+            readConnections = new LinkedBlockingQueue<CachingConnection>();
+            createReadConnections(dbFile, readConnections);
+        } else {
+            readConnections = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -100,13 +130,29 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        synchronized (takeAllReadConnectionsLock) {
+            // the database is not actually shut down until all connections are closed
+            List<CachingConnection> takenReadConnections = takeAllReadConnections();
+            boolean success = false;
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    closeReadConnections(takenReadConnections);
+                    execute("shutdown defrag");
+                    connection = new CachingConnection(
+                            createConnection(dbFile, readConnections != null));
+                    if (readConnections != null) {
+                        createReadConnections(dbFile, readConnections);
+                    }
+                    success = true;
+                }
+            } finally {
+                if (!success) {
+                    returnReadConnections(takenReadConnections);
+                }
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
         }
     }
 
@@ -114,19 +160,37 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
-            for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes.entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
+        synchronized (takeAllReadConnectionsLock) {
+            List<CachingConnection> takenReadConnections = takeAllReadConnections();
+            boolean success;
+            boolean recreated = false;
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    closeReadConnections(takenReadConnections);
+                    connection.close();
+                    success = dbFile.delete();
+                    connection = new CachingConnection(
+                            createConnection(dbFile, readConnections != null));
+                    if (readConnections != null) {
+                        createReadConnections(dbFile, readConnections);
+                    }
+                    recreated = true;
+                    for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables
+                            .entrySet()) {
+                        syncTable(entry.getKey(), entry.getValue());
+                    }
+                    for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes
+                            .entrySet()) {
+                        syncIndexes(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                if (!recreated) {
+                    returnReadConnections(takenReadConnections);
+                }
             }
             if (!success) {
                 throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
@@ -140,7 +204,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = connection.jdbcConnection.createStatement();
             StatementCloser closer = new StatementCloser(statement);
             try {
                 // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -163,40 +227,31 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
+        return executeQuery(sql, new ArgsBinder(args),
+                new ResultSetExtractor</*@Nullable*/ Long>() {
+                    @Override
+                    public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                        if (!resultSet.next()) {
+                            return null;
+                        }
+                        long val = resultSet.getLong(1);
+                        Long value = resultSet.wasNull() ? null : val;
+                        if (resultSet.next()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        return value;
                     }
-                    return value;
-                }
-            });
-        }
+                }, null);
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return false;
+        return executeQuery(sql, new ArgsBinder(args), new ResultSetExtractor<Boolean>() {
+            @Override
+            public Boolean extractData(ResultSet resultSet) throws SQLException {
+                return resultSet.next();
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
-                @Override
-                public Boolean extractData(ResultSet resultSet) throws SQLException {
-                    return resultSet.next();
-                }
-            });
-        }
+        }, false);
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -215,23 +270,23 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
+        BlockingQueue<CachingConnection> readConnections = this.readConnections;
+        if (readConnections == null) {
+            synchronized (lock) {
+                if (closed) {
+                    return jdbcQuery.valueIfDataSourceClosed();
+                }
+                return query(connection, jdbcQuery);
+            }
+        }
+        CachingConnection readConnection = Uninterruptibles.takeUninterruptibly(readConnections);
+        try {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            return query(readConnection, jdbcQuery);
+        } finally {
+            readConnections.add(readConnection);
         }
     }
 
@@ -247,30 +302,23 @@ public class DataSource {
         return list.get(0);
     }
 
-    public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
+    public <T extends /*@NonNull*/ Object> List<T> query(final JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
+        return executeQuery(jdbcQuery.getSql(), new StatementBinder() {
+            @Override
+            public void bind(PreparedStatement preparedStatement) throws SQLException {
+                jdbcQuery.bind(preparedStatement);
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
+        }, new ResultSetExtractor<List<T>>() {
+            @Override
+            public List<T> extractData(ResultSet resultSet) throws Exception {
                 List<T> mappedRows = Lists.newArrayList();
                 while (resultSet.next()) {
                     mappedRows.add(jdbcQuery.mapRow(resultSet));
                 }
                 return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        }, ImmutableList.<T>of());
     }
 
     public int update(final @Untainted String sql, final @Nullable Object... args)
@@ -301,7 +349,8 @@ public class DataSource {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement(jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeUpdate();
             // don't need to close statement since they are all cached and used under lock
@@ -320,7 +369,8 @@ public class DataSource {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement(jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -342,7 +392,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, connection.jdbcConnection);
             tables.put(tableName, ImmutableList.copyOf(columns));
         }
     }
@@ -353,7 +403,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, connection.jdbcConnection);
             this.indexes.put(tableName, indexes);
         }
     }
@@ -365,21 +415,22 @@ public class DataSource {
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.tableExists(tableName, connection);
+            return !closed && Schemas.tableExists(tableName, connection.jdbcConnection);
         }
     }
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.columnExists(tableName, columnName, connection);
+            return !closed
+                    && Schemas.columnExists(tableName, columnName, connection.jdbcConnection);
         }
     }
 
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (Schemas.tableExists(oldTableName, connection.jdbcConnection)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -387,7 +438,7 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (Schemas.columnExists(tableName, oldColumnName, connection.jdbcConnection)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -395,53 +446,141 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return;
+        synchronized (takeAllReadConnectionsLock) {
+            List<CachingConnection> takenReadConnections = takeAllReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    closeReadConnections(takenReadConnections);
+                    connection.close();
+                }
+            } finally {
+                returnReadConnections(takenReadConnections);
             }
-            closed = true;
-            connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
+    private <T extends /*@Nullable*/ Object> T executeQuery(@Untainted String sql,
+            StatementBinder binder, ResultSetExtractor<T> rse, T valueIfDataSourceClosed)
+            throws SQLException {
+        BlockingQueue<CachingConnection> readConnections = this.readConnections;
+        if (readConnections == null) {
+            synchronized (lock) {
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                return executeQuery(connection, sql, binder, rse);
+            }
+        }
+        CachingConnection readConnection = Uninterruptibles.takeUninterruptibly(readConnections);
+        try {
+            if (closed) {
+                return valueIfDataSourceClosed;
+            }
+            return executeQuery(readConnection, sql, binder, rse);
+        } finally {
+            readConnections.add(readConnection);
+        }
+    }
+
+    // requires lock
+    //
+    // the connections are only added to the pool once all of them have been created, so that the
+    // pool never contains a mix of open and closed connections
+    private void createReadConnections(File dbFile,
+            BlockingQueue<CachingConnection> readConnections) throws SQLException {
+        List<CachingConnection> connections = Lists.newArrayList();
+        try {
+            for (int i = 0; i < readConnectionPoolSize; i++) {
+                connections.add(new CachingConnection(createConnection(dbFile, true)));
+            }
+        } catch (SQLException e) {
+            for (CachingConnection connection : connections) {
+                connection.closeQuietly();
+            }
+            throw e;
+        }
+        allReadConnections = connections.toArray(new CachingConnection[connections.size()]);
+        readConnections.addAll(connections);
+    }
+
+    // requires takeAllReadConnectionsLock, and must NOT be called under lock (see comment on
+    // takeAllReadConnectionsLock)
+    private List<CachingConnection> takeAllReadConnections() {
+        if (readConnections == null) {
+            return ImmutableList.of();
+        }
+        List<CachingConnection> takenReadConnections = Lists.newArrayList();
+        // this waits for any in-flight queries to complete
+        for (int i = 0; i < readConnectionPoolSize; i++) {
+            takenReadConnections.add(Uninterruptibles.takeUninterruptibly(readConnections));
         }
+        return takenReadConnections;
+    }
+
+    private static void closeReadConnections(List<CachingConnection> readConnections)
+            throws SQLException {
+        for (CachingConnection readConnection : readConnections) {
+            readConnection.close();
+        }
+    }
+
+    // returns the taken (and possibly closed) connections to the pool so that threads waiting on
+    // the pool don't block forever (when the data source is closed they check the closed flag
+    // before using the connection, otherwise they fail using the closed connection)
+    private void returnReadConnections(List<CachingConnection> takenReadConnections) {
+        if (readConnections != null) {
+            readConnections.addAll(takenReadConnections);
+        }
+    }
+
+    // the connection must either be the writer connection (with lock acquired) or a read
+    // connection that was taken from the pool
+    private static <T> T query(CachingConnection connection, JdbcQuery<T> jdbcQuery)
+            throws Exception {
+        PreparedStatement preparedStatement =
+                connection.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+        jdbcQuery.bind(preparedStatement);
         ResultSet resultSet = preparedStatement.executeQuery();
         ResultSetCloser closer = new ResultSetCloser(resultSet);
         try {
-            return rse.extractData(resultSet);
+            return jdbcQuery.processResultSet(resultSet);
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and the connection is not
+        // shared by multiple threads at the same time
     }
 
-    private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+    // the connection must either be the writer connection (with lock acquired) or a read
+    // connection that was taken from the pool
+    private static <T extends /*@Nullable*/ Object> T executeQuery(CachingConnection connection,
+            @Untainted String sql, StatementBinder binder, ResultSetExtractor<T> rse)
             throws SQLException {
+        PreparedStatement preparedStatement =
+                connection.prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+        binder.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
         try {
-            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            return preparedStatement;
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
-            throw new SQLException(e);
+            return rse.extractData(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
         }
+        // don't need to close statement since they are all cached and the connection is not
+        // shared by multiple threads at the same time
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private static Connection createConnection(@Nullable File dbFile, boolean multiThreaded)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -455,6 +594,14 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                // multi_threaded is needed so that statements on different connections are not
+                // serialized on the database object (h2 1.3 does not support mvcc together with
+                // multi_threaded, so reads and writes against the same table still wait on each
+                // other's table locks, and lock_timeout is raised to match the query timeout so
+                // that writes wait instead of failing)
+                url += ";multi_threaded=true;lock_timeout=" + QUERY_TIMEOUT_SECONDS * 1000;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -508,10 +655,81 @@ public class DataSource {
         void bind(PreparedStatement preparedStatement) throws SQLException;
     }
 
+    private interface StatementBinder {
+        void bind(PreparedStatement preparedStatement) throws SQLException;
+    }
+
     private interface ResultSetExtractor<T extends /*@Nullable*/ Object> {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private static class ArgsBinder implements StatementBinder {
+
+        private final @Nullable Object[] args;
+
+        private ArgsBinder(@Nullable Object[] args) {
+            this.args = args;
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (int i = 0; i < args.length; i++) {
+                preparedStatement.setObject(i + 1, args[i]);
+            }
+        }
+    }
+
+    // jdbc connection with its own prepared statement cache, since prepared statements are tied to
+    // the connection that created them
+    private static class CachingConnection {
+
+        private final Connection jdbcConnection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private CachingConnection(final Connection jdbcConnection) {
+            this.jdbcConnection = jdbcConnection;
+            preparedStatementCache = CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return jdbcConnection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            try {
+                PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+                // setQueryTimeout() affects all statements of this connection (at least with h2)
+                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+                return preparedStatement;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+
+        private void close() throws SQLException {
+            preparedStatementCache.invalidateAll();
+            jdbcConnection.close();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (SQLException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -525,6 +743,13 @@ public class DataSource {
                 closed = true;
                 synchronized (lock) {
                     connection.close();
+                    // don't wait for in-flight queries here, the read connections (including
+                    // those in use) are closed out from under them, and the idle connections stay
+                    // in the pool so that waiting threads see the closed flag (see close())
+                    CachingConnection[] allReadConnections = DataSource.this.allReadConnections;
+                    for (int i = 0; i < allReadConnections.length; i++) {
+                        allReadConnections[i].closeQuietly();
+                    }
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// adaptive head sampling, decides at the start of each transaction whether it captures trace
+// entries
+//
+// transactions that are not sampled still record timers, queries, service calls and duration into
+// the aggregates, so aggregates (and the throughput and percentile charts) still include every
+// transaction and do not need to be scaled by the sampling ratio
+//
+// transactions that are not sampled also still capture error entries (up to the usual entry
+// limits), and are not reported as having exceeded the entry limit
+//
+// the sampling ratio is adjusted about once a second so that the estimated cpu spent capturing
+// trace entries stays within the target budget
+public class AdaptiveSampler implements AdaptiveSamplerMXBean {
+
+    // percent of total cpu (across all processors), zero disables adaptive sampling
+    private static final int TARGET_CPU_PERCENT =
+            Integer.getInteger("glowroot.adaptiveSampling.targetCpuPercent", 0);
+
+    // estimated cpu cost of capturing a single trace entry (including its share of building and
+    // storing the trace)
+    private static final long ENTRY_COST_NANOS =
+            Long.getLong("glowroot.adaptiveSampling.entryCostNanos", 2000);
+
+    private static final long ADJUST_INTERVAL_NANOS = SECONDS.toNanos(1);
+
+    // always sample some transactions so that traces still have entries
+    private static final double MIN_SAMPLING_RATIO = 0.001;
+
+    private final Ticker ticker;
+    private final long maxEntriesPerSecond;
+
+    private final AtomicLong transactionCounter = new AtomicLong();
+    private final AtomicLong sampledCount = new AtomicLong();
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong intervalStartTick;
+
+    private volatile double samplingRatio = 1;
+
+    public AdaptiveSampler(Ticker ticker) {
+        this(ticker, getMaxEntriesPerSecond(TARGET_CPU_PERCENT, ENTRY_COST_NANOS,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    @VisibleForTesting
+    AdaptiveSampler(Ticker ticker, long maxEntriesPerSecond) {
+        this.ticker = ticker;
+        this.maxEntriesPerSecond = maxEntriesPerSecond;
+        intervalStartTick = new AtomicLong(ticker.read());
+    }
+
+    // called at the start of each transaction (transactions are not counted when disabled, to keep
+    // the disabled path free of contention)
+    boolean sample() {
+        if (maxEntriesPerSecond == 0) {
+            return true;
+        }
+        double samplingRatio = this.samplingRatio;
+        long n = transactionCounter.getAndIncrement();
+        // spreads the sampled transactions evenly, e.g. ratio 0.25 samples every 4th transaction
+        boolean sampled = (long) ((n + 1) * samplingRatio) != (long) (n * samplingRatio);
+        if (sampled) {
+            sampledCount.getAndIncrement();
+        }
+        return sampled;
+    }
+
+    // called at the end of each transaction
+    void onCompleted(int capturedEntryCount) {
+        if (maxEntriesPerSecond == 0) {
+            return;
+        }
+        entryCount.getAndAdd(capturedEntryCount);
+        long currTick = ticker.read();
+        long startTick = intervalStartTick.get();
+        if (currTick - startTick >= ADJUST_INTERVAL_NANOS
+                && intervalStartTick.compareAndSet(startTick, currTick)) {
+            adjust(entryCount.getAndSet(0), currTick - startTick);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return maxEntriesPerSecond != 0;
+    }
+
+    @Override
+    public long getMaxEntriesPerSecond() {
+        return maxEntriesPerSecond;
+    }
+
+    @Override
+    public double getSamplingRatio() {
+        return samplingRatio;
+    }
+
+    @Override
+    public long getSampledTransactionCount() {
+        return sampledCount.get();
+    }
+
+    @Override
+    public long getUnsampledTransactionCount() {
+        return transactionCounter.get() - getSampledTransactionCount();
+    }
+
+    private void adjust(long entryCount, long elapsedNanos) {
+        double currSamplingRatio = samplingRatio;
+        double entriesPerSecond = entryCount * (double) SECONDS.toNanos(1) / elapsedNanos;
+        // estimated entries per second if every transaction was sampled
+        double unsampledEntriesPerSecond = entriesPerSecond / currSamplingRatio;
+        double targetSamplingRatio;
+        if (unsampledEntriesPerSecond <= maxEntriesPerSecond) {
+            targetSamplingRatio = 1;
+        } else {
+            targetSamplingRatio = Math.max(MIN_SAMPLING_RATIO,
+                    maxEntriesPerSecond / unsampledEntriesPerSecond);
+        }
+        if (targetSamplingRatio < currSamplingRatio) {
+            // back off immediately when over budget
+            samplingRatio = targetSamplingRatio;
+        } else {
+            // recover gradually to avoid oscillating on bursty load
+            samplingRatio = (currSamplingRatio + targetSamplingRatio) / 2;
+        }
+    }
+
+    @VisibleForTesting
+    static long getMaxEntriesPerSecond(int targetCpuPercent, long entryCostNanos,
+            int availableProcessors) {
+        if (targetCpuPercent <= 0) {
+            return 0;
+        }
+        return Math.max(1, SECONDS.toNanos(1) * availableProcessors * targetCpuPercent / 100
+                / Math.max(1, entryCostNanos));
+    }
+}
@@ -31,6 +31,7 @@ import org.glowroot.agent.model.MutableAggregateTimer;
 import org.glowroot.agent.model.Profile;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.SqlFingerprinter;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
@@ -82,12 +83,14 @@ class AggregateCollector {
 
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
+    private final @Nullable SqlFingerprinter sqlFingerprinter;
 
     AggregateCollector(@Nullable String transactionName, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType) {
+            int maxAggregateServiceCallsPerType, @Nullable SqlFingerprinter sqlFingerprinter) {
         this.transactionName = transactionName;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        this.sqlFingerprinter = sqlFingerprinter;
     }
 
     void add(Transaction transaction) {
@@ -105,6 +108,40 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to combine shards in AggregateIntervalCollector
+    void merge(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            getQueryCollector().mergeQueries(collector.queries);
+        }
+        if (collector.serviceCalls != null) {
+            getServiceCallCollector().mergeServiceCalls(collector.serviceCalls.toProto());
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -137,7 +174,7 @@ class AggregateCollector {
                     ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
                     : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
             queries = new QueryCollector(maxAggregateQueriesPerType,
-                    queriesHardLimitMultiplierWhileBuilding);
+                    queriesHardLimitMultiplierWhileBuilding, sqlFingerprinter);
         }
         return queries;
     }
@@ -281,6 +318,25 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer rootTimer = getOrCreateRootTimer(
+                        toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+                rootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
+        private MutableAggregateTimer getOrCreateRootTimer(String name, boolean extended) {
+            for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                if (name.equals(rootTimer.getName()) && extended == rootTimer.isExtended()) {
+                    return rootTimer;
+                }
+            }
+            MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(name, extended);
+            rootMutableTimers.add(rootTimer);
+            return rootTimer;
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -327,6 +383,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            if (collector.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
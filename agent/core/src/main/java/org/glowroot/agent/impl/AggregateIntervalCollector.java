@@ -18,6 +18,8 @@ package org.glowroot.agent.impl;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -29,6 +31,7 @@ import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
 import org.glowroot.agent.model.Profile;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.SqlFingerprinter;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
@@ -52,21 +55,33 @@ public class AggregateIntervalCollector {
     private final int maxAggregateTransactionsType;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
+    private final @Nullable SqlFingerprinter sqlFingerprinter;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // there is only a single shard unless sharded aggregation is enabled, in which case each
+    // shard is added to by its own aggregate processing thread, and shards are only combined when
+    // flushing (and when reading overall aggregates)
+    private final Shard[] shards;
 
-    private final Object lock = new Object();
+    // this is shared across shards so that maxAggregateTransactionsPerType is applied across all
+    // shards
+    private final ConcurrentMap<String, AtomicInteger> transactionNameCounts =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsType, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType, Clock clock) {
+            int maxAggregateServiceCallsPerType, int shardCount,
+            @Nullable SqlFingerprinter sqlFingerprinter, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
         this.maxAggregateTransactionsType = maxAggregateTransactionsType;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        this.sqlFingerprinter = sqlFingerprinter;
         this.clock = clock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
     }
 
     public long getCaptureTime() {
@@ -74,158 +89,196 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+        String transactionType = transaction.getTransactionType();
+        Shard shard = shards[getShardIndex(transactionType, transaction.getTransactionName(),
+                shards.length)];
+        synchronized (shard.lock) {
+            IntervalTypeCollector typeCollector = shard.getTypeCollector(transactionType);
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector != null) {
+                    typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+                }
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard shard = getOwningShard(transactionType, transactionName);
+        if (shard != null) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getOverviewAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getOverviewAggregate(getLiveCaptureTime());
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard shard = getOwningShard(transactionType, transactionName);
+        if (shard != null) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getPercentileAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getPercentileAggregate(getLiveCaptureTime());
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        Shard shard = getOwningShard(transactionType, transactionName);
+        if (shard != null) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getThroughputAggregate(getLiveCaptureTime());
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getThroughputAggregate(getLiveCaptureTime());
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                for (IntervalTypeCollector typeCollector : shard.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeQueriesInto(collector);
+                }
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeServiceCallsInto(collector);
+                }
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeMainThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector != null) {
+                    aggregateCollector.mergeAuxThreadProfilesInto(collector);
+                }
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
@@ -234,31 +287,122 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                shard.typeCollectors.clear();
+            }
         }
+        transactionNameCounts.clear();
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        if (shardCount == 1) {
+            return 0;
         }
-        return typeCollector;
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        // spread higher bits downward, same as java.util.HashMap
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shardCount;
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+    private long getLiveCaptureTime() {
+        return Math.min(captureTime, clock.currentTimeMillis());
+    }
+
+    // returns null if the aggregate is spread across multiple shards
+    private @Nullable Shard getOwningShard(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        if (transactionName == null || transactionName.equals(LIMIT_EXCEEDED_BUCKET)) {
             return null;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        return shards[getShardIndex(transactionType, transactionName, shards.length)];
+    }
+
+    private @Nullable AggregateCollector getMergedAggregateCollector(String transactionType,
+            @Nullable String transactionName) {
+        @Nullable
+        AggregateCollector mergedAggregateCollector = null;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                            sqlFingerprinter);
+                }
+                mergedAggregateCollector.merge(aggregateCollector);
+            }
+        }
+        return mergedAggregateCollector;
+    }
+
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() {
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newHashMap();
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                for (Entry<String, IntervalTypeCollector> entry : shard.typeCollectors
+                        .entrySet()) {
+                    IntervalTypeCollector mergedTypeCollector =
+                            mergedTypeCollectors.get(entry.getKey());
+                    if (mergedTypeCollector == null) {
+                        mergedTypeCollector = new IntervalTypeCollector(new AtomicInteger());
+                        mergedTypeCollectors.put(entry.getKey(), mergedTypeCollector);
+                    }
+                    mergedTypeCollector.merge(entry.getValue());
+                }
+            }
+        }
+        return mergedTypeCollectors;
+    }
+
+    private class Shard {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector(getTransactionNameCount(transactionType));
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        private AtomicInteger getTransactionNameCount(String transactionType) {
+            AtomicInteger transactionNameCount = transactionNameCounts.get(transactionType);
+            if (transactionNameCount == null) {
+                transactionNameCount = new AtomicInteger();
+                AtomicInteger existing =
+                        transactionNameCounts.putIfAbsent(transactionType, transactionNameCount);
+                if (existing != null) {
+                    transactionNameCount = existing;
+                }
+            }
+            return transactionNameCount;
         }
     }
 
@@ -267,10 +411,13 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        // this is shared by the type collectors for the same transaction type across all shards
+        private final AtomicInteger transactionNameCount;
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(AtomicInteger transactionNameCount) {
             overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
-                    maxAggregateServiceCallsPerType);
+                    maxAggregateServiceCallsPerType, sqlFingerprinter);
+            this.transactionNameCount = transactionNameCount;
         }
 
         private void add(Transaction transaction) {
@@ -278,10 +425,11 @@ public class AggregateIntervalCollector {
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                if (transactionAggregateCollectors.size() < maxAggregateTransactionsType) {
+                if (transactionNameCount.incrementAndGet() <= maxAggregateTransactionsType) {
                     transactionAggregateCollector =
                             createTransactionAggregateCollector(transaction.getTransactionName());
                 } else {
+                    transactionNameCount.decrementAndGet();
                     transactionAggregateCollector =
                             transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
                     if (transactionAggregateCollector == null) {
@@ -293,9 +441,26 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        // the limit on transaction names was already applied in each shard, so it is not applied
+        // again when combining shards
+        private void merge(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Entry<String, AggregateCollector> entry : typeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(entry.getKey());
+                if (transactionAggregateCollector == null) {
+                    transactionAggregateCollector =
+                            createTransactionAggregateCollector(entry.getKey());
+                }
+                transactionAggregateCollector.merge(entry.getValue());
+            }
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                    transactionName, maxAggregateQueriesPerType, maxAggregateServiceCallsPerType,
+                    sqlFingerprinter);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
@@ -348,25 +513,35 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
+            if (shards.length == 1) {
+                Shard shard = shards[0];
+                synchronized (shard.lock) {
+                    accept(aggregateVisitor, shard.typeCollectors);
+                }
+            } else {
+                accept(aggregateVisitor, getMergedTypeCollectors());
+            }
+        }
+
+        private void accept(AggregateVisitor aggregateVisitor,
+                Map<String, IntervalTypeCollector> typeCollectors) throws Exception {
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                        .build(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Entry<String, AggregateCollector> f : intervalTypeCollector
+                        .transactionAggregateCollectors.entrySet()) {
+                    Aggregate transactionAggregate =
+                            f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
                             sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
+                            transactionAggregate);
                 }
             }
         }
@@ -18,10 +18,13 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -29,12 +32,16 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ConcurrencyGauge.ConcurrencySnapshot;
+import org.glowroot.agent.model.SqlFingerprinter;
+import org.glowroot.agent.util.CaptureTimeOrderedQueue;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
@@ -45,6 +52,35 @@ public class Aggregator {
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
+    // back pressure on each aggregate shard (only used when sharded aggregation is enabled), once
+    // this is exceeded the dispatching thread waits for the shard to catch up (the transaction
+    // cannot be aggregated by the dispatching thread instead, since each shard must only be added
+    // to by its own thread, and must not be added to after its interval has been flushed)
+    private static final int SHARD_PENDING_LIMIT = 1000;
+
+    // number of threads to aggregate transactions in parallel, each thread aggregates a disjoint
+    // set of transaction names and the shards are combined when the aggregates are flushed
+    private static final int AGGREGATE_SHARD_COUNT =
+            Integer.getInteger("glowroot.aggregate.shardCount", 1);
+
+    // replaces literals in sql query text (see SqlFingerprinter) so that queries built with inline
+    // literals are aggregated together
+    private static final boolean SQL_FINGERPRINTING =
+            Boolean.getBoolean("glowroot.aggregate.sqlFingerprinting");
+
+    // per transaction type concurrency is stored as gauge values (InFlight, Peak and Average) with
+    // each aggregate interval's capture time
+    //
+    // gauge values are rolled up by weighted average (the same as all other gauges), so at rolled
+    // up levels Peak is the average of the per-interval peaks and not the max, storing a true max
+    // would need a different rollup function for these gauges in both the embedded and central
+    // gauge tables
+    //
+    // the time a request waits in a container's queue (before its transaction starts) is not
+    // included, since the agent only observes a request once its transaction has started on a
+    // worker thread
+    private static final String CONCURRENCY_GAUGE_PREFIX =
+            "org.glowroot:type=TransactionConcurrency,name=";
 
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
@@ -52,40 +88,69 @@ public class Aggregator {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    // empty unless sharded aggregation is enabled
+    private final List<ExecutorService> shardExecutors;
+    // permits are acquired before adding a transaction to the (unbounded) shard executor queue and
+    // released once the transaction has been aggregated
+    private final List<Semaphore> shardPermits;
     private final Collector collector;
     private final ConfigService configService;
+    private final TransactionRegistry transactionRegistry;
     private final Clock clock;
+    private final Ticker ticker;
 
     private final long aggregateIntervalMillis;
+    private final int shardCount;
+    private final @Nullable SqlFingerprinter sqlFingerprinter;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // transactions are placed into the queue in the order of captureTime (so that queue reader can
+    // assume if captureTime indicates time to flush, then no new transactions will come in with
+    // prior captureTime)
+    private final CaptureTimeOrderedQueue<Transaction> queue =
+            new CaptureTimeOrderedQueue<Transaction>();
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
-            long aggregateIntervalMillis, Clock clock) {
+            TransactionRegistry transactionRegistry, long aggregateIntervalMillis, Clock clock,
+            Ticker ticker) {
+        this(collector, configService, transactionRegistry, aggregateIntervalMillis,
+                AGGREGATE_SHARD_COUNT, SHARD_PENDING_LIMIT, clock, ticker);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService,
+            TransactionRegistry transactionRegistry, long aggregateIntervalMillis, int shardCount,
+            int shardPendingLimit, Clock clock, Ticker ticker) {
         this.collector = collector;
         this.configService = configService;
+        this.transactionRegistry = transactionRegistry;
         this.clock = clock;
+        this.ticker = ticker;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        this.shardCount = Math.max(shardCount, 1);
+        sqlFingerprinter = SQL_FINGERPRINTING ? new SqlFingerprinter() : null;
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        if (this.shardCount == 1) {
+            shardExecutors = ImmutableList.of();
+            shardPermits = ImmutableList.of();
+        } else {
+            List<ExecutorService> shardExecutors = Lists.newArrayList();
+            List<Semaphore> shardPermits = Lists.newArrayList();
+            for (int i = 0; i < this.shardCount; i++) {
+                shardExecutors.add(Executors.newSingleThreadExecutor(
+                        ThreadFactories.create("Glowroot-Aggregate-Processing-" + i)));
+                shardPermits.add(new Semaphore(shardPendingLimit));
+            }
+            this.shardExecutors = ImmutableList.copyOf(shardExecutors);
+            this.shardPermits = ImmutableList.copyOf(shardPermits);
+        }
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessor());
     }
 
@@ -107,26 +172,15 @@ public class Aggregator {
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-                return captureTime;
-            }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+        long captureTime = clock.currentTimeMillis();
+        if (queue.size() >= TRANSACTION_PENDING_LIMIT) {
+            backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                    + " backlog of {} transactions already waiting to be aggregated",
+                    TRANSACTION_PENDING_LIMIT);
+            transaction.removeFromActiveTransactions();
+            return captureTime;
         }
-        return captureTime;
+        return queue.add(transaction, captureTime);
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -148,16 +202,31 @@ public class Aggregator {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        queue.wakeConsumer();
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        for (ExecutorService shardExecutor : shardExecutors) {
+            shardExecutor.shutdown();
+            if (!shardExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), shardCount,
+                sqlFingerprinter, clock);
+    }
+
     private class TransactionProcessor implements Runnable {
 
         @Override
@@ -172,82 +241,113 @@ public class Aggregator {
             }
         }
 
-        private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
-            if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+        private void processOne() {
+            CaptureTimeOrderedQueue.Entry<Transaction> entry = queue.poll();
+            if (entry == null) {
+                long currentTime = clock.currentTimeMillis();
+                long activeCaptureTime = activeIntervalCollector.getCaptureTime();
+                if (currentTime > activeCaptureTime) {
+                    // the end of interval marker goes through the queue just like transactions, so
+                    // any transaction that is not already ahead of the marker in the queue will be
+                    // assigned a capture time that is no earlier than the marker's capture time
+                    queue.add(null, currentTime);
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    // wait until a transaction is added or until the end of the active interval
+                    queue.await(MILLISECONDS.toNanos(activeCaptureTime - currentTime + 1));
                 }
                 return;
             }
-            // remove transaction from list of active transactions
-            // used to do this at the very end of Transaction.end(), but moved to here to remove the
-            // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.removeFromActiveTransactions();
-
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            Transaction transaction = entry.getElement();
+            if (transaction != null) {
+                // remove transaction from list of active transactions
+                // used to do this at the very end of Transaction.end(), but moved to here to remove
+                // the (minor) cost from the transaction main path
+                transaction.removeFromActiveTransactions();
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
+            long captureTime = entry.getCaptureTime();
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                activeIntervalCollector = createIntervalCollector(captureTime);
+            }
+            if (transaction != null) {
+                aggregate(activeIntervalCollector, transaction);
             }
-            activeIntervalCollector.add(transaction);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        private void aggregate(final AggregateIntervalCollector intervalCollector,
+                final Transaction transaction) {
+            if (shardExecutors.isEmpty()) {
+                intervalCollector.add(transaction);
+                return;
             }
+            int shardIndex = AggregateIntervalCollector.getShardIndex(
+                    transaction.getTransactionType(), transaction.getTransactionName(),
+                    shardExecutors.size());
+            final Semaphore permits = shardPermits.get(shardIndex);
+            permits.acquireUninterruptibly();
+            shardExecutors.get(shardIndex).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        intervalCollector.add(transaction);
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
         }
 
         private void flushActiveIntervalCollector() {
+            // concurrency gauges are rolled over even if the aggregate is not going to be stored,
+            // so that the next interval starts fresh
+            final List<GaugeValue> concurrencyGaugeValues = getConcurrencyGaugeValues(
+                    activeIntervalCollector.getCaptureTime());
             if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+                // the concurrency gauge values are small (unlike the aggregate), so they are still
+                // stored, which also keeps them in capture time order with the other intervals
+                if (!concurrencyGaugeValues.isEmpty()) {
+                    flushingExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                collector.collectGaugeValues(concurrencyGaugeValues);
+                            } catch (Throwable t) {
+                                logger.error(t.getMessage(), t);
+                            }
+                        }
+                    });
+                }
                 return;
             }
             final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
             pendingIntervalCollectors.add(intervalCollector);
+            // each shard executor processes its tasks in order, so once these complete, all
+            // transactions for the interval have been added to the interval collector (the
+            // barriers do not acquire shard permits, so they are always queued behind the
+            // transactions, and never run ahead of them)
+            final List<Future<?>> shardBarriers = Lists.newArrayList();
+            for (ExecutorService shardExecutor : shardExecutors) {
+                shardBarriers.add(shardExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {}
+                }));
+            }
             // flush in separate thread to avoid pending transactions from piling up quickly
             flushingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
+                        for (Future<?> shardBarrier : shardBarriers) {
+                            shardBarrier.get();
+                        }
                         intervalCollector.flush(collector);
+                        if (!concurrencyGaugeValues.isEmpty()) {
+                            collector.collectGaugeValues(concurrencyGaugeValues);
+                        }
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
                     } finally {
@@ -256,16 +356,32 @@ public class Aggregator {
                 }
             });
         }
-    }
-
-    private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
-
-        private PendingTransaction(@Nullable Transaction transaction) {
-            this.transaction = transaction;
+        private List<GaugeValue> getConcurrencyGaugeValues(long captureTime) {
+            List<GaugeValue> gaugeValues = Lists.newArrayList();
+            for (ConcurrencySnapshot snapshot : transactionRegistry
+                    .rollConcurrencyGauges(ticker.read())) {
+                if (snapshot.peak() == 0) {
+                    // no transactions of this type during the interval
+                    continue;
+                }
+                String prefix = CONCURRENCY_GAUGE_PREFIX + snapshot.transactionType() + ":";
+                gaugeValues.add(createGaugeValue(prefix + "InFlight", captureTime,
+                        snapshot.inFlight()));
+                gaugeValues.add(createGaugeValue(prefix + "Peak", captureTime, snapshot.peak()));
+                gaugeValues.add(createGaugeValue(prefix + "Average", captureTime,
+                        snapshot.average()));
+            }
+            return gaugeValues;
         }
     }
+
+    private static GaugeValue createGaugeValue(String gaugeName, long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
 }
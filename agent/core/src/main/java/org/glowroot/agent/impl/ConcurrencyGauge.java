@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.immutables.value.Value;
+
+import org.glowroot.agent.util.Tickers;
+
+// lock-free tracking of the number of in-flight transactions of a single transaction type
+//
+// the time-weighted average for an interval is the total time that transactions were in-flight
+// during the interval divided by the length of the interval, which is made up of the in-flight
+// time of transactions that completed during the interval (accumulated on completion) plus the
+// in-flight time of transactions that are still in-flight at the end of the interval (calculated
+// from TransactionRegistry at the end of the interval)
+//
+// a transaction that completes at the same time that the interval is rolled over may have its
+// in-flight time attributed to the wrong interval, which is ok since this is only a gauge
+class ConcurrencyGauge {
+
+    private final String transactionType;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicLong completedNanos = new AtomicLong();
+
+    private volatile long intervalStartTick;
+
+    // only accessed by the thread calling roll()
+    private long inFlightNanos;
+
+    ConcurrencyGauge(String transactionType, long intervalStartTick) {
+        this.transactionType = transactionType;
+        this.intervalStartTick = intervalStartTick;
+    }
+
+    void onStart() {
+        int curr = inFlight.incrementAndGet();
+        int currPeak = peak.get();
+        while (curr > currPeak && !peak.compareAndSet(currPeak, curr)) {
+            currPeak = peak.get();
+        }
+    }
+
+    void onComplete(long startTick, long endTick) {
+        inFlight.decrementAndGet();
+        completedNanos.addAndGet(Math.max(endTick - getStartTickInInterval(startTick), 0));
+    }
+
+    // called by the thread calling roll(), for each transaction that is still in-flight
+    void addInFlight(long startTick, long currentTick) {
+        inFlightNanos += Math.max(currentTick - getStartTickInInterval(startTick), 0);
+    }
+
+    // called at the end of each interval, after addInFlight() has been called for each transaction
+    // that is still in-flight
+    ConcurrencySnapshot roll(long currentTick) {
+        long intervalNanos = currentTick - intervalStartTick;
+        intervalStartTick = currentTick;
+        long totalNanos = completedNanos.getAndSet(0) + inFlightNanos;
+        inFlightNanos = 0;
+        int currInFlight = inFlight.get();
+        // the peak for the next interval starts out with the transactions that are still in-flight
+        int intervalPeak = peak.getAndSet(currInFlight);
+        double average = intervalNanos <= 0 ? 0 : totalNanos / (double) intervalNanos;
+        return ImmutableConcurrencySnapshot.builder()
+                .transactionType(transactionType)
+                .inFlight(currInFlight)
+                // max with current in-flight in case of race condition with onStart()
+                .peak(Math.max(intervalPeak, currInFlight))
+                .average(average)
+                .build();
+    }
+
+    private long getStartTickInInterval(long startTick) {
+        long intervalStartTick = this.intervalStartTick;
+        return Tickers.lessThanOrEqual(startTick, intervalStartTick) ? intervalStartTick
+                : startTick;
+    }
+
+    @Value.Immutable
+    interface ConcurrencySnapshot {
+        String transactionType();
+        // number of transactions in-flight at the end of the interval
+        int inFlight();
+        // max number of transactions in-flight at any time during the interval (see comment in
+        // Aggregator regarding rollups)
+        int peak();
+        // time-weighted average number of transactions in-flight during the interval
+        double average();
+    }
+}
@@ -22,6 +22,8 @@ import java.util.Random;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -32,23 +34,46 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-public class StackTraceCollector {
+public class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // when greater than zero, the active threads are captured in batches of this size which are
+    // spread across the profiling interval, instead of all at once at a single random point in the
+    // interval, in order to avoid a single long safepoint pause when there are many active threads
+    private static final int BATCH_SIZE = Integer.getInteger("glowroot.stackTrace.batchSize", 0);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
+    private final Ticker ticker;
+    private final int batchSize;
+
+    // these are only written by the processing thread
+    private volatile long lastPassCaptureNanos;
+    private volatile long lastPassMaxBatchCaptureNanos;
+    private volatile int lastPassSampledThreadCount;
+    private volatile int lastPassBatchCount;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            ConfigService configService, Random random, Ticker ticker) {
+        this(transactionRegistry, configService, random, ticker, BATCH_SIZE);
+    }
+
+    @VisibleForTesting
+    StackTraceCollector(TransactionRegistry transactionRegistry,
+            final ConfigService configService, Random random, Ticker ticker, int batchSize) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        this.ticker = ticker;
+        this.batchSize = batchSize;
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -79,12 +104,119 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
+    @Override
+    public double getLastPassCaptureMillis() {
+        return lastPassCaptureNanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getLastPassMaxBatchCaptureMillis() {
+        return lastPassMaxBatchCaptureNanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public int getLastPassSampledThreadCount() {
+        return lastPassSampledThreadCount;
+    }
+
+    @Override
+    public int getLastPassBatchCount() {
+        return lastPassBatchCount;
+    }
+
+    @VisibleForTesting
+    void runInternal() {
+        List<ThreadContextImpl> activeThreadContexts = getActiveThreadContexts();
+        long startTick = ticker.read();
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        int sampledThreadCount = captureStackTraces(activeThreadContexts, limit);
+        long captureNanos = ticker.read() - startTick;
+        updatePassStats(captureNanos, captureNanos, sampledThreadCount,
+                activeThreadContexts.isEmpty() ? 0 : 1);
+    }
+
+    @VisibleForTesting
+    void runBatchedInternal(long intervalStartTick, int intervalMillis)
+            throws InterruptedException {
+        List<ThreadContextImpl> activeThreadContexts = getActiveThreadContexts();
+        int batchCount = (activeThreadContexts.size() + batchSize - 1) / batchSize;
+        if (batchCount == 0) {
+            updatePassStats(0, 0, 0, 0);
+            return;
+        }
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        // each batch is captured at a random point within its own slot of the interval
+        long slotNanos = MILLISECONDS.toNanos(intervalMillis) / batchCount;
+        long totalCaptureNanos = 0;
+        long maxBatchCaptureNanos = 0;
+        int sampledThreadCount = 0;
+        for (int i = 0; i < batchCount; i++) {
+            long captureTick = intervalStartTick + i * slotNanos
+                    + (long) (random.nextFloat() * slotNanos);
+            long sleepNanos = captureTick - ticker.read();
+            if (sleepNanos > 0) {
+                NANOSECONDS.sleep(sleepNanos);
+            }
+            int fromIndex = i * batchSize;
+            int toIndex = Math.min(fromIndex + batchSize, activeThreadContexts.size());
+            // some of the threads in later batches may have completed their transactions
+            // while waiting for their slot
+            List<ThreadContextImpl> batch = Lists.newArrayListWithCapacity(toIndex - fromIndex);
+            for (ThreadContextImpl threadContext : activeThreadContexts.subList(fromIndex,
+                    toIndex)) {
+                if (threadContext.isActive()) {
+                    batch.add(threadContext);
+                }
+            }
+            long startTick = ticker.read();
+            sampledThreadCount += captureStackTraces(batch, limit);
+            long captureNanos = ticker.read() - startTick;
+            totalCaptureNanos += captureNanos;
+            maxBatchCaptureNanos = Math.max(maxBatchCaptureNanos, captureNanos);
+        }
+        updatePassStats(totalCaptureNanos, maxBatchCaptureNanos, sampledThreadCount,
+                batchCount);
+    }
+
+    private void updatePassStats(long captureNanos, long maxBatchCaptureNanos,
+            int sampledThreadCount, int batchCount) {
+        lastPassCaptureNanos = captureNanos;
+        lastPassMaxBatchCaptureNanos = maxBatchCaptureNanos;
+        lastPassSampledThreadCount = sampledThreadCount;
+        lastPassBatchCount = batchCount;
+    }
+
+    private List<ThreadContextImpl> getActiveThreadContexts() {
+        List<Transaction> transactions =
+                ImmutableList.copyOf(transactionRegistry.getTransactions());
+        if (transactions.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<ThreadContextImpl> activeThreadContexts =
+                Lists.newArrayListWithCapacity(2 * transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+            if (mainThreadContext.isActive()) {
+                activeThreadContexts.add(mainThreadContext);
+            }
+            activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+        }
+        return activeThreadContexts;
+    }
+
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
+        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        captureStackTraces(threadContexts, limit);
+    }
+
+    // returns the number of threads sampled
+    private static int captureStackTraces(List<ThreadContextImpl> threadContexts, int limit) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
-            return;
+            return 0;
         }
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
@@ -93,14 +225,16 @@ public class StackTraceCollector {
         @Nullable
         ThreadInfo[] threadInfos =
                 ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        int sampledThreadCount = 0;
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
                 threadContext.captureStackTrace(threadInfo, limit);
+                sampledThreadCount++;
             }
         }
+        return sampledThreadCount;
     }
 
     private class InternalRunnable implements Runnable {
@@ -123,6 +257,10 @@ public class StackTraceCollector {
                         continue;
                     }
                 }
+                if (batchSize > 0) {
+                    remainingInInterval = runBatchedInterval(remainingInInterval, intervalMillis);
+                    continue;
+                }
                 long randomDelayFromIntervalStart = (long) (random.nextFloat() * intervalMillis);
                 try {
                     Thread.sleep(remainingInInterval + randomDelayFromIntervalStart);
@@ -141,23 +279,27 @@ public class StackTraceCollector {
             }
         }
 
-        private void runInternal() {
-            List<Transaction> transactions =
-                    ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
-                return;
+        // returns the remaining time in the interval
+        private long runBatchedInterval(long remainingInPriorInterval, int intervalMillis) {
+            try {
+                Thread.sleep(remainingInPriorInterval);
+            } catch (InterruptedException e) {
+                logger.debug(e.getMessage(), e);
+                // re-start loop
+                return 0;
             }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
-                ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (mainThreadContext.isActive()) {
-                    activeThreadContexts.add(mainThreadContext);
-                }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+            long intervalStartTick = ticker.read();
+            try {
+                runBatchedInternal(intervalStartTick, intervalMillis);
+            } catch (InterruptedException e) {
+                logger.debug(e.getMessage(), e);
+                // re-start loop
+                return 0;
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
             }
-            captureStackTraces(activeThreadContexts, configService);
+            long elapsedMillis = NANOSECONDS.toMillis(ticker.read() - intervalStartTick);
+            return Math.max(0, intervalMillis - elapsedMillis);
         }
     }
 }
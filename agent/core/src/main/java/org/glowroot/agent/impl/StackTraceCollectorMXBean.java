@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface StackTraceCollectorMXBean {
+
+    // total time spent capturing stack traces during the last pass (excluding time spent sleeping
+    // between batches)
+    double getLastPassCaptureMillis();
+    // time spent in the slowest batch of the last pass, which is the best indication of the
+    // longest safepoint pause caused by stack trace capture
+    double getLastPassMaxBatchCaptureMillis();
+    int getLastPassSampledThreadCount();
+    int getLastPassBatchCount();
+}
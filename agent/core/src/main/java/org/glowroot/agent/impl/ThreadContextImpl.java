@@ -140,8 +140,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         this.parentTraceEntry = parentTraceEntry;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
+        // trace entries are only pooled for the main thread context, since the main thread context
+        // is always completed by its own thread
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
-                rootTimer, startTick);
+                rootTimer, startTick, parentTraceEntry == null ? TraceEntryPool.claim() : null);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
         threadStatsComponent =
@@ -448,6 +450,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (!isAuxiliary() || transactionAsyncComplete) {
                 transaction.end(endTick, transactionAsyncComplete);
             }
+            if (!isAuxiliary()) {
+                traceEntryComponent.releasePool(
+                        !mayHaveChildAuxThreadContext && transaction.tryRecycleEntries());
+            }
             if (threadStatsComponent != null) {
                 threadStatsComponent.onComplete();
             }
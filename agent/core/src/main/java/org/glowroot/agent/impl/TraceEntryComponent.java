@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -44,10 +44,16 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // only non-null for main thread context, and only when trace entry pooling is enabled
+    private @Nullable TraceEntryPool pool;
+
+    private boolean hasAsyncEntries;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
-            TimerImpl timer, long startTick) {
+            TimerImpl timer, long startTick, @Nullable TraceEntryPool pool) {
         this.threadContext = threadContext;
         this.startTick = startTick;
+        this.pool = pool;
         rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
                 timer, null);
         activeEntry = rootEntry;
@@ -73,8 +79,17 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry;
+        if (asyncTimer == null) {
+            entry = createEntry(activeEntry, messageSupplier, queryData, queryExecutionCount,
+                    startTick, syncTimer);
+        } else {
+            // async trace entries are not pooled since they can be ended by another thread after
+            // the transaction completes
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+            hasAsyncEntries = true;
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -101,8 +116,8 @@ class TraceEntryComponent {
 
     TraceEntryImpl addErrorEntry(long startTick, long endTick, @Nullable Object messageSupplier,
             @Nullable QueryData queryData, ErrorMessage errorMessage) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, 1, startTick, null, null);
+        TraceEntryImpl entry =
+                createEntry(activeEntry, messageSupplier, queryData, 1, startTick, null);
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
@@ -121,6 +136,39 @@ class TraceEntryComponent {
         return rootEntry == tailEntry;
     }
 
+    // called by the thread context's thread once the thread context has completed
+    void releasePool(boolean recycle) {
+        TraceEntryPool pool = this.pool;
+        if (pool == null) {
+            return;
+        }
+        if (recycle && !hasAsyncEntries) {
+            pool.recycle();
+        } else {
+            pool.abandon();
+        }
+        this.pool = null;
+    }
+
+    private TraceEntryImpl createEntry(TraceEntryImpl parentTraceEntry,
+            @Nullable Object messageSupplier, @Nullable QueryData queryData,
+            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer) {
+        if (pool == null) {
+            return new TraceEntryImpl(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, null);
+        }
+        TraceEntryImpl entry = pool.reuse();
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, null);
+            pool.add(entry);
+        } else {
+            entry.init(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, null);
+        }
+        return entry;
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
@@ -22,7 +22,6 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,14 +51,17 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // these fields are only non-final so that pooled trace entries can be re-initialized (see
+    // TraceEntryPool), they are not volatile, so depends on memory barrier in Transaction for
+    // visibility
+    private ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -71,15 +73,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
-    private final @Nullable AsyncTimerImpl asyncTimer;
+    private @Nullable TimerImpl syncTimer;
+    private @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
     // only used by transaction thread
     private long locationStackTraceThreshold;
     // only used by transaction thread
-    private @MonotonicNonNull TimerImpl extendedTimer;
+    private @Nullable TimerImpl extendedTimer;
 
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
@@ -99,6 +101,48 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         }
     }
 
+    // re-initializes a pooled trace entry, see TraceEntryPool
+    void init(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
+            @Nullable Object messageSupplier, @Nullable QueryData queryData,
+            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
+            @Nullable AsyncTimerImpl asyncTimer) {
+        resetQueryEntry(queryData);
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        this.asyncTimer = asyncTimer;
+        errorMessage = null;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = null;
+        locationStackTrace = null;
+        locationStackTraceThreshold = 0;
+        extendedTimer = null;
+        if (queryData != null) {
+            queryData.start(startTick, queryExecutionCount);
+        }
+    }
+
+    // releases references to the transaction when this trace entry is returned to the pool, so
+    // that a pooled trace entry does not retain a completed transaction
+    @SuppressWarnings("nullness:assignment.type.incompatible")
+    void clear() {
+        resetQueryEntry(null);
+        threadContext = null;
+        parentTraceEntry = null;
+        messageSupplier = null;
+        syncTimer = null;
+        asyncTimer = null;
+        errorMessage = null;
+        nextTraceEntry = null;
+        locationStackTrace = null;
+        extendedTimer = null;
+    }
+
     @Override
     public @Nullable Object getMessageSupplier() {
         return messageSupplier;
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// per-thread pool of trace entries, so that transactions with thousands of trace entries (e.g. a
+// batch job executing thousands of jdbc statements) do not allocate thousands of short-lived trace
+// entries each
+//
+// trace entries are handed out sequentially from fixed size segments, and when the transaction
+// completes without its trace being stored (or read by the UI), they are all returned to the pool
+// by resetting the index back to zero, otherwise they are left to the transaction and the pool
+// starts over with new trace entries
+//
+// this is disabled by default since pooled trace entries are retained by each thread that has
+// executed a transaction, and since a plugin holding on to a trace entry after its transaction
+// completes (which is not expected, except for async trace entries which are never pooled) would
+// then be updating a trace entry in a later transaction
+//
+// this is only accessed by the pool's thread
+class TraceEntryPool {
+
+    private static final int MAX_ENTRIES_PER_THREAD =
+            Integer.getInteger("glowroot.traceEntryPool.maxEntriesPerThread", 0);
+
+    private static final int SEGMENT_SHIFT = 8;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final TraceEntryImpl[][] NO_SEGMENTS = new TraceEntryImpl[0][];
+
+    private static final ThreadLocal<TraceEntryPool> pools = new ThreadLocal<TraceEntryPool>() {
+        @Override
+        protected TraceEntryPool initialValue() {
+            return new TraceEntryPool(MAX_ENTRIES_PER_THREAD);
+        }
+    };
+
+    private final int maxEntries;
+
+    private TraceEntryImpl[][] segments = NO_SEGMENTS;
+    // number of trace entries in the pool
+    private int size;
+    // number of trace entries handed out to the current transaction
+    private int index;
+
+    private boolean inUse;
+
+    @VisibleForTesting
+    TraceEntryPool(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    // returns null if pooling is disabled, or if the pool is already in use on this thread by an
+    // outer transaction
+    static @Nullable TraceEntryPool claim() {
+        if (MAX_ENTRIES_PER_THREAD == 0) {
+            return null;
+        }
+        TraceEntryPool pool = pools.get();
+        return pool.tryClaim() ? pool : null;
+    }
+
+    @VisibleForTesting
+    boolean tryClaim() {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        return true;
+    }
+
+    // returns null if there is no pooled trace entry available, in which case the caller should
+    // create a new trace entry and add() it
+    @Nullable
+    TraceEntryImpl reuse() {
+        if (index == size) {
+            return null;
+        }
+        TraceEntryImpl entry = segments[index >> SEGMENT_SHIFT][index & SEGMENT_MASK];
+        index++;
+        return entry;
+    }
+
+    void add(TraceEntryImpl entry) {
+        if (size == maxEntries) {
+            return;
+        }
+        int segmentIndex = size >> SEGMENT_SHIFT;
+        if (segmentIndex == segments.length) {
+            segments = Arrays.copyOf(segments, segmentIndex + 1);
+            segments[segmentIndex] = new TraceEntryImpl[SEGMENT_SIZE];
+        }
+        segments[segmentIndex][size & SEGMENT_MASK] = entry;
+        size++;
+        index++;
+    }
+
+    // called when the transaction's trace entries are no longer needed
+    void recycle() {
+        for (int i = 0; i < index; i++) {
+            segments[i >> SEGMENT_SHIFT][i & SEGMENT_MASK].clear();
+        }
+        index = 0;
+        inUse = false;
+    }
+
+    // called when the transaction's trace entries are still needed (e.g. trace will be stored)
+    void abandon() {
+        segments = NO_SEGMENTS;
+        size = 0;
+        index = 0;
+        inUse = false;
+    }
+
+    @VisibleForTesting
+    int size() {
+        return size;
+    }
+}
@@ -127,6 +127,9 @@ public class Transaction {
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
 
+    // false when adaptive sampling has chosen not to capture (non-error) trace entries for this
+    // transaction
+    private final boolean sampled;
     private final int maxTraceEntriesPerTransaction;
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
@@ -152,6 +155,13 @@ public class Transaction {
     private volatile boolean partiallyStored;
 
     private long captureTime;
+    // only accessed by the transaction thread
+    private boolean willStoreTrace;
+
+    // see tryRecycleEntries() for how these are used to avoid recycling pooled trace entries while
+    // they are being read
+    private volatile boolean entriesRead;
+    private volatile boolean entriesRecycled;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
     // namely after each entry
@@ -197,6 +207,8 @@ public class Transaction {
 
     private @Nullable SelfRemovableEntry transactionEntry;
 
+    private @Nullable ConcurrencyGauge concurrencyGauge;
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull RootTimerCollectorImpl alreadyMergedAuxThreadTimers;
     @GuardedBy("mainThreadContext")
@@ -206,7 +218,7 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
+            boolean sampled, int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
             int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
@@ -217,6 +229,7 @@ public class Transaction {
         this.startTick = startTick;
         this.transactionType = transactionType;
         this.transactionName = transactionName;
+        this.sampled = sampled;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
@@ -432,10 +445,14 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
-        return entryLimitCounter++ < maxTraceEntriesPerTransaction;
+        // unsampled transactions do not count (non-error) entries against the limit, so that error
+        // entries are still captured and the entry limit is not reported as exceeded
+        return sampled && entryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
     // this method has side effect of incrementing counter
+    //
+    // error entries are captured regardless of sampling
     boolean allowAnotherErrorEntry() {
         // use higher entry limit when adding errors, but still need some kind of cap
         return entryLimitCounter++ < maxTraceEntriesPerTransaction
@@ -458,6 +475,12 @@ public class Transaction {
     }
 
     public void accept(long captureTick, EntryVisitor entryVisitor) throws Exception {
+        entriesRead = true;
+        if (entriesRecycled) {
+            // transaction has completed and its trace is not being stored, so it doesn't matter
+            // much that its trace entries are not available
+            return;
+        }
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -644,6 +667,15 @@ public class Transaction {
         this.transactionEntry = transactionEntry;
     }
 
+    void setConcurrencyGauge(ConcurrencyGauge concurrencyGauge) {
+        this.concurrencyGauge = concurrencyGauge;
+    }
+
+    @Nullable
+    ConcurrencyGauge getConcurrencyGauge() {
+        return concurrencyGauge;
+    }
+
     void removeFromActiveTransactions() {
         checkNotNull(transactionEntry).remove();
     }
@@ -757,6 +789,10 @@ public class Transaction {
         return entryLimitCounter > maxTraceEntriesPerTransaction;
     }
 
+    int getCapturedEntryCount() {
+        return Math.min(entryLimitCounter, maxTraceEntriesPerTransaction);
+    }
+
     void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
         if (completed) {
             return;
@@ -812,6 +848,24 @@ public class Transaction {
     // called by the transaction thread
     void onCompleteWillStoreTrace(long captureTime) {
         this.captureTime = captureTime;
+        willStoreTrace = true;
+    }
+
+    // called by the transaction thread once the main thread context has completed, returns true if
+    // the (pooled) trace entries can be recycled
+    boolean tryRecycleEntries() {
+        if (!completed || async || willStoreTrace || partiallyStored) {
+            return false;
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null || unmergedLimitExceededAuxThreadContexts != null) {
+                return false;
+            }
+        }
+        // both fields are volatile, so at least one of this thread and a concurrent reader in
+        // accept() will see the other's write, and back off
+        entriesRecycled = true;
+        return !entriesRead;
     }
 
     long getCaptureTime() {
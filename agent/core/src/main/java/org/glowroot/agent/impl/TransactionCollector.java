@@ -18,16 +18,22 @@ package org.glowroot.agent.impl;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
@@ -38,24 +44,34 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class TransactionCollector {
+public class TransactionCollector implements TransactionCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
-    // back pressure on trace collection
-    private static final int PENDING_LIMIT = 100;
-
-    private final ExecutorService dedicatedExecutor;
+    // traces that are waiting to be stored are ordered by priority, so that the most important
+    // traces are stored first, and the least important traces are shed first when the backlog
+    // reaches the (back pressure) limit
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    // includes both traces that are waiting in the queue and traces that are being stored
+    private final Set<Transaction> pendingTransactions =
+            Sets.newSetFromMap(Maps.<Transaction, Boolean>newConcurrentMap());
+
+    // shedding decisions need to be atomic with respect to each other
+    private final Object sheddingLock = new Object();
+
+    private final AtomicLong storedTraceCount = new AtomicLong();
+    private final AtomicLong droppedTraceCount = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
 
     private volatile long defaultSlowThresholdNanos;
+    private volatile int maxPendingTraces;
 
     public TransactionCollector(final ConfigService configService, Collector collector,
             Aggregator aggregator, Clock clock, Ticker ticker) {
@@ -63,13 +79,17 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        int threads = Math.max(configService.getAdvancedConfig().traceCollectorThreads(), 1);
+        dedicatedExecutor = new ThreadPoolExecutor(threads, threads, 60, SECONDS, queue,
+                ThreadFactories.create("Glowroot-Trace-Collector-%d"));
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
                 defaultSlowThresholdNanos = MILLISECONDS
                         .toNanos(configService.getTransactionConfig().slowThresholdMillis());
+                AdvancedConfig advancedConfig = configService.getAdvancedConfig();
+                maxPendingTraces = advancedConfig.maxPendingTraces();
+                updatePoolSize(Math.max(advancedConfig.traceCollectorThreads(), 1));
             }
         });
     }
@@ -98,6 +118,26 @@ public class TransactionCollector {
         return pendingTransactions;
     }
 
+    @Override
+    public long getStoredTraceCount() {
+        return storedTraceCount.get();
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    @Override
+    public int getPendingTraceCount() {
+        return pendingTransactions.size();
+    }
+
+    @Override
+    public int getQueuedTraceCount() {
+        return queue.size();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         dedicatedExecutor.shutdown();
@@ -115,34 +155,22 @@ public class TransactionCollector {
         if (!slow && !shouldStoreError(transaction)) {
             return;
         }
-        // limit doesn't apply to transactions that were already (partially) stored to make sure
-        // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
+        CollectTraceTask task = new CollectTraceTask(transaction, slow);
+        if (transaction.isPartiallyStored()) {
+            pendingTransactions.add(transaction);
+        } else if (!makeRoomFor(task)) {
+            droppedTraceCount.incrementAndGet();
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+                    + " traces already waiting to be stored", maxPendingTraces);
             return;
         }
-        pendingTransactions.add(transaction);
 
         // this need to be called inside the transaction thread
         transaction.onCompleteWillStoreTrace(captureTime);
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
-                    collector.collectTrace(traceReader);
-                } catch (Throwable t) {
-                    logger.error(t.getMessage(), t);
-                } finally {
-                    pendingTransactions.remove(transaction);
-                }
-            }
-        });
+        dedicatedExecutor.execute(task);
     }
 
     // no need to throttle partial trace storage since throttling is handled upstream by using a
@@ -161,6 +189,55 @@ public class TransactionCollector {
         }
     }
 
+    // limit doesn't apply to transactions that were already (partially) stored to make sure they
+    // don't get left out in case they cause an avalanche of slowness, so this is not called for
+    // those
+    //
+    // returns false if the new task should be dropped
+    private boolean makeRoomFor(CollectTraceTask task) {
+        synchronized (sheddingLock) {
+            if (pendingTransactions.size() < maxPendingTraces) {
+                pendingTransactions.add(task.transaction);
+                return true;
+            }
+            // shed the lowest priority trace that is still waiting in the queue, but only if it is
+            // lower priority than the new one
+            @Nullable
+            CollectTraceTask lowestPriorityTask = null;
+            for (Runnable queued : queue) {
+                CollectTraceTask queuedTask = (CollectTraceTask) queued;
+                if (queuedTask.transaction.isPartiallyStored()) {
+                    continue;
+                }
+                if (lowestPriorityTask == null || queuedTask.compareTo(lowestPriorityTask) > 0) {
+                    lowestPriorityTask = queuedTask;
+                }
+            }
+            if (lowestPriorityTask == null || task.compareTo(lowestPriorityTask) >= 0) {
+                return false;
+            }
+            if (queue.remove(lowestPriorityTask)) {
+                pendingTransactions.remove(lowestPriorityTask.transaction);
+                droppedTraceCount.incrementAndGet();
+            }
+            // if the remove failed, it is because the task was just picked up by a worker thread,
+            // in which case it is fine to exceed the limit by one
+            pendingTransactions.add(task.transaction);
+            return true;
+        }
+    }
+
+    private void updatePoolSize(int threads) {
+        // order matters since core pool size cannot exceed max pool size
+        if (threads > dedicatedExecutor.getMaximumPoolSize()) {
+            dedicatedExecutor.setMaximumPoolSize(threads);
+            dedicatedExecutor.setCorePoolSize(threads);
+        } else {
+            dedicatedExecutor.setCorePoolSize(threads);
+            dedicatedExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
     static boolean containsIgnoreCase(List<String> list, String test) {
         for (String item : list) {
             if (test.equalsIgnoreCase(item)) {
@@ -169,4 +246,42 @@ public class TransactionCollector {
         }
         return false;
     }
+
+    // ordered by priority, highest priority first (errors, then slowest)
+    private class CollectTraceTask implements Runnable, Comparable<CollectTraceTask> {
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final boolean error;
+        private final long durationNanos;
+
+        private CollectTraceTask(Transaction transaction, boolean slow) {
+            this.transaction = transaction;
+            this.slow = slow;
+            error = transaction.getErrorMessage() != null;
+            durationNanos = transaction.getDurationNanos();
+        }
+
+        @Override
+        public void run() {
+            try {
+                TraceReader traceReader =
+                        TraceCreator.createTraceReaderForCompleted(transaction, slow);
+                collector.collectTrace(traceReader);
+                storedTraceCount.incrementAndGet();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            } finally {
+                pendingTransactions.remove(transaction);
+            }
+        }
+
+        @Override
+        public int compareTo(CollectTraceTask other) {
+            if (error != other.error) {
+                return error ? -1 : 1;
+            }
+            return Longs.compare(other.durationNanos, durationNanos);
+        }
+    }
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface TransactionCollectorMXBean {
+
+    long getStoredTraceCount();
+    // includes both traces that were rejected and traces that were shed from the queue in favor
+    // of higher priority traces
+    long getDroppedTraceCount();
+    // includes traces that are currently being stored
+    int getPendingTraceCount();
+    int getQueuedTraceCount();
+}
@@ -15,8 +15,15 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.annotation.Nullable;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.impl.ConcurrencyGauge.ConcurrencySnapshot;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
@@ -30,6 +37,10 @@ public class TransactionRegistry {
     // collection of active running transactions
     private final IterableWithSelfRemovableEntries<Transaction> transactions = new IterableWithSelfRemovableEntries<Transaction>();
 
+    // concurrency gauges by transaction type (the transaction type at the start of the transaction)
+    private final ConcurrentMap<String, ConcurrencyGauge> concurrencyGauges =
+            Maps.newConcurrentMap();
+
     // active thread context being executed by the current thread
     private final FastThreadLocal</*@Nullable*/ ThreadContextImpl> currentThreadContext =
             new FastThreadLocal</*@Nullable*/ ThreadContextImpl>();
@@ -53,13 +64,45 @@ public class TransactionRegistry {
     }
 
     SelfRemovableEntry addTransaction(Transaction transaction) {
+        ConcurrencyGauge concurrencyGauge = getConcurrencyGauge(transaction.getTransactionType(),
+                transaction.getStartTick());
+        concurrencyGauge.onStart();
+        transaction.setConcurrencyGauge(concurrencyGauge);
         return transactions.add(transaction);
     }
 
+    // called by the aggregate processing thread at the end of each aggregate interval
+    List<ConcurrencySnapshot> rollConcurrencyGauges(long currentTick) {
+        for (Transaction transaction : transactions) {
+            ConcurrencyGauge concurrencyGauge = transaction.getConcurrencyGauge();
+            if (concurrencyGauge != null && !transaction.isCompleted()) {
+                concurrencyGauge.addInFlight(transaction.getStartTick(), currentTick);
+            }
+        }
+        List<ConcurrencySnapshot> snapshots = Lists.newArrayList();
+        for (ConcurrencyGauge concurrencyGauge : concurrencyGauges.values()) {
+            snapshots.add(concurrencyGauge.roll(currentTick));
+        }
+        return snapshots;
+    }
+
     public Iterable<Transaction> getTransactions() {
         return transactions;
     }
 
+    private ConcurrencyGauge getConcurrencyGauge(String transactionType, long startTick) {
+        ConcurrencyGauge concurrencyGauge = concurrencyGauges.get(transactionType);
+        if (concurrencyGauge == null) {
+            concurrencyGauge = new ConcurrencyGauge(transactionType, startTick);
+            ConcurrencyGauge existing =
+                    concurrencyGauges.putIfAbsent(transactionType, concurrencyGauge);
+            if (existing != null) {
+                concurrencyGauge = existing;
+            }
+        }
+        return concurrencyGauge;
+    }
+
     @UsedByGeneratedBytecode
     public static class TransactionRegistryHolder {
 
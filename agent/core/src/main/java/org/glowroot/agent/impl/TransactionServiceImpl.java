@@ -40,6 +40,7 @@ public class TransactionServiceImpl implements ConfigListener {
     private final TimerNameCache timerNameCache;
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
     private final UserProfileScheduler userProfileScheduler;
+    private final AdaptiveSampler adaptiveSampler;
     private final Clock clock;
     private final Ticker ticker;
 
@@ -56,10 +57,11 @@ public class TransactionServiceImpl implements ConfigListener {
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
             TimerNameCache timerNameCache, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            UserProfileScheduler userProfileScheduler, Ticker ticker, Clock clock) {
-        TransactionServiceImpl transactionServiceImpl =
-                new TransactionServiceImpl(transactionRegistry, transactionCollector, configService,
-                        timerNameCache, threadAllocatedBytes, userProfileScheduler, ticker, clock);
+            UserProfileScheduler userProfileScheduler, AdaptiveSampler adaptiveSampler,
+            Ticker ticker, Clock clock) {
+        TransactionServiceImpl transactionServiceImpl = new TransactionServiceImpl(
+                transactionRegistry, transactionCollector, configService, timerNameCache,
+                threadAllocatedBytes, userProfileScheduler, adaptiveSampler, ticker, clock);
         configService.addConfigListener(transactionServiceImpl);
         TransactionServiceHolder.transactionService = transactionServiceImpl;
         return transactionServiceImpl;
@@ -68,13 +70,15 @@ public class TransactionServiceImpl implements ConfigListener {
     private TransactionServiceImpl(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
             TimerNameCache timerNameCache, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            UserProfileScheduler userProfileScheduler, Ticker ticker, Clock clock) {
+            UserProfileScheduler userProfileScheduler, AdaptiveSampler adaptiveSampler,
+            Ticker ticker, Clock clock) {
         this.transactionRegistry = transactionRegistry;
         this.transactionCollector = transactionCollector;
         this.configService = configService;
         this.timerNameCache = timerNameCache;
         this.threadAllocatedBytes = threadAllocatedBytes;
         this.userProfileScheduler = userProfileScheduler;
+        this.adaptiveSampler = adaptiveSampler;
         this.clock = clock;
         this.ticker = ticker;
     }
@@ -85,9 +89,10 @@ public class TransactionServiceImpl implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
+        // transactions that are not sampled only record timers, aggregate data and error entries
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
+                adaptiveSampler.sample(), maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
@@ -127,7 +132,12 @@ public class TransactionServiceImpl implements ConfigListener {
             // collector can cover the gap
             // (via TransactionCollectorImpl.getPendingCompleteTraces())
             // between removing the trace from the registry and storing it
+            ConcurrencyGauge concurrencyGauge = transaction.getConcurrencyGauge();
+            if (concurrencyGauge != null) {
+                concurrencyGauge.onComplete(transaction.getStartTick(), transaction.getEndTick());
+            }
             transactionCollector.onCompletedTransaction(transaction);
+            adaptiveSampler.onCompleted(transaction.getCapturedEntryCount());
         }
     }
 
@@ -39,6 +39,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
 import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.AdaptiveSampler;
 import org.glowroot.agent.impl.Aggregator;
 import org.glowroot.agent.impl.ConfigServiceImpl;
 import org.glowroot.agent.impl.GlowrootServiceImpl;
@@ -162,7 +163,8 @@ public class AgentModule {
         deadlockedActiveWeavingRunnable = new DeadlockedActiveWeavingRunnable(weaver);
         deadlockedActiveWeavingRunnable.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
 
-        aggregator = new Aggregator(collector, configService, ROLLUP_0_INTERVAL_MILLIS, clock);
+        aggregator = new Aggregator(collector, configService, transactionRegistry,
+                ROLLUP_0_INTERVAL_MILLIS, clock, ticker);
         transactionCollector =
                 new TransactionCollector(configService, collector, aggregator, clock, ticker);
 
@@ -172,9 +174,10 @@ public class AgentModule {
         UserProfileScheduler userProfileScheduler =
                 new UserProfileScheduler(backgroundExecutor, configService, random);
         GlowrootService glowrootService = new GlowrootServiceImpl(transactionRegistry);
+        AdaptiveSampler adaptiveSampler = new AdaptiveSampler(ticker);
         TransactionServiceImpl.create(transactionRegistry, transactionCollector, configService,
-                timerNameCache, threadAllocatedBytes.getService(), userProfileScheduler, ticker,
-                clock);
+                timerNameCache, threadAllocatedBytes.getService(), userProfileScheduler,
+                adaptiveSampler, ticker, clock);
         ConfigServiceFactory configServiceFactory = new ConfigServiceFactory() {
             @Override
             public org.glowroot.agent.plugin.api.config.ConfigService create(String pluginId) {
@@ -187,6 +190,10 @@ public class AgentModule {
         ServiceRegistryImpl.init(glowrootService, timerNameCache, configServiceFactory);
 
         lazyPlatformMBeanServer = LazyPlatformMBeanServer.create();
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionCollector,
+                "org.glowroot:type=TransactionCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(adaptiveSampler,
+                "org.glowroot:type=AdaptiveSampler");
         File[] roots = File.listRoots();
         if (roots != null) {
             for (File root : roots) {
@@ -204,7 +211,10 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, random, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -215,7 +225,7 @@ public class AgentModule {
                 clock, ticker);
         liveAggregateRepository = new LiveAggregateRepositoryImpl(aggregator);
         liveWeavingService = new LiveWeavingServiceImpl(analyzedWorld, instrumentation,
-                configService, adviceCache, jvmRetransformClassesSupported);
+                configService, adviceCache, jvmRetransformClassesSupported, tmpDir);
         liveJvmService = new LiveJvmServiceImpl(lazyPlatformMBeanServer, transactionRegistry,
                 transactionCollector, threadAllocatedBytes.getAvailability());
 
@@ -51,6 +51,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
 
     private final @Nullable String collectorAddress;
     private final @Nullable Collector customCollector;
+    private final @Nullable File spoolDir;
 
     private @MonotonicNonNull AgentModule agentModule;
     private @MonotonicNonNull CentralCollector centralCollector;
@@ -60,9 +61,10 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
     private @MonotonicNonNull Closeable agentDirsLockingCloseable;
 
     public NonEmbeddedGlowrootAgentInit(@Nullable String collectorAddress,
-            @Nullable Collector customCollector) {
+            @Nullable Collector customCollector, @Nullable File spoolDir) {
         this.collectorAddress = collectorAddress;
         this.customCollector = customCollector;
+        this.spoolDir = spoolDir;
     }
 
     @Override
@@ -108,9 +110,10 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                 Collector collector;
                 if (customCollector == null) {
                     centralCollector = new CentralCollector(properties,
-                            checkNotNull(collectorAddress), agentModule.getLiveJvmService(),
-                            agentModule.getLiveWeavingService(),
-                            agentModule.getLiveTraceRepository(), agentConfigUpdater);
+                            checkNotNull(collectorAddress), spoolDir,
+                            agentModule.getLiveJvmService(), agentModule.getLiveWeavingService(),
+                            agentModule.getLiveTraceRepository(), agentConfigUpdater,
+                            agentModule.getLazyPlatformMBeanServer());
                     collector = centralCollector;
                 } else {
                     collector = customCollector;
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+
+// index for matching partial class names, where a partial class name matches a class name if it
+// is a (case-insensitive) prefix of the class name, or a prefix of the class name after any '.' or
+// '$', and is a full match if it is also a suffix of the class name (see PartialClassNameMatcher)
+//
+// this is a suffix array restricted to the suffixes starting at those segment boundaries, so that
+// the matches can be found with a binary search instead of a scan over all class names, and since
+// an exact match sorts before all of the longer suffixes that it is a prefix of, full matches and
+// partial matches are found in a single pass over the matching range
+//
+// each suffix is encoded as (class name index << 32 | offset) to conserve memory
+class ClassNameIndex {
+
+    static final ClassNameIndex EMPTY = new ClassNameIndex(new String[0], new long[0]);
+
+    // sorted by class name
+    private final String[] classNames;
+    // sorted by (case-insensitive) suffix, then by class name index
+    private final long[] suffixes;
+
+    private ClassNameIndex(String[] classNames, long[] suffixes) {
+        this.classNames = classNames;
+        this.suffixes = suffixes;
+    }
+
+    // class names must be sorted and distinct
+    static ClassNameIndex create(Collection<String> sortedClassNames) {
+        String[] classNames = sortedClassNames.toArray(new String[sortedClassNames.size()]);
+        // upper case copies are only retained while sorting
+        String[] classNamesUpper = new String[classNames.length];
+        int count = 0;
+        for (int i = 0; i < classNames.length; i++) {
+            classNamesUpper[i] = toUpperCase(classNames[i]);
+            count += getSegmentCount(classNamesUpper[i]);
+        }
+        long[] suffixes = new long[count];
+        int index = 0;
+        for (int i = 0; i < classNames.length; i++) {
+            String classNameUpper = classNamesUpper[i];
+            suffixes[index++] = (long) i << 32;
+            for (int j = 0; j < classNameUpper.length(); j++) {
+                if (isSegmentSeparator(classNameUpper.charAt(j))) {
+                    suffixes[index++] = (long) i << 32 | (j + 1);
+                }
+            }
+        }
+        // suffixes are added in class name order, so sort needs to be stable for ties to remain in
+        // class name order
+        mergeSort(suffixes, new long[count], 0, count, classNamesUpper);
+        return new ClassNameIndex(classNames, suffixes);
+    }
+
+    int size() {
+        return classNames.length;
+    }
+
+    // adds up to limit full matches and up to limit (non-full) matches, each in class name order
+    void addMatches(String partialClassName, int limit, Set<String> fullMatchingClassNames,
+            Set<String> matchingClassNames) {
+        String partialClassNameUpper = toUpperCase(partialClassName);
+        BitSet fullMatches = new BitSet();
+        BitSet matches = new BitSet();
+        for (int i = lowerBound(partialClassNameUpper); i < suffixes.length; i++) {
+            long suffix = suffixes[i];
+            String className = classNames[getClassNameIndex(suffix)];
+            int offset = getOffset(suffix);
+            if (!startsWith(className, offset, partialClassNameUpper)) {
+                break;
+            }
+            if (className.length() - offset == partialClassNameUpper.length()) {
+                fullMatches.set(getClassNameIndex(suffix));
+            } else {
+                matches.set(getClassNameIndex(suffix));
+            }
+        }
+        matches.andNot(fullMatches);
+        for (int i = fullMatches.nextSetBit(0); i >= 0
+                && fullMatchingClassNames.size() < limit; i = fullMatches.nextSetBit(i + 1)) {
+            fullMatchingClassNames.add(classNames[i]);
+        }
+        for (int i = matches.nextSetBit(0); i >= 0
+                && matchingClassNames.size() < limit; i = matches.nextSetBit(i + 1)) {
+            matchingClassNames.add(classNames[i]);
+        }
+    }
+
+    private int lowerBound(String partialClassNameUpper) {
+        int low = 0;
+        int high = suffixes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long suffix = suffixes[mid];
+            if (compare(classNames[getClassNameIndex(suffix)], getOffset(suffix),
+                    partialClassNameUpper) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // upper cases each char individually (as opposed to String.toUpperCase()) so that offsets are
+    // the same in the upper case string
+    private static String toUpperCase(String str) {
+        char[] chars = new char[str.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toUpperCase(str.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static int getSegmentCount(String className) {
+        int count = 1;
+        for (int i = 0; i < className.length(); i++) {
+            if (isSegmentSeparator(className.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isSegmentSeparator(char c) {
+        return c == '.' || c == '$';
+    }
+
+    private static int getClassNameIndex(long suffix) {
+        return (int) (suffix >>> 32);
+    }
+
+    private static int getOffset(long suffix) {
+        return (int) suffix;
+    }
+
+    // compares the (case-insensitive) suffix of className starting at offset with the upper case
+    // string
+    private static int compare(String className, int offset, String upper) {
+        int length = Math.min(className.length() - offset, upper.length());
+        for (int i = 0; i < length; i++) {
+            char c1 = Character.toUpperCase(className.charAt(offset + i));
+            char c2 = upper.charAt(i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return (className.length() - offset) - upper.length();
+    }
+
+    private static boolean startsWith(String className, int offset, String upper) {
+        if (className.length() - offset < upper.length()) {
+            return false;
+        }
+        for (int i = 0; i < upper.length(); i++) {
+            if (Character.toUpperCase(className.charAt(offset + i)) != upper.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compare(long suffix1, long suffix2, String[] classNamesUpper) {
+        String className1 = classNamesUpper[getClassNameIndex(suffix1)];
+        String className2 = classNamesUpper[getClassNameIndex(suffix2)];
+        int offset1 = getOffset(suffix1);
+        int offset2 = getOffset(suffix2);
+        int length = Math.min(className1.length() - offset1, className2.length() - offset2);
+        for (int i = 0; i < length; i++) {
+            char c1 = className1.charAt(offset1 + i);
+            char c2 = className2.charAt(offset2 + i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return (className1.length() - offset1) - (className2.length() - offset2);
+    }
+
+    // stable sort of a primitive array with a custom comparator (which is not available in the jdk)
+    private static void mergeSort(long[] a, long[] buffer, int from, int to,
+            String[] classNamesUpper) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                long value = a[i];
+                int j = i - 1;
+                while (j >= from && compare(a[j], value, classNamesUpper) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = value;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, buffer, from, mid, classNamesUpper);
+        mergeSort(a, buffer, mid, to, classNamesUpper);
+        if (compare(a[mid - 1], a[mid], classNamesUpper) <= 0) {
+            // already in order
+            return;
+        }
+        System.arraycopy(a, from, buffer, from, to - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (compare(buffer[j], buffer[i], classNamesUpper) < 0) {
+                a[k++] = buffer[j++];
+            } else {
+                a[k++] = buffer[i++];
+            }
+        }
+        while (i < mid) {
+            a[k++] = buffer[i++];
+        }
+        while (j < to) {
+            a[k++] = buffer[j++];
+        }
+    }
+}
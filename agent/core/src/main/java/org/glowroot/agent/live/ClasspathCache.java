@@ -29,10 +29,16 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
@@ -44,10 +50,11 @@ import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
@@ -63,6 +70,8 @@ import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.live.ClasspathCacheFile.JarFileScan;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.ClassNames;
 
@@ -77,42 +86,59 @@ class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    private static final String CACHE_FILE_NAME = "classpath-cache.bin";
+
+    // reading jar files is a mix of i/o and inflating, so using more threads than processors is
+    // still not going to help much
+    private static final int SCAN_THREADS =
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
+    private final @Nullable File cacheFile;
 
     @GuardedBy("this")
     private final Set<Location> classpathLocations = Sets.newHashSet();
 
-    // using ImmutableMultimap because it is very space efficient
-    // this is not updated often so trading space efficiency for copying the entire map on update
+    // resolving class loader urls and classpath entries to locations requires file system access,
+    // which would otherwise dominate the time spent looking up partial class names, since the
+    // cache is updated before every lookup
     @GuardedBy("this")
-    private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
+    private final Map<String, Location> resolvedLocations = Maps.newHashMap();
 
-    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
+    // using ImmutableMultimap because it is very space efficient
+    // this is not updated often so trading space efficiency for copying the entire map on update
+    //
+    // these are only updated under synchronization, but are volatile so that lookups can read
+    // them without waiting for a (potentially long) update of the cache by another thread
+    private volatile ImmutableMultimap<String, Location> classNameLocations =
+            ImmutableMultimap.of();
+    private volatile ClassNameIndex classNameIndex = ClassNameIndex.EMPTY;
+
+    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation,
+            @Nullable File tmpDir) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
+        cacheFile = tmpDir == null ? null : new File(tmpDir, CACHE_FILE_NAME);
     }
 
-    // using synchronization instead of concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
         // update cache before proceeding
         updateCache();
-        PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
         Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
         Set<String> matchingClassNames = Sets.newLinkedHashSet();
+        classNameIndex.addMatches(partialClassName, limit, fullMatchingClassNames,
+                matchingClassNames);
+        if (instrumentation == null || fullMatchingClassNames.size() == limit) {
+            return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
+        }
         // also check loaded classes, e.g. for groovy classes
-        Iterator<String> i = classNameLocations.keySet().iterator();
-        if (instrumentation != null) {
-            List<String> loadedClassNames = Lists.newArrayList();
-            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
-                if (!clazz.getName().startsWith("[")) {
-                    loadedClassNames.add(clazz.getName());
-                }
+        PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            String className = clazz.getName();
+            if (className.startsWith("[")) {
+                continue;
             }
-            i = Iterators.concat(i, loadedClassNames.iterator());
-        }
-        while (i.hasNext()) {
-            String className = i.next();
             String classNameUpper = className.toUpperCase(Locale.ENGLISH);
             boolean potentialFullMatch = matcher.isPotentialFullMatch(classNameUpper);
             if (matchingClassNames.size() == limit && !potentialFullMatch) {
@@ -133,8 +159,7 @@ class ClasspathCache {
         return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
     }
 
-    // using synchronization over concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
+    ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
         // update cache before proceeding
         updateCache();
         Set<UiAnalyzedMethod> analyzedMethods = Sets.newHashSet();
@@ -159,19 +184,23 @@ class ClasspathCache {
 
     // using synchronization over concurrent structures in this cache to conserve memory
     synchronized void updateCache() {
-        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+        List<Location> locations = Lists.newArrayList();
         for (ClassLoader loader : getKnownClassLoaders()) {
-            updateCache(loader, newClassNameLocations);
+            addLocations(loader, locations);
         }
-        updateCacheWithClasspathClasses(newClassNameLocations);
-        updateCacheWithBootstrapClasses(newClassNameLocations);
+        addClasspathLocations(locations);
+        addBootstrapLocations(locations);
+        Multimap<String, Location> newClassNameLocations = loadClassNames(locations);
         if (!newClassNameLocations.isEmpty()) {
             // multimap that sorts keys and de-dups values while maintains value ordering
             SetMultimap<String, Location> newMap =
                     MultimapBuilder.treeKeys().linkedHashSetValues().build();
             newMap.putAll(classNameLocations);
             newMap.putAll(newClassNameLocations);
-            classNameLocations = ImmutableMultimap.copyOf(newMap);
+            ImmutableMultimap<String, Location> classNameLocations =
+                    ImmutableMultimap.copyOf(newMap);
+            classNameIndex = ClassNameIndex.create(classNameLocations.keySet());
+            this.classNameLocations = classNameLocations;
         }
     }
 
@@ -186,35 +215,176 @@ class ClasspathCache {
         return ImmutableList.copyOf(fullMatchingClassNames);
     }
 
+    // reads the class names from the locations that have not been read yet (and from the locations
+    // in their manifest Class-Path), reading the locations in parallel and using the cache file for
+    // the jar files that have not changed since they were last read
+    @GuardedBy("this")
+    private Multimap<String, Location> loadClassNames(List<Location> locations) {
+        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+        List<Location> pendingLocations = Lists.newArrayList();
+        for (Location location : locations) {
+            if (classpathLocations.add(location)) {
+                pendingLocations.add(location);
+            }
+        }
+        if (pendingLocations.isEmpty()) {
+            return newClassNameLocations;
+        }
+        Map<Location, JarFileScan> cachedJarFileScans =
+                cacheFile == null ? ImmutableMap.<Location, JarFileScan>of()
+                        : ClasspathCacheFile.read(cacheFile);
+        Map<Location, JarFileScan> newJarFileScans = Maps.newHashMap();
+        ExecutorService executor = null;
+        try {
+            while (!pendingLocations.isEmpty()) {
+                Map<Location, LocationScan> scans = Maps.newLinkedHashMap();
+                List<Location> locationsToScan = Lists.newArrayList();
+                for (Location location : pendingLocations) {
+                    JarFileScan jarFileScan = cachedJarFileScans.get(location);
+                    File jarFile = location.jarFile();
+                    if (jarFileScan != null && jarFile != null
+                            && ClasspathCacheFile.isUpToDate(jarFile, jarFileScan)) {
+                        scans.put(location, jarFileScan.scan());
+                    } else {
+                        locationsToScan.add(location);
+                    }
+                }
+                if (locationsToScan.size() > 1 && executor == null) {
+                    executor = Executors.newFixedThreadPool(SCAN_THREADS,
+                            ThreadFactories.create("Glowroot-Classpath-Scan-%d"));
+                }
+                List<LocationScan> newScans;
+                try {
+                    newScans = scan(locationsToScan, executor);
+                } catch (InterruptedException e) {
+                    logger.debug(e.getMessage(), e);
+                    Thread.currentThread().interrupt();
+                    // so these will be re-tried on next update
+                    classpathLocations.removeAll(locationsToScan);
+                    break;
+                }
+                for (int i = 0; i < locationsToScan.size(); i++) {
+                    Location location = locationsToScan.get(i);
+                    LocationScan scan = newScans.get(i);
+                    scans.put(location, scan);
+                    File jarFile = location.jarFile();
+                    if (jarFile != null) {
+                        // read length and last modified before the cache file is written (below)
+                        // instead of before the jar file is read, which is fine since if the jar
+                        // file changes in between it will just be re-read after restart
+                        newJarFileScans.put(location, ImmutableJarFileScan.of(jarFile.length(),
+                                jarFile.lastModified(), scan));
+                    }
+                }
+                pendingLocations = Lists.newArrayList();
+                for (Entry<Location, LocationScan> entry : scans.entrySet()) {
+                    Location location = entry.getKey();
+                    LocationScan scan = entry.getValue();
+                    for (String className : scan.classNames()) {
+                        newClassNameLocations.put(className, location);
+                    }
+                    for (File file : scan.manifestClassPath()) {
+                        Location manifestLocation = getLocationFromFile(file);
+                        // checking classpathLocations to avoid infinite loop in case of cycle in
+                        // Manifest Class-Path
+                        if (manifestLocation != null && classpathLocations.add(manifestLocation)) {
+                            pendingLocations.add(manifestLocation);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        if (cacheFile != null && !newJarFileScans.isEmpty()) {
+            // retain the entries for the jar files that are not in this update (e.g. loaded by
+            // another class loader in the previous update) as long as they are still up to date
+            Map<Location, JarFileScan> jarFileScans = Maps.newHashMap();
+            for (Entry<Location, JarFileScan> entry : cachedJarFileScans.entrySet()) {
+                File jarFile = checkNotNull(entry.getKey().jarFile());
+                if (ClasspathCacheFile.isUpToDate(jarFile, entry.getValue())) {
+                    jarFileScans.put(entry.getKey(), entry.getValue());
+                }
+            }
+            jarFileScans.putAll(newJarFileScans);
+            ClasspathCacheFile.write(cacheFile, jarFileScans);
+        }
+        return newClassNameLocations;
+    }
+
+    private static List<LocationScan> scan(List<Location> locations,
+            @Nullable ExecutorService executor) throws InterruptedException {
+        if (executor == null) {
+            List<LocationScan> scans = Lists.newArrayList();
+            for (Location location : locations) {
+                scans.add(scan(location));
+            }
+            return scans;
+        }
+        List<Future<LocationScan>> futures = Lists.newArrayList();
+        for (final Location location : locations) {
+            futures.add(executor.submit(new Callable<LocationScan>() {
+                @Override
+                public LocationScan call() {
+                    return scan(location);
+                }
+            }));
+        }
+        List<LocationScan> scans = Lists.newArrayList();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                scans.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                logger.warn("error reading classes from: {}", locations.get(i), e);
+                scans.add(ImmutableLocationScan.builder().build());
+            }
+        }
+        return scans;
+    }
+
     @GuardedBy("this")
-    private void updateCacheWithClasspathClasses(Multimap<String, Location> newClassNameLocations) {
+    private void addClasspathLocations(List<Location> locations) {
         String javaClassPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         if (javaClassPath == null) {
             return;
         }
         for (String path : Splitter.on(File.pathSeparatorChar).split(javaClassPath)) {
-            File file = new File(path);
-            Location location = getLocationFromFile(file);
+            Location location = getLocationFromPath(path);
             if (location != null) {
-                loadClassNames(location, newClassNameLocations);
+                locations.add(location);
             }
         }
     }
 
     // TODO refactor this and above method which are nearly identical
     @GuardedBy("this")
-    private void updateCacheWithBootstrapClasses(Multimap<String, Location> newClassNameLocations) {
+    private void addBootstrapLocations(List<Location> locations) {
         String bootClassPath = System.getProperty("sun.boot.class.path");
         if (bootClassPath == null) {
             return;
         }
         for (String path : Splitter.on(File.pathSeparatorChar).split(bootClassPath)) {
-            File file = new File(path);
-            Location location = getLocationFromFile(file);
+            Location location = getLocationFromPath(path);
+            if (location != null) {
+                locations.add(location);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private @Nullable Location getLocationFromPath(String path) {
+        Location location = resolvedLocations.get(path);
+        if (location == null) {
+            location = getLocationFromFile(new File(path));
+            // not caching null so that it is re-tried on next update (e.g. if the file is created
+            // later)
             if (location != null) {
-                loadClassNames(location, newClassNameLocations);
+                resolvedLocations.put(path, location);
             }
         }
+        return location;
     }
 
     private List<UiAnalyzedMethod> getAnalyzedMethods(Location location, String className)
@@ -261,18 +431,21 @@ class ClasspathCache {
     }
 
     @GuardedBy("this")
-    private void updateCache(ClassLoader loader, Multimap<String, Location> newClassNameLocations) {
-        List<URL> urls = getURLs(loader);
-        List<Location> locations = Lists.newArrayList();
-        for (URL url : urls) {
-            Location location = tryToGetFileFromURL(url, loader);
+    private void addLocations(ClassLoader loader, List<Location> locations) {
+        for (URL url : getURLs(loader)) {
+            String key = url.toExternalForm();
+            Location location = resolvedLocations.get(key);
+            if (location == null) {
+                location = tryToGetFileFromURL(url, loader);
+                // not caching null so that it is re-tried on next update
+                if (location != null) {
+                    resolvedLocations.put(key, location);
+                }
+            }
             if (location != null) {
                 locations.add(location);
             }
         }
-        for (Location location : locations) {
-            loadClassNames(location, newClassNameLocations);
-        }
     }
 
     private @Nullable Location tryToGetFileFromURL(URL url, ClassLoader loader) {
@@ -342,30 +515,24 @@ class ClasspathCache {
         return loaders;
     }
 
-    private void loadClassNames(Location location,
-            Multimap<String, Location> newClassNameLocations) {
-        if (classpathLocations.contains(location)) {
-            return;
-        }
-        // add to classpath at top of method to avoid infinite recursion in case of cycle in
-        // Manifest Class-Path
-        classpathLocations.add(location);
+    // this is called concurrently for different locations, so must not access any shared state
+    private static LocationScan scan(Location location) {
+        ImmutableLocationScan.Builder scan = ImmutableLocationScan.builder();
         try {
             File dir = location.directory();
             File jarFile = location.jarFile();
             if (dir != null) {
-                loadClassNamesFromDirectory(dir, "", location, newClassNameLocations);
+                loadClassNamesFromDirectory(dir, "", scan);
             } else if (jarFile != null) {
                 String jarFileInsideJarFile = location.jarFileInsideJarFile();
                 String directoryInsideJarFile = location.directoryInsideJarFile();
                 if (jarFileInsideJarFile == null && directoryInsideJarFile == null) {
-                    loadClassNamesFromJarFile(jarFile, location, newClassNameLocations);
+                    loadClassNamesFromJarFile(jarFile, scan);
                 } else if (jarFileInsideJarFile != null) {
-                    loadClassNamesFromJarFileInsideJarFile(jarFile, jarFileInsideJarFile, location,
-                            newClassNameLocations);
+                    loadClassNamesFromJarFileInsideJarFile(jarFile, jarFileInsideJarFile, scan);
                 } else if (directoryInsideJarFile != null) {
                     loadClassNamesFromDirectoryInsideJarFile(jarFile, directoryInsideJarFile,
-                            location, newClassNameLocations);
+                            scan);
                 } else {
                     throw new IllegalStateException(
                             "jarFileInsideJarFile and directoryInsideJarFile cannot both be null");
@@ -379,10 +546,11 @@ class ClasspathCache {
         } catch (IOException e) {
             logger.debug("error reading classes from file: {}", location, e);
         }
+        return scan.build();
     }
 
-    private static void loadClassNamesFromDirectory(File dir, String prefix, Location location,
-            Multimap<String, Location> newClassNameLocations) throws MalformedURLException {
+    private static void loadClassNamesFromDirectory(File dir, String prefix,
+            ImmutableLocationScan.Builder scan) throws MalformedURLException {
         File[] files = dir.listFiles();
         if (files == null) {
             return;
@@ -391,22 +559,21 @@ class ClasspathCache {
             String name = file.getName();
             if (file.isFile() && name.endsWith(".class")) {
                 String className = prefix + name.substring(0, name.lastIndexOf('.'));
-                newClassNameLocations.put(className, location);
+                scan.addClassNames(className);
             } else if (file.isDirectory()) {
-                loadClassNamesFromDirectory(file, prefix + name + ".", location,
-                        newClassNameLocations);
+                loadClassNamesFromDirectory(file, prefix + name + ".", scan);
             }
         }
     }
 
-    private void loadClassNamesFromJarFile(File jarFile, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
+    private static void loadClassNamesFromJarFile(File jarFile, ImmutableLocationScan.Builder scan)
+            throws IOException {
         Closer closer = Closer.create();
         InputStream s = new FileInputStream(jarFile);
         JarInputStream jarIn = closer.register(new JarInputStream(s));
         try {
-            loadClassNamesFromManifestClassPath(jarIn, jarFile, newClassNameLocations);
-            loadClassNamesFromJarInputStream(jarIn, "", location, newClassNameLocations);
+            addManifestClassPath(jarIn, jarFile, scan);
+            loadClassNamesFromJarInputStream(jarIn, "", scan);
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -414,8 +581,8 @@ class ClasspathCache {
         }
     }
 
-    private void loadClassNamesFromManifestClassPath(JarInputStream jarIn, File jarFile,
-            Multimap<String, Location> newClassNameLocations) {
+    private static void addManifestClassPath(JarInputStream jarIn, File jarFile,
+            ImmutableLocationScan.Builder scan) {
         Manifest manifest = jarIn.getManifest();
         if (manifest == null) {
             return;
@@ -426,17 +593,12 @@ class ClasspathCache {
         }
         URI baseUri = jarFile.toURI();
         for (String path : Splitter.on(' ').omitEmptyStrings().split(classpath)) {
-            File file = new File(baseUri.resolve(path));
-            Location location = getLocationFromFile(file);
-            if (location != null) {
-                loadClassNames(location, newClassNameLocations);
-            }
+            scan.addManifestClassPath(new File(baseUri.resolve(path)));
         }
     }
 
     private static void loadClassNamesFromJarFileInsideJarFile(File jarFile,
-            String jarFileInsideJarFile, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
+            String jarFileInsideJarFile, ImmutableLocationScan.Builder scan) throws IOException {
         URI uri;
         try {
             uri = new URI("jar", "file:" + jarFile.getPath() + "!/" + jarFileInsideJarFile, "");
@@ -455,7 +617,7 @@ class ClasspathCache {
                 throw e;
             }
             closer.register(jarIn);
-            loadClassNamesFromJarInputStream(jarIn, "", location, newClassNameLocations);
+            loadClassNamesFromJarInputStream(jarIn, "", scan);
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -464,14 +626,12 @@ class ClasspathCache {
     }
 
     private static void loadClassNamesFromDirectoryInsideJarFile(File jarFile,
-            String directoryInsideJarFile, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
+            String directoryInsideJarFile, ImmutableLocationScan.Builder scan) throws IOException {
         Closer closer = Closer.create();
         InputStream s = new FileInputStream(jarFile);
         JarInputStream jarIn = closer.register(new JarInputStream(s));
         try {
-            loadClassNamesFromJarInputStream(jarIn, directoryInsideJarFile, location,
-                    newClassNameLocations);
+            loadClassNamesFromJarInputStream(jarIn, directoryInsideJarFile, scan);
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -480,8 +640,7 @@ class ClasspathCache {
     }
 
     private static void loadClassNamesFromJarInputStream(JarInputStream jarIn, String directory,
-            Location location, Multimap<String, Location> newClassNameLocations)
-            throws IOException {
+            ImmutableLocationScan.Builder scan) throws IOException {
         JarEntry jarEntry;
         while ((jarEntry = jarIn.getNextJarEntry()) != null) {
             if (jarEntry.isDirectory()) {
@@ -491,7 +650,7 @@ class ClasspathCache {
             if (name.startsWith(directory) && name.endsWith(".class")) {
                 name = name.substring(directory.length());
                 String className = name.substring(0, name.lastIndexOf('.')).replace('/', '.');
-                newClassNameLocations.put(className, location);
+                scan.addClassNames(className);
             }
         }
     }
@@ -723,4 +882,11 @@ class ClasspathCache {
         @Nullable
         String directoryInsideJarFile();
     }
+
+    @Value.Immutable
+    interface LocationScan {
+        ImmutableList<String> classNames();
+        // files from the jar file's manifest Class-Path
+        ImmutableList<File> manifestClassPath();
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.live.ClasspathCache.Location;
+import org.glowroot.agent.live.ClasspathCache.LocationScan;
+import org.glowroot.common.util.Styles;
+
+// persists the class names found in each jar file location so that they don't need to be re-read
+// from every jar file after restart, each entry is only re-used if the jar file still has the same
+// length and last modified time
+class ClasspathCacheFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClasspathCacheFile.class);
+
+    private static final int VERSION = 1;
+
+    private ClasspathCacheFile() {}
+
+    static Map<Location, JarFileScan> read(File file) {
+        if (!file.exists()) {
+            return ImmutableMap.of();
+        }
+        try {
+            return readInternal(file);
+        } catch (IOException e) {
+            // the classpath cache will just be rebuilt (and the file re-written)
+            logger.debug("error reading classpath cache file: {}", file, e);
+            return ImmutableMap.of();
+        }
+    }
+
+    static void write(File file, Map<Location, JarFileScan> jarFileScans) {
+        // write to temporary file first so that a partially written file is never read
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            writeInternal(tmpFile, jarFileScans);
+            if (file.exists() && !file.delete()) {
+                logger.warn("unable to delete file: {}", file);
+                return;
+            }
+            if (!tmpFile.renameTo(file)) {
+                logger.warn("unable to rename file {} to {}", tmpFile, file);
+            }
+        } catch (IOException e) {
+            logger.warn("error writing classpath cache file: {}", file, e);
+        }
+    }
+
+    static boolean isUpToDate(File jarFile, JarFileScan jarFileScan) {
+        return jarFile.length() == jarFileScan.length()
+                && jarFile.lastModified() == jarFileScan.lastModified();
+    }
+
+    private static Map<Location, JarFileScan> readInternal(File file) throws IOException {
+        Map<Location, JarFileScan> jarFileScans = Maps.newHashMap();
+        Closer closer = Closer.create();
+        try {
+            InputStream s = closer.register(new FileInputStream(file));
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new GZIPInputStream(s)));
+            if (in.readInt() != VERSION) {
+                return ImmutableMap.of();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Location location = ImmutableLocation.builder()
+                        .jarFile(new File(in.readUTF()))
+                        .jarFileInsideJarFile(readNullableUTF(in))
+                        .directoryInsideJarFile(readNullableUTF(in))
+                        .build();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                ImmutableLocationScan.Builder scan = ImmutableLocationScan.builder();
+                int classNameCount = in.readInt();
+                for (int j = 0; j < classNameCount; j++) {
+                    scan.addClassNames(in.readUTF());
+                }
+                int manifestClassPathCount = in.readInt();
+                for (int j = 0; j < manifestClassPathCount; j++) {
+                    scan.addManifestClassPath(new File(in.readUTF()));
+                }
+                jarFileScans.put(location,
+                        ImmutableJarFileScan.of(length, lastModified, scan.build()));
+            }
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+        return jarFileScans;
+    }
+
+    private static void writeInternal(File file, Map<Location, JarFileScan> jarFileScans)
+            throws IOException {
+        Closer closer = Closer.create();
+        try {
+            OutputStream s = closer.register(new FileOutputStream(file));
+            DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(s)));
+            out.writeInt(VERSION);
+            out.writeInt(jarFileScans.size());
+            for (Entry<Location, JarFileScan> entry : jarFileScans.entrySet()) {
+                Location location = entry.getKey();
+                JarFileScan jarFileScan = entry.getValue();
+                File jarFile = location.jarFile();
+                if (jarFile == null) {
+                    throw new IllegalStateException("Only jar file locations can be persisted");
+                }
+                out.writeUTF(jarFile.getPath());
+                writeNullableUTF(out, location.jarFileInsideJarFile());
+                writeNullableUTF(out, location.directoryInsideJarFile());
+                out.writeLong(jarFileScan.length());
+                out.writeLong(jarFileScan.lastModified());
+                LocationScan scan = jarFileScan.scan();
+                out.writeInt(scan.classNames().size());
+                for (String className : scan.classNames()) {
+                    out.writeUTF(className);
+                }
+                out.writeInt(scan.manifestClassPath().size());
+                for (File manifestClassPathFile : scan.manifestClassPath()) {
+                    out.writeUTF(manifestClassPathFile.getPath());
+                }
+            }
+            // finishes the gzip stream before the underlying file stream is closed
+            out.close();
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static @Nullable String readNullableUTF(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        } else {
+            return null;
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, @Nullable String str)
+            throws IOException {
+        if (str == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(str);
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface JarFileScan {
+        long length();
+        long lastModified();
+        LocationScan scan();
+    }
+}
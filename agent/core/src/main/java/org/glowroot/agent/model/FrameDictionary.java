@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+// interns stack trace elements so that profiles can refer to them by int id
+//
+// ids are never removed, so the number of ids is capped to limit memory in case of dynamically
+// generated classes
+class FrameDictionary {
+
+    static final int FULL = -1;
+
+    private final ConcurrentMap<StackTraceElement, Integer> ids = Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+
+    // volatile so that getFrame() can be called outside of lock, elements are always written
+    // before the id is published via the concurrent map
+    private volatile StackTraceElement[] frames = new StackTraceElement[1024];
+    @GuardedBy("lock")
+    private int size;
+
+    private final int limit;
+
+    FrameDictionary(int limit) {
+        this.limit = limit;
+    }
+
+    // returns FULL if the frame is not already in the dictionary and the dictionary is full
+    int getId(StackTraceElement frame) {
+        Integer id = ids.get(frame);
+        if (id != null) {
+            return id;
+        }
+        synchronized (lock) {
+            id = ids.get(frame);
+            if (id != null) {
+                return id;
+            }
+            if (size == limit) {
+                return FULL;
+            }
+            StackTraceElement[] frames = this.frames;
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, size * 2);
+                this.frames = frames;
+            }
+            frames[size] = frame;
+            id = size++;
+            ids.put(frame, id);
+            return id;
+        }
+    }
+
+    StackTraceElement getFrame(int id) {
+        return frames[id];
+    }
+}
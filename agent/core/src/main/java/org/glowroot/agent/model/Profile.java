@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,48 +18,90 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass;
 
+// stack trace samples are merged into a trie stored in primitive arrays, with stack trace elements
+// referenced by id from a dictionary shared by all profiles, and only converted to MutableProfile
+// or protobuf when the profile is stored or read
 public class Profile {
 
+    private static final FrameDictionary frameDictionary = new FrameDictionary(
+            Integer.getInteger("glowroot.profile.frameDictionaryLimit", 100000));
+
+    // node 0 is a synthetic root node, which is the parent of the outermost stack trace elements
+    private static final int ROOT = 0;
+    private static final int NO_NODE = -1;
+
+    // node keys are frame id << 3 | leaf thread state, where leaf thread state is 0 for non-leaf
+    // nodes and Thread.State ordinal + 1 for leaf nodes
+    private static final int LEAF_THREAD_STATE_BITS = 3;
+    private static final int LEAF_THREAD_STATE_MASK = (1 << LEAF_THREAD_STATE_BITS) - 1;
+
+    private static final ThreadLocal<int[]> scratchFrameIds = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[256];
+        }
+    };
+
     private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private int[] nodeKeys = new int[16];
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] firstChildNodes = new int[16];
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int[] nextSiblingNodes = new int[16];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private long[] sampleCounts = new long[16];
+    @GuardedBy("lock")
+    private int nodeCount;
+
+    // only used for stack traces that contain stack trace elements that could not be added to the
+    // frame dictionary because it is full
+    @GuardedBy("lock")
+    private @MonotonicNonNull MutableProfile overflowProfile;
+
     @GuardedBy("lock")
     private long sampleCount;
 
     @VisibleForTesting
-    public Profile() {}
+    public Profile() {
+        nodeCount = 1;
+        firstChildNodes[ROOT] = NO_NODE;
+        nextSiblingNodes[ROOT] = NO_NODE;
+    }
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
+            profile.merge(buildProto());
+            if (overflowProfile != null) {
+                profile.merge(overflowProfile);
             }
         }
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
+            if (overflowProfile == null) {
+                return buildProto();
             }
+            MutableProfile profile = new MutableProfile();
+            profile.merge(buildProto());
+            profile.merge(overflowProfile);
             return profile.toProto();
         }
     }
@@ -74,34 +116,211 @@ public class Profile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo, int limit) {
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        Thread.State threadState = threadInfo.getThreadState();
+        int[] frameIds = getFrameIds(stackTrace);
         synchronized (lock) {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            if (frameIds == null) {
+                if (overflowProfile == null) {
+                    overflowProfile = new MutableProfile();
                 }
+                overflowProfile.merge(Arrays.asList(stackTrace), threadState);
             } else {
-                profile.merge(stackTrace, threadState);
+                addToTrie(frameIds, stackTrace.length, threadState);
             }
             sampleCount++;
         }
     }
 
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    // returns null if the frame dictionary is full
+    private static @Nullable int[] getFrameIds(StackTraceElement[] stackTrace) {
+        int[] frameIds = scratchFrameIds.get();
+        if (frameIds.length < stackTrace.length) {
+            frameIds = new int[stackTrace.length];
+            scratchFrameIds.set(frameIds);
+        }
+        for (int i = 0; i < stackTrace.length; i++) {
+            int frameId = frameDictionary.getId(stackTrace[i]);
+            if (frameId == FrameDictionary.FULL) {
+                return null;
+            }
+            frameIds[i] = frameId;
+        }
+        return frameIds;
+    }
+
+    // requires lock
+    private void addToTrie(int[] frameIds, int stackTraceLength, @Nullable Thread.State state) {
+        int leafThreadState = state == null ? 0 : state.ordinal() + 1;
+        int parentNode = ROOT;
+        boolean lookingForMatch = true;
+        // stack trace is ordered from innermost to outermost
+        for (int i = stackTraceLength - 1; i >= 0; i--) {
+            int nodeKey = frameIds[i] << LEAF_THREAD_STATE_BITS;
+            if (i == 0) {
+                nodeKey |= leafThreadState;
+            }
+            int node = NO_NODE;
+            int lastChildNode = NO_NODE;
+            if (lookingForMatch) {
+                int childNode = firstChildNodes[parentNode];
+                while (childNode != NO_NODE) {
+                    if (nodeKeys[childNode] == nodeKey) {
+                        node = childNode;
+                        break;
+                    }
+                    lastChildNode = childNode;
+                    childNode = nextSiblingNodes[childNode];
+                }
+            }
+            if (node == NO_NODE) {
+                // once there is no match, there cannot be any matches further down the branch
+                lookingForMatch = false;
+                node = newNode(nodeKey);
+                if (lastChildNode == NO_NODE) {
+                    firstChildNodes[parentNode] = node;
+                } else {
+                    nextSiblingNodes[lastChildNode] = node;
+                }
+            }
+            sampleCounts[node]++;
+            parentNode = node;
+        }
+    }
+
+    // requires lock
+    private int newNode(int nodeKey) {
+        if (nodeCount == nodeKeys.length) {
+            int newCapacity = nodeCount * 2;
+            nodeKeys = Arrays.copyOf(nodeKeys, newCapacity);
+            firstChildNodes = Arrays.copyOf(firstChildNodes, newCapacity);
+            nextSiblingNodes = Arrays.copyOf(nextSiblingNodes, newCapacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+        }
+        int node = nodeCount++;
+        nodeKeys[node] = nodeKey;
+        firstChildNodes[node] = NO_NODE;
+        nextSiblingNodes[node] = NO_NODE;
+        return node;
+    }
+
+    // requires lock
+    private ProfileOuterClass.Profile buildProto() {
+        ProtoBuilder protoBuilder = new ProtoBuilder();
+        // depth first traversal without recursion to avoid StackOverflowError
+        int[] ancestorNodes = new int[16];
+        int depth = 0;
+        int node = firstChildNodes[ROOT];
+        while (node != NO_NODE) {
+            protoBuilder.addNode(nodeKeys[node], sampleCounts[node], depth);
+            int childNode = firstChildNodes[node];
+            if (childNode != NO_NODE) {
+                if (depth == ancestorNodes.length) {
+                    ancestorNodes = Arrays.copyOf(ancestorNodes, depth * 2);
+                }
+                ancestorNodes[depth++] = node;
+                node = childNode;
+                continue;
+            }
+            // move to the next sibling, or else to the next sibling of the nearest ancestor that
+            // has one
+            while (nextSiblingNodes[node] == NO_NODE && depth > 0) {
+                node = ancestorNodes[--depth];
+            }
+            node = nextSiblingNodes[node];
+        }
+        return protoBuilder.build();
+    }
+
+    private static ProfileOuterClass.Profile.LeafThreadState getLeafThreadState(
+            int leafThreadState) {
+        if (leafThreadState == 0) {
+            return ProfileOuterClass.Profile.LeafThreadState.NONE;
+        }
+        switch (Thread.State.values()[leafThreadState - 1]) {
+            case NEW:
+                return ProfileOuterClass.Profile.LeafThreadState.NEW;
+            case RUNNABLE:
+                return ProfileOuterClass.Profile.LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return ProfileOuterClass.Profile.LeafThreadState.BLOCKED;
+            case WAITING:
+                return ProfileOuterClass.Profile.LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return ProfileOuterClass.Profile.LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return ProfileOuterClass.Profile.LeafThreadState.TERMINATED;
+            default:
+                return ProfileOuterClass.Profile.LeafThreadState.NONE;
+        }
+    }
+
+    private static class ProtoBuilder {
+
+        private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+        private final List<String> packageNames = Lists.newArrayList();
+        private final List<String> classNames = Lists.newArrayList();
+        private final List<String> methodNames = Lists.newArrayList();
+        private final List<String> fileNames = Lists.newArrayList();
+
+        private final List<ProfileOuterClass.Profile.ProfileNode> nodes = Lists.newArrayList();
+
+        private void addNode(int nodeKey, long sampleCount, int depth) {
+            StackTraceElement frame =
+                    frameDictionary.getFrame(nodeKey >>> LEAF_THREAD_STATE_BITS);
+            String fullClassName = frame.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            nodes.add(ProfileOuterClass.Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(
+                            getNameIndex(packageName, packageNameIndexes, packageNames))
+                    .setClassNameIndex(getNameIndex(className, classNameIndexes, classNames))
+                    .setMethodNameIndex(getNameIndex(
+                            MoreObjects.firstNonNull(frame.getMethodName(), "<null method name>"),
+                            methodNameIndexes, methodNames))
+                    .setFileNameIndex(getNameIndex(Strings.nullToEmpty(frame.getFileName()),
+                            fileNameIndexes, fileNames))
+                    .setLineNumber(frame.getLineNumber())
+                    .setLeafThreadState(getLeafThreadState(nodeKey & LEAF_THREAD_STATE_MASK))
+                    .setSampleCount(sampleCount)
+                    .build());
+        }
+
+        private ProfileOuterClass.Profile build() {
+            return ProfileOuterClass.Profile.newBuilder()
+                    .addAllPackageName(packageNames)
+                    .addAllClassName(classNames)
+                    .addAllMethodName(methodNames)
+                    .addAllFileName(fileNames)
+                    .addAllNode(nodes)
+                    .build();
+        }
+
+        private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
+                List<String> names) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndexes.put(name, index);
+            }
+            return index;
         }
     }
 }
@@ -37,15 +37,20 @@ public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
+    private static final String SQL_QUERY_TYPE = "SQL";
+
     // first key is query type, second key is query text
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
     private final int limitPerQueryType;
     private final int maxMultiplierWhileBuilding;
+    private final @Nullable SqlFingerprinter sqlFingerprinter;
 
-    public QueryCollector(int limitPerQueryType, int maxMultiplierWhileBuilding) {
+    public QueryCollector(int limitPerQueryType, int maxMultiplierWhileBuilding,
+            @Nullable SqlFingerprinter sqlFingerprinter) {
         this.limitPerQueryType = limitPerQueryType;
         this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
+        this.sqlFingerprinter = sqlFingerprinter;
     }
 
     public List<Aggregate.QueriesByType> toAggregateProto(
@@ -94,13 +99,38 @@ public class QueryCollector {
 
     public void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, boolean hasTotalRows, long totalRows) {
-        Map<String, MutableQuery> queriesForType = queries.get(queryType);
-        if (queriesForType == null) {
-            queriesForType = Maps.newHashMap();
-            queries.put(queryType, queriesForType);
+        String aggregateQueryText = queryText;
+        if (sqlFingerprinter != null && queryType.equals(SQL_QUERY_TYPE)) {
+            aggregateQueryText = sqlFingerprinter.fingerprint(queryText);
+        }
+        mergeAggregateQuery(queryType, aggregateQueryText, totalDurationNanos, executionCount,
+                hasTotalRows, totalRows);
+    }
+
+    public void mergeQueries(QueryCollector collector) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : collector.queries.entrySet()) {
+            String queryType = outerEntry.getKey();
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                MutableQuery query = entry.getValue();
+                // query text has already been fingerprinted (if applicable)
+                mergeAggregateQuery(queryType, entry.getKey(),
+                        (long) query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows());
+            }
+        }
+        for (Entry<String, MutableQuery> entry : collector.limitExceededBuckets.entrySet()) {
+            MutableQuery toBeMergedBucket = entry.getValue();
+            MutableQuery limitExceededBucket = limitExceededBuckets.get(entry.getKey());
+            if (limitExceededBucket == null) {
+                limitExceededBucket = new MutableQuery();
+                limitExceededBuckets.put(entry.getKey(), limitExceededBucket);
+            }
+            limitExceededBucket
+                    .addToTotalDurationNanos((long) toBeMergedBucket.getTotalDurationNanos());
+            limitExceededBucket.addToExecutionCount(toBeMergedBucket.getExecutionCount());
+            limitExceededBucket.addToTotalRows(toBeMergedBucket.hasTotalRows(),
+                    toBeMergedBucket.getTotalRows());
         }
-        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, totalRows,
-                hasTotalRows, queriesForType);
     }
 
     public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
@@ -141,6 +171,17 @@ public class QueryCollector {
         return null;
     }
 
+    private void mergeAggregateQuery(String queryType, String queryText, long totalDurationNanos,
+            long executionCount, boolean hasTotalRows, long totalRows) {
+        Map<String, MutableQuery> queriesForType = queries.get(queryType);
+        if (queriesForType == null) {
+            queriesForType = Maps.newHashMap();
+            queries.put(queryType, queriesForType);
+        }
+        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, totalRows,
+                hasTotalRows, queriesForType);
+    }
+
     private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, long totalRows, boolean hasTotalRows,
             Map<String, MutableQuery> queriesForType) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,7 +24,8 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 // addresses that must be navigated)
 public abstract class QueryEntryBase implements QueryEntry {
 
-    private final @Nullable QueryData queryData;
+    // only non-final so that pooled trace entries can be re-initialized
+    private @Nullable QueryData queryData;
 
     // row numbers start at 1
     private long currRow = -1;
@@ -35,6 +36,12 @@ public abstract class QueryEntryBase implements QueryEntry {
         this.queryData = queryData;
     }
 
+    protected void resetQueryEntry(@Nullable QueryData queryData) {
+        this.queryData = queryData;
+        currRow = -1;
+        maxRow = 0;
+    }
+
     public void extendQueryData(long startTick) {
         if (queryData != null) {
             queryData.extend(startTick);
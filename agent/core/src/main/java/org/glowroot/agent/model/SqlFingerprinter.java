@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+// replaces string and numeric literals with '?' and collapses IN lists of '?' into a single '?' so
+// that queries which are built with inline literals (e.g. ids and IN lists) are aggregated under a
+// single query text instead of exceeding maxAggregateQueriesPerType
+//
+// this is only applied to aggregate query text, trace entries still capture the original query
+// text
+//
+// the normalization is a single pass over the query text (without tokenizing into separate
+// objects), and the original string instance is returned when there is nothing to normalize
+public class SqlFingerprinter {
+
+    // max total number of characters (raw query text plus fingerprint, across all entries), since
+    // query texts built with inline literals can be very long (e.g. large IN lists)
+    private static final long CACHE_MAX_CHARS =
+            Long.getLong("glowroot.aggregate.sqlFingerprintCacheMaxChars", 1000000);
+
+    // longer query texts are fingerprinted each time instead of being cached, so that a few very
+    // long query texts cannot repeatedly clear the cache
+    private static final int CACHE_MAX_QUERY_TEXT_LENGTH =
+            Integer.getInteger("glowroot.aggregate.sqlFingerprintCacheMaxQueryTextLength", 10000);
+
+    private final long cacheMaxChars;
+    private final int cacheMaxQueryTextLength;
+
+    // cache is keyed by raw query text, and is cleared (instead of evicting individual entries)
+    // when it reaches its max size, which keeps the common path (a small number of distinct query
+    // texts) to a single lock-free lookup
+    private final ConcurrentMap<String, String> cache = Maps.newConcurrentMap();
+
+    // approximate (racy clear), but only used to bound the cache
+    private final AtomicLong cacheChars = new AtomicLong();
+
+    public SqlFingerprinter() {
+        this(CACHE_MAX_CHARS, CACHE_MAX_QUERY_TEXT_LENGTH);
+    }
+
+    @VisibleForTesting
+    SqlFingerprinter(long cacheMaxChars, int cacheMaxQueryTextLength) {
+        this.cacheMaxChars = cacheMaxChars;
+        this.cacheMaxQueryTextLength = cacheMaxQueryTextLength;
+    }
+
+    public String fingerprint(String queryText) {
+        if (queryText.length() > cacheMaxQueryTextLength) {
+            return normalize(queryText);
+        }
+        String fingerprint = cache.get(queryText);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        fingerprint = normalize(queryText);
+        int chars = queryText.length() + fingerprint.length();
+        if (cacheChars.addAndGet(chars) > cacheMaxChars) {
+            cache.clear();
+            cacheChars.set(chars);
+        }
+        cache.put(queryText, fingerprint);
+        return fingerprint;
+    }
+
+    @VisibleForTesting
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    @VisibleForTesting
+    static String normalize(String sql) {
+        String normalized = replaceLiterals(sql);
+        if (normalized.indexOf('?') == -1) {
+            return normalized;
+        }
+        return collapseInLists(normalized);
+    }
+
+    private static String replaceLiterals(String sql) {
+        // only allocated once a literal is found
+        StringBuilder sb = null;
+        // index in sql up to which chars have been copied to sb
+        int copied = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            int literalStart = i;
+            int literalEnd;
+            if (c == '\'') {
+                literalEnd = skipQuoted(sql, i, '\'');
+                // N'...', X'...', B'...' and E'...' prefixes are part of the literal
+                if (i > copied && isLiteralPrefix(sql.charAt(i - 1))
+                        && (i == 1 || !isIdentifierPart(sql.charAt(i - 2)))) {
+                    literalStart = i - 1;
+                }
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                i = skipQuoted(sql, i, c);
+                continue;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                i = skipLineComment(sql, i);
+                continue;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                i = skipBlockComment(sql, i);
+                continue;
+            } else if (isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                literalEnd = skipNumber(sql, i);
+            } else if (c == '.' && i + 1 < length && isDigit(sql.charAt(i + 1))
+                    && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                literalEnd = skipNumber(sql, i + 1);
+            } else {
+                i++;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(length);
+            }
+            sb.append(sql, copied, literalStart);
+            sb.append('?');
+            copied = literalEnd;
+            i = literalEnd;
+        }
+        if (sb == null) {
+            return sql;
+        }
+        sb.append(sql, copied, length);
+        return sb.toString();
+    }
+
+    // collapses "in (?, ?, ?)" into "in (?)"
+    private static String collapseInLists(String sql) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            int inListEnd = matchInList(sql, i);
+            if (inListEnd == -1) {
+                i++;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(length);
+            }
+            // "in" and following whitespace are copied as is
+            int openParen = sql.indexOf('(', i);
+            sb.append(sql, copied, openParen);
+            sb.append("(?)");
+            copied = inListEnd;
+            i = inListEnd;
+        }
+        if (sb == null) {
+            return sql;
+        }
+        sb.append(sql, copied, length);
+        return sb.toString();
+    }
+
+    // returns the index after the closing paren if there is an "in" list with more than one '?'
+    // starting at index i, otherwise returns -1
+    private static int matchInList(String sql, int i) {
+        int length = sql.length();
+        if (i + 2 >= length || (sql.charAt(i) != 'i' && sql.charAt(i) != 'I')
+                || (sql.charAt(i + 1) != 'n' && sql.charAt(i + 1) != 'N')
+                || (i > 0 && isIdentifierPart(sql.charAt(i - 1)))) {
+            return -1;
+        }
+        int j = skipWhitespace(sql, i + 2);
+        if (j >= length || sql.charAt(j) != '(') {
+            return -1;
+        }
+        int count = 0;
+        while (true) {
+            j = skipWhitespace(sql, j + 1);
+            if (j >= length || sql.charAt(j) != '?') {
+                return -1;
+            }
+            count++;
+            j = skipWhitespace(sql, j + 1);
+            if (j >= length) {
+                return -1;
+            }
+            char c = sql.charAt(j);
+            if (c == ')') {
+                return count > 1 ? j + 1 : -1;
+            }
+            if (c != ',') {
+                return -1;
+            }
+        }
+    }
+
+    // returns the index after the closing quote (or the end of the sql if there is no closing
+    // quote), doubled quotes are treated as an escaped quote
+    private static int skipQuoted(String sql, int i, char quote) {
+        int length = sql.length();
+        int j = i + 1;
+        while (j < length) {
+            if (sql.charAt(j) == quote) {
+                if (j + 1 < length && sql.charAt(j + 1) == quote) {
+                    j += 2;
+                    continue;
+                }
+                return j + 1;
+            }
+            j++;
+        }
+        return length;
+    }
+
+    private static int skipLineComment(String sql, int i) {
+        int end = sql.indexOf('\n', i + 2);
+        return end == -1 ? sql.length() : end + 1;
+    }
+
+    private static int skipBlockComment(String sql, int i) {
+        int end = sql.indexOf("*/", i + 2);
+        return end == -1 ? sql.length() : end + 2;
+    }
+
+    // handles integers, decimals, exponents and hex literals (0x...)
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        int j = i;
+        if (sql.charAt(j) == '0' && j + 1 < length
+                && (sql.charAt(j + 1) == 'x' || sql.charAt(j + 1) == 'X')) {
+            j += 2;
+            while (j < length && Character.digit(sql.charAt(j), 16) != -1) {
+                j++;
+            }
+            return j;
+        }
+        while (j < length) {
+            char c = sql.charAt(j);
+            if (isDigit(c) || c == '.') {
+                j++;
+            } else if ((c == 'e' || c == 'E') && j + 1 < length
+                    && (isDigit(sql.charAt(j + 1)) || sql.charAt(j + 1) == '-'
+                            || sql.charAt(j + 1) == '+')) {
+                j += 2;
+            } else {
+                break;
+            }
+        }
+        return j;
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        int j = i;
+        while (j < sql.length() && Character.isWhitespace(sql.charAt(j))) {
+            j++;
+        }
+        return j;
+    }
+
+    private static boolean isLiteralPrefix(char c) {
+        switch (c) {
+            case 'N':
+            case 'n':
+            case 'X':
+            case 'x':
+            case 'B':
+            case 'b':
+            case 'E':
+            case 'e':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        // '$' covers postgres positional parameters ($1) which should not be replaced
+        // ':' covers named parameters (:name1) which should not be replaced
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == ':' || c == '@'
+                || c == '#';
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+// lock free multi-producer single-consumer queue
+//
+// the capture times of the entries are non-decreasing in queue order (a producer that loses a race
+// to a producer with a later capture time is bumped up to that later capture time), so once the
+// consumer reaches an entry with a given capture time it can assume that no later entry will have
+// an earlier capture time
+//
+// poll() and await() must only be called from the single consumer thread
+public class CaptureTimeOrderedQueue<E> {
+
+    private final AtomicReference<Entry<E>> tail;
+
+    // head is only modified by the consumer thread, it is volatile only so that size() can be
+    // called from producer threads
+    private volatile Entry<E> head;
+
+    private volatile @Nullable Thread waitingConsumer;
+
+    public CaptureTimeOrderedQueue() {
+        head = new Entry<E>(null, Long.MIN_VALUE);
+        tail = new AtomicReference<Entry<E>>(head);
+    }
+
+    // element is null for markers, which can be used by the consumer to push a capture time
+    // through the queue
+    //
+    // returns the capture time that was assigned to the entry, which will be later than the
+    // requested capture time if another producer with a later capture time got there first
+    public long add(@Nullable E element, long captureTime) {
+        Entry<E> entry = new Entry<E>(element, captureTime);
+        Entry<E> prev;
+        while (true) {
+            prev = tail.get();
+            entry.captureTime = Math.max(captureTime, prev.captureTime);
+            entry.sequence = prev.sequence + 1;
+            if (tail.compareAndSet(prev, entry)) {
+                break;
+            }
+        }
+        // there is a brief window here where the entry is the tail but not yet reachable from the
+        // head, this is ok since the consumer will be unparked below if it is waiting
+        prev.next = entry;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return entry.captureTime;
+    }
+
+    // this is approximate since it is not read atomically with respect to the consumer
+    public int size() {
+        return (int) (tail.get().sequence - head.sequence);
+    }
+
+    public @Nullable Entry<E> poll() {
+        Entry<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        // release the element of the previous entry (which was already returned by the previous
+        // poll) so that it can be collected
+        head.element = null;
+        head = next;
+        return next;
+    }
+
+    // waits until an entry is added, the timeout expires, or wakeConsumer() is called
+    public void await(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        try {
+            // re-check after publishing waitingConsumer, since a producer that linked its entry
+            // before reading waitingConsumer will not unpark
+            if (head.next == null) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    public void wakeConsumer() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public static class Entry<E> {
+
+        private @Nullable E element;
+        // captureTime and sequence are non-volatile since they are written before the entry is
+        // published via compareAndSet and never modified afterwards
+        private long captureTime;
+        private long sequence;
+        private volatile @Nullable Entry<E> next;
+
+        private Entry(@Nullable E element, long captureTime) {
+            this.element = element;
+            this.captureTime = captureTime;
+        }
+
+        // null for markers
+        public @Nullable E getElement() {
+            return element;
+        }
+
+        public long getCaptureTime() {
+            return captureTime;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+// index over advisors by the class level criteria that can be evaluated without regular
+// expressions (exact class names, class name prefixes, class annotations and super types), so that
+// the full class match only needs to be evaluated against a small number of candidate advisors
+//
+// the candidates returned are a superset of the advisors that match, never a subset
+class AdviceIndex {
+
+    private final List<Advice> advisors;
+
+    // advisors that have no class level criteria that can be indexed (e.g. full regex class name)
+    // are candidates for every class
+    private final BitSet unindexed;
+
+    private final Map<String, List<Integer>> byClassName = Maps.newHashMap();
+    private final Map<String, List<Integer>> byClassNamePrefix = Maps.newHashMap();
+    private final Map<String, List<Integer>> byClassAnnotation = Maps.newHashMap();
+    private final Map<String, List<Integer>> bySuperTypeName = Maps.newHashMap();
+
+    // distinct lengths of the prefixes above, used for lookup
+    private final int[] classNamePrefixLengths;
+
+    AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        unindexed = new BitSet(advisors.size());
+        Set<Integer> prefixLengths = Sets.newTreeSet();
+        for (int i = 0; i < advisors.size(); i++) {
+            Advice advice = advisors.get(i);
+            if (indexByClassName(advice, i, prefixLengths)) {
+                continue;
+            }
+            String classAnnotation = advice.pointcut().classAnnotation();
+            if (advice.pointcutClassAnnotationPattern() == null && !classAnnotation.isEmpty()) {
+                put(byClassAnnotation, classAnnotation, i);
+                continue;
+            }
+            String superTypeRestriction = advice.pointcut().superTypeRestriction();
+            if (advice.pointcutSuperTypeRestrictionPattern() == null
+                    && !superTypeRestriction.isEmpty()) {
+                put(bySuperTypeName, superTypeRestriction, i);
+                continue;
+            }
+            unindexed.set(i);
+        }
+        classNamePrefixLengths = new int[prefixLengths.size()];
+        int i = 0;
+        for (Integer prefixLength : prefixLengths) {
+            classNamePrefixLengths[i++] = prefixLength;
+        }
+    }
+
+    // returns true if the advisors are the indexed advisors, optionally followed by additional
+    // advisors (e.g. advisors merged from @Instrumentation annotations), which are then treated as
+    // unindexed
+    boolean isIndexFor(List<Advice> advisors) {
+        if (advisors == this.advisors) {
+            return true;
+        }
+        if (advisors.size() < this.advisors.size()) {
+            return false;
+        }
+        for (int i = 0; i < this.advisors.size(); i++) {
+            if (advisors.get(i) != this.advisors.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    BitSet getCandidates(String className, List<String> classAnnotations,
+            Collection<String> superClassNames) {
+        return getCandidates(className, classAnnotations, superClassNames, advisors.size());
+    }
+
+    // class annotations are in descriptor form, same as passed to AdviceMatcher
+    //
+    // advisorCount can be larger than the number of indexed advisors (see isIndexFor()), in which
+    // case the additional advisors are always candidates
+    BitSet getCandidates(String className, List<String> classAnnotations,
+            Collection<String> superClassNames, int advisorCount) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        if (advisorCount > advisors.size()) {
+            candidates.set(advisors.size(), advisorCount);
+        }
+        addAll(candidates, byClassName.get(className));
+        for (int prefixLength : classNamePrefixLengths) {
+            if (prefixLength > className.length()) {
+                // lengths are sorted ascending
+                break;
+            }
+            addAll(candidates, byClassNamePrefix.get(className.substring(0, prefixLength)));
+        }
+        if (!byClassAnnotation.isEmpty()) {
+            for (String classAnnotation : classAnnotations) {
+                addAll(candidates, byClassAnnotation.get(classAnnotation.replace('/', '.')
+                        .substring(1, classAnnotation.length() - 1)));
+            }
+        }
+        if (!bySuperTypeName.isEmpty()) {
+            for (String superClassName : superClassNames) {
+                addAll(candidates, bySuperTypeName.get(superClassName));
+            }
+        }
+        return candidates;
+    }
+
+    private boolean indexByClassName(Advice advice, int index, Set<Integer> prefixLengths) {
+        String className = advice.pointcut().className();
+        if (className.isEmpty()) {
+            return false;
+        }
+        if (advice.pointcutClassNamePattern() == null) {
+            put(byClassName, className, index);
+            return true;
+        }
+        if (className.startsWith("/") && className.endsWith("/")) {
+            // full regex
+            return false;
+        }
+        // limited regex, | and * (see AdviceBuilder.buildPattern())
+        String[] parts = className.split("\\|");
+        for (String part : parts) {
+            if (part.startsWith("*")) {
+                // no literal prefix to index on
+                return false;
+            }
+        }
+        for (String part : parts) {
+            int starIndex = part.indexOf('*');
+            if (starIndex == -1) {
+                put(byClassName, part, index);
+            } else {
+                put(byClassNamePrefix, part.substring(0, starIndex), index);
+                prefixLengths.add(starIndex);
+            }
+        }
+        return true;
+    }
+
+    private static void put(Map<String, List<Integer>> map, String key, int index) {
+        List<Integer> indexes = map.get(key);
+        if (indexes == null) {
+            indexes = Lists.newArrayList();
+            map.put(key, indexes);
+        }
+        indexes.add(index);
+    }
+
+    private static void addAll(BitSet candidates, @Nullable List<Integer> indexes) {
+        if (indexes == null) {
+            return;
+        }
+        for (int index : indexes) {
+            candidates.set(index);
+        }
+    }
+}
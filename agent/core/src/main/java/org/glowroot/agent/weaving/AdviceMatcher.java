@@ -16,12 +16,14 @@
 package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Modifier;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.immutables.value.Value;
@@ -38,11 +40,23 @@ abstract class AdviceMatcher {
 
     private static final Logger logger = LoggerFactory.getLogger(AdviceMatcher.class);
 
+    // the advisors list only changes when instrumentation config changes, so the index is cached
+    // by identity of the list
+    //
+    // classes with @Instrumentation annotations are analyzed using a new list per class, made up of
+    // the (same) advisors followed by the advisors for their annotations, and these reuse the index
+    // of the list they extend instead of replacing it (see AdviceIndex.isIndexFor())
+    private static volatile @Nullable AdviceIndex adviceIndex;
+
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
             List<String> classAnnotations, Collection<String> superClassNames,
             List<Advice> advisors) {
+        AdviceIndex adviceIndex = getAdviceIndex(advisors);
+        BitSet candidates = adviceIndex.getCandidates(className, classAnnotations,
+                superClassNames, advisors.size());
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Advice advice = advisors.get(i);
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -50,6 +64,16 @@ abstract class AdviceMatcher {
         return ImmutableList.copyOf(adviceMatchers);
     }
 
+    @VisibleForTesting
+    static AdviceIndex getAdviceIndex(List<Advice> advisors) {
+        AdviceIndex adviceIndex = AdviceMatcher.adviceIndex;
+        if (adviceIndex == null || !adviceIndex.isIndexFor(advisors)) {
+            adviceIndex = new AdviceIndex(advisors);
+            AdviceMatcher.adviceIndex = adviceIndex;
+        }
+        return adviceIndex;
+    }
+
     abstract Advice advice();
 
     boolean isMethodLevelMatch(String methodName, List<String> methodAnnotations,
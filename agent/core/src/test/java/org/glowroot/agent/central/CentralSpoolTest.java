@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.Segment;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CentralSpoolTest {
+
+    private File spoolDir;
+    private Clock clock;
+
+    @Before
+    public void beforeEach() {
+        spoolDir = Files.createTempDir();
+        clock = mock(Clock.class);
+    }
+
+    @After
+    public void afterEach() {
+        File[] files = spoolDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spoolDir.delete();
+    }
+
+    @Test
+    public void shouldReadInCaptureTimeOrder() throws IOException {
+        // given
+        CentralSpool spool = CentralSpool.create(spoolDir, 1024 * 1024, clock);
+        spool.append(1, 3000, new byte[] {3});
+        spool.append(2, 1000, new byte[] {1});
+        spool.append(3, 2000, new byte[] {2, 2});
+
+        // when
+        Segment segment = spool.getOldestSegment();
+        List<SpooledRecord> records = spool.read(segment);
+
+        // then
+        assertThat(records).hasSize(3);
+        assertThat(records.get(0).captureTime()).isEqualTo(1000);
+        assertThat(records.get(0).type()).isEqualTo(2);
+        assertThat(records.get(0).payload()).isEqualTo(new byte[] {1});
+        assertThat(records.get(1).captureTime()).isEqualTo(2000);
+        assertThat(records.get(1).payload()).isEqualTo(new byte[] {2, 2});
+        assertThat(records.get(2).captureTime()).isEqualTo(3000);
+
+        // and when
+        spool.remove(segment);
+
+        // then
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getOldestSegment()).isNull();
+        assertThat(spool.getSpoolSizeBytes()).isZero();
+    }
+
+    @Test
+    public void shouldRecoverAfterRestart() throws IOException {
+        // given
+        CentralSpool spool = CentralSpool.create(spoolDir, 1024 * 1024, clock);
+        spool.append(1, 1000, new byte[] {1});
+        spool.append(1, 2000, new byte[] {2});
+
+        // when
+        spool = CentralSpool.create(spoolDir, 1024 * 1024, clock);
+        spool.append(1, 3000, new byte[] {3});
+
+        // then
+        assertThat(spool.getSpooledRecordCount()).isEqualTo(3);
+        Segment segment = spool.getOldestSegment();
+        assertThat(spool.read(segment)).hasSize(2);
+        spool.remove(segment);
+        segment = spool.getOldestSegment();
+        List<SpooledRecord> records = spool.read(segment);
+        assertThat(records).hasSize(1);
+        assertThat(records.get(0).captureTime()).isEqualTo(3000);
+    }
+
+    @Test
+    public void shouldDropOldestSegmentsWhenFull() throws IOException {
+        // given
+        CentralSpool spool = CentralSpool.create(spoolDir, 256 * 1024, clock);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            spool.append(1, i, new byte[10000]);
+        }
+
+        // then
+        assertThat(spool.getSpoolSizeBytes()).isLessThanOrEqualTo(256 * 1024);
+        assertThat(spool.getDroppedRecordCount()).isGreaterThan(0);
+        assertThat(spool.getSpooledRecordCount() + spool.getDroppedRecordCount()).isEqualTo(100);
+        Segment segment = spool.getOldestSegment();
+        assertThat(spool.read(segment).get(0).captureTime())
+                .isEqualTo(spool.getDroppedRecordCount());
+    }
+
+    @Test
+    public void shouldNotSpoolRecordLargerThanMaxSize() throws IOException {
+        // given
+        CentralSpool spool = CentralSpool.create(spoolDir, 1024, clock);
+
+        // when
+        boolean spooled = spool.append(1, 1000, new byte[2000]);
+
+        // then
+        assertThat(spooled).isFalse();
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getDroppedRecordCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCalculateDrainLag() throws IOException {
+        // given
+        CentralSpool spool = CentralSpool.create(spoolDir, 1024 * 1024, clock);
+        when(clock.currentTimeMillis()).thenReturn(5000L);
+
+        // when
+        long emptyDrainLag = spool.getDrainLagMillis();
+        spool.append(1, 2000, new byte[] {1});
+        spool.append(1, 1000, new byte[] {1});
+
+        // then
+        assertThat(emptyDrainLag).isZero();
+        assertThat(spool.getDrainLagMillis()).isEqualTo(4000);
+    }
+}
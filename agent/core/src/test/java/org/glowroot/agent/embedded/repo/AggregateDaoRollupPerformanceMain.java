@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// measures rolling up one hour of 1 minute aggregates
+public class AggregateDaoRollupPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(AggregateDaoRollupPerformanceMain.class);
+
+    private static final long MINUTE = 60000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final int TRANSACTION_NAMES = 200;
+    private static final int TRANSACTIONS_PER_AGGREGATE = 100;
+
+    private static final int ITERATIONS = 5;
+
+    private AggregateDaoRollupPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        File dbFile = File.createTempFile("glowroot-perf-", ".h2.db");
+        DataSource dataSource = new DataSource(dbFile);
+        File cappedFile = File.createTempFile("glowroot-perf-", ".capped.db");
+        CappedDatabase cappedDatabase =
+                new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
+        List<CappedDatabase> cappedDatabases =
+                ImmutableList.of(cappedDatabase, cappedDatabase, cappedDatabase);
+
+        // level 1 interval is too large to trigger a rollup while populating
+        AggregateDao aggregateDao = new AggregateDao(dataSource, cappedDatabases,
+                createConfigRepository(Long.MAX_VALUE / 2), mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class));
+        for (long captureTime = MINUTE; captureTime <= HOUR; captureTime += MINUTE) {
+            aggregateDao.store(createAggregateReader(captureTime));
+        }
+        long transactionCount = 60L * TRANSACTION_NAMES * TRANSACTIONS_PER_AGGREGATE;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long millis = timeRollup(dataSource, cappedDatabases);
+            logger.info("rollup per 1M transactions: {} ms", millis * 1000000 / transactionCount);
+        }
+
+        dataSource.close();
+        cappedDatabase.close();
+        dbFile.delete();
+        cappedFile.delete();
+    }
+
+    private static long timeRollup(DataSource dataSource, List<CappedDatabase> cappedDatabases)
+            throws Exception {
+        dataSource.execute("delete from aggregate_tt_rollup_1");
+        dataSource.execute("delete from aggregate_tn_rollup_1");
+        AggregateDao aggregateDao = new AggregateDao(dataSource, cappedDatabases,
+                createConfigRepository(HOUR), mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class));
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        // storing an empty capture time triggers the level 1 rollup of the prior hour
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return HOUR + MINUTE;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) {}
+        });
+        return stopwatch.elapsed(MILLISECONDS);
+    }
+
+    private static ConfigRepository createConfigRepository(long level1IntervalMillis)
+            throws Exception {
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getAdvancedConfig(""))
+                .thenReturn(AdvancedConfig.getDefaultInstance());
+        ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
+                ImmutableRollupConfig.of(MINUTE, 0),
+                ImmutableRollupConfig.of(level1IntervalMillis, 0));
+        when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
+        return configRepository;
+    }
+
+    private static AggregateReader createAggregateReader(final long captureTime) {
+        return new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("Web", new ArrayList<String>(),
+                        createAggregate(TRANSACTION_NAMES * TRANSACTIONS_PER_AGGREGATE));
+                for (int i = 0; i < TRANSACTION_NAMES; i++) {
+                    aggregateVisitor.visitTransactionAggregate("Web", "/transaction/" + i,
+                            new ArrayList<String>(), createAggregate(TRANSACTIONS_PER_AGGREGATE));
+                }
+            }
+        };
+    }
+
+    private static Aggregate createAggregate(int transactionCount) {
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        for (int i = 0; i < Math.min(transactionCount, 500); i++) {
+            histogram.addOrderedRawValue(1000000 + i * 1000);
+        }
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(transactionCount * 2000000.0)
+                .setTransactionCount(transactionCount)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(transactionCount * 2000000.0)
+                        .setCount(transactionCount)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(transactionCount * 1000000.0)
+                                .setCount(transactionCount * 3)))
+                .setDurationNanosHistogram(histogram)
+                .build();
+    }
+}
@@ -133,12 +133,71 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollUp() throws Exception {
+        // given
+        populateAggregates();
+
+        // when
+        Result<TransactionSummary> queryResult = readRolledUpTransactionSummaries(10);
+
+        // then
+        assertRolledUpTransactionSummaries(queryResult);
+    }
+
+    @Test
+    public void shouldRollUpMoreThanOneInsertBatch() throws Exception {
+        // given
+        populateManyTransactionNames(10000, 250);
+        populateManyTransactionNames(20000, 250);
+
+        // when
+        Result<TransactionSummary> queryResult = readRolledUpTransactionSummaries(1000);
+
+        // then
+        assertThat(queryResult.records()).hasSize(250);
+        for (TransactionSummary transactionSummary : queryResult.records()) {
+            assertThat(transactionSummary.transactionCount()).isEqualTo(1);
+        }
+    }
+
+    private Result<TransactionSummary> readRolledUpTransactionSummaries(int limit)
+            throws Exception {
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(15000)
+                .rollupLevel(1)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query, SummarySortOrder.TOTAL_TIME,
+                limit, collector);
+        return collector.getResult(SummarySortOrder.TOTAL_TIME, limit);
+    }
+
+    private static void assertRolledUpTransactionSummaries(
+            Result<TransactionSummary> queryResult) {
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(1400000);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(7);
+        assertThat(queryResult.records().get(1).transactionName()).isEqualTo("two");
+        assertThat(queryResult.records().get(1).transactionCount()).isEqualTo(2);
+        assertThat(queryResult.records().get(2).transactionName()).isEqualTo("one");
+        assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(1);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
+        populateAggregates(10000);
+        populateAggregates(20000);
+    }
+
+    private void populateAggregates(final long captureTime) throws Exception {
         aggregateDao.store(new AggregateReader() {
             @Override
             public long captureTime() {
-                return 10000;
+                return captureTime;
             }
             @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
@@ -172,42 +231,31 @@ public class AggregateDaoTest {
                                 .build());
             }
         });
+    }
 
+    private void populateManyTransactionNames(final long captureTime,
+            final int transactionNameCount) throws Exception {
         aggregateDao.store(new AggregateReader() {
             @Override
             public long captureTime() {
-                return 20000;
+                return captureTime;
             }
             @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
                 aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
                         Aggregate.newBuilder()
-                                .setTotalDurationNanos(1000000)
-                                .setErrorCount(0)
-                                .setTransactionCount(10)
-                                .setDurationNanosHistogram(getFakeHistogram())
-                                .build());
-                aggregateVisitor.visitTransactionAggregate("a type", "one", new ArrayList<String>(),
-                        Aggregate.newBuilder()
-                                .setTotalDurationNanos(100000)
-                                .setErrorCount(0)
-                                .setTransactionCount(1)
-                                .setDurationNanosHistogram(getFakeHistogram())
-                                .build());
-                aggregateVisitor.visitTransactionAggregate("a type", "two", new ArrayList<String>(),
-                        Aggregate.newBuilder()
-                                .setTotalDurationNanos(300000)
-                                .setErrorCount(0)
-                                .setTransactionCount(2)
-                                .setDurationNanosHistogram(getFakeHistogram())
-                                .build());
-                aggregateVisitor.visitTransactionAggregate("a type", "seven",
-                        new ArrayList<String>(), Aggregate.newBuilder()
-                                .setTotalDurationNanos(1400000)
-                                .setErrorCount(0)
-                                .setTransactionCount(7)
+                                .setTotalDurationNanos(100000 * transactionNameCount)
+                                .setTransactionCount(transactionNameCount)
                                 .setDurationNanosHistogram(getFakeHistogram())
                                 .build());
+                for (int i = 0; i < transactionNameCount; i++) {
+                    aggregateVisitor.visitTransactionAggregate("a type", "name" + i,
+                            new ArrayList<String>(), Aggregate.newBuilder()
+                                    .setTotalDurationNanos(100000)
+                                    .setTransactionCount(1)
+                                    .setDurationNanosHistogram(getFakeHistogram())
+                                    .build());
+                }
             }
         });
     }
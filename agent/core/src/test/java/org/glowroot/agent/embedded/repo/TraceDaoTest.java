@@ -207,6 +207,72 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceWithHeadlineQualifier() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("st head")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingHeadlineQualifier() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("st heads")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithHeadlineQualifierAfterUpgrade() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        dataSource.execute("drop table trace_token");
+        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .headlineComparator(StringComparator.EQUALS)
+                .headline("test headline")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
@@ -216,5 +282,6 @@ public class TraceDaoTest {
         traceDao.deleteBefore(100);
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ROLLUP, AGENT_ID, traceReader.traceId())).isNull();
+        assertThat(dataSource.queryForLong("select count(*) from trace_token")).isZero();
     }
 }
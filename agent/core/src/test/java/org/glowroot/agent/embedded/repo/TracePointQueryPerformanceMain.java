@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.util.Random;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+
+// populates a week of traces and measures trace point query latency with headline, error message
+// and user filters, e.g.
+//
+// java org.glowroot.agent.embedded.repo.TracePointQueryPerformanceMain <trace count>
+//
+// the "full scan" timings are the same filters applied directly to the trace table (i.e. without
+// the trace_token inverted index) for comparison
+public class TracePointQueryPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(TracePointQueryPerformanceMain.class);
+
+    private static final String[] RESOURCES = {"orders", "customers", "products", "invoices",
+            "shipments", "payments", "accounts", "reports", "inventory", "suppliers"};
+
+    private static final long WEEK_MILLIS = DAYS.toMillis(7);
+
+    private static final int ITERATIONS = 10;
+
+    private TracePointQueryPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        int traceCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File dir = Files.createTempDir();
+        DataSource dataSource = new DataSource(new File(dir, "glowroot.h2.db"));
+        CappedDatabase cappedDatabase = new CappedDatabase(new File(dir, "glowroot.capped.db"),
+                1000000, Ticker.systemTicker());
+        TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class));
+
+        Random random = new Random(0);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < traceCount; i++) {
+            traceDao.store(TraceTestData.createTraceReader(createTraceHeader(random, i,
+                    i * WEEK_MILLIS / traceCount)));
+            if ((i + 1) % 100000 == 0) {
+                logger.info("stored {} traces, elapsed time: {} ms", i + 1,
+                        stopwatch.elapsed(MILLISECONDS));
+            }
+        }
+        logger.info("stored {} traces, elapsed time: {} ms", traceCount,
+                stopwatch.elapsed(MILLISECONDS));
+
+        TraceQuery week = ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .from(0)
+                .to(WEEK_MILLIS)
+                .build();
+        TraceQuery day = ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .from(WEEK_MILLIS - DAYS.toMillis(1))
+                .to(WEEK_MILLIS)
+                .build();
+        for (TraceQuery query : new TraceQuery[] {week, day}) {
+            String range = query == week ? "week" : "day";
+            run(traceDao, dataSource, range, query, "headline", StringComparator.CONTAINS,
+                    "/orders/1234");
+            run(traceDao, dataSource, range, query, "headline", StringComparator.BEGINS,
+                    "get /api/invoices/");
+            run(traceDao, dataSource, range, query, "headline", StringComparator.EQUALS,
+                    "GET /api/customers/777");
+            run(traceDao, dataSource, range, query, "user", StringComparator.EQUALS, "user42");
+            run(traceDao, dataSource, range, query, "error_message", StringComparator.CONTAINS,
+                    "timed out after");
+            // not indexable
+            run(traceDao, dataSource, range, query, "headline", StringComparator.NOT_CONTAINS,
+                    "/api/");
+        }
+        dataSource.close();
+        cappedDatabase.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static Trace.Header createTraceHeader(Random random, int i, long captureTime) {
+        String resource = RESOURCES[random.nextInt(RESOURCES.length)];
+        Trace.Header.Builder header = Trace.Header.newBuilder()
+                .setSlow(true)
+                .setStartTime(captureTime)
+                .setCaptureTime(captureTime)
+                .setDurationNanos(MILLISECONDS.toNanos(random.nextInt(10000)))
+                .setTransactionType("Web")
+                .setTransactionName("/api/" + resource + "/*")
+                .setHeadline("GET /api/" + resource + "/" + random.nextInt(100000))
+                .setUser("user" + random.nextInt(1000));
+        if (i % 20 == 0) {
+            header.setError(Trace.Error.newBuilder()
+                    .setMessage("java.net.SocketTimeoutException: connection to " + resource
+                            + " timed out after " + random.nextInt(60) + " seconds"));
+        }
+        return header.build();
+    }
+
+    private static void run(TraceDao traceDao, DataSource dataSource, String range,
+            TraceQuery query, String column, StringComparator comparator, String value)
+            throws Exception {
+        ImmutableTracePointFilter.Builder filter = ImmutableTracePointFilter.builder();
+        if (column.equals("headline")) {
+            filter.headlineComparator(comparator).headline(value);
+        } else if (column.equals("error_message")) {
+            filter.errorMessageComparator(comparator).errorMessage(value);
+        } else {
+            filter.userComparator(comparator).user(value);
+        }
+        TracePointFilter tracePointFilter = filter.build();
+        int count = 0;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Result<TracePoint> result = traceDao.readSlowPoints("", query, tracePointFilter, 500);
+            count = result.records().size();
+        }
+        long indexedMicros = stopwatch.elapsed(MILLISECONDS) * 1000 / ITERATIONS;
+        stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // column name is one of the constants above
+            @SuppressWarnings("tainting")
+            long unused = dataSource.queryForLong("select count(*) from trace"
+                    + " where transaction_type = ? and slow = ? and capture_time > ?"
+                    + " and capture_time <= ? and upper(" + column + ") "
+                    + comparator.getComparator() + " ?", query.transactionType(), true,
+                    query.from(), query.to(), comparator.formatParameter(value));
+        }
+        long fullScanMicros = stopwatch.elapsed(MILLISECONDS) * 1000 / ITERATIONS;
+        logger.info("{} {} {} \"{}\": {} results, {} ms (full scan: {} ms)", range, column,
+                comparator, value, count, indexedMicros / 1000.0, fullScanMicros / 1000.0);
+    }
+}
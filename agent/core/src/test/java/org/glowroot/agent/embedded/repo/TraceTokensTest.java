@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.repo.TraceTokens.SearchToken;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceTokensTest {
+
+    @Test
+    public void shouldTokenize() {
+        // given
+        Trace.Header header = Trace.Header.newBuilder()
+                .setHeadline("GET /api/orders/1234?x=y")
+                .setUser("j.smith")
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("abc")
+                        .addValue("one")
+                        .addValue("two"))
+                .build();
+
+        // when
+        // then
+        assertThat(TraceTokens.getTokens(header)).containsExactly(
+                ImmutableFieldToken.of(TraceTokens.HEADLINE, "GET"),
+                ImmutableFieldToken.of(TraceTokens.HEADLINE, "API"),
+                ImmutableFieldToken.of(TraceTokens.HEADLINE, "ORDERS"),
+                ImmutableFieldToken.of(TraceTokens.HEADLINE, "1234"),
+                ImmutableFieldToken.of(TraceTokens.USER, "SMITH"),
+                ImmutableFieldToken.of(TraceTokens.ATTRIBUTE, "ONE"),
+                ImmutableFieldToken.of(TraceTokens.ATTRIBUTE, "TWO"));
+    }
+
+    @Test
+    public void shouldGetSearchTokensForEquals() {
+        // when
+        List<SearchToken> searchTokens = TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.EQUALS, "get /api/orders");
+
+        // then
+        assertThat(searchTokens).containsExactly(
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "GET", false),
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "API", false),
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "ORDERS", false));
+    }
+
+    @Test
+    public void shouldGetSearchTokensForContains() {
+        // when
+        List<SearchToken> searchTokens = TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.CONTAINS, "customers/orders/12");
+        List<SearchToken> searchTokens2 = TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.CONTAINS, "customers/orders/12/");
+
+        // then
+        // "customers" could be the end of a longer token
+        assertThat(searchTokens).containsExactly(
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "ORDERS", false),
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "12", true));
+        assertThat(searchTokens2).containsExactly(
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "ORDERS", false),
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "12", false));
+    }
+
+    @Test
+    public void shouldGetSearchTokensForBeginsAndEnds() {
+        // when
+        List<SearchToken> searchTokens = TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.BEGINS, "customers");
+        List<SearchToken> searchTokens2 = TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.ENDS, "customers");
+
+        // then
+        assertThat(searchTokens).containsExactly(
+                ImmutableSearchToken.of(TraceTokens.HEADLINE, "CUSTOMERS", true));
+        assertThat(searchTokens2).isEmpty();
+    }
+
+    @Test
+    public void shouldNotGetSearchTokens() {
+        assertThat(TraceTokens.getSearchTokens(TraceTokens.HEADLINE,
+                StringComparator.NOT_CONTAINS, "/customers/")).isEmpty();
+        assertThat(TraceTokens.getSearchTokens(TraceTokens.HEADLINE, StringComparator.CONTAINS,
+                "/customers%/")).isEmpty();
+        assertThat(TraceTokens.getSearchTokens(TraceTokens.HEADLINE, StringComparator.EQUALS,
+                "a b c")).isEmpty();
+    }
+}
@@ -18,10 +18,19 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -157,4 +166,108 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldWriteAndReadConcurrently() throws Exception {
+        // given
+        File tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(tempFile, 1024, Ticker.systemTicker());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            final int threadNum = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 100; j++) {
+                        String text = "thread " + threadNum + ", block " + j;
+                        long cappedId = cappedDatabase.write(
+                                ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+                        // then
+                        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // then
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        assertThat(cappedDatabase.getStats("test").getWriteCount()).isEqualTo(400);
+        executor.shutdown();
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldReadConcurrentlyWithResize() throws Exception {
+        // given
+        File tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(tempFile, 64, Ticker.systemTicker());
+        final Map<Long, String> texts = Maps.newConcurrentMap();
+        Random random = new Random(0);
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (!done.get()) {
+                        for (Map.Entry<Long, String> entry : texts.entrySet()) {
+                            long cappedId = entry.getKey();
+                            String text;
+                            try {
+                                text = cappedDatabase.read(cappedId).read();
+                            } catch (IOException e) {
+                                // then
+                                assertThat(cappedDatabase.isExpired(cappedId)).isTrue();
+                                continue;
+                            }
+                            // then
+                            assertThat(text).isEqualTo(entry.getValue());
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        int[] sizesKb = {48, 128, 64, 96};
+        for (int i = 0; i < 40; i++) {
+            // write enough between resizes so that the database wraps, which is what makes the
+            // resize move existing blocks to new file positions
+            for (int j = 0; j < 30; j++) {
+                String text = createRandomText(random, 1000);
+                long cappedId = cappedDatabase
+                        .write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+                texts.put(cappedId, text);
+            }
+            cappedDatabase.resize(sizesKb[i % sizesKb.length]);
+        }
+        done.set(true);
+
+        // then
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    private static String createRandomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
 }
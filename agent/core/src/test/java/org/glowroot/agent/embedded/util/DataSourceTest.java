@@ -15,11 +15,30 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +113,194 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testReadConnectionPool() throws Exception {
+        // given
+        File tempDir = Files.createTempDir();
+        File dbFile = new File(tempDir, "data.h2.db");
+        DataSource dataSource = new DataSource(dbFile, 2);
+        try {
+            dataSource.execute("create table test (id bigint)");
+            // when
+            dataSource.update("insert into test (id) values (?)", 1L);
+            dataSource.update("insert into test (id) values (?)", 2L);
+            // then
+            assertThat(dataSource.queryForLong("select sum(id) from test")).isEqualTo(3);
+            assertThat(dataSource.queryForStringList("select id from test order by id"))
+                    .containsExactly("1", "2");
+
+            // and after re-creating the connections
+            dataSource.defrag();
+            dataSource.update("insert into test (id) values (?)", 3L);
+            assertThat(dataSource.queryForLong("select sum(id) from test")).isEqualTo(6);
+        } finally {
+            dataSource.close();
+        }
+        assertThat(dataSource.queryForLong("select sum(id) from test")).isEqualTo(0);
+        dbFile.delete();
+        tempDir.delete();
+    }
+
+    @Test
+    public void testReadConnectionPoolWithConcurrentDefrag() throws Exception {
+        // given
+        File tempDir = Files.createTempDir();
+        File dbFile = new File(tempDir, "data.h2.db");
+        final DataSource dataSource = new DataSource(dbFile, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            dataSource.execute("create table test (id bigint)");
+            dataSource.update("insert into test (id) values (?)", 1L);
+            dataSource.update("insert into test (id) values (?)", 2L);
+            List<Future<Integer>> futures = Lists.newArrayList();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+                        while (!done.get()) {
+                            assertThat(dataSource.queryForLong("select sum(id) from test"))
+                                    .isEqualTo(3);
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            // when
+            for (int i = 0; i < 10; i++) {
+                dataSource.defrag();
+            }
+            done.set(true);
+            // then
+            for (Future<Integer> future : futures) {
+                assertThat(future.get(10, SECONDS)).isGreaterThan(0);
+            }
+            assertThat(dataSource.queryForLong("select sum(id) from test")).isEqualTo(3);
+        } finally {
+            done.set(true);
+            executor.shutdown();
+            dataSource.close();
+        }
+        dbFile.delete();
+        tempDir.delete();
+    }
+
+    @Test
+    public void testReadConnectionPoolWithWriteWhileHoldingReadConnectionAndConcurrentDefrag()
+            throws Exception {
+        // given
+        File tempDir = Files.createTempDir();
+        File dbFile = new File(tempDir, "data.h2.db");
+        final DataSource dataSource = new DataSource(dbFile, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch defragStarted = new CountDownLatch(1);
+        try {
+            dataSource.execute("create table test (id bigint)");
+            dataSource.update("insert into test (id) values (?)", 1L);
+            // when
+            Future<Long> queryFuture = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return dataSource.query(new JdbcQuery<Long>() {
+                        @Override
+                        public String getSql() {
+                            return "select sum(id) from test";
+                        }
+                        @Override
+                        public void bind(PreparedStatement preparedStatement) {}
+                        @Override
+                        public Long processResultSet(ResultSet resultSet) throws Exception {
+                            queryStarted.countDown();
+                            defragStarted.await();
+                            // give defrag a chance to start waiting on the read connection
+                            MILLISECONDS.sleep(100);
+                            // write while still holding the read connection
+                            dataSource.update("insert into test (id) values (?)", 2L);
+                            resultSet.next();
+                            return resultSet.getLong(1);
+                        }
+                        @Override
+                        public Long valueIfDataSourceClosed() {
+                            return 0L;
+                        }
+                    });
+                }
+            });
+            queryStarted.await();
+            Future<?> defragFuture = executor.submit(new Callable<Void>() {
+                @Override
+                public @Nullable Void call() throws Exception {
+                    defragStarted.countDown();
+                    dataSource.defrag();
+                    return null;
+                }
+            });
+            // then
+            assertThat(queryFuture.get(10, SECONDS)).isEqualTo(1);
+            defragFuture.get(10, SECONDS);
+            assertThat(dataSource.queryForLong("select sum(id) from test")).isEqualTo(3);
+        } finally {
+            executor.shutdownNow();
+            dataSource.close();
+        }
+        dbFile.delete();
+        tempDir.delete();
+    }
+
+    // multi_threaded is needed for the read connection pool (see DataSource.createConnection()),
+    // this verifies that concurrent reads on the pool see consistent data while writes are in
+    // progress on the writer connection
+    @Test
+    public void testReadConnectionPoolWithConcurrentWrites() throws Exception {
+        // given
+        File tempDir = Files.createTempDir();
+        File dbFile = new File(tempDir, "data.h2.db");
+        final DataSource dataSource = new DataSource(dbFile, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            dataSource.execute("create table test (id bigint)");
+            List<Future<Integer>> futures = Lists.newArrayList();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+                        long lastRowCount = 0;
+                        while (!done.get()) {
+                            // ids are inserted in order, so a query that observed a partially
+                            // applied insert would see a gap
+                            assertThat(dataSource.queryForLong("select count(*) - coalesce(max(id),"
+                                    + " 0) from test")).isZero();
+                            long rowCount = dataSource.queryForLong("select count(*) from test");
+                            assertThat(rowCount).isGreaterThanOrEqualTo(lastRowCount);
+                            lastRowCount = rowCount;
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            // when
+            for (long i = 1; i <= 1000; i++) {
+                dataSource.update("insert into test (id) values (?)", i);
+            }
+            done.set(true);
+            // then
+            for (Future<Integer> future : futures) {
+                assertThat(future.get(10, SECONDS)).isGreaterThan(0);
+            }
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1000);
+        } finally {
+            done.set(true);
+            executor.shutdown();
+            dataSource.close();
+        }
+        dbFile.delete();
+        tempDir.delete();
+    }
 }
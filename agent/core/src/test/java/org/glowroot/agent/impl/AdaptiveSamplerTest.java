@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveSamplerTest {
+
+    private Ticker ticker;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = mock(Ticker.class);
+    }
+
+    @Test
+    public void shouldSampleEverythingWhenDisabled() {
+        // given
+        AdaptiveSampler sampler = new AdaptiveSampler(ticker, 0);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            assertThat(sampler.sample()).isTrue();
+            sampler.onCompleted(1000);
+        }
+
+        // then
+        assertThat(sampler.isEnabled()).isFalse();
+        assertThat(sampler.getSamplingRatio()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReduceSamplingRatioWhenOverBudget() {
+        // given
+        AdaptiveSampler sampler = new AdaptiveSampler(ticker, 1000);
+
+        // when
+        // 100 transactions with 40 entries each in one second is 4x the budget
+        runOneSecond(sampler, 100, 40);
+
+        // then
+        assertThat(sampler.getSamplingRatio()).isEqualTo(0.25);
+        // and when
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+        // then
+        assertThat(sampled).isEqualTo(25);
+    }
+
+    @Test
+    public void shouldRecoverGraduallyWhenUnderBudget() {
+        // given
+        AdaptiveSampler sampler = new AdaptiveSampler(ticker, 1000);
+        runOneSecond(sampler, 100, 40);
+
+        // when
+        // load drops, so sampling every transaction would be under budget again
+        runOneSecond(sampler, 10, 40);
+
+        // then
+        assertThat(sampler.getSamplingRatio()).isEqualTo(0.625);
+    }
+
+    @Test
+    public void shouldConvertCpuBudgetToEntriesPerSecond() {
+        assertThat(AdaptiveSampler.getMaxEntriesPerSecond(0, 2000, 8)).isZero();
+        // 1% of 8 processors is 80 ms of cpu per second, at 2 microseconds per entry
+        assertThat(AdaptiveSampler.getMaxEntriesPerSecond(1, 2000, 8)).isEqualTo(40000);
+    }
+
+    private void runOneSecond(AdaptiveSampler sampler, int transactionCount,
+            int entriesPerTransaction) {
+        long startTick = ticker.read();
+        for (int i = 0; i < transactionCount; i++) {
+            boolean sampled = sampler.sample();
+            when(ticker.read()).thenReturn(startTick + SECONDS.toNanos(1) * i / transactionCount);
+            sampler.onCompleted(sampled ? entriesPerTransaction : 0);
+        }
+        when(ticker.read()).thenReturn(startTick + SECONDS.toNanos(1));
+        sampler.onCompleted(0);
+    }
+}
@@ -17,9 +17,12 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
 import org.glowroot.agent.collector.Collector;
@@ -42,13 +45,23 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceWhenSharded() throws InterruptedException {
+        shouldFlushWithTrace(4);
+    }
+
+    private static void shouldFlushWithTrace(int shardCount) throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
         ConfigService configService = mock(ConfigService.class);
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService,
+                new TransactionRegistry(), 1000, shardCount, 1000, Clock.systemClock(),
+                Ticker.systemTicker());
 
         // when
         int count = 0;
@@ -75,12 +88,90 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldNotLoseTransactionsWhenShardQueueIsFull() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        // shard pending limit of 1 so that the shard queues are full most of the time, and short
+        // aggregate interval so that many intervals are flushed while the shard queues are full
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService,
+                new TransactionRegistry(), 10, 4, 1, Clock.systemClock(), Ticker.systemTicker());
+        int count = 500;
+
+        // when
+        for (int i = 0; i < count; i++) {
+            aggregator.add(buildTransaction("name" + i));
+            if (i % 50 == 0) {
+                Thread.sleep(5);
+            }
+        }
+
+        // then
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalTransactionCount() >= count) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        // give a little extra time in case any transactions are (incorrectly) counted twice
+        Thread.sleep(100);
+        assertThat(aggregateCollector.getTotalTransactionCount()).isEqualTo(count);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldStoreConcurrencyGaugeValuesWhenAggregateIsDroppedDueToBacklog()
+            throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        // in-flight for the entire test, so that every interval has concurrency gauge values
+        transactionRegistry.addTransaction(buildTransaction());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService,
+                transactionRegistry, 10, 1, 1000, Clock.systemClock(), Ticker.systemTicker());
+
+        // when
+        // blocking the flushing thread causes the aggregate backlog limit to be reached
+        CountDownLatch latch = aggregateCollector.blockGaugeValues();
+        Thread.sleep(300);
+        long releaseTime = System.currentTimeMillis();
+        latch.countDown();
+
+        // then
+        // gauge values are collected in capture time order, so once one arrives from after the
+        // release, all of the intervals from before the release have been collected
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getLastGaugeValueCaptureTime() > releaseTime) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        aggregator.close();
+        // roughly 30 intervals elapsed while blocked, without the concurrency gauge values from
+        // dropped aggregates this would be at most the one blocked interval plus the 5 pending
+        // intervals
+        assertThat(aggregateCollector.getGaugeValueCaptureTimeCount(releaseTime))
+                .isGreaterThanOrEqualTo(15);
+    }
+
     private static Transaction buildTransaction() {
+        return buildTransaction("a name");
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
@@ -92,10 +183,40 @@ public class AggregatorTest {
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
 
+        // only updated by the single aggregate flushing thread
+        private volatile long totalTransactionCount;
+
+        private final List<Long> gaugeValueCaptureTimes = Lists.newCopyOnWriteArrayList();
+        private volatile CountDownLatch gaugeValuesLatch = new CountDownLatch(0);
+
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private long getTotalTransactionCount() {
+            return totalTransactionCount;
+        }
+
+        private long getLastGaugeValueCaptureTime() {
+            return gaugeValueCaptureTimes.isEmpty() ? 0
+                    : gaugeValueCaptureTimes.get(gaugeValueCaptureTimes.size() - 1);
+        }
+
+        private int getGaugeValueCaptureTimeCount(long maxCaptureTime) {
+            int count = 0;
+            for (long captureTime : gaugeValueCaptureTimes) {
+                if (captureTime <= maxCaptureTime) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private CountDownLatch blockGaugeValues() {
+            gaugeValuesLatch = new CountDownLatch(1);
+            return gaugeValuesLatch;
+        }
+
         @Override
         public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
                 AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
@@ -106,6 +227,7 @@ public class AggregatorTest {
                 @Override
                 public void visitOverallAggregate(String transactionType,
                         List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                    totalTransactionCount += overallAggregate.getTransactionCount();
                     // only capture first non-zero value
                     if (totalDurationNanos == 0) {
                         totalDurationNanos = overallAggregate.getTotalDurationNanos();
@@ -119,7 +241,10 @@ public class AggregatorTest {
         }
 
         @Override
-        public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+        public void collectGaugeValues(List<GaugeValue> gaugeValues) throws InterruptedException {
+            gaugeValueCaptureTimes.add(gaugeValues.get(0).getCaptureTime());
+            gaugeValuesLatch.await();
+        }
 
         @Override
         public void collectTrace(TraceReader traceReader) {}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.ConcurrencyGauge.ConcurrencySnapshot;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyGaugeTest {
+
+    @Test
+    public void shouldTrackConcurrency() {
+        // given
+        ConcurrencyGauge concurrencyGauge = new ConcurrencyGauge("Web", 0);
+
+        // when
+        concurrencyGauge.onStart();
+        concurrencyGauge.onStart();
+        concurrencyGauge.onComplete(SECONDS.toNanos(10), SECONDS.toNanos(20));
+        concurrencyGauge.onStart();
+        concurrencyGauge.onComplete(0, SECONDS.toNanos(30));
+        concurrencyGauge.addInFlight(SECONDS.toNanos(20), SECONDS.toNanos(60));
+        ConcurrencySnapshot snapshot = concurrencyGauge.roll(SECONDS.toNanos(60));
+
+        // then
+        assertThat(snapshot.transactionType()).isEqualTo("Web");
+        assertThat(snapshot.inFlight()).isEqualTo(1);
+        assertThat(snapshot.peak()).isEqualTo(2);
+        // (10 + 30 + 40) / 60
+        assertThat(snapshot.average()).isEqualTo(80 / 60.0);
+    }
+
+    @Test
+    public void shouldOnlyCountTimeWithinInterval() {
+        // given
+        ConcurrencyGauge concurrencyGauge = new ConcurrencyGauge("Web", 0);
+        concurrencyGauge.onStart();
+        concurrencyGauge.onStart();
+        concurrencyGauge.addInFlight(SECONDS.toNanos(20), SECONDS.toNanos(60));
+        concurrencyGauge.addInFlight(SECONDS.toNanos(50), SECONDS.toNanos(60));
+        concurrencyGauge.roll(SECONDS.toNanos(60));
+
+        // when
+        concurrencyGauge.onComplete(SECONDS.toNanos(50), SECONDS.toNanos(90));
+        concurrencyGauge.addInFlight(SECONDS.toNanos(20), SECONDS.toNanos(120));
+        ConcurrencySnapshot snapshot = concurrencyGauge.roll(SECONDS.toNanos(120));
+
+        // then
+        assertThat(snapshot.inFlight()).isEqualTo(1);
+        // the peak carries over from the transactions still in-flight at the start of the interval
+        assertThat(snapshot.peak()).isEqualTo(2);
+        // (30 + 60) / 60
+        assertThat(snapshot.average()).isEqualTo(1.5);
+    }
+
+    @Test
+    public void shouldResetAfterIdleInterval() {
+        // given
+        ConcurrencyGauge concurrencyGauge = new ConcurrencyGauge("Web", 0);
+        concurrencyGauge.onStart();
+        concurrencyGauge.onComplete(SECONDS.toNanos(10), SECONDS.toNanos(20));
+        concurrencyGauge.roll(SECONDS.toNanos(60));
+
+        // when
+        ConcurrencySnapshot snapshot = concurrencyGauge.roll(SECONDS.toNanos(120));
+
+        // then
+        assertThat(snapshot.inFlight()).isZero();
+        assertThat(snapshot.peak()).isZero();
+        assertThat(snapshot.average()).isZero();
+    }
+}
@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.SqlFingerprinter;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -29,7 +30,7 @@ public class QueryCollectorTest {
 
     @Test
     public void testAddInAscendingOrder() {
-        QueryCollector queries = new QueryCollector(100, 4);
+        QueryCollector queries = new QueryCollector(100, 4, null);
         for (int i = 1; i <= 300; i++) {
             queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
         }
@@ -38,13 +39,45 @@ public class QueryCollectorTest {
 
     @Test
     public void testAddInDescendingOrder() {
-        QueryCollector queries = new QueryCollector(100, 4);
+        QueryCollector queries = new QueryCollector(100, 4, null);
         for (int i = 300; i > 0; i--) {
             queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
         }
         test(queries);
     }
 
+    @Test
+    public void testAddWithSqlFingerprinting() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 4, new SqlFingerprinter());
+        for (int i = 1; i <= 300; i++) {
+            queries.mergeQuery("SQL", "select * from t where id = " + i, i, 1, true, 1);
+            queries.mergeQuery("CQL", "select * from t where id = " + i, i, 1, true, 1);
+        }
+
+        // when
+        SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(sharedQueryTextCollector);
+
+        // then
+        List<String> sharedQueryTexts =
+                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts();
+        assertThat(queriesByTypeList).hasSize(2);
+        for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
+            if (queriesByType.getType().equals("SQL")) {
+                assertThat(queriesByType.getQueryList()).hasSize(1);
+                Aggregate.Query query = queriesByType.getQueryList().get(0);
+                assertThat(sharedQueryTexts.get(query.getSharedQueryTextIndex()))
+                        .isEqualTo("select * from t where id = ?");
+                assertThat(query.getExecutionCount()).isEqualTo(300);
+            } else {
+                // only sql is fingerprinted
+                assertThat(queriesByType.getQueryList()).hasSize(101);
+            }
+        }
+    }
+
     private void test(QueryCollector queries) {
         // when
         SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.config.ImmutableTransactionConfig;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    private TransactionRegistry transactionRegistry;
+    private ConfigService configService;
+    private StackTraceCollector stackTraceCollector;
+
+    @Before
+    public void beforeEach() {
+        transactionRegistry = mock(TransactionRegistry.class);
+        configService = mock(ConfigService.class);
+        // profiling interval of zero so that the background processing thread stays idle, and
+        // passes are only run explicitly by the tests
+        when(configService.getTransactionConfig())
+                .thenReturn(ImmutableTransactionConfig.builder()
+                        .profilingIntervalMillis(0)
+                        .build());
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+    }
+
+    @After
+    public void afterEach() throws InterruptedException {
+        if (stackTraceCollector != null) {
+            stackTraceCollector.close();
+        }
+    }
+
+    @Test
+    public void shouldCaptureInBatches() throws InterruptedException {
+        // given
+        stackTraceCollector = createStackTraceCollector(2, new StepTicker());
+        List<ThreadContextImpl> threadContexts = createActiveTransactions(5);
+
+        // when
+        stackTraceCollector.runBatchedInternal(0, 10);
+
+        // then
+        for (ThreadContextImpl threadContext : threadContexts) {
+            verify(threadContext).captureStackTrace(any(ThreadInfo.class), anyInt());
+        }
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(3);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldCaptureSingleBatchWhenBatchSizeIsLarger() throws InterruptedException {
+        // given
+        stackTraceCollector = createStackTraceCollector(10, new StepTicker());
+        createActiveTransactions(10);
+
+        // when
+        stackTraceCollector.runBatchedInternal(0, 10);
+
+        // then
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(1);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldSkipThreadsThatCompletedBeforeTheirBatch() throws InterruptedException {
+        // given
+        stackTraceCollector = createStackTraceCollector(2, new StepTicker());
+        List<ThreadContextImpl> threadContexts = createActiveTransactions(4);
+        // active when the pass starts, but no longer active by the time of its batch
+        when(threadContexts.get(3).isActive()).thenReturn(true, false);
+
+        // when
+        stackTraceCollector.runBatchedInternal(0, 10);
+
+        // then
+        verify(threadContexts.get(3), never()).captureStackTrace(any(ThreadInfo.class),
+                anyInt());
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(2);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldSpreadBatchesAcrossInterval() throws InterruptedException {
+        // given
+        Ticker ticker = Ticker.systemTicker();
+        stackTraceCollector = createStackTraceCollector(1, ticker);
+        List<ThreadContextImpl> threadContexts = createActiveTransactions(4);
+
+        // when
+        long startTick = ticker.read();
+        stackTraceCollector.runBatchedInternal(startTick, 200);
+        long elapsedMillis = NANOSECONDS.toMillis(ticker.read() - startTick);
+
+        // then
+        // last batch is captured within the last 50 millisecond slot of the interval
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(150);
+        for (ThreadContextImpl threadContext : threadContexts) {
+            verify(threadContext, times(1)).captureStackTrace(any(ThreadInfo.class), anyInt());
+        }
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldReportPassStats() throws InterruptedException {
+        // given
+        stackTraceCollector = createStackTraceCollector(2, new StepTicker());
+        createActiveTransactions(5);
+
+        // when
+        stackTraceCollector.runBatchedInternal(0, 10);
+
+        // then
+        // step ticker advances one millisecond on each read, and each batch capture is timed
+        // using two reads
+        assertThat(stackTraceCollector.getLastPassCaptureMillis()).isEqualTo(3.0);
+        assertThat(stackTraceCollector.getLastPassMaxBatchCaptureMillis()).isEqualTo(1.0);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(5);
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReportPassStatsWhenNotBatched() {
+        // given
+        stackTraceCollector = createStackTraceCollector(0, new StepTicker());
+        createActiveTransactions(5);
+
+        // when
+        stackTraceCollector.runInternal();
+
+        // then
+        assertThat(stackTraceCollector.getLastPassCaptureMillis()).isEqualTo(1.0);
+        assertThat(stackTraceCollector.getLastPassMaxBatchCaptureMillis()).isEqualTo(1.0);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(5);
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldResetPassStatsWhenNoActiveThreads() throws InterruptedException {
+        // given
+        stackTraceCollector = createStackTraceCollector(2, new StepTicker());
+        createActiveTransactions(5);
+        stackTraceCollector.runBatchedInternal(0, 10);
+        createActiveTransactions(0);
+
+        // when
+        stackTraceCollector.runBatchedInternal(0, 10);
+
+        // then
+        assertThat(stackTraceCollector.getLastPassCaptureMillis()).isEqualTo(0);
+        assertThat(stackTraceCollector.getLastPassMaxBatchCaptureMillis()).isEqualTo(0);
+        assertThat(stackTraceCollector.getLastPassSampledThreadCount()).isEqualTo(0);
+        assertThat(stackTraceCollector.getLastPassBatchCount()).isEqualTo(0);
+    }
+
+    private StackTraceCollector createStackTraceCollector(int batchSize, Ticker ticker) {
+        return new StackTraceCollector(transactionRegistry, configService, new Random(0), ticker,
+                batchSize);
+    }
+
+    private List<ThreadContextImpl> createActiveTransactions(int count) {
+        List<Transaction> transactions = Lists.newArrayList();
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            // the current thread's id so that ThreadMXBean returns thread info for it
+            ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+            when(threadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+            when(threadContext.isActive()).thenReturn(true);
+            Transaction transaction = mock(Transaction.class);
+            when(transaction.getMainThreadContext()).thenReturn(threadContext);
+            when(transaction.getActiveAuxThreadContexts())
+                    .thenReturn(ImmutableList.<ThreadContextImpl>of());
+            transactions.add(transaction);
+            threadContexts.add(threadContext);
+        }
+        when(transactionRegistry.getTransactions()).thenReturn(transactions);
+        return threadContexts;
+    }
+
+    private static class StepTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            nanos += MILLISECONDS.toNanos(1);
+            return nanos;
+        }
+    }
+}
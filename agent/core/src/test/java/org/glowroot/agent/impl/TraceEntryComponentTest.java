@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import org.junit.Test;
 
+import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
@@ -34,7 +35,7 @@ public class TraceEntryComponentTest {
         when(messageSupplier.get()).thenReturn(Message.create("abc"));
         TimerImpl timer = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, null);
         // when
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -52,7 +53,7 @@ public class TraceEntryComponentTest {
         TimerImpl timer1 = mock(TimerImpl.class);
         TimerImpl timer2 = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, null);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -71,11 +72,118 @@ public class TraceEntryComponentTest {
         TimerImpl timer1 = mock(TimerImpl.class);
         TimerImpl timer2 = mock(TimerImpl.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, null);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
         traceEntryComponent.popEntry(mock(TraceEntryImpl.class), 0);
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testRecycledEntriesAreReused() {
+        // given
+        TraceEntryPool pool = new TraceEntryPool(1000);
+        pool.tryClaim();
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, pool);
+        TraceEntryImpl entry1 = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                null, 0);
+        traceEntryComponent.popNonRootEntry(entry1);
+        TraceEntryImpl entry2 = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                null, 0);
+        traceEntryComponent.popNonRootEntry(entry2);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        // when
+        traceEntryComponent.releasePool(true);
+        pool.tryClaim();
+        TraceEntryComponent traceEntryComponent2 =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 10, pool);
+        TraceEntryImpl entry3 = traceEntryComponent2.pushEntry(10, messageSupplier, timer, null,
+                null, 0);
+        // then
+        assertThat(pool.size()).isEqualTo(2);
+        assertThat(entry3).isSameAs(entry1);
+        assertThat(entry3.getStartTick()).isEqualTo(10);
+        assertThat(entry3.getParentTraceEntry()).isSameAs(traceEntryComponent2.getRootEntry());
+        assertThat(entry3.getNextTraceEntry()).isNull();
+        assertThat(entry2.getParentTraceEntry()).isNull();
+    }
+
+    @Test
+    public void testAbandonedEntriesAreNotReused() {
+        // given
+        TraceEntryPool pool = new TraceEntryPool(1000);
+        pool.tryClaim();
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, pool);
+        TraceEntryImpl entry1 = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                null, 0);
+        traceEntryComponent.popNonRootEntry(entry1);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        // when
+        traceEntryComponent.releasePool(false);
+        pool.tryClaim();
+        TraceEntryComponent traceEntryComponent2 =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 10, pool);
+        TraceEntryImpl entry2 = traceEntryComponent2.pushEntry(10, messageSupplier, timer, null,
+                null, 0);
+        // then
+        assertThat(entry2).isNotSameAs(entry1);
+        assertThat(entry1.getParentTraceEntry()).isSameAs(traceEntryComponent.getRootEntry());
+    }
+
+    @Test
+    public void testAsyncEntriesPreventRecycling() {
+        // given
+        TraceEntryPool pool = new TraceEntryPool(1000);
+        pool.tryClaim();
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, pool);
+        TraceEntryImpl entry1 = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                null, 0);
+        traceEntryComponent.popNonRootEntry(entry1);
+        TraceEntryImpl entry2 = traceEntryComponent.pushEntry(0, messageSupplier, timer,
+                mock(AsyncTimerImpl.class), null, 0);
+        traceEntryComponent.popNonRootEntry(entry2);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        // when
+        traceEntryComponent.releasePool(true);
+        // then
+        assertThat(pool.size()).isZero();
+        assertThat(entry1.getParentTraceEntry()).isSameAs(traceEntryComponent.getRootEntry());
+    }
+
+    @Test
+    public void testPoolLimit() {
+        // given
+        TraceEntryPool pool = new TraceEntryPool(300);
+        pool.tryClaim();
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, pool);
+        // when
+        for (int i = 0; i < 500; i++) {
+            TraceEntryImpl entry = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                    null, 0);
+            traceEntryComponent.popNonRootEntry(entry);
+        }
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        traceEntryComponent.releasePool(true);
+        // then
+        assertThat(pool.size()).isEqualTo(300);
+        assertThat(pool.tryClaim()).isTrue();
+        assertThat(pool.tryClaim()).isFalse();
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.config.ImmutableTransactionConfig;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionCollectorTest {
+
+    @Test
+    public void shouldShedLowestPriorityTraces() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig()).thenReturn(ImmutableAdvancedConfig.builder()
+                .traceCollectorThreads(1)
+                .maxPendingTraces(2)
+                .build());
+        when(configService.getTransactionConfig())
+                .thenReturn(ImmutableTransactionConfig.builder().slowThresholdMillis(0).build());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((ConfigListener) invocation.getArguments()[0]).onChange();
+                return null;
+            }
+        }).when(configService).addConfigListener(any(ConfigListener.class));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> collectedTraceIds = Lists.newCopyOnWriteArrayList();
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                latch.await();
+                collectedTraceIds.add(((TraceReader) invocation.getArguments()[0]).traceId());
+                return null;
+            }
+        }).when(collector).collectTrace(any(TraceReader.class));
+        TransactionCollector transactionCollector = new TransactionCollector(configService,
+                collector, mock(Aggregator.class), Clock.systemClock(), Ticker.systemTicker());
+
+        // when
+        // first one is picked up immediately by the single worker thread, which then blocks
+        transactionCollector.onCompletedTransaction(mockTransaction("1", 10, false));
+        transactionCollector.onCompletedTransaction(mockTransaction("2", 20, false));
+        // backlog is full, and this is lower priority than the one waiting in the queue
+        transactionCollector.onCompletedTransaction(mockTransaction("3", 5, false));
+        // backlog is full, but this is higher priority than the one waiting in the queue
+        transactionCollector.onCompletedTransaction(mockTransaction("4", 1, true));
+        assertThat(transactionCollector.getPendingTraceCount()).isEqualTo(2);
+        latch.countDown();
+        transactionCollector.close();
+
+        // then
+        assertThat(collectedTraceIds).containsExactly("1", "4");
+        assertThat(transactionCollector.getStoredTraceCount()).isEqualTo(2);
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(2);
+        assertThat(transactionCollector.getPendingTraceCount()).isZero();
+    }
+
+    private static Transaction mockTransaction(String traceId, long durationNanos,
+            boolean error) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTraceId()).thenReturn(traceId);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getSlowThresholdMillisOverride())
+                .thenReturn(Transaction.USE_GENERAL_STORE_THRESHOLD);
+        if (error) {
+            ErrorMessage errorMessage = mock(ErrorMessage.class);
+            when(transaction.getErrorMessage()).thenReturn(errorMessage);
+        }
+        return transaction;
+    }
+}
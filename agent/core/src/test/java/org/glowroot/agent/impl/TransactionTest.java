@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,23 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class TransactionTest {
 
@@ -59,4 +73,43 @@ public class TransactionTest {
         // then
         assertThat(lowerSixBytes).isEqualTo("9ab0affd1a83");
     }
+
+    @Test
+    public void shouldCaptureErrorEntryWhenNotSampled() throws Exception {
+        // given
+        TimerNameImpl timerName = ImmutableTimerNameImpl.of("test", false);
+        Transaction transaction = new Transaction(System.currentTimeMillis(),
+                Ticker.systemTicker().read(), "type", "name", MessageSupplier.create("message"),
+                timerName, false, false, 100, 100, 100, null, mock(CompletionCallback.class),
+                Ticker.systemTicker(), mock(TransactionRegistry.class),
+                mock(TransactionServiceImpl.class), mock(ConfigService.class),
+                mock(UserProfileScheduler.class),
+                new FastThreadLocal<ThreadContextImpl>().getHolder());
+        ThreadContextImpl threadContext = transaction.getMainThreadContext();
+
+        // when
+        threadContext.startTraceEntry(MessageSupplier.create("entry"), timerName).end();
+        threadContext.addErrorEntry("error entry");
+
+        // then
+        List<Trace.Entry> entries = readEntries(transaction);
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getError().getMessage()).isEqualTo("error entry");
+        assertThat(transaction.isEntryLimitExceeded()).isFalse();
+    }
+
+    private static List<Trace.Entry> readEntries(Transaction transaction) throws Exception {
+        final List<Trace.Entry> entries = Lists.newArrayList();
+        transaction.accept(Ticker.systemTicker().read(), new EntryVisitor() {
+            @Override
+            public int visitSharedQueryText(String sharedQueryText) {
+                return 0;
+            }
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassNameIndexTest {
+
+    private static final ClassNameIndex classNameIndex = ClassNameIndex.create(ImmutableList.of(
+            "com.example.Builder", "com.example.Foo", "com.example.Foo$Builder",
+            "com.example.FooBar", "com.example.builders.Other", "org.example.Foo"));
+
+    @Test
+    public void shouldMatchSegmentPrefixes() {
+        // given
+        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+
+        // when
+        classNameIndex.addMatches("foo", 10, fullMatchingClassNames, matchingClassNames);
+
+        // then
+        assertThat(fullMatchingClassNames).containsExactly("com.example.Foo", "org.example.Foo");
+        assertThat(matchingClassNames).containsExactly("com.example.Foo$Builder",
+                "com.example.FooBar");
+    }
+
+    @Test
+    public void shouldMatchAcrossSegments() {
+        // given
+        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+
+        // when
+        classNameIndex.addMatches("example.foo$b", 10, fullMatchingClassNames,
+                matchingClassNames);
+
+        // then
+        assertThat(fullMatchingClassNames).isEmpty();
+        assertThat(matchingClassNames).containsExactly("com.example.Foo$Builder");
+    }
+
+    @Test
+    public void shouldNotMatchInsideSegment() {
+        // given
+        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+
+        // when
+        classNameIndex.addMatches("xample", 10, fullMatchingClassNames, matchingClassNames);
+
+        // then
+        assertThat(fullMatchingClassNames).isEmpty();
+        assertThat(matchingClassNames).isEmpty();
+    }
+
+    @Test
+    public void shouldLimitMatches() {
+        // given
+        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        Set<String> matchingClassNames = Sets.newLinkedHashSet();
+
+        // when
+        classNameIndex.addMatches("builder", 1, fullMatchingClassNames, matchingClassNames);
+
+        // then
+        assertThat(fullMatchingClassNames).containsExactly("com.example.Builder");
+        assertThat(matchingClassNames).containsExactly("com.example.builders.Other");
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.File;
 import java.lang.instrument.Instrumentation;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -22,6 +23,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -34,18 +37,29 @@ import static org.mockito.Mockito.when;
 
 public class ClasspathCacheTest {
 
+    private static File tmpDir;
+    private static AnalyzedWorld analyzedWorld;
     private static ClasspathCache classpathCache;
 
     @BeforeClass
     public static void setUp() throws Exception {
+        tmpDir = Files.createTempDir();
         ClassLoader badUrlsClassLoader =
                 new URLClassLoader(new URL[] {new URL("file://a/b c"), new URL("http://a/b/c")});
-        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        analyzedWorld = mock(AnalyzedWorld.class);
         when(analyzedWorld.getClassLoaders()).thenReturn(
                 ImmutableList.of(badUrlsClassLoader, ClassLoader.getSystemClassLoader()));
         Instrumentation instrumentation = mock(Instrumentation.class);
         when(instrumentation.getAllLoadedClasses()).thenReturn(new Class[] {A.class});
-        classpathCache = new ClasspathCache(analyzedWorld, instrumentation);
+        classpathCache = new ClasspathCache(analyzedWorld, instrumentation, tmpDir);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        for (File file : tmpDir.listFiles()) {
+            file.delete();
+        }
+        tmpDir.delete();
     }
 
     @Test
@@ -103,6 +117,21 @@ public class ClasspathCacheTest {
         }
     }
 
+    @Test
+    public void shouldReadFromCacheFile() {
+        // given
+        classpathCache.updateCache();
+        File cacheFile = new File(tmpDir, "classpath-cache.bin");
+        assertThat(cacheFile).exists();
+
+        // when
+        List<String> classNames = new ClasspathCache(analyzedWorld, null, tmpDir)
+                .getMatchingClassNames("com.google.common.collect.ImmutableMap", 5);
+
+        // then
+        assertThat(classNames).contains("com.google.common.collect.ImmutableMap");
+    }
+
     @Test
     public void shouldAnalyzedMethods() {
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -37,7 +37,7 @@ public class UiAnalyzedMethodOrderingTest {
         AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
         when(analyzedWorld.getClassLoaders())
                 .thenReturn(ImmutableList.of(UiAnalyzedMethodOrderingTest.class.getClassLoader()));
-        ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null);
+        ClasspathCache classpathCache = new ClasspathCache(analyzedWorld, null, null);
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
 
         // when
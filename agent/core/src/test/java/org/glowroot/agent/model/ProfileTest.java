@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProfileTest {
+
+    private static final StackTraceElement[] STACK_TRACE_1 = new StackTraceElement[] {
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456),
+            new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+
+    private static final StackTraceElement[] STACK_TRACE_2 = new StackTraceElement[] {
+            new StackTraceElement("Jkl", "mno", null, -1),
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456),
+            new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+
+    @Test
+    public void shouldMatchMutableProfile() throws Exception {
+        // given
+        Profile profile = new Profile();
+        MutableProfile expected = new MutableProfile();
+
+        // when
+        add(profile, expected, STACK_TRACE_1, Thread.State.RUNNABLE);
+        add(profile, expected, STACK_TRACE_1, Thread.State.RUNNABLE);
+        add(profile, expected, STACK_TRACE_1, Thread.State.BLOCKED);
+        add(profile, expected, STACK_TRACE_2, Thread.State.WAITING);
+
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(4);
+        assertThat(profile.toProto()).isEqualTo(expected.toProto());
+        MutableProfile merged = new MutableProfile();
+        profile.mergeInto(merged);
+        assertThat(merged.toJson()).isEqualTo(expected.toJson());
+    }
+
+    @Test
+    public void shouldRespectLimit() {
+        // given
+        Profile profile = new Profile();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            profile.addStackTrace(mockThreadInfo(STACK_TRACE_1, Thread.State.RUNNABLE), 5);
+        }
+
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(5);
+        assertThat(profile.toProto().getNode(0).getSampleCount()).isEqualTo(5);
+    }
+
+    private static void add(Profile profile, MutableProfile expected,
+            StackTraceElement[] stackTrace, Thread.State threadState) {
+        profile.addStackTrace(mockThreadInfo(stackTrace, threadState), Integer.MAX_VALUE);
+        expected.merge(Arrays.asList(stackTrace), threadState);
+    }
+
+    private static ThreadInfo mockThreadInfo(StackTraceElement[] stackTrace,
+            Thread.State threadState) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        return threadInfo;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlFingerprinterTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(SqlFingerprinter.normalize("select * from employee where id = 123"))
+                .isEqualTo("select * from employee where id = ?");
+        assertThat(SqlFingerprinter.normalize(
+                "select * from employee where name = 'O''Brien' and salary > 1.5e3"))
+                .isEqualTo("select * from employee where name = ? and salary > ?");
+        assertThat(SqlFingerprinter.normalize("select * from t where a = N'x' and b = 0x1F"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlFingerprinter.normalize("select * from t where a = -.5"))
+                .isEqualTo("select * from t where a = -?");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlFingerprinter.normalize("select * from t where id in (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?)");
+        assertThat(SqlFingerprinter.normalize("select * from t where id IN(?,?) and x in ('a')"))
+                .isEqualTo("select * from t where id IN(?) and x in (?)");
+        // not an in list of literals
+        assertThat(SqlFingerprinter.normalize("select * from t where id in (select id from u)"))
+                .isEqualTo("select * from t where id in (select id from u)");
+        assertThat(SqlFingerprinter.normalize("select * from t where f(min (1, 2)) = 1"))
+                .isEqualTo("select * from t where f(min (?, ?)) = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersAndParameters() {
+        String sql = "select t1.col2, \"Col 3\", `4col` from table1 t1 where t1.x = ?"
+                + " and t1.y = :name1 and t1.z = $1 -- comment 123\n"
+                + " /* comment 'abc' */";
+        assertThat(SqlFingerprinter.normalize(sql)).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldFingerprintFromCache() {
+        // given
+        SqlFingerprinter sqlFingerprinter = new SqlFingerprinter();
+
+        // when
+        String fingerprint = sqlFingerprinter.fingerprint("select * from t where id = 1");
+        String fingerprint2 = sqlFingerprinter.fingerprint("select * from t where id = 1");
+
+        // then
+        assertThat(fingerprint).isEqualTo("select * from t where id = ?");
+        assertThat(fingerprint2).isSameAs(fingerprint);
+    }
+
+    @Test
+    public void shouldBoundCacheByTotalChars() {
+        // given
+        // each entry is 28 chars of query text plus 28 chars of fingerprint
+        SqlFingerprinter sqlFingerprinter = new SqlFingerprinter(200, 1000);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            sqlFingerprinter.fingerprint("select * from t where id = " + i);
+        }
+        int sizeBeforeClear = sqlFingerprinter.getCacheSize();
+        sqlFingerprinter.fingerprint("select * from t where id = 3");
+
+        // then
+        assertThat(sizeBeforeClear).isEqualTo(3);
+        assertThat(sqlFingerprinter.getCacheSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCacheLongQueryText() {
+        // given
+        SqlFingerprinter sqlFingerprinter = new SqlFingerprinter(1000000, 20);
+
+        // when
+        String fingerprint = sqlFingerprinter.fingerprint("select * from t where id = 1");
+
+        // then
+        assertThat(fingerprint).isEqualTo("select * from t where id = ?");
+        assertThat(sqlFingerprinter.getCacheSize()).isZero();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CaptureTimeOrderedQueueTest {
+
+    @Test
+    public void shouldBumpEarlierCaptureTime() {
+        // given
+        CaptureTimeOrderedQueue<String> queue = new CaptureTimeOrderedQueue<String>();
+
+        // when
+        long captureTime1 = queue.add("a", 100);
+        long captureTime2 = queue.add("b", 99);
+        long captureTime3 = queue.add(null, 101);
+
+        // then
+        assertThat(captureTime1).isEqualTo(100);
+        assertThat(captureTime2).isEqualTo(100);
+        assertThat(captureTime3).isEqualTo(101);
+        assertThat(queue.size()).isEqualTo(3);
+        assertThat(queue.poll().getElement()).isEqualTo("a");
+        assertThat(queue.poll().getElement()).isEqualTo("b");
+        CaptureTimeOrderedQueue.Entry<String> marker = queue.poll();
+        assertThat(marker.getElement()).isNull();
+        assertThat(marker.getCaptureTime()).isEqualTo(101);
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldKeepCaptureTimesOrderedWithConcurrentProducers() throws Exception {
+        // given
+        final CaptureTimeOrderedQueue<Integer> queue = new CaptureTimeOrderedQueue<Integer>();
+        final int producerCount = 4;
+        final int countPerProducer = 10000;
+        final CountDownLatch latch = new CountDownLatch(producerCount);
+
+        // when
+        for (int i = 0; i < producerCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < countPerProducer; j++) {
+                        queue.add(j, System.nanoTime());
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        List<Long> captureTimes = Lists.newArrayList();
+        while (captureTimes.size() < producerCount * countPerProducer) {
+            CaptureTimeOrderedQueue.Entry<Integer> entry = queue.poll();
+            if (entry == null) {
+                queue.await(SECONDS.toNanos(1));
+            } else {
+                captureTimes.add(entry.getCaptureTime());
+            }
+        }
+        latch.await();
+
+        // then
+        assertThat(captureTimes).isSorted();
+        assertThat(queue.poll()).isNull();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private final List<Advice> advisors = ImmutableList.of(
+            createAdvice(ExactClassName.class),
+            createAdvice(ClassNamePrefix.class),
+            createAdvice(ClassNameAlternatives.class),
+            createAdvice(FullRegexClassName.class),
+            createAdvice(ClassAnnotation.class),
+            createAdvice(SuperType.class));
+
+    private final AdviceIndex adviceIndex = new AdviceIndex(advisors);
+
+    @Test
+    public void shouldFindExactClassName() {
+        assertThat(getCandidates("org.example.Exact")).isEqualTo(bits(0, 3));
+    }
+
+    @Test
+    public void shouldFindClassNamePrefix() {
+        assertThat(getCandidates("org.example.prefix.Abc")).isEqualTo(bits(1, 3));
+    }
+
+    @Test
+    public void shouldFindClassNameAlternatives() {
+        assertThat(getCandidates("org.example.One")).isEqualTo(bits(2, 3));
+        assertThat(getCandidates("org.example.TwoAbc")).isEqualTo(bits(2, 3));
+    }
+
+    @Test
+    public void shouldFindClassAnnotation() {
+        BitSet candidates = adviceIndex.getCandidates("org.example.Other",
+                ImmutableList.of("Lorg/example/Annotated;"), ImmutableList.<String>of());
+        assertThat(candidates).isEqualTo(bits(3, 4));
+    }
+
+    @Test
+    public void shouldFindSuperType() {
+        BitSet candidates = adviceIndex.getCandidates("org.example.Other",
+                ImmutableList.<String>of(), ImmutableList.of("org.example.Super"));
+        assertThat(candidates).isEqualTo(bits(3, 5));
+    }
+
+    @Test
+    public void shouldOnlyFindUnindexed() {
+        assertThat(getCandidates("org.example.Other")).isEqualTo(bits(3));
+    }
+
+    @Test
+    public void shouldMatchSameAsWithoutIndex() {
+        List<AdviceMatcher> adviceMatchers = AdviceMatcher.getAdviceMatchers(
+                "org.example.prefix.Abc", ImmutableList.<String>of(),
+                ImmutableList.<String>of(), advisors);
+        assertThat(adviceMatchers).hasSize(1);
+        assertThat(adviceMatchers.get(0).advice()).isEqualTo(advisors.get(1));
+    }
+
+    @Test
+    public void shouldReuseIndexForSameAdvisors() {
+        AdviceIndex adviceIndex = AdviceMatcher.getAdviceIndex(advisors);
+        assertThat(AdviceMatcher.getAdviceIndex(advisors)).isSameAs(adviceIndex);
+    }
+
+    @Test
+    public void shouldReuseIndexForMergedAdvisors() {
+        // given
+        AdviceIndex adviceIndex = AdviceMatcher.getAdviceIndex(advisors);
+        // same as AnalyzedWorld.mergeInstrumentationAnnotations()
+        List<Advice> mergedAdvisors = Lists.newArrayList(advisors);
+        mergedAdvisors.add(createAdvice(MergedClassName.class));
+
+        // when
+        List<AdviceMatcher> adviceMatchers = AdviceMatcher.getAdviceMatchers(
+                "org.example.Merged", ImmutableList.<String>of(), ImmutableList.<String>of(),
+                mergedAdvisors);
+
+        // then
+        assertThat(AdviceMatcher.getAdviceIndex(mergedAdvisors)).isSameAs(adviceIndex);
+        assertThat(AdviceMatcher.getAdviceIndex(advisors)).isSameAs(adviceIndex);
+        assertThat(adviceMatchers).hasSize(1);
+        assertThat(adviceMatchers.get(0).advice()).isEqualTo(mergedAdvisors.get(6));
+    }
+
+    @Test
+    public void shouldNotReuseIndexForDifferentAdvisors() {
+        // given
+        AdviceIndex adviceIndex = AdviceMatcher.getAdviceIndex(advisors);
+        List<Advice> otherAdvisors = ImmutableList.of(createAdvice(MergedClassName.class));
+
+        // then
+        assertThat(AdviceMatcher.getAdviceIndex(otherAdvisors)).isNotSameAs(adviceIndex);
+    }
+
+    private BitSet getCandidates(String className) {
+        return adviceIndex.getCandidates(className, ImmutableList.<String>of(),
+                ImmutableList.<String>of());
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    private static Advice createAdvice(Class<?> clazz) {
+        Pointcut pointcut = clazz.getAnnotation(Pointcut.class);
+        return ImmutableAdvice.builder()
+                .pointcut(pointcut)
+                .adviceType(Type.getType(clazz))
+                .pointcutClassNamePattern(AdviceBuilder.buildPattern(pointcut.className()))
+                .pointcutClassAnnotationPattern(
+                        AdviceBuilder.buildPattern(pointcut.classAnnotation()))
+                .pointcutSuperTypeRestrictionPattern(
+                        AdviceBuilder.buildPattern(pointcut.superTypeRestriction()))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    @Pointcut(className = "org.example.Exact", methodName = "dummy", methodParameterTypes = {},
+            timerName = "dummy")
+    private static class ExactClassName {}
+
+    @Pointcut(className = "org.example.prefix.*", methodName = "dummy",
+            methodParameterTypes = {}, timerName = "dummy")
+    private static class ClassNamePrefix {}
+
+    @Pointcut(className = "org.example.One|org.example.Two*", methodName = "dummy",
+            methodParameterTypes = {}, timerName = "dummy")
+    private static class ClassNameAlternatives {}
+
+    @Pointcut(className = "/org\\.example\\.Exa.*/", methodName = "dummy",
+            methodParameterTypes = {}, timerName = "dummy")
+    private static class FullRegexClassName {}
+
+    @Pointcut(classAnnotation = "org.example.Annotated", methodName = "dummy",
+            methodParameterTypes = {}, timerName = "dummy")
+    private static class ClassAnnotation {}
+
+    @Pointcut(superTypeRestriction = "org.example.Super", methodName = "dummy",
+            methodParameterTypes = {}, timerName = "dummy")
+    private static class SuperType {}
+
+    @Pointcut(className = "org.example.Merged", methodName = "dummy", methodParameterTypes = {},
+            timerName = "dummy")
+    private static class MergedClassName {}
+}
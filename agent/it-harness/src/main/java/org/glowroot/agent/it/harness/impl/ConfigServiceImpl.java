@@ -210,6 +210,8 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxStackTraceSamplesPerTransaction(of(10000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
+                .setTraceCollectorThreads(of(2))
+                .setMaxPendingTraces(of(100))
                 .build();
     }
 
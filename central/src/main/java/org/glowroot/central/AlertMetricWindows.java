@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sliding windows over the aggregates and gauge values collected from each agent, one window per
+// agent metric alert condition, so that metric alerts can be evaluated from memory as data is
+// collected, instead of re-reading the whole alert time period from the repository every minute
+//
+// a window only returns a value once it has observed every aggregate (or gauge value) in the alert
+// time period, otherwise (e.g. after central start-up, or if some data was collected by a
+// different central node) the caller needs to fall back to reading from the repository
+class AlertMetricWindows {
+
+    // percentile windows retain a histogram per aggregate interval, so are limited in size
+    private static final int MAX_PERCENTILE_WINDOW_MINUTES =
+            Integer.getInteger("glowroot.central.maxPercentileAlertWindowMinutes", 60);
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    private final ConcurrentMap<String, AgentWindows> agentWindowsMap = Maps.newConcurrentMap();
+
+    // aggregate metric conditions that no longer exist are removed from the agent's windows
+    void updateAggregateWindows(String agentId, Collection<MetricCondition> metricConditions,
+            long captureTime, long intervalMillis, List<OldAggregatesByType> aggregatesByTypeList) {
+        AgentWindows agentWindows = getAgentWindows(agentId, metricConditions);
+        if (agentWindows == null) {
+            return;
+        }
+        synchronized (agentWindows) {
+            agentWindows.aggregateWindows.keySet().retainAll(metricConditions);
+            for (MetricCondition metricCondition : metricConditions) {
+                AggregateWindow window = agentWindows.aggregateWindows.get(metricCondition);
+                if (window == null) {
+                    if (!isSupported(metricCondition)) {
+                        continue;
+                    }
+                    window = new AggregateWindow(metricCondition, intervalMillis);
+                    agentWindows.aggregateWindows.put(metricCondition, window);
+                }
+                window.add(captureTime,
+                        getAggregate(aggregatesByTypeList, metricCondition.getTransactionType(),
+                                metricCondition.getTransactionName()));
+            }
+        }
+        removeIfEmpty(agentId, agentWindows);
+    }
+
+    // gauge metric conditions that no longer exist are removed from the agent's windows
+    void updateGaugeWindows(String agentId, Collection<MetricCondition> metricConditions,
+            List<GaugeValue> gaugeValues, long gaugeCollectionIntervalMillis) {
+        AgentWindows agentWindows = getAgentWindows(agentId, metricConditions);
+        if (agentWindows == null) {
+            return;
+        }
+        Map<String, List<GaugeValue>> gaugeValuesByName = Maps.newHashMap();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            gaugeValuesByName.computeIfAbsent(gaugeValue.getGaugeName(), k -> Lists.newArrayList())
+                    .add(gaugeValue);
+        }
+        for (List<GaugeValue> list : gaugeValuesByName.values()) {
+            list.sort((o1, o2) -> Long.compare(o1.getCaptureTime(), o2.getCaptureTime()));
+        }
+        // gauge values are collected with fixed delay, so consecutive capture times are slightly
+        // more than the collection interval apart, but a missing gauge value results in a gap of
+        // around twice the collection interval
+        long maxGapMillis = gaugeCollectionIntervalMillis * 3 / 2;
+        synchronized (agentWindows) {
+            agentWindows.gaugeWindows.keySet().retainAll(metricConditions);
+            for (MetricCondition metricCondition : metricConditions) {
+                String gaugeName = metricCondition.getMetric().substring("gauge:".length());
+                List<GaugeValue> list = gaugeValuesByName.get(gaugeName);
+                if (list == null) {
+                    continue;
+                }
+                GaugeWindow window = agentWindows.gaugeWindows.get(metricCondition);
+                if (window == null) {
+                    window = new GaugeWindow(metricCondition, maxGapMillis);
+                    agentWindows.gaugeWindows.put(metricCondition, window);
+                }
+                for (GaugeValue gaugeValue : list) {
+                    window.add(gaugeValue);
+                }
+            }
+        }
+        removeIfEmpty(agentId, agentWindows);
+    }
+
+    // returns null if the metric value cannot be calculated from the window, in which case the
+    // metric value needs to be read from the repository
+    @Nullable
+    WindowValue getMetricValue(String agentId, MetricCondition metricCondition, long endTime) {
+        AgentWindows agentWindows = agentWindowsMap.get(agentId);
+        if (agentWindows == null) {
+            return null;
+        }
+        long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+        synchronized (agentWindows) {
+            if (metricCondition.getMetric().startsWith("gauge:")) {
+                GaugeWindow window = agentWindows.gaugeWindows.get(metricCondition);
+                return window == null ? null : window.getValue(startTime, endTime);
+            } else {
+                AggregateWindow window = agentWindows.aggregateWindows.get(metricCondition);
+                return window == null ? null : window.getValue(startTime, endTime);
+            }
+        }
+    }
+
+    private @Nullable AgentWindows getAgentWindows(String agentId,
+            Collection<MetricCondition> metricConditions) {
+        if (metricConditions.isEmpty()) {
+            // only need to remove windows (if any) for conditions that no longer exist
+            return agentWindowsMap.get(agentId);
+        }
+        return agentWindowsMap.computeIfAbsent(agentId, k -> new AgentWindows());
+    }
+
+    private void removeIfEmpty(String agentId, AgentWindows agentWindows) {
+        boolean empty;
+        synchronized (agentWindows) {
+            empty = agentWindows.aggregateWindows.isEmpty() && agentWindows.gaugeWindows.isEmpty();
+        }
+        if (empty) {
+            // if a concurrent update has just added a window to this (now removed) instance, it
+            // will be lost, which only means that the window will need to be rebuilt
+            agentWindowsMap.remove(agentId, agentWindows);
+        }
+    }
+
+    private static boolean isSupported(MetricCondition metricCondition) {
+        if (metricCondition.getMetric().equals("transaction:x-percentile")) {
+            return metricCondition.getTimePeriodSeconds() <= MAX_PERCENTILE_WINDOW_MINUTES * 60;
+        }
+        return true;
+    }
+
+    // returns null if there were no transactions of the given type (and name) during the interval
+    private static @Nullable Aggregate getAggregate(List<OldAggregatesByType> aggregatesByTypeList,
+            String transactionType, String transactionName) {
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (!aggregatesByType.getTransactionType().equals(transactionType)) {
+                continue;
+            }
+            if (transactionName.isEmpty()) {
+                return aggregatesByType.getOverallAggregate();
+            }
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (transactionAggregate.getTransactionName().equals(transactionName)) {
+                    return transactionAggregate.getAggregate();
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface WindowValue {
+        // null when the metric value cannot be calculated due to no data, e.g. error rate (same as
+        // when reading the metric value from the repository)
+        @Nullable
+        Number value();
+    }
+
+    private static class AgentWindows {
+        private final Map<MetricCondition, AggregateWindow> aggregateWindows = Maps.newHashMap();
+        private final Map<MetricCondition, GaugeWindow> gaugeWindows = Maps.newHashMap();
+    }
+
+    // one bucket per aggregate interval, with running totals over the buckets
+    private static class AggregateWindow {
+
+        private final MetricCondition metricCondition;
+        private final long intervalMillis;
+        private final long periodMillis;
+        private final boolean percentile;
+
+        private final Deque<AggregateBucket> buckets = new ArrayDeque<>();
+
+        // capture time of the first aggregate observed since the window was (re)started
+        private long trackingStartTime;
+
+        private double totalDurationNanos;
+        private long transactionCount;
+        private long errorCount;
+
+        private AggregateWindow(MetricCondition metricCondition, long intervalMillis) {
+            this.metricCondition = metricCondition;
+            this.intervalMillis = intervalMillis;
+            periodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+            percentile = metricCondition.getMetric().equals("transaction:x-percentile");
+        }
+
+        private void add(long captureTime, @Nullable Aggregate aggregate) {
+            AggregateBucket lastBucket = buckets.peekLast();
+            if (lastBucket != null && captureTime == lastBucket.captureTime) {
+                // agent re-sent the same aggregates (e.g. after not receiving the response)
+                remove(buckets.removeLast());
+            } else if (lastBucket != null
+                    && captureTime != lastBucket.captureTime + intervalMillis) {
+                // missed some aggregates (e.g. collected by a different central node) or received
+                // them out of order (e.g. agent re-sending aggregates after a network outage)
+                reset();
+            }
+            if (buckets.isEmpty()) {
+                trackingStartTime = captureTime;
+            }
+            AggregateBucket bucket = new AggregateBucket(captureTime, aggregate, percentile);
+            buckets.addLast(bucket);
+            totalDurationNanos += bucket.totalDurationNanos;
+            transactionCount += bucket.transactionCount;
+            errorCount += bucket.errorCount;
+            AggregateBucket firstBucket = buckets.peekFirst();
+            while (firstBucket != null && firstBucket.captureTime <= captureTime - periodMillis) {
+                remove(buckets.removeFirst());
+                firstBucket = buckets.peekFirst();
+            }
+        }
+
+        private @Nullable WindowValue getValue(long startTime, long endTime) {
+            AggregateBucket lastBucket = buckets.peekLast();
+            if (lastBucket == null || lastBucket.captureTime != endTime) {
+                return null;
+            }
+            if (trackingStartTime - intervalMillis > startTime) {
+                // the window has not yet observed every aggregate in the time period
+                return null;
+            }
+            String metric = metricCondition.getMetric();
+            if (metric.equals("transaction:count")) {
+                return ImmutableWindowValue.of(transactionCount);
+            } else if (metric.equals("error:count")) {
+                return ImmutableWindowValue.of(errorCount);
+            } else if (transactionCount == 0) {
+                return ImmutableWindowValue.of(null);
+            } else if (metric.equals("transaction:average")) {
+                return ImmutableWindowValue
+                        .of(totalDurationNanos / (transactionCount * NANOSECONDS_PER_MILLISECOND));
+            } else if (metric.equals("error:rate")) {
+                return ImmutableWindowValue.of((100.0 * errorCount) / transactionCount);
+            } else if (percentile) {
+                LazyHistogram durationNanosHistogram = new LazyHistogram();
+                for (AggregateBucket bucket : buckets) {
+                    if (bucket.durationNanosHistogram != null) {
+                        durationNanosHistogram.merge(bucket.durationNanosHistogram);
+                    }
+                }
+                return ImmutableWindowValue.of(durationNanosHistogram.getValueAtPercentile(
+                        metricCondition.getPercentile().getValue()) / NANOSECONDS_PER_MILLISECOND);
+            } else {
+                throw new IllegalStateException("Unexpected metric: " + metric);
+            }
+        }
+
+        private void remove(AggregateBucket bucket) {
+            totalDurationNanos -= bucket.totalDurationNanos;
+            transactionCount -= bucket.transactionCount;
+            errorCount -= bucket.errorCount;
+        }
+
+        private void reset() {
+            buckets.clear();
+            totalDurationNanos = 0;
+            transactionCount = 0;
+            errorCount = 0;
+        }
+    }
+
+    private static class AggregateBucket {
+
+        private final long captureTime;
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final long errorCount;
+        // only retained for percentile windows
+        private final @Nullable Aggregate.Histogram durationNanosHistogram;
+
+        private AggregateBucket(long captureTime, @Nullable Aggregate aggregate,
+                boolean retainHistogram) {
+            this.captureTime = captureTime;
+            if (aggregate == null) {
+                totalDurationNanos = 0;
+                transactionCount = 0;
+                errorCount = 0;
+                durationNanosHistogram = null;
+            } else {
+                totalDurationNanos = aggregate.getTotalDurationNanos();
+                transactionCount = aggregate.getTransactionCount();
+                errorCount = aggregate.getErrorCount();
+                durationNanosHistogram =
+                        retainHistogram ? aggregate.getDurationNanosHistogram() : null;
+            }
+        }
+    }
+
+    // one sample per gauge value, with running totals over the samples
+    private static class GaugeWindow {
+
+        private final long periodMillis;
+        private final long maxGapMillis;
+
+        private final Deque<GaugeValue> gaugeValues = new ArrayDeque<>();
+
+        // capture time of the first gauge value observed since the window was (re)started
+        private long trackingStartTime;
+
+        private double totalWeightedValue;
+        private long totalWeight;
+
+        private GaugeWindow(MetricCondition metricCondition, long maxGapMillis) {
+            periodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+            this.maxGapMillis = maxGapMillis;
+        }
+
+        private void add(GaugeValue gaugeValue) {
+            long captureTime = gaugeValue.getCaptureTime();
+            GaugeValue lastGaugeValue = gaugeValues.peekLast();
+            if (lastGaugeValue != null && (captureTime <= lastGaugeValue.getCaptureTime()
+                    || captureTime - lastGaugeValue.getCaptureTime() > maxGapMillis)) {
+                // re-sent, out of order, or missed gauge values (e.g. collected by a different
+                // central node)
+                reset();
+            }
+            if (gaugeValues.isEmpty()) {
+                trackingStartTime = captureTime;
+            }
+            gaugeValues.addLast(gaugeValue);
+            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+            totalWeight += gaugeValue.getWeight();
+            GaugeValue firstGaugeValue = gaugeValues.peekFirst();
+            while (firstGaugeValue != null
+                    && firstGaugeValue.getCaptureTime() <= captureTime - periodMillis) {
+                gaugeValues.removeFirst();
+                totalWeightedValue -= firstGaugeValue.getValue() * firstGaugeValue.getWeight();
+                totalWeight -= firstGaugeValue.getWeight();
+                firstGaugeValue = gaugeValues.peekFirst();
+            }
+        }
+
+        private @Nullable WindowValue getValue(long startTime, long endTime) {
+            GaugeValue lastGaugeValue = gaugeValues.peekLast();
+            if (lastGaugeValue == null || lastGaugeValue.getCaptureTime() != endTime) {
+                return null;
+            }
+            if (trackingStartTime > startTime) {
+                // the window has not yet observed every gauge value in the time period
+                return null;
+            }
+            if (totalWeight == 0) {
+                return ImmutableWindowValue.of(null);
+            }
+            return ImmutableWindowValue.of(totalWeightedValue / totalWeight);
+        }
+
+        private void reset() {
+            gaugeValues.clear();
+            totalWeightedValue = 0;
+            totalWeight = 0;
+        }
+    }
+}
@@ -16,15 +16,18 @@
 package org.glowroot.central;
 
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.AlertMetricWindows.WindowValue;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.common.repo.util.AlertingService;
@@ -33,6 +36,8 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.HeartbeatCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertNotification;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -45,6 +50,11 @@ class CentralAlertingService {
     private final HeartbeatDao heartbeatDao;
     private final AlertingService alertingService;
 
+    // agent metric alerts are evaluated from these windows when possible, agent rollup metric
+    // alerts are always evaluated from the repository since the aggregates and gauge values of the
+    // child agents can be collected by different central nodes
+    private final AlertMetricWindows alertMetricWindows = new AlertMetricWindows();
+
     private final ExecutorService alertCheckingExecutor;
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
@@ -77,7 +87,8 @@ class CentralAlertingService {
         }
     }
 
-    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime) {
+    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<OldAggregatesByType> aggregatesByTypeList) {
         List<AlertConfig> alertConfigs;
         try {
             alertConfigs = configRepository.getAlertConfigs(agentId);
@@ -92,10 +103,14 @@ class CentralAlertingService {
                 aggregateAlertConfigs.add(alertConfig);
             }
         }
-        checkAlertsAsync(agentId, agentDisplay, endTime, aggregateAlertConfigs);
+        alertMetricWindows.updateAggregateWindows(agentId,
+                getMetricConditions(aggregateAlertConfigs), endTime,
+                configRepository.getRollupConfigs().get(0).intervalMillis(), aggregatesByTypeList);
+        checkAlertsAsync(agentId, agentDisplay, endTime, aggregateAlertConfigs, true);
     }
 
-    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime) {
+    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<GaugeValue> gaugeValues) {
         List<AlertConfig> alertConfigs;
         try {
             alertConfigs = configRepository.getAlertConfigs(agentId);
@@ -111,7 +126,10 @@ class CentralAlertingService {
                 gaugeAndHeartbeatAlertConfigs.add(alertConfig);
             }
         }
-        checkAlertsAsync(agentId, agentDisplay, endTime, gaugeAndHeartbeatAlertConfigs);
+        alertMetricWindows.updateGaugeWindows(agentId,
+                getMetricConditions(gaugeAndHeartbeatAlertConfigs), gaugeValues,
+                configRepository.getGaugeCollectionIntervalMillis());
+        checkAlertsAsync(agentId, agentDisplay, endTime, gaugeAndHeartbeatAlertConfigs, true);
     }
 
     void checkAggregateAndGaugeAndHeartbeatAlertsAsync(String agentRollupId,
@@ -132,11 +150,11 @@ class CentralAlertingService {
             }
         }
         checkAlertsAsync(agentRollupId, agentRollupDisplay, endTime,
-                aggregateAndGaugeAndHeartbeatAlertConfigs);
+                aggregateAndGaugeAndHeartbeatAlertConfigs, false);
     }
 
     private void checkAlertsAsync(String agentRollupId, String agentRollupDisplay, long endTime,
-            List<AlertConfig> alertConfigs) {
+            List<AlertConfig> alertConfigs, boolean agent) {
         if (closed) {
             return;
         }
@@ -145,7 +163,8 @@ class CentralAlertingService {
             public void run() {
                 for (AlertConfig alertConfig : alertConfigs) {
                     try {
-                        checkAlert(agentRollupId, agentRollupDisplay, endTime, alertConfig);
+                        checkAlert(agentRollupId, agentRollupDisplay, endTime, alertConfig,
+                                agent);
                     } catch (InterruptedException e) {
                         // shutdown requested
                         return;
@@ -158,13 +177,13 @@ class CentralAlertingService {
     }
 
     private void checkAlert(String agentRollupId, String agentDisplay, long endTime,
-            AlertConfig alertConfig) throws Exception {
+            AlertConfig alertConfig, boolean agent) throws Exception {
         AlertCondition alertCondition = alertConfig.getCondition();
         switch (alertCondition.getValCase()) {
             case METRIC_CONDITION:
                 checkMetricAlert(agentRollupId, agentDisplay, alertCondition,
                         alertCondition.getMetricCondition(), alertConfig.getNotification(),
-                        endTime);
+                        endTime, agent);
                 break;
             case HEARTBEAT_CONDITION:
                 if (stopwatch.elapsed(MINUTES) >= 4) {
@@ -188,9 +207,18 @@ class CentralAlertingService {
             timer = "check metric alert")
     private void checkMetricAlert(String agentRollupId, String agentDisplay,
             AlertCondition alertCondition, MetricCondition metricCondition,
-            AlertNotification alertNotification, long endTime) throws Exception {
-        alertingService.checkMetricAlert(agentRollupId, agentDisplay, alertCondition,
-                metricCondition, alertNotification, endTime);
+            AlertNotification alertNotification, long endTime, boolean agent)
+            throws Exception {
+        WindowValue windowValue = agent
+                ? alertMetricWindows.getMetricValue(agentRollupId, metricCondition, endTime)
+                : null;
+        if (windowValue == null) {
+            alertingService.checkMetricAlert(agentRollupId, agentDisplay, alertCondition,
+                    metricCondition, alertNotification, endTime);
+        } else {
+            alertingService.sendMetricAlertIfNeeded(agentRollupId, agentDisplay, alertCondition,
+                    metricCondition, alertNotification, endTime, windowValue.value());
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -205,6 +233,17 @@ class CentralAlertingService {
                 heartbeatCondition, alertNotification, endTime, currentlyTriggered);
     }
 
+    private static Set<MetricCondition> getMetricConditions(List<AlertConfig> alertConfigs) {
+        Set<MetricCondition> metricConditions = Sets.newHashSet();
+        for (AlertConfig alertConfig : alertConfigs) {
+            AlertCondition condition = alertConfig.getCondition();
+            if (condition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION) {
+                metricConditions.add(condition.getMetricCondition());
+            }
+        }
+        return metricConditions;
+    }
+
     private static boolean isAggregateMetricCondition(AlertCondition alertCondition) {
         if (alertCondition.getValCase() != AlertCondition.ValCase.METRIC_CONDITION) {
             return false;
@@ -19,12 +19,15 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
+import javax.management.ObjectName;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
@@ -71,6 +74,7 @@ import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
 import org.glowroot.ui.CommonHandler;
 import org.glowroot.ui.CreateUiModuleBuilder;
+import org.glowroot.ui.HttpServiceExecutorMXBean;
 import org.glowroot.ui.SessionMapFactory;
 import org.glowroot.ui.UiModule;
 
@@ -82,6 +86,13 @@ public class CentralModule {
     // need to wait to init logger until after establishing centralDir
     private static volatile @MonotonicNonNull Logger startupLogger;
 
+    private static final String HTTP_SERVICE_EXECUTOR_MBEAN_NAME =
+            "org.glowroot.central:type=HttpServiceExecutor";
+    private static final String AGGREGATE_CACHE_MBEAN_NAME =
+            "org.glowroot.central:type=AggregateCache";
+    private static final String ROLLUP_SERVICE_MBEAN_NAME =
+            "org.glowroot.central:type=RollupService";
+
     private final ClusterManager clusterManager;
     private final Cluster cluster;
     private final Session session;
@@ -231,6 +242,17 @@ public class CentralModule {
                     .numWorkerThreads(50)
                     .version(version)
                     .build();
+            HttpServiceExecutorMXBean httpServiceExecutorStats =
+                    uiModule.getHttpServiceExecutorStats();
+            if (httpServiceExecutorStats != null) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(httpServiceExecutorStats,
+                        ObjectName.getInstance(HTTP_SERVICE_EXECUTOR_MBEAN_NAME));
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    uiModule.getAggregateCacheStats(),
+                    ObjectName.getInstance(AGGREGATE_CACHE_MBEAN_NAME));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(rollupService,
+                    ObjectName.getInstance(ROLLUP_SERVICE_MBEAN_NAME));
             startupLogger.info("startup complete");
         } catch (Throwable t) {
             if (startupLogger == null) {
@@ -294,6 +316,14 @@ public class CentralModule {
         try {
             // close down external inputs first (ui and grpc)
             uiModule.close();
+            if (uiModule.getHttpServiceExecutorStats() != null) {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(ObjectName.getInstance(HTTP_SERVICE_EXECUTOR_MBEAN_NAME));
+            }
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(ObjectName.getInstance(AGGREGATE_CACHE_MBEAN_NAME));
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(ObjectName.getInstance(ROLLUP_SERVICE_MBEAN_NAME));
             // updateAgentConfigIfNeededService depends on grpc downstream, so must be shutdown
             // before grpc
             updateAgentConfigIfNeededService.close();
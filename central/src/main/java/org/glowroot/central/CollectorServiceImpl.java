@@ -15,16 +15,25 @@
  */
 package org.glowroot.central;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -40,6 +49,8 @@ import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.common.model.GaugeValueBatches;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -70,11 +81,15 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(CollectorServiceImpl.class);
 
+    private static final int INGEST_CALLBACK_THREADS =
+            Integer.getInteger("glowroot.central.ingestCallbackThreads", 4);
+
     private final AgentRollupDao agentRollupDao;
     private final AgentConfigDao agentConfigDao;
     private final EnvironmentDao environmentDao;
@@ -86,6 +101,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final Clock clock;
     private final String version;
 
+    // the alert checks (and the agent rollup display reads they log with) are not safe to run
+    // inside cassandra driver threads, so ingest completion callbacks are run on this executor
+    private final ExecutorService ingestCallbackExecutor;
+
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
@@ -103,6 +122,18 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
         this.version = version;
+        ingestCallbackExecutor = Executors.newFixedThreadPool(INGEST_CALLBACK_THREADS,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Ingest-Callback-%d")
+                        .build());
+    }
+
+    void close() throws InterruptedException {
+        ingestCallbackExecutor.shutdown();
+        if (!ingestCallbackExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Init",
@@ -130,7 +161,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                 request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
         InitResponse.Builder response = InitResponse.newBuilder()
-                .setGlowrootCentralVersion(version);
+                .setGlowrootCentralVersion(version)
+                .setGaugeValueBatchSupported(true);
         if (!updatedAgentConfig.equals(request.getAgentConfig())) {
             response.setAgentConfig(updatedAgentConfig);
         }
@@ -225,13 +257,20 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         responseObserver.onCompleted();
     }
 
+    // the DAO store methods return as soon as the writes have been kicked off, and the response is
+    // sent from a callback once they complete, so that gRPC threads are never blocked waiting on
+    // cassandra
     private void throttledCollectAggregates(String agentId, long captureTime,
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        if (!aggregatesByTypeList.isEmpty()) {
+        ListenableFuture<?> future;
+        if (aggregatesByTypeList.isEmpty()) {
+            future = Futures.immediateFuture(null);
+        } else {
             try {
-                aggregateDao.store(agentId, captureTime, aggregatesByTypeList, sharedQueryTexts);
+                future = aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
+                        sharedQueryTexts);
             } catch (Throwable t) {
                 logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
                 responseObserver.onError(t);
@@ -246,21 +285,41 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(e);
             return;
         }
-        centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
-        centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay, captureTime);
-        responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                .setNextDelayMillis(getNextDelayMillis())
-                .build());
-        responseObserver.onCompleted();
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
+                centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay,
+                        captureTime, aggregatesByTypeList);
+                responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                        .setNextDelayMillis(getNextDelayMillis())
+                        .build());
+                responseObserver.onCompleted();
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error("{} - {}", agentDisplay, t.getMessage(), t);
+                responseObserver.onError(t);
+            }
+        }, ingestCallbackExecutor);
     }
 
     private void throttledCollectGaugeValues(GaugeValueMessage request,
             StreamObserver<EmptyMessage> responseObserver) {
         String agentId = request.getAgentId();
+        List<GaugeValue> gaugeValues;
+        try {
+            gaugeValues = getGaugeValues(request);
+        } catch (Throwable t) {
+            logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+            responseObserver.onError(t);
+            return;
+        }
         long maxCaptureTime = 0;
+        List<ListenableFuture<?>> futures = Lists.newArrayList();
         try {
-            gaugeValueDao.store(agentId, request.getGaugeValuesList());
-            for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
+            futures.add(gaugeValueDao.store(agentId, gaugeValues));
+            for (GaugeValue gaugeValue : gaugeValues) {
                 maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
             }
         } catch (Throwable t) {
@@ -269,7 +328,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             return;
         }
         try {
-            heartbeatDao.store(agentId);
+            futures.add(heartbeatDao.store(agentId));
         } catch (Throwable t) {
             logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
             responseObserver.onError(t);
@@ -283,11 +342,31 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(t);
             return;
         }
-        centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
-        centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(agentId, agentDisplay,
-                maxCaptureTime);
-        responseObserver.onNext(EmptyMessage.getDefaultInstance());
-        responseObserver.onCompleted();
+        long endTime = maxCaptureTime;
+        Futures.addCallback(MoreFutures.allAsync(futures), new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
+                centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(agentId, agentDisplay,
+                        endTime, gaugeValues);
+                responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error("{} - {}", agentDisplay, t.getMessage(), t);
+                responseObserver.onError(t);
+            }
+        }, ingestCallbackExecutor);
+    }
+
+    private static List<GaugeValue> getGaugeValues(GaugeValueMessage request)
+            throws IOException {
+        if (request.hasGaugeValueBatch()) {
+            return GaugeValueBatches.decode(request.getGaugeValueBatch());
+        } else {
+            return request.getGaugeValuesList();
+        }
     }
 
     private int getNextDelayMillis() {
@@ -41,6 +41,7 @@ class GrpcServer {
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private final DownstreamServiceImpl downstreamService;
+    private final CollectorServiceImpl collectorService;
 
     private final ServerImpl server;
 
@@ -52,7 +53,7 @@ class GrpcServer {
 
         downstreamService = new DownstreamServiceImpl(agentRollupDao, clusterManager);
 
-        CollectorServiceImpl collectorService = new CollectorServiceImpl(agentRollupDao,
+        collectorService = new CollectorServiceImpl(agentRollupDao,
                 agentConfigDao, environmentDao, aggregateDao, gaugeValueDao, heartbeatDao, traceDao,
                 centralAlertingService, clock, version);
 
@@ -88,5 +89,6 @@ class GrpcServer {
         if (!server.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for grpc server to terminate");
         }
+        collectorService.close();
     }
 }
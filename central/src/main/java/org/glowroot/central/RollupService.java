@@ -15,12 +15,19 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,10 +42,15 @@ import org.glowroot.common.util.Clock;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class RollupService implements Runnable {
+class RollupService implements Runnable, RollupServiceMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    // when greater than one, independent agent rollups are rolled up concurrently (while still
+    // rolling up children before their parent)
+    private static final int ROLLUP_THREADS =
+            Integer.getInteger("glowroot.central.rollupThreads", 1);
+
     private final AgentRollupDao agentRollupDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
@@ -47,19 +59,45 @@ class RollupService implements Runnable {
     private final Clock clock;
 
     private final ExecutorService executor;
+    // null when rolling up sequentially on the main rollup thread
+    private final @Nullable ExecutorService workerExecutor;
+
+    private volatile long lastPassDurationMillis;
+    private volatile long lastPassLagMillis;
+    private volatile int lastPassAgentRollupCount;
+    private final AtomicInteger backlog = new AtomicInteger();
 
     private volatile boolean closed;
 
     RollupService(AgentRollupDao agentRollupDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
             CentralAlertingService centralAlertingService, Clock clock) {
+        this(agentRollupDao, aggregateDao, gaugeValueDao, syntheticResultDao,
+                centralAlertingService, clock, ROLLUP_THREADS);
+    }
+
+    @VisibleForTesting
+    RollupService(AgentRollupDao agentRollupDao, AggregateDao aggregateDao,
+            GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
+            CentralAlertingService centralAlertingService, Clock clock, int rollupThreads) {
         this.agentRollupDao = agentRollupDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
-        executor = Executors.newSingleThreadExecutor();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup")
+                .build());
+        if (rollupThreads > 1) {
+            workerExecutor = Executors.newFixedThreadPool(rollupThreads, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Glowroot-Rollup-Worker-%d")
+                    .build());
+        } else {
+            workerExecutor = null;
+        }
         executor.execute(castInitialized(this));
     }
 
@@ -81,30 +119,168 @@ class RollupService implements Runnable {
         closed = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
+        if (workerExecutor != null) {
+            workerExecutor.shutdownNow();
+        }
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for rollup thread to terminate");
         }
+        if (workerExecutor != null && !workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for rollup threads to terminate");
+        }
+    }
+
+    @Override
+    public long getLastPassDurationMillis() {
+        return lastPassDurationMillis;
+    }
+
+    @Override
+    public long getLastPassLagMillis() {
+        return lastPassLagMillis;
+    }
+
+    @Override
+    public int getLastPassAgentRollupCount() {
+        return lastPassAgentRollupCount;
+    }
+
+    @Override
+    public int getBacklog() {
+        return backlog.get();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
+    @VisibleForTesting
+    void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
-        for (AgentRollup agentRollup : agentRollupDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            rollupSyntheticMonitors(agentRollup);
-            // checking aggregate and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length (and alerts on rollups are not checked
-            // anywhere else)
-            //
-            // agent (not rollup) alerts are also checked right after receiving the respective data
-            // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-            // minute in case no data has been received from the agent recently
-            consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
-            consumeAgentRollups(agentRollup, this::checkAggregateAndGaugeAndHeartbeatAlertsAsync);
+        long passStartTime = clock.currentTimeMillis();
+        List<AgentRollup> agentRollups = agentRollupDao.readAgentRollups();
+        int agentRollupCount = countAgentRollups(agentRollups);
+        backlog.set(agentRollupCount);
+        try {
+            if (workerExecutor == null) {
+                runSequentially(agentRollups);
+            } else {
+                runInParallel(agentRollups, workerExecutor);
+            }
+        } finally {
+            backlog.set(0);
+            long passEndTime = clock.currentTimeMillis();
+            lastPassDurationMillis = passEndTime - passStartTime;
+            long nextPassStartTime = passStartTime + millisUntilNextRollup(passStartTime);
+            lastPassLagMillis = Math.max(0, passEndTime - nextPassStartTime);
+            lastPassAgentRollupCount = agentRollupCount;
+        }
+    }
+
+    private void runSequentially(List<AgentRollup> agentRollups) throws Exception {
+        for (AgentRollup agentRollup : agentRollups) {
+            try {
+                rollupAggregates(agentRollup, null);
+                rollupGauges(agentRollup, null);
+                rollupSyntheticMonitors(agentRollup);
+                // checking aggregate and gauge alerts after rollup since their calculation can
+                // depend on rollups depending on time period length (and alerts on rollups are not
+                // checked anywhere else)
+                //
+                // agent (not rollup) alerts are also checked right after receiving the respective
+                // data (aggregate/gauge/heartbeat) from the agent, but need to also check these
+                // once a minute in case no data has been received from the agent recently
+                consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
+                consumeAgentRollups(agentRollup,
+                        this::checkAggregateAndGaugeAndHeartbeatAlertsAsync);
+            } finally {
+                backlog.addAndGet(-countAgentRollups(agentRollup.children()) - 1);
+            }
+        }
+    }
+
+    private void runInParallel(List<AgentRollup> agentRollups, ExecutorService workerExecutor)
+            throws Exception {
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            futures.add(rollupInParallel(agentRollup, null, workerExecutor));
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // errors are already logged per agent rollup, this is just for unexpected errors
+                Throwable cause = getRootCause(e);
+                if (cause instanceof InterruptedException) {
+                    // shutdown requested
+                    throw (InterruptedException) cause;
+                }
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    // the returned future completes with true if gauges for the agent rollup and all of its
+    // descendants were rolled up successfully
+    private CompletableFuture<Boolean> rollupInParallel(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, ExecutorService workerExecutor) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            childFutures.add(rollupInParallel(childAgentRollup, agentRollup.id(), workerExecutor));
+        }
+        // important to roll up children first, since gauge values (and aggregates) initial roll up
+        // from children is done on the 1-min data of the children
+        //
+        // handleAsync (as opposed to thenApplyAsync) so that the parent is still rolled up (and
+        // removed from the backlog) when a child fails unexpectedly
+        return CompletableFuture.allOf(childFutures.toArray(new CompletableFuture<?>[0]))
+                .handleAsync((ignored, t) -> {
+                    try {
+                        if (t != null) {
+                            Throwable cause = getRootCause(t);
+                            if (cause instanceof InterruptedException) {
+                                // shutdown requested
+                                throw new CompletionException(cause);
+                            }
+                            // errors are already logged per agent rollup, this is just for
+                            // unexpected errors
+                            logger.error(cause.getMessage(), cause);
+                        }
+                        boolean childGaugeSuccess = true;
+                        for (CompletableFuture<Boolean> childFuture : childFutures) {
+                            childGaugeSuccess = childGaugeSuccess
+                                    && !childFuture.isCompletedExceptionally()
+                                    && childFuture.join();
+                        }
+                        return rollupOne(agentRollup, parentAgentRollupId, childGaugeSuccess);
+                    } catch (InterruptedException e) {
+                        // shutdown requested
+                        throw new CompletionException(e);
+                    } finally {
+                        backlog.decrementAndGet();
+                    }
+                }, workerExecutor);
+    }
+
+    // returns true if gauges were rolled up successfully
+    private boolean rollupOne(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            boolean childGaugeSuccess) throws InterruptedException {
+        rollupAggregate(agentRollup, parentAgentRollupId);
+        boolean gaugeSuccess = false;
+        // also important to not roll up parent if exception occurs while rolling up a child, since
+        // gauge values initial roll up from children is done on the 1-min aggregates of the
+        // children
+        if (childGaugeSuccess) {
+            gaugeSuccess = rollupGauge(agentRollup, parentAgentRollupId);
+        }
+        rollupSyntheticMonitor(agentRollup);
+        // see comment in runSequentially() about checking alerts after rollup
+        try {
+            checkForDeletedAlerts(agentRollup);
+            checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
         }
+        return gaugeSuccess;
     }
 
     private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
@@ -112,6 +288,11 @@ class RollupService implements Runnable {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
             rollupAggregates(childAgentRollup, agentRollup.id());
         }
+        rollupAggregate(agentRollup, parentAgentRollupId);
+    }
+
+    private void rollupAggregate(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
             aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -139,6 +320,12 @@ class RollupService implements Runnable {
             // the children
             return false;
         }
+        return rollupGauge(agentRollup, parentAgentRollupId);
+    }
+
+    // returns true on success, false on failure
+    private boolean rollupGauge(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
             gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -152,10 +339,14 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
             rollupSyntheticMonitors(childAgentRollup);
         }
+        rollupSyntheticMonitor(agentRollup);
+    }
+
+    private void rollupSyntheticMonitor(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -183,6 +374,23 @@ class RollupService implements Runnable {
                 agentRollup.display(), clock.currentTimeMillis());
     }
 
+    private static int countAgentRollups(List<AgentRollup> agentRollups) {
+        int count = 0;
+        for (AgentRollup agentRollup : agentRollups) {
+            count += 1 + countAgentRollups(agentRollup.children());
+        }
+        return count;
+    }
+
+    private static Throwable getRootCause(Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
@@ -24,6 +24,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -46,6 +49,8 @@ import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
@@ -57,6 +62,7 @@ import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
@@ -109,6 +115,15 @@ public class AggregateDao implements AggregateRepository {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // transaction summary, query and profile reads over long time ranges are split into up to this
+    // many partitions (aligned to rollup intervals), which are read concurrently and merged in
+    // parallel, value of 1 disables partitioning
+    private static final int READ_PARTITIONS =
+            Integer.getInteger("glowroot.central.aggregateReadPartitions", 8);
+
+    // so that short time ranges are not split into many small reads
+    private static final int MIN_ROLLUP_INTERVALS_PER_READ_PARTITION = 12;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -396,15 +411,19 @@ public class AggregateDao implements AggregateRepository {
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
 
-    public void store(String agentId, long captureTime,
+    // the returned future completes once all of the writes (including the "needs rollup" records)
+    // have completed, without blocking the calling thread on any of the intermediate steps
+    public ListenableFuture<?> store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (aggregatesByTypeList.isEmpty()) {
-            agentRollupDao.updateLastCaptureTime(agentId, captureTime).get();
-            return;
+            return agentRollupDao.updateLastCaptureTime(agentId, captureTime);
         }
+        // these are (cached) reads, so perform them up front on the calling thread instead of
+        // inside of cassandra driver threads below
         List<String> agentRollupIds = agentRollupDao.readAgentRollupIds(agentId);
         int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         List<ResultSetFuture> futures = Lists.newArrayList();
         List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Aggregate.SharedQueryText sharedQueryText : initialSharedQueryTexts) {
@@ -430,44 +449,59 @@ public class AggregateDao implements AggregateRepository {
 
         // wait for success before proceeding in order to ensure cannot end up with orphaned
         // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
-
-        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
-            String transactionType = aggregatesByType.getTransactionType();
-            Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
-            for (OldTransactionAggregate transactionAggregate : aggregatesByType
-                    .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
-                        transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+        ListenableFuture<?> future = MoreFutures.thenAsync(MoreFutures.allAsync(futures), () -> {
+            List<ListenableFuture<?>> typeFutures = Lists.newArrayList();
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                typeFutures.add(storeAggregatesByType(agentId, agentRollupIds, captureTime,
+                        aggregatesByType, sharedQueryTexts, adjustedTTL));
             }
-            // wait for success before proceeding in order to ensure cannot end up with
-            // "no overview table records found" during a transactionName rollup, since
-            // transactionName rollups are based on finding transactionName in summary table
-            MoreFutures.waitForAll(futures);
-            futures.clear();
+            typeFutures.add(agentRollupDao.updateLastCaptureTime(agentId, captureTime));
+            return MoreFutures.allAsync(typeFutures);
+        });
+        // wait for success before inserting "needs rollup" records
+        return MoreFutures.thenAsync(future, () -> storeNeedsRollup(agentId, agentRollupIds,
+                captureTime, aggregatesByTypeList, rollupConfigs, adjustedTTL));
+    }
+
+    private ListenableFuture<?> storeAggregatesByType(String agentId, List<String> agentRollupIds,
+            long captureTime, OldAggregatesByType aggregatesByType,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws Exception {
+        String transactionType = aggregatesByType.getTransactionType();
+        Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
+                overallAggregate, sharedQueryTexts, adjustedTTL));
+        for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                .getTransactionAggregateList()) {
+            futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                    transactionAggregate.getTransactionName(), captureTime,
+                    transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+        }
+        // wait for success before proceeding in order to ensure cannot end up with
+        // "no overview table records found" during a transactionName rollup, since
+        // transactionName rollups are based on finding transactionName in summary table
+        return MoreFutures.thenAsync(MoreFutures.allAsync(futures), () -> {
+            List<ResultSetFuture> summaryFutures = Lists.newArrayList();
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionSummary(agentId, transactionType,
+                summaryFutures.addAll(storeTransactionSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), adjustedTTL));
             }
-            futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
-        }
-        futures.add(agentRollupDao.updateLastCaptureTime(agentId, captureTime));
-        // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+            summaryFutures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
+            return MoreFutures.allAsync(summaryFutures);
+        });
+    }
 
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+    private ListenableFuture<?> storeNeedsRollup(String agentId, List<String> agentRollupIds,
+            long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
+            List<RollupConfig> rollupConfigs, int adjustedTTL) throws Exception {
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
         Set<String> transactionTypes = aggregatesByTypeList.stream()
                 .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
 
+        List<ResultSetFuture> futures = Lists.newArrayList();
         int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
         if (agentRollupIds.size() > 1) {
             BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
@@ -491,7 +525,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
+        return MoreFutures.allAsync(futures);
     }
 
     // query.from() is non-inclusive
@@ -520,17 +554,26 @@ public class AggregateDao implements AggregateRepository {
             SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
             throws Exception {
         // currently have to do group by / sort / limit client-side
-        BoundStatement boundStatement =
-                checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
-        bindQuery(boundStatement, agentRollupId, query);
-        ResultSet results = session.execute(boundStatement);
-        for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            String transactionName = checkNotNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long transactionCount = row.getLong(i++);
-            collector.collect(transactionName, totalDurationNanos, transactionCount, captureTime);
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        for (long[] partition : getReadPartitions(query.from(), query.to(),
+                query.rollupLevel())) {
+            BoundStatement boundStatement = checkNotNull(readTransactionPS.get(summaryTable))
+                    .get(query.rollupLevel()).bind();
+            bindQuery(boundStatement, agentRollupId, ImmutableOverallQuery.builder()
+                    .copyFrom(query)
+                    .from(partition[0])
+                    .to(partition[1])
+                    .build());
+            boundStatements.add(boundStatement);
+        }
+        if (boundStatements.size() == 1) {
+            ResultSet results = session.execute(boundStatements.get(0));
+            for (Row row : results) {
+                collectTransactionSummary(collector, row);
+            }
+        } else {
+            collector.merge(readInParallel(boundStatements, TransactionSummaryCollector::new,
+                    AggregateDao::collectTransactionSummary, TransactionSummaryCollector::merge));
         }
     }
 
@@ -679,22 +722,19 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void mergeQueriesInto(String agentRollupId, TransactionQuery query,
             QueryCollector collector) throws Exception {
-        ResultSet results = executeQuery(agentRollupId, query, queryTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
-            String queryType = checkNotNull(row.getString(i++));
-            String truncatedText = checkNotNull(row.getString(i++));
-            // full_query_text_sha1 cannot be null since it is used in clustering key
-            String fullTextSha1 = Strings.emptyToNull(row.getString(i++));
-            double totalDurationNanos = row.getDouble(i++);
-            long executionCount = row.getLong(i++);
-            boolean hasTotalRows = !row.isNull(i);
-            long totalRows = row.getLong(i++);
-            collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
-            collector.updateLastCaptureTime(captureTime);
+        List<BoundStatement> boundStatements =
+                createPartitionedBoundStatements(agentRollupId, query, queryTable);
+        if (boundStatements.size() == 1) {
+            ResultSet results = session.execute(boundStatements.get(0));
+            for (Row row : results) {
+                collectQuery(collector, row);
+            }
+        } else {
+            // the limit per query type is only applied when reading from the final merged
+            // collector, so it doesn't matter for the partial collectors
+            collector.merge(readInParallel(boundStatements,
+                    () -> new QueryCollector(Integer.MAX_VALUE), AggregateDao::collectQuery,
+                    QueryCollector::merge));
         }
     }
 
@@ -783,6 +823,30 @@ public class AggregateDao implements AggregateRepository {
         return false;
     }
 
+    @Override
+    public long readLastCompleteCaptureTime(String agentRollupId, int rollupLevel)
+            throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long lastCompleteCaptureTime = Long.MAX_VALUE;
+        // pending rollups into this rollup level
+        if (rollupLevel == 0) {
+            lastCompleteCaptureTime = getLastCompleteCaptureTime(lastCompleteCaptureTime,
+                    readNeedsRollupFromChild, agentRollupId, rollupConfigs.get(0));
+        } else {
+            lastCompleteCaptureTime = getLastCompleteCaptureTime(lastCompleteCaptureTime,
+                    readNeedsRollup.get(rollupLevel - 1), agentRollupId,
+                    rollupConfigs.get(rollupLevel));
+        }
+        // pending rollups out of this rollup level, which means the aggregates at this rollup level
+        // were stored recently (e.g. late aggregates from an agent that was disconnected)
+        if (rollupLevel < rollupConfigs.size() - 1) {
+            lastCompleteCaptureTime = getLastCompleteCaptureTime(lastCompleteCaptureTime,
+                    readNeedsRollup.get(rollupLevel), agentRollupId,
+                    rollupConfigs.get(rollupLevel + 1));
+        }
+        return lastCompleteCaptureTime;
+    }
+
     @OnlyUsedByTests
     void truncateAll() throws Exception {
         for (Table table : allTables) {
@@ -1989,16 +2053,140 @@ public class AggregateDao implements AggregateRepository {
 
     private void mergeProfilesInto(String agentRollupId, TransactionQuery query, Table profileTable,
             ProfileCollector collector) throws Exception {
-        ResultSet results = executeQuery(agentRollupId, query, profileTable);
-        long captureTime = Long.MIN_VALUE;
-        for (Row row : results) {
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
-            ByteBuffer bytes = checkNotNull(row.getBytes(1));
-            // TODO optimize this byte copying
-            Profile profile = Profile.parseFrom(bytes);
-            collector.mergeProfile(profile);
-            collector.updateLastCaptureTime(captureTime);
+        List<BoundStatement> boundStatements =
+                createPartitionedBoundStatements(agentRollupId, query, profileTable);
+        if (boundStatements.size() == 1) {
+            ResultSet results = session.execute(boundStatements.get(0));
+            for (Row row : results) {
+                collectProfile(collector, row);
+            }
+        } else {
+            collector.merge(readInParallel(boundStatements, ProfileCollector::new,
+                    AggregateDao::collectProfile, ProfileCollector::merge));
+        }
+    }
+
+    private List<BoundStatement> createPartitionedBoundStatements(String agentRollupId,
+            TransactionQuery query, Table table) throws Exception {
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        for (long[] partition : getReadPartitions(query.from(), query.to(),
+                query.rollupLevel())) {
+            BoundStatement boundStatement;
+            if (query.transactionName() == null) {
+                boundStatement =
+                        checkNotNull(readOverallPS.get(table)).get(query.rollupLevel()).bind();
+            } else {
+                boundStatement =
+                        checkNotNull(readTransactionPS.get(table)).get(query.rollupLevel()).bind();
+            }
+            bindQuery(boundStatement, agentRollupId, ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(partition[0])
+                    .to(partition[1])
+                    .build());
+            boundStatements.add(boundStatement);
+        }
+        return boundStatements;
+    }
+
+    // splits (from, to] into contiguous (non-overlapping) partitions aligned to rollup intervals
+    private List<long[]> getReadPartitions(long from, long to, int rollupLevel) throws Exception {
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long partitionCount = Math.min(READ_PARTITIONS,
+                (to - from) / intervalMillis / MIN_ROLLUP_INTERVALS_PER_READ_PARTITION);
+        List<long[]> partitions = Lists.newArrayList();
+        long partitionFrom = from;
+        for (int i = 1; i < partitionCount; i++) {
+            long partitionTo = Utils.getRollupCaptureTime(
+                    from + (to - from) * i / partitionCount, intervalMillis);
+            if (partitionTo > partitionFrom && partitionTo < to) {
+                partitions.add(new long[] {partitionFrom, partitionTo});
+                partitionFrom = partitionTo;
+            }
         }
+        partitions.add(new long[] {partitionFrom, to});
+        return partitions;
+    }
+
+    // issues the partition reads concurrently, collects the rows of each partition into its own
+    // collector, and then merges the partial collectors pairwise (tree merge), so that no single
+    // thread has to process all of the rows
+    //
+    // rows are collected and merged on the fork join common pool, not on the cassandra driver
+    // threads, and result pages are fetched asynchronously so the pool threads never block
+    private <C> C readInParallel(List<BoundStatement> boundStatements,
+            Supplier<C> collectorSupplier, RowCollector<C> rowCollector, BiConsumer<C, C> merger)
+            throws Exception {
+        List<ListenableFuture<C>> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : boundStatements) {
+            futures.add(collectAsync(session.executeAsync(boundStatement),
+                    collectorSupplier.get(), rowCollector));
+        }
+        return MoreFutures.getUnwrapped(treeMerge(futures, 0, futures.size(), merger));
+    }
+
+    private static <C> ListenableFuture<C> collectAsync(ListenableFuture<ResultSet> future,
+            C collector, RowCollector<C> rowCollector) {
+        return Futures.transformAsync(future, results -> {
+            int available = results.getAvailableWithoutFetching();
+            for (int i = 0; i < available; i++) {
+                rowCollector.collect(collector, checkNotNull(results.one()));
+            }
+            if (results.isFullyFetched()) {
+                return Futures.immediateFuture(collector);
+            }
+            return collectAsync(results.fetchMoreResults(), collector, rowCollector);
+        }, ForkJoinPool.commonPool());
+    }
+
+    private static <C> ListenableFuture<C> treeMerge(List<ListenableFuture<C>> futures, int from,
+            int to, BiConsumer<C, C> merger) {
+        if (to - from == 1) {
+            return futures.get(from);
+        }
+        int mid = (from + to) >>> 1;
+        ListenableFuture<C> left = treeMerge(futures, from, mid, merger);
+        ListenableFuture<C> right = treeMerge(futures, mid, to, merger);
+        return Futures.whenAllSucceed(left, right).call(() -> {
+            C merged = Futures.getDone(left);
+            merger.accept(merged, Futures.getDone(right));
+            return merged;
+        }, ForkJoinPool.commonPool());
+    }
+
+    private static void collectTransactionSummary(TransactionSummaryCollector collector,
+            Row row) {
+        int i = 0;
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        String transactionName = checkNotNull(row.getString(i++));
+        double totalDurationNanos = row.getDouble(i++);
+        long transactionCount = row.getLong(i++);
+        collector.collect(transactionName, totalDurationNanos, transactionCount, captureTime);
+    }
+
+    private static void collectQuery(QueryCollector collector, Row row) {
+        int i = 0;
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        String queryType = checkNotNull(row.getString(i++));
+        String truncatedText = checkNotNull(row.getString(i++));
+        // full_query_text_sha1 cannot be null since it is used in clustering key
+        String fullTextSha1 = Strings.emptyToNull(row.getString(i++));
+        double totalDurationNanos = row.getDouble(i++);
+        long executionCount = row.getLong(i++);
+        boolean hasTotalRows = !row.isNull(i);
+        long totalRows = row.getLong(i++);
+        collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
+                executionCount, hasTotalRows, totalRows);
+        collector.updateLastCaptureTime(captureTime);
+    }
+
+    private static void collectProfile(ProfileCollector collector, Row row) throws Exception {
+        long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+        ByteBuffer bytes = checkNotNull(row.getBytes(1));
+        // TODO optimize this byte copying
+        Profile profile = Profile.parseFrom(bytes);
+        collector.mergeProfile(profile);
+        collector.updateLastCaptureTime(captureTime);
     }
 
     private List<Integer> getTTLs() throws Exception {
@@ -2059,6 +2247,22 @@ public class AggregateDao implements AggregateRepository {
         return Math.max(needsRollupAdjustedTTL, 60);
     }
 
+    // the "needs rollup" capture time is the end of the rollup interval that needs rollup
+    private long getLastCompleteCaptureTime(long lastCompleteCaptureTime,
+            PreparedStatement readNeedsRollup, String agentRollupId, RollupConfig rollupConfig)
+            throws Exception {
+        BoundStatement boundStatement = readNeedsRollup.bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.execute(boundStatement);
+        // "needs rollup" rows are clustered by capture time
+        Row row = results.one();
+        if (row == null) {
+            return lastCompleteCaptureTime;
+        }
+        long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+        return Math.min(lastCompleteCaptureTime, captureTime - rollupConfig.intervalMillis());
+    }
+
     static List<NeedsRollup> getNeedsRollupList(String agentRollupId, int rollupLevel,
             long rollupIntervalMillis, List<PreparedStatement> readNeedsRollup, Session session,
             Clock clock) throws Exception {
@@ -2517,4 +2721,8 @@ public class AggregateDao implements AggregateRepository {
         private long errorCount;
         private long transactionCount;
     }
+
+    private interface RowCollector<C> {
+        void collect(C collector, Row row) throws Exception;
+    }
 }
@@ -69,7 +69,7 @@ public class CentralRepoModule {
         syntheticResultDao = new SyntheticResultDao(session, configRepository, clock);
         environmentDao = new EnvironmentDao(session);
         heartbeatDao = new HeartbeatDao(session, agentRollupDao, clock);
-        triggeredAlertDao = new TriggeredAlertDao(session);
+        triggeredAlertDao = new TriggeredAlertDao(session, clusterManager);
     }
 
     public boolean setupAdminUser(List<String> args) throws Exception {
@@ -15,9 +15,11 @@
  */
 package org.glowroot.central.repo;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -29,12 +31,20 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Charsets;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -49,6 +59,7 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
+import org.glowroot.common.model.GaugeValueBatches;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -57,6 +68,7 @@ import org.glowroot.common.repo.util.Gauges;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueBatch;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -68,6 +80,18 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    @SuppressWarnings("deprecation")
+    private static final HashFunction SHA_1 = Hashing.sha1();
+
+    private static final long BATCH_PARTITION_MILLIS = HOURS.toMillis(1);
+
+    private static final Ordering<GaugeValue> orderingByCaptureTime = new Ordering<GaugeValue>() {
+        @Override
+        public int compare(GaugeValue left, GaugeValue right) {
+            return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+        }
+    };
+
     private final Session session;
     private final AgentRollupDao agentRollupDao;
     private final ConfigRepository configRepository;
@@ -81,6 +105,9 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final ImmutableList<PreparedStatement> readValueForRollupPS;
     private final PreparedStatement readValueForRollupFromChildPS;
 
+    private final PreparedStatement insertBatchPS;
+    private final PreparedStatement readBatchPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -127,6 +154,32 @@ public class GaugeValueDao implements GaugeValueRepository {
                 + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ?"
                 + " and capture_time = ?");
 
+        // 5-second gauge values are stored as one row per agent per capture time per distinct set
+        // of gauge names (containing the values of those gauges for that capture time), using the
+        // same delta encoding that is used by agents to send gauge values, which is far more
+        // compact than one row per gauge value
+        //
+        // gauge_names_hash is needed since different messages can contain values for the same
+        // capture time (e.g. the transaction concurrency gauges are sent separately from the other
+        // gauges), and these must not overwrite each other, while re-sent messages (retried after
+        // a timeout, or replayed from the agent's spool) must overwrite the original so that their
+        // values are not counted twice
+        //
+        // partitioned by hour so that partitions stay bounded
+        //
+        // gauge_value_rollup_0 is still read (but no longer written) so that 5-second gauge values
+        // stored prior to this table are still visible until they expire
+        session.createTableWithTWCS("create table if not exists gauge_value_batch (agent_rollup"
+                + " varchar, capture_hour timestamp, capture_time timestamp, gauge_names_hash"
+                + " varchar, batch blob, primary key ((agent_rollup, capture_hour), capture_time,"
+                + " gauge_names_hash))",
+                rollupExpirationHours.get(0));
+        insertBatchPS = session.prepare("insert into gauge_value_batch (agent_rollup,"
+                + " capture_hour, capture_time, gauge_names_hash, batch) values (?, ?, ?, ?, ?)"
+                + " using ttl ?");
+        readBatchPS = session.prepare("select batch from gauge_value_batch where agent_rollup = ?"
+                + " and capture_hour = ? and capture_time >= ? and capture_time <= ?");
+
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
         //
@@ -171,45 +224,58 @@ public class GaugeValueDao implements GaugeValueRepository {
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
 
-    public void store(String agentId, List<GaugeValue> gaugeValues) throws Exception {
+    // the returned future completes once all of the writes (including the "needs rollup" records)
+    // have completed, without blocking the calling thread on any of the intermediate steps
+    public ListenableFuture<?> store(String agentId, List<GaugeValue> gaugeValues)
+            throws Exception {
         if (gaugeValues.isEmpty()) {
-            return;
+            return Futures.immediateFuture(null);
         }
+        // these are (cached) reads, so perform them up front on the calling thread instead of
+        // inside of cassandra driver threads below
         List<String> agentRollupIds = agentRollupDao.readAgentRollupIds(agentId);
         int ttl = getTTLs().get(0);
-        long maxCaptureTime = 0;
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         List<ResultSetFuture> futures = Lists.newArrayList();
-        for (GaugeValue gaugeValue : gaugeValues) {
-            BoundStatement boundStatement = insertValuePS.get(0).bind();
-            String gaugeName = gaugeValue.getGaugeName();
-            long captureTime = gaugeValue.getCaptureTime();
-            maxCaptureTime = Math.max(captureTime, maxCaptureTime);
+        ImmutableListMultimap<Long, GaugeValue> gaugeValuesByCaptureTime =
+                Multimaps.index(gaugeValues, GaugeValue::getCaptureTime);
+        for (Entry<Long, List<GaugeValue>> entry : Multimaps.asMap(gaugeValuesByCaptureTime)
+                .entrySet()) {
+            long captureTime = entry.getKey();
+            GaugeValueBatch batch = GaugeValueBatches.encode(entry.getValue());
             int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+            BoundStatement boundStatement = insertBatchPS.bind();
             int i = 0;
             boundStatement.setString(i++, agentId);
-            boundStatement.setString(i++, gaugeName);
+            boundStatement.setTimestamp(i++, new Date(getCaptureHour(captureTime)));
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setDouble(i++, gaugeValue.getValue());
-            boundStatement.setLong(i++, gaugeValue.getWeight());
+            boundStatement.setString(i++, getGaugeNamesHash(batch.getGaugeNameList()));
+            boundStatement.setBytes(i++, ByteBuffer.wrap(batch.toByteArray()));
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.executeAsync(boundStatement));
-            for (String agentRollupId : agentRollupIds) {
-                futures.addAll(gaugeNameDao.store(agentRollupId, gaugeName));
+            for (String gaugeName : batch.getGaugeNameList()) {
+                for (String agentRollupId : agentRollupIds) {
+                    futures.addAll(gaugeNameDao.store(agentRollupId, gaugeName));
+                }
             }
         }
 
         // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.thenAsync(MoreFutures.allAsync(futures),
+                () -> storeNeedsRollup(agentId, gaugeValues, ttl, rollupConfigs));
+    }
 
+    private ListenableFuture<?> storeNeedsRollup(String agentId, List<GaugeValue> gaugeValues,
+            int ttl, List<RollupConfig> rollupConfigs) throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
         // insert into gauge_needs_rollup_1
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
             BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             Long captureTime = entry.getKey();
             int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
-            int needsRollupAdjustedTTL = AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL,
-                    configRepository.getRollupConfigs());
+            int needsRollupAdjustedTTL =
+                    AggregateDao.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
             int i = 0;
             boundStatement.setString(i++, agentId);
             boundStatement.setTimestamp(i++, new Date(captureTime));
@@ -218,7 +284,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        MoreFutures.waitForAll(futures);
+        return MoreFutures.allAsync(futures);
     }
 
     @Override
@@ -234,6 +300,27 @@ public class GaugeValueDao implements GaugeValueRepository {
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
             long to, int rollupLevel) throws Exception {
+        if (rollupLevel == 0) {
+            List<ResultSetFuture> batchFutures =
+                    readBatchesAsync(agentRollupId, from, to);
+            List<GaugeValue> gaugeValues =
+                    readNonBatchGaugeValues(agentRollupId, gaugeName, from, to, rollupLevel);
+            boolean sortNeeded = !gaugeValues.isEmpty();
+            for (ResultSetFuture future : batchFutures) {
+                for (Row row : MoreFutures.getUnwrapped(future)) {
+                    gaugeValues.addAll(decodeBatch(row, gaugeName));
+                }
+            }
+            if (sortNeeded) {
+                return orderingByCaptureTime.sortedCopy(gaugeValues);
+            }
+            return gaugeValues;
+        }
+        return readNonBatchGaugeValues(agentRollupId, gaugeName, from, to, rollupLevel);
+    }
+
+    private List<GaugeValue> readNonBatchGaugeValues(String agentRollupId, String gaugeName,
+            long from, long to, int rollupLevel) throws Exception {
         BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -349,13 +436,19 @@ public class GaugeValueDao implements GaugeValueRepository {
             long from = captureTime - rollupIntervalMillis;
             int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
             Set<String> gaugeNames = needsRollup.getKeys();
-            List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
-            for (String gaugeName : gaugeNames) {
-                futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+            List<ListenableFuture<ResultSet>> futures;
+            if (rollupLevel == 1) {
+                futures = rollupFromBatches(agentRollupId, gaugeNames, from, captureTime,
+                        adjustedTTL);
+            } else {
+                futures = Lists.newArrayList();
+                for (String gaugeName : gaugeNames) {
+                    futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from,
+                            captureTime, adjustedTTL));
+                }
             }
             if (futures.isEmpty()) {
-                // no rollups occurred, warning already logged inside rollupOne() above
+                // no rollups occurred, warning already logged inside rollupFromBatches() above
                 // this can happen there is an old "needs rollup" record that was created prior to
                 // TTL was introduced in 0.9.6, and when the "last needs rollup" record wasn't
                 // processed (also prior to 0.9.6), and when the corresponding old data has expired
@@ -474,6 +567,59 @@ public class GaugeValueDao implements GaugeValueRepository {
                 MoreExecutors.directExecutor());
     }
 
+    // from is non-inclusive
+    //
+    // the batches are read and decoded only once for all of the gauges that need rollup, and gauge
+    // values stored prior to gauge_value_batch are rolled up together with them from
+    // gauge_value_rollup_0
+    private List<ListenableFuture<ResultSet>> rollupFromBatches(String agentRollupId,
+            Set<String> gaugeNames, long from, long to, int adjustedTTL) throws Exception {
+        List<ResultSetFuture> batchFutures = readBatchesAsync(agentRollupId, from + 1, to);
+        Map<String, ResultSetFuture> nonBatchFutures = Maps.newHashMap();
+        for (String gaugeName : gaugeNames) {
+            BoundStatement boundStatement = readValueForRollupPS.get(0).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, gaugeName);
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+            nonBatchFutures.put(gaugeName, session.executeAsync(boundStatement));
+        }
+        Map<String, RollupTotals> rollupTotals = Maps.newHashMap();
+        for (String gaugeName : gaugeNames) {
+            rollupTotals.put(gaugeName, new RollupTotals());
+        }
+        for (ResultSetFuture future : batchFutures) {
+            for (Row row : MoreFutures.getUnwrapped(future)) {
+                for (GaugeValue gaugeValue : decodeBatch(row)) {
+                    RollupTotals totals = rollupTotals.get(gaugeValue.getGaugeName());
+                    if (totals != null) {
+                        totals.add(gaugeValue.getValue(), gaugeValue.getWeight());
+                    }
+                }
+            }
+        }
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        for (Entry<String, ResultSetFuture> entry : nonBatchFutures.entrySet()) {
+            String gaugeName = entry.getKey();
+            RollupTotals totals = checkNotNull(rollupTotals.get(gaugeName));
+            for (Row row : MoreFutures.getUnwrapped(entry.getValue())) {
+                totals.add(row.getDouble(0), row.getLong(1));
+            }
+            if (totals.totalWeight == 0) {
+                // this is unexpected since TTL for "needs rollup" records is shorter than TTL for
+                // data
+                logger.warn("no gauge value table records found for agentRollupId={},"
+                        + " gaugeName={}, from={}, to={}, level=1", agentRollupId, gaugeName,
+                        from, to);
+                continue;
+            }
+            futures.add(rollupOneFromTotals(1, agentRollupId, gaugeName, to, adjustedTTL,
+                    totals.totalWeightedValue, totals.totalWeight));
+        }
+        return futures;
+    }
+
     private ListenableFuture<ResultSet> rollupOneFromRows(int rollupLevel, String agentRollupId,
             String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) throws Exception {
         double totalWeightedValue = 0;
@@ -484,12 +630,19 @@ public class GaugeValueDao implements GaugeValueRepository {
             totalWeightedValue += value * weight;
             totalWeight += weight;
         }
+        return rollupOneFromTotals(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
+                totalWeightedValue, totalWeight);
+    }
+
+    private ListenableFuture<ResultSet> rollupOneFromTotals(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, int adjustedTTL, double totalWeightedValue,
+            long totalWeight) throws Exception {
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
+        // individual gauge value weights cannot be zero, and there is at least one gauge value
         // (see callers of this method), so totalWeight is guaranteed non-zero
         checkState(totalWeight != 0);
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
@@ -498,6 +651,23 @@ public class GaugeValueDao implements GaugeValueRepository {
         return session.executeAsync(boundStatement);
     }
 
+    // from and to are both inclusive
+    private List<ResultSetFuture> readBatchesAsync(String agentRollupId, long from, long to)
+            throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (long captureHour = getCaptureHour(from); captureHour <= to;
+                captureHour += BATCH_PARTITION_MILLIS) {
+            BoundStatement boundStatement = readBatchPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(captureHour));
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
     private List<Integer> getTTLs() throws Exception {
         List<Integer> ttls = Lists.newArrayList();
         List<Integer> rollupExpirationHours = getRollupExpirationHours(configRepository);
@@ -515,10 +685,36 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
             session.execute("truncate gauge_needs_rollup_" + i);
         }
+        session.execute("truncate gauge_value_batch");
         session.execute("truncate gauge_name");
         session.execute("truncate gauge_needs_rollup_from_child");
     }
 
+    private static List<GaugeValue> decodeBatch(Row row) throws Exception {
+        ByteBuffer bytes = checkNotNull(row.getBytes(0));
+        return GaugeValueBatches.decode(GaugeValueBatch.parseFrom(bytes));
+    }
+
+    private static List<GaugeValue> decodeBatch(Row row, String gaugeName) throws Exception {
+        ByteBuffer bytes = checkNotNull(row.getBytes(0));
+        return GaugeValueBatches.decode(GaugeValueBatch.parseFrom(bytes), gaugeName);
+    }
+
+    private static String getGaugeNamesHash(List<String> gaugeNames) {
+        Hasher hasher = SHA_1.newHasher();
+        for (String gaugeName : Ordering.natural().sortedCopy(gaugeNames)) {
+            // length prefix so that the hash is unambiguous
+            hasher.putInt(gaugeName.length());
+            hasher.putString(gaugeName, Charsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static long getCaptureHour(long captureTime) {
+        return (long) Math.floor(captureTime / (double) BATCH_PARTITION_MILLIS)
+                * BATCH_PARTITION_MILLIS;
+    }
+
     private static List<Integer> getRollupExpirationHours(ConfigRepository configRepository)
             throws Exception {
         List<Integer> rollupExpirationHours =
@@ -526,4 +722,15 @@ public class GaugeValueDao implements GaugeValueRepository {
         rollupExpirationHours.add(0, rollupExpirationHours.get(0));
         return rollupExpirationHours;
     }
+
+    private static class RollupTotals {
+
+        private double totalWeightedValue;
+        private long totalWeight;
+
+        private void add(double value, long weight) {
+            totalWeightedValue += value * weight;
+            totalWeight += weight;
+        }
+    }
 }
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -32,6 +33,7 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
@@ -52,9 +54,11 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralWebConfig;
 import org.glowroot.common.config.PermissionParser;
 import org.glowroot.common.util.ObjectMappers;
@@ -83,7 +87,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 30;
+    private static final int CURR_SCHEMA_VERSION = 31;
 
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
@@ -253,6 +257,10 @@ public class SchemaUpgrade {
             addDefaultGaugeNameToUiConfigs();
             updateSchemaVersion(30);
         }
+        if (initialSchemaVersion < 31) {
+            populateTraceSlowPointByDurationTables();
+            updateSchemaVersion(31);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -971,6 +979,90 @@ public class SchemaUpgrade {
         }
     }
 
+    private void populateTraceSlowPointByDurationTables() throws Exception {
+        if (!tableExists("trace_tt_slow_point")) {
+            // new installation, tables will be created by TraceDao
+            return;
+        }
+        // tables are created here since schema upgrade runs prior to the daos being created, the
+        // compaction window size is corrected afterwards (if needed) by
+        // updateToMoreRecentCassandraOptions() based on the configured trace expiration
+        int expirationHours = ImmutableCentralStorageConfig.builder().build()
+                .traceExpirationHours();
+        session.createTableWithTWCS(TraceDao.CREATE_OVERALL_SLOW_POINT_BY_DURATION_TABLE,
+                expirationHours);
+        session.createTableWithTWCS(TraceDao.CREATE_TRANSACTION_SLOW_POINT_BY_DURATION_TABLE,
+                expirationHours);
+        startupLogger.info("populating trace slow point by duration tables (this could take"
+                + " several minutes on large data sets) ...");
+        int count = populateTraceSlowPointByDuration("trace_tt_slow_point",
+                "trace_tt_slow_point_by_duration", true);
+        count += populateTraceSlowPointByDuration("trace_tn_slow_point",
+                "trace_tn_slow_point_by_duration", false);
+        startupLogger.info("populated trace slow point by duration tables ({} rows)", count);
+    }
+
+    private int populateTraceSlowPointByDuration(String fromTableName, String toTableName,
+            boolean overall) throws Exception {
+        String transactionNameColumn = overall ? "" : " transaction_name,";
+        String transactionNamePlaceholder = overall ? "" : " ?,";
+        ResultSet results = session.execute("select agent_rollup, transaction_type,"
+                + transactionNameColumn + " capture_time, agent_id, trace_id, duration_nanos,"
+                + " partial, error, headline, user, attributes, ttl(duration_nanos) from "
+                + fromTableName);
+        PreparedStatement insertPS = session.prepare("insert into " + toTableName
+                + " (agent_rollup, transaction_type," + transactionNameColumn + " capture_hour,"
+                + " duration_nanos, capture_time, agent_id, trace_id, partial, error, headline,"
+                + " user, attributes) values (?, ?," + transactionNamePlaceholder
+                + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        int count = 0;
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Row row : results) {
+            int i = 0;
+            String agentRollupId = row.getString(i++);
+            String transactionType = row.getString(i++);
+            String transactionName = overall ? null : row.getString(i++);
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            String agentId = row.getString(i++);
+            String traceId = row.getString(i++);
+            long durationNanos = row.getLong(i++);
+            boolean partial = row.getBool(i++);
+            boolean error = row.getBool(i++);
+            String headline = row.getString(i++);
+            String user = row.getString(i++);
+            ByteBuffer attributes = row.getBytes(i++);
+            // ttl is null if the row has no ttl
+            int ttl = row.isNull(i) ? 0 : row.getInt(i);
+
+            BoundStatement boundStatement = insertPS.bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            if (!overall) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(TraceDao.getCaptureHour(captureTime)));
+            boundStatement.setLong(i++, durationNanos);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setBool(i++, partial);
+            boundStatement.setBool(i++, error);
+            boundStatement.setString(i++, headline);
+            boundStatement.setString(i++, user);
+            boundStatement.setBytes(i++, attributes);
+            boundStatement.setInt(i++, ttl);
+            futures.add(session.executeAsync(boundStatement));
+            if (futures.size() == 1000) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+            count++;
+        }
+        MoreFutures.waitForAll(futures);
+        return count;
+    }
+
     // fix bad upgrade that inserted 'smtp' config row into 'web' config row
     private void sortOfFixWebConfig() throws Exception {
         ResultSet results =
@@ -1104,6 +1196,8 @@ public class SchemaUpgrade {
             } else {
                 return storageConfig.rollupExpirationHours().get(rollupLevel - 1);
             }
+        } else if (tableName.equals("gauge_value_batch")) {
+            return storageConfig.rollupExpirationHours().get(0);
         } else if (tableName.startsWith("aggregate_") || tableName.startsWith("synthetic_")) {
             int rollupLevel = Integer.parseInt(tableName.substring(tableName.lastIndexOf('_') + 1));
             return storageConfig.rollupExpirationHours().get(rollupLevel);
@@ -19,10 +19,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -33,10 +35,13 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -59,6 +64,7 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
@@ -76,6 +82,33 @@ public class TraceDao implements TraceRepository {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // slow points are also stored partitioned by capture hour and clustered by duration, so that
+    // the slowest points over a long time range can be read without reading every point in the
+    // time range
+    static final long SLOW_POINT_PARTITION_MILLIS = HOURS.toMillis(1);
+
+    // below this number of full capture hours in the time range, it is simpler to read every point
+    private static final int MIN_SLOWEST_POINT_HOURS = 3;
+
+    private static final int MIN_SLOWEST_POINT_FETCH_SIZE = 50;
+
+    // capture_hour is the capture time truncated to the hour (see SLOW_POINT_PARTITION_MILLIS)
+    static final String CREATE_OVERALL_SLOW_POINT_BY_DURATION_TABLE = "create table if not exists"
+            + " trace_tt_slow_point_by_duration (agent_rollup varchar, transaction_type varchar,"
+            + " capture_hour timestamp, duration_nanos bigint, capture_time timestamp,"
+            + " agent_id varchar, trace_id varchar, partial boolean, error boolean,"
+            + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+            + " transaction_type, capture_hour), duration_nanos, capture_time, agent_id,"
+            + " trace_id))";
+
+    static final String CREATE_TRANSACTION_SLOW_POINT_BY_DURATION_TABLE = "create table if not"
+            + " exists trace_tn_slow_point_by_duration (agent_rollup varchar,"
+            + " transaction_type varchar, transaction_name varchar, capture_hour timestamp,"
+            + " duration_nanos bigint, capture_time timestamp, agent_id varchar, trace_id varchar,"
+            + " partial boolean, error boolean, headline varchar, user varchar, attributes blob,"
+            + " primary key ((agent_rollup, transaction_type, transaction_name, capture_hour),"
+            + " duration_nanos, capture_time, agent_id, trace_id))";
+
     private final Session session;
     private final AgentRollupDao agentRollupDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -89,6 +122,9 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertOverallSlowPoint;
     private final PreparedStatement insertTransactionSlowPoint;
 
+    private final PreparedStatement insertOverallSlowPointByDuration;
+    private final PreparedStatement insertTransactionSlowPointByDuration;
+
     private final PreparedStatement insertOverallSlowCount;
     private final PreparedStatement insertTransactionSlowCount;
 
@@ -111,6 +147,8 @@ public class TraceDao implements TraceRepository {
 
     private final PreparedStatement readOverallSlowPoint;
     private final PreparedStatement readTransactionSlowPoint;
+    private final PreparedStatement readOverallSlowPointByDuration;
+    private final PreparedStatement readTransactionSlowPointByDuration;
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
@@ -131,6 +169,9 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowPoint;
     private final PreparedStatement deletePartialTransactionSlowPoint;
 
+    private final PreparedStatement deletePartialOverallSlowPointByDuration;
+    private final PreparedStatement deletePartialTransactionSlowPointByDuration;
+
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
@@ -165,6 +206,13 @@ public class TraceDao implements TraceRepository {
                 + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
                 + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
 
+        // see SLOW_POINT_PARTITION_MILLIS
+        session.createTableWithTWCS(CREATE_OVERALL_SLOW_POINT_BY_DURATION_TABLE,
+                expirationHours);
+
+        session.createTableWithTWCS(CREATE_TRANSACTION_SLOW_POINT_BY_DURATION_TABLE,
+                expirationHours);
+
         session.createTableWithTWCS("create table if not exists trace_tt_error_point"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
@@ -257,6 +305,18 @@ public class TraceDao implements TraceRepository {
                 + " trace_id, duration_nanos, partial, error, headline, user, attributes) values"
                 + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSlowPointByDuration = session.prepare("insert into"
+                + " trace_tt_slow_point_by_duration (agent_rollup, transaction_type,"
+                + " capture_hour, duration_nanos, capture_time, agent_id, trace_id, partial, error,"
+                + " headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " using ttl ?");
+
+        insertTransactionSlowPointByDuration = session.prepare("insert into"
+                + " trace_tn_slow_point_by_duration (agent_rollup, transaction_type,"
+                + " transaction_name, capture_hour, duration_nanos, capture_time, agent_id,"
+                + " trace_id, partial, error, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -322,6 +382,17 @@ public class TraceDao implements TraceRepository {
                 + " from trace_tn_slow_point where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and capture_hour = ? order by duration_nanos desc");
+
+        readTransactionSlowPointByDuration = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, partial, error, headline, user, attributes"
+                + " from trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and capture_hour = ?"
+                + " order by duration_nanos desc");
+
         readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
                 + " from trace_tt_error_point where agent_rollup = ? and transaction_type = ?"
@@ -382,6 +453,16 @@ public class TraceDao implements TraceRepository {
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
+        deletePartialOverallSlowPointByDuration = session.prepare("delete from"
+                + " trace_tt_slow_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and capture_hour = ? and duration_nanos = ? and capture_time = ?"
+                + " and agent_id = ? and trace_id = ?");
+
+        deletePartialTransactionSlowPointByDuration = session.prepare("delete from"
+                + " trace_tn_slow_point_by_duration where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and capture_hour = ? and duration_nanos = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
         deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
@@ -463,6 +544,16 @@ public class TraceDao implements TraceRepository {
                         false);
                 futures.add(session.executeAsync(boundStatement));
 
+                boundStatement = insertOverallSlowPointByDuration.bind();
+                bindSlowPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionSlowPointByDuration.bind();
+                bindSlowPointByDuration(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false);
+                futures.add(session.executeAsync(boundStatement));
+
                 boundStatement = insertOverallSlowCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         true);
@@ -482,6 +573,16 @@ public class TraceDao implements TraceRepository {
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
                     futures.add(session.executeAsync(boundStatement));
 
+                    boundStatement = deletePartialOverallSlowPointByDuration.bind();
+                    bindByDuration(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            true);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialTransactionSlowPointByDuration.bind();
+                    bindByDuration(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            false);
+                    futures.add(session.executeAsync(boundStatement));
+
                     boundStatement = deletePartialOverallSlowCount.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
                     futures.add(session.executeAsync(boundStatement));
@@ -625,6 +726,12 @@ public class TraceDao implements TraceRepository {
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
+        long firstFullHour = getFirstFullHour(query.from());
+        long lastFullHourEnd = getLastFullHourEnd(query.to());
+        if (isSlowestPointsRange(firstFullHour, lastFullHourEnd)) {
+            return readSlowestPoints(agentRollupId, query, filter, limit, firstFullHour,
+                    lastFullHourEnd);
+        }
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
         if (transactionName == null) {
@@ -823,6 +930,114 @@ public class TraceDao implements TraceRepository {
         return Profile.parseFrom(checkNotNull(row.getBytes(0)));
     }
 
+    // reads the slowest points by merging the points from each full capture hour in the time range
+    // in descending duration order (stopping once more than limit distinct points match the
+    // filter), together with every point from the partial capture hours at the start and end of the
+    // range
+    private Result<TracePoint> readSlowestPoints(String agentRollupId, TraceQuery query,
+            TracePointFilter filter, int limit, long firstFullHour, long lastFullHourEnd)
+            throws Exception {
+        List<ResultSetFuture> partialHourFutures = Lists.newArrayList();
+        for (TraceQuery partialHourQuery : getPartialHourQueries(query, firstFullHour,
+                lastFullHourEnd)) {
+            partialHourFutures.add(readSlowPointsAsync(agentRollupId, partialHourQuery));
+        }
+        int hourCount = Ints.checkedCast(
+                (lastFullHourEnd - firstFullHour) / SLOW_POINT_PARTITION_MILLIS);
+        // each full hour is expected to contribute roughly limit / hourCount of the slowest points,
+        // so the first page from each hour is sized accordingly, and further pages are only
+        // fetched from the hours that keep contributing
+        int fetchSize = Math.max(MIN_SLOWEST_POINT_FETCH_SIZE,
+                Math.min(limit + 1, 2 * (limit + 1) / hourCount));
+        String transactionName = query.transactionName();
+        List<ResultSetFuture> fullHourFutures = Lists.newArrayList();
+        for (long captureHour = firstFullHour; captureHour < lastFullHourEnd;
+                captureHour += SLOW_POINT_PARTITION_MILLIS) {
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = readOverallSlowPointByDuration.bind();
+            } else {
+                boundStatement = readTransactionSlowPointByDuration.bind();
+            }
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(captureHour));
+            boundStatement.setFetchSize(fetchSize);
+            fullHourFutures.add(session.executeAsync(boundStatement));
+        }
+        List<Iterator<Row>> fullHourRows = Lists.newArrayList();
+        for (ResultSetFuture future : fullHourFutures) {
+            fullHourRows.add(MoreFutures.getUnwrapped(future).iterator());
+        }
+        List<ResultSet> partialHourRows = Lists.newArrayList();
+        for (ResultSetFuture future : partialHourFutures) {
+            partialHourRows.add(MoreFutures.getUnwrapped(future));
+        }
+        return mergeSlowestPoints(fullHourRows, partialHourRows, filter, limit);
+    }
+
+    // the rows from each full capture hour must be in descending duration order
+    @VisibleForTesting
+    static Result<TracePoint> mergeSlowestPoints(List<Iterator<Row>> fullHourRows,
+            List<? extends Iterable<Row>> partialHourRows, TracePointFilter filter, int limit)
+            throws IOException {
+        PriorityQueue<PeekingIterator<Row>> slowestFirst =
+                new PriorityQueue<>(Math.max(fullHourRows.size(), 1),
+                        Comparator.<PeekingIterator<Row>>comparingLong(
+                                rows -> rows.peek().getLong("duration_nanos")).reversed());
+        for (Iterator<Row> rows : fullHourRows) {
+            if (rows.hasNext()) {
+                slowestFirst.add(Iterators.peekingIterator(rows));
+            }
+        }
+        Map<TraceKey, TracePoint> tracePoints = Maps.newHashMap();
+        while (tracePoints.size() <= limit) {
+            PeekingIterator<Row> rows = slowestFirst.poll();
+            if (rows == null) {
+                break;
+            }
+            TracePoint tracePoint = readTracePoint(rows.next(), filter, false);
+            // this fetches the next page from the capture hour if needed
+            if (rows.hasNext()) {
+                slowestFirst.add(rows);
+            }
+            if (tracePoint != null) {
+                addTracePoint(tracePoints, tracePoint);
+            }
+        }
+        for (Iterable<Row> rows : partialHourRows) {
+            for (Row row : rows) {
+                TracePoint tracePoint = readTracePoint(row, filter, false);
+                if (tracePoint != null) {
+                    addTracePoint(tracePoints, tracePoint);
+                }
+            }
+        }
+        List<TracePoint> orderedTracePoints = tracePoints.values().stream()
+                .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                // explicit type on this line is needed for Checker Framework
+                // see https://github.com/typetools/checker-framework/issues/531
+                .collect(Collectors.<TracePoint>toList());
+        return applyLimit(orderedTracePoints, limit);
+    }
+
+    private ResultSetFuture readSlowPointsAsync(String agentRollupId, TraceQuery query)
+            throws Exception {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallSlowPoint.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, true);
+        } else {
+            boundStatement = readTransactionSlowPoint.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, false);
+        }
+        return session.executeAsync(boundStatement);
+    }
+
     private void checkValidAgentIdForRequest(String agentRollupId, String agentId, String traceId)
             throws Exception {
         if (agentId.equals(agentRollupId)) {
@@ -948,6 +1163,23 @@ public class TraceDao implements TraceRepository {
         boundStatement.setInt(i++, adjustedTTL);
     }
 
+    private static void bindSlowPointByDuration(BoundStatement boundStatement,
+            String agentRollupId, String agentId, String traceId, Trace.Header header,
+            int adjustedTTL, boolean overall) throws IOException {
+        int i = bindByDuration(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        boundStatement.setBool(i++, header.getPartial());
+        boundStatement.setBool(i++, header.hasError());
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        List<Trace.Attribute> attributes = header.getAttributeList();
+        if (attributes.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static void bindCount(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
         int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
@@ -993,6 +1225,22 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private static int bindByDuration(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setTimestamp(i++, new Date(getCaptureHour(header.getCaptureTime())));
+        boundStatement.setLong(i++, header.getDurationNanos());
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        return i;
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -1014,39 +1262,14 @@ public class TraceDao implements TraceRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
+    @VisibleForTesting
+    static Result<TracePoint> processPoints(Iterable<Row> results, TracePointFilter filter,
             int limit, boolean errorPoints) throws IOException {
         List<TracePoint> tracePoints = Lists.newArrayList();
         for (Row row : results) {
-            int i = 0;
-            String agentId = checkNotNull(row.getString(i++));
-            String traceId = checkNotNull(row.getString(i++));
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            long durationNanos = row.getLong(i++);
-            boolean partial = row.getBool(i++);
-            boolean error = errorPoints ? true : row.getBool(i++);
-            // error points are defined by having an error message, so safe to checkNotNull
-            String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
-            // headline is null for data inserted prior to 0.9.7
-            String headline = Strings.nullToEmpty(row.getString(i++));
-            String user = Strings.nullToEmpty(row.getString(i++));
-            ByteBuffer attributeBytes = row.getBytes(i++);
-            List<Trace.Attribute> attrs =
-                    Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
-            Map<String, List<String>> attributes = attrs.stream().collect(
-                    Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesHeadline(headline)
-                    && filter.matchesError(errorMessage)
-                    && filter.matchesUser(user)
-                    && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .build());
+            TracePoint tracePoint = readTracePoint(row, filter, errorPoints);
+            if (tracePoint != null) {
+                tracePoints.add(tracePoint);
             }
         }
         // remove duplicates (partially stored traces) since there is (small) window between updated
@@ -1060,21 +1283,112 @@ public class TraceDao implements TraceRepository {
                 i.remove();
             }
         }
+        return applyLimit(tracePoints, limit);
+    }
+
+    // returns null if the trace point does not match the filter
+    private static @Nullable TracePoint readTracePoint(Row row, TracePointFilter filter,
+            boolean errorPoints) throws IOException {
+        int i = 0;
+        String agentId = checkNotNull(row.getString(i++));
+        String traceId = checkNotNull(row.getString(i++));
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        long durationNanos = row.getLong(i++);
+        boolean partial = row.getBool(i++);
+        boolean error = errorPoints ? true : row.getBool(i++);
+        // error points are defined by having an error message, so safe to checkNotNull
+        String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
+        // headline is null for data inserted prior to 0.9.7
+        String headline = Strings.nullToEmpty(row.getString(i++));
+        String user = Strings.nullToEmpty(row.getString(i++));
+        ByteBuffer attributeBytes = row.getBytes(i++);
+        List<Trace.Attribute> attrs =
+                Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
+        Map<String, List<String>> attributes = attrs.stream().collect(
+                Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
+        if (!filter.matchesHeadline(headline)
+                || !filter.matchesError(errorMessage)
+                || !filter.matchesUser(user)
+                || !filter.matchesAttributes(attributes)) {
+            return null;
+        }
+        return ImmutableTracePoint.builder()
+                .agentId(agentId)
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(partial)
+                .error(error)
+                .build();
+    }
+
+    // a partially stored trace can be read twice since there is (small) window between updated
+    // insert (with new capture time and duration) and the delete of prior insert, in which case
+    // the longer (more recent) one is retained
+    private static void addTracePoint(Map<TraceKey, TracePoint> tracePoints,
+            TracePoint tracePoint) {
+        TraceKey traceKey = ImmutableTraceKey.of(tracePoint.agentId(), tracePoint.traceId());
+        TracePoint existing = tracePoints.get(traceKey);
+        if (existing == null || tracePoint.durationNanos() > existing.durationNanos()) {
+            tracePoints.put(traceKey, tracePoint);
+        }
+    }
+
+    // trace points must already be ordered by capture time
+    private static Result<TracePoint> applyLimit(List<TracePoint> tracePoints, int limit) {
         // apply limit and re-sort if needed
         if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
+            List<TracePoint> limitedTracePoints = tracePoints.stream()
                     .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
                     .limit(limit)
                     .sorted(Comparator.comparingLong(TracePoint::captureTime))
                     // explicit type on this line is needed for Checker Framework
                     // see https://github.com/typetools/checker-framework/issues/531
                     .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
+            return new Result<>(limitedTracePoints, true);
         } else {
             return new Result<>(tracePoints, false);
         }
     }
 
+    // first capture hour that is entirely after "from" (time ranges exclude "from")
+    @VisibleForTesting
+    static long getFirstFullHour(long from) {
+        return getCaptureHour(from) + SLOW_POINT_PARTITION_MILLIS;
+    }
+
+    // end (exclusive) of the last capture hour that is entirely before or at "to"
+    @VisibleForTesting
+    static long getLastFullHourEnd(long to) {
+        return getCaptureHour(to + 1);
+    }
+
+    @VisibleForTesting
+    static boolean isSlowestPointsRange(long firstFullHour, long lastFullHourEnd) {
+        return lastFullHourEnd - firstFullHour >= MIN_SLOWEST_POINT_HOURS
+                * SLOW_POINT_PARTITION_MILLIS;
+    }
+
+    // the parts of the time range before the first full capture hour and after the last full
+    // capture hour, which are read from the capture time tables
+    @VisibleForTesting
+    static List<TraceQuery> getPartialHourQueries(TraceQuery query, long firstFullHour,
+            long lastFullHourEnd) {
+        List<TraceQuery> partialHourQueries = Lists.newArrayList();
+        if (firstFullHour - 1 > query.from()) {
+            partialHourQueries.add(ImmutableTraceQuery.copyOf(query).withTo(firstFullHour - 1));
+        }
+        if (query.to() > lastFullHourEnd - 1) {
+            partialHourQueries.add(ImmutableTraceQuery.copyOf(query).withFrom(lastFullHourEnd - 1));
+        }
+        return partialHourQueries;
+    }
+
+    static long getCaptureHour(long captureTime) {
+        return (long) Math.floor(captureTime / (double) SLOW_POINT_PARTITION_MILLIS)
+                * SLOW_POINT_PARTITION_MILLIS;
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
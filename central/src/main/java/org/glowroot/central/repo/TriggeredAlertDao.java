@@ -17,14 +17,20 @@ package org.glowroot.central.repo;
 
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Set;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.repo.ImmutableTriggeredAlert;
 import org.glowroot.common.repo.TriggeredAlertRepository;
@@ -40,13 +46,16 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
     private final Session session;
 
     private final PreparedStatement insertPS;
-    private final PreparedStatement existsPS;
     private final PreparedStatement deletePS;
     private final PreparedStatement readPS;
 
     private final PreparedStatement readAllPS;
 
-    TriggeredAlertDao(Session session) throws Exception {
+    // triggered alerts are checked for every alert condition of every agent every minute, but only
+    // change when an alert is triggered or resolved
+    private final Cache<String, Set<AlertCondition>> alertConditionsCache;
+
+    TriggeredAlertDao(Session session, ClusterManager clusterManager) throws Exception {
         this.session = session;
 
         session.execute("create table if not exists triggered_alert (agent_rollup_id"
@@ -56,9 +65,6 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         insertPS = session.prepare("insert into triggered_alert (agent_rollup_id, alert_condition)"
                 + " values (?, ?)");
 
-        existsPS = session.prepare("select agent_rollup_id from triggered_alert where"
-                + " agent_rollup_id = ? and alert_condition = ?");
-
         deletePS = session.prepare("delete from triggered_alert where agent_rollup_id = ?"
                 + " and alert_condition = ?");
 
@@ -66,15 +72,14 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
                 .prepare("select alert_condition from triggered_alert where agent_rollup_id = ?");
 
         readAllPS = session.prepare("select agent_rollup_id, alert_condition from triggered_alert");
+
+        alertConditionsCache = clusterManager.createCache("triggeredAlertConditionsCache",
+                new AlertConditionsCacheLoader());
     }
 
     @Override
     public boolean exists(String agentRollupId, AlertCondition alertCondition) throws Exception {
-        BoundStatement boundStatement = existsPS.bind();
-        boundStatement.setString(0, agentRollupId);
-        boundStatement.setBytes(1, ByteBuffer.wrap(alertCondition.toByteArray()));
-        ResultSet results = session.execute(boundStatement);
-        return !results.isExhausted();
+        return alertConditionsCache.get(agentRollupId).contains(alertCondition);
     }
 
     @Override
@@ -83,6 +88,7 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         boundStatement.setString(0, agentRollupId);
         boundStatement.setBytes(1, ByteBuffer.wrap(alertCondition.toByteArray()));
         session.execute(boundStatement);
+        alertConditionsCache.invalidate(agentRollupId);
     }
 
     @Override
@@ -91,19 +97,12 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         boundStatement.setString(0, agentRollupId);
         boundStatement.setBytes(1, ByteBuffer.wrap(alertCondition.toByteArray()));
         session.execute(boundStatement);
+        alertConditionsCache.invalidate(agentRollupId);
     }
 
     @Override
     public List<AlertCondition> readAlertConditions(String agentRollupId) throws Exception {
-        BoundStatement boundStatement = readPS.bind();
-        boundStatement.setString(0, agentRollupId);
-        ResultSet results = session.execute(boundStatement);
-        List<AlertCondition> alertConditions = Lists.newArrayList();
-        for (Row row : results) {
-            ByteBuffer bytes = checkNotNull(row.getBytes(0));
-            alertConditions.add(AlertCondition.parseFrom(ByteString.copyFrom(bytes)));
-        }
-        return alertConditions;
+        return ImmutableList.copyOf(alertConditionsCache.get(agentRollupId));
     }
 
     @Override
@@ -121,4 +120,19 @@ public class TriggeredAlertDao implements TriggeredAlertRepository {
         }
         return triggeredAlerts;
     }
+
+    private class AlertConditionsCacheLoader implements CacheLoader<String, Set<AlertCondition>> {
+        @Override
+        public Set<AlertCondition> load(String agentRollupId) throws Exception {
+            BoundStatement boundStatement = readPS.bind();
+            boundStatement.setString(0, agentRollupId);
+            ResultSet results = session.execute(boundStatement);
+            ImmutableSet.Builder<AlertCondition> alertConditions = ImmutableSet.builder();
+            for (Row row : results) {
+                ByteBuffer bytes = checkNotNull(row.getBytes(0));
+                alertConditions.add(AlertCondition.parseFrom(ByteString.copyFrom(bytes)));
+            }
+            return alertConditions.build();
+        }
+    }
 }
@@ -15,10 +15,15 @@
  */
 package org.glowroot.central.util;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,4 +52,55 @@ public class MoreFutures {
             throw exception;
         }
     }
+
+    // non-blocking version of waitForAll(), the returned future fails with the first failure (in
+    // list order) once all of the futures are done
+    public static ListenableFuture<?> allAsync(
+            Collection<? extends ListenableFuture<?>> futures) {
+        return Futures.whenAllComplete(futures).callAsync(() -> {
+            for (ListenableFuture<?> future : futures) {
+                try {
+                    Futures.getDone(future);
+                } catch (ExecutionException e) {
+                    logger.debug(e.getMessage(), e);
+                    return Futures.immediateFailedFuture(e.getCause());
+                }
+            }
+            return Futures.immediateFuture(null);
+        }, MoreExecutors.directExecutor());
+    }
+
+    // blocks until the future completes, and then propagates the failure cause (if any) the same
+    // way as Session.execute()
+    public static <V> V getUnwrapped(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DriverException) {
+                // see com.datastax.driver.core.DriverThrowables.propagateCause()
+                throw ((DriverException) cause).copy();
+            } else if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e; // unusual case (cause is null or cause is not Exception or Error)
+        }
+    }
+
+    // runs the next step once the future completes successfully
+    //
+    // direct executor will run the next step inside the cassandra driver thread that completes the
+    // future, which is ok as long as the next step itself only kicks off more async work (and in
+    // particular does not perform any blocking reads)
+    public static <V> ListenableFuture<V> thenAsync(ListenableFuture<?> future,
+            NextStep<V> nextStep) {
+        return Futures.transformAsync(future, input -> nextStep.execute(),
+                MoreExecutors.directExecutor());
+    }
+
+    public interface NextStep<V> {
+        ListenableFuture<V> execute() throws Exception;
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import org.glowroot.central.AlertMetricWindows.WindowValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AlertMetricWindowsTest {
+
+    private static final MetricCondition AVERAGE = MetricCondition.newBuilder()
+            .setMetric("transaction:average")
+            .setTransactionType("Web")
+            .setThreshold(1)
+            .setTimePeriodSeconds(180)
+            .build();
+
+    private static final MetricCondition ERROR_COUNT = MetricCondition.newBuilder()
+            .setMetric("error:count")
+            .setTransactionType("Web")
+            .setThreshold(1)
+            .setTimePeriodSeconds(180)
+            .build();
+
+    private static final MetricCondition GAUGE = MetricCondition.newBuilder()
+            .setMetric("gauge:abc")
+            .setThreshold(1)
+            .setTimePeriodSeconds(10)
+            .build();
+
+    @Test
+    public void shouldCalculateAggregateMetricsOverWindow() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        ImmutableSet<MetricCondition> metricConditions = ImmutableSet.of(AVERAGE, ERROR_COUNT);
+
+        // when
+        windows.updateAggregateWindows("xyz", metricConditions, 60000, 60000,
+                createAggregates(1, 1000000, 1));
+        windows.updateAggregateWindows("xyz", metricConditions, 120000, 60000,
+                createAggregates(1, 3000000, 0));
+        windows.updateAggregateWindows("xyz", metricConditions, 180000, 60000,
+                createAggregates(2, 8000000, 1));
+
+        // then
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 180000).value()).isEqualTo(3.0);
+        assertThat(windows.getMetricValue("xyz", ERROR_COUNT, 180000).value()).isEqualTo(2L);
+
+        // and when (first aggregate falls out of the window, and no transactions in last minute)
+        windows.updateAggregateWindows("xyz", metricConditions, 240000, 60000,
+                ImmutableList.<OldAggregatesByType>of());
+
+        // then
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 240000).value())
+                .isEqualTo(11.0 / 3);
+        assertThat(windows.getMetricValue("xyz", ERROR_COUNT, 240000).value()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldNotCalculateBeforeObservingWholeWindow() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        ImmutableSet<MetricCondition> metricConditions = ImmutableSet.of(AVERAGE);
+
+        // when
+        windows.updateAggregateWindows("xyz", metricConditions, 120000, 60000,
+                createAggregates(1, 1000000, 0));
+        windows.updateAggregateWindows("xyz", metricConditions, 180000, 60000,
+                createAggregates(1, 1000000, 0));
+
+        // then
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 180000)).isNull();
+        // and not for an end time other than the last aggregate
+        windows.updateAggregateWindows("xyz", metricConditions, 240000, 60000,
+                createAggregates(1, 1000000, 0));
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 240000)).isNotNull();
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 300000)).isNull();
+    }
+
+    @Test
+    public void shouldResetAfterMissingAggregate() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        ImmutableSet<MetricCondition> metricConditions = ImmutableSet.of(AVERAGE);
+        windows.updateAggregateWindows("xyz", metricConditions, 60000, 60000,
+                createAggregates(1, 1000000, 0));
+        windows.updateAggregateWindows("xyz", metricConditions, 120000, 60000,
+                createAggregates(1, 1000000, 0));
+        windows.updateAggregateWindows("xyz", metricConditions, 180000, 60000,
+                createAggregates(1, 1000000, 0));
+
+        // when
+        windows.updateAggregateWindows("xyz", metricConditions, 300000, 60000,
+                createAggregates(1, 1000000, 0));
+
+        // then
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 300000)).isNull();
+    }
+
+    @Test
+    public void shouldReturnNullValueWhenNoTransactions() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        ImmutableSet<MetricCondition> metricConditions = ImmutableSet.of(AVERAGE, ERROR_COUNT);
+
+        // when
+        for (long captureTime = 60000; captureTime <= 180000; captureTime += 60000) {
+            windows.updateAggregateWindows("xyz", metricConditions, captureTime, 60000,
+                    ImmutableList.<OldAggregatesByType>of());
+        }
+
+        // then
+        WindowValue averageValue = windows.getMetricValue("xyz", AVERAGE, 180000);
+        assertThat(averageValue).isNotNull();
+        assertThat(averageValue.value()).isNull();
+        assertThat(windows.getMetricValue("xyz", ERROR_COUNT, 180000).value()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldCalculateGaugeMetricOverWindow() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        ImmutableSet<MetricCondition> metricConditions = ImmutableSet.of(GAUGE);
+
+        // when
+        windows.updateGaugeWindows("xyz", metricConditions, ImmutableList.of(
+                createGaugeValue(0, 100), createGaugeValue(5000, 2), createGaugeValue(10000, 4)),
+                5000);
+
+        // then
+        assertThat(windows.getMetricValue("xyz", GAUGE, 10000).value()).isEqualTo(3.0);
+
+        // and when (gap in gauge values)
+        windows.updateGaugeWindows("xyz", metricConditions,
+                ImmutableList.of(createGaugeValue(20000, 6)), 5000);
+
+        // then
+        assertThat(windows.getMetricValue("xyz", GAUGE, 20000)).isNull();
+    }
+
+    @Test
+    public void shouldRemoveWindowsForDeletedConditions() {
+        // given
+        AlertMetricWindows windows = new AlertMetricWindows();
+        for (long captureTime = 60000; captureTime <= 180000; captureTime += 60000) {
+            windows.updateAggregateWindows("xyz", ImmutableSet.of(AVERAGE), captureTime, 60000,
+                    createAggregates(1, 1000000, 0));
+        }
+
+        // when
+        windows.updateAggregateWindows("xyz", ImmutableSet.<MetricCondition>of(), 240000, 60000,
+                createAggregates(1, 1000000, 0));
+
+        // then
+        assertThat(windows.getMetricValue("xyz", AVERAGE, 180000)).isNull();
+    }
+
+    private static List<OldAggregatesByType> createAggregates(long transactionCount,
+            double totalDurationNanos, long errorCount) {
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(transactionCount)
+                        .setTotalDurationNanos(totalDurationNanos)
+                        .setErrorCount(errorCount))
+                .build());
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName("abc")
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
@@ -15,9 +15,34 @@
  */
 package org.glowroot.central;
 
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.stub.StreamObserver;
 import org.junit.Test;
 
+import org.glowroot.central.repo.AgentConfigDao;
+import org.glowroot.central.repo.AgentRollupDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.EnvironmentDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class CollectorServiceImplTest {
 
@@ -32,4 +57,86 @@ public class CollectorServiceImplTest {
         assertThat(CollectorServiceImpl.trimSpacesAroundAgentRollupIdSeparator("a/  b  /c"))
                 .isEqualTo("a/b/c");
     }
+
+    @Test
+    public void shouldRespondOnlyAfterGaugeValuesAreStored() throws Exception {
+        // given
+        AgentRollupDao agentRollupDao = mock(AgentRollupDao.class);
+        GaugeValueDao gaugeValueDao = mock(GaugeValueDao.class);
+        HeartbeatDao heartbeatDao = mock(HeartbeatDao.class);
+        CentralAlertingService centralAlertingService = mock(CentralAlertingService.class);
+        SettableFuture<Void> gaugeValueFuture = SettableFuture.create();
+        SettableFuture<Void> heartbeatFuture = SettableFuture.create();
+        when(agentRollupDao.readAgentRollupDisplay("xyz")).thenReturn("XYZ");
+        doReturn(gaugeValueFuture).when(gaugeValueDao).store(eq("xyz"),
+                anyListOf(GaugeValue.class));
+        doReturn(heartbeatFuture).when(heartbeatDao).store("xyz");
+        CollectorServiceImpl collectorService = new CollectorServiceImpl(agentRollupDao,
+                mock(AgentConfigDao.class), mock(EnvironmentDao.class), mock(AggregateDao.class),
+                gaugeValueDao, heartbeatDao, mock(TraceDao.class), centralAlertingService,
+                mock(Clock.class), "0.0.1");
+        @SuppressWarnings("unchecked")
+        StreamObserver<EmptyMessage> responseObserver = mock(StreamObserver.class);
+
+        GaugeValueMessage request = GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .addGaugeValues(GaugeValue.newBuilder()
+                        .setGaugeName("abc")
+                        .setCaptureTime(60000)
+                        .setValue(1))
+                .build();
+
+        // when
+        collectorService.collectGaugeValues(request, responseObserver);
+        gaugeValueFuture.set(null);
+
+        // then
+        verify(responseObserver, never()).onNext(any(EmptyMessage.class));
+
+        // and when
+        heartbeatFuture.set(null);
+
+        // then
+        verify(responseObserver, timeout(5000)).onCompleted();
+        verify(responseObserver).onNext(EmptyMessage.getDefaultInstance());
+        verify(centralAlertingService).checkGaugeAndHeartbeatAlertsAsync("xyz", "XYZ", 60000,
+                request.getGaugeValuesList());
+        collectorService.close();
+    }
+
+    @Test
+    public void shouldRespondWithErrorWhenGaugeValuesFailToStore() throws Exception {
+        // given
+        AgentRollupDao agentRollupDao = mock(AgentRollupDao.class);
+        GaugeValueDao gaugeValueDao = mock(GaugeValueDao.class);
+        HeartbeatDao heartbeatDao = mock(HeartbeatDao.class);
+        CentralAlertingService centralAlertingService = mock(CentralAlertingService.class);
+        SettableFuture<Void> gaugeValueFuture = SettableFuture.create();
+        SettableFuture<Void> heartbeatFuture = SettableFuture.create();
+        when(agentRollupDao.readAgentRollupDisplay("xyz")).thenReturn("XYZ");
+        doReturn(gaugeValueFuture).when(gaugeValueDao).store(eq("xyz"),
+                anyListOf(GaugeValue.class));
+        doReturn(heartbeatFuture).when(heartbeatDao).store("xyz");
+        CollectorServiceImpl collectorService = new CollectorServiceImpl(agentRollupDao,
+                mock(AgentConfigDao.class), mock(EnvironmentDao.class), mock(AggregateDao.class),
+                gaugeValueDao, heartbeatDao, mock(TraceDao.class), centralAlertingService,
+                mock(Clock.class), "0.0.1");
+        @SuppressWarnings("unchecked")
+        StreamObserver<EmptyMessage> responseObserver = mock(StreamObserver.class);
+        Exception exception = new Exception("test");
+
+        // when
+        collectorService.collectGaugeValues(GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .build(), responseObserver);
+        gaugeValueFuture.setException(exception);
+        heartbeatFuture.set(null);
+
+        // then
+        verify(responseObserver, timeout(5000)).onError(exception);
+        verify(responseObserver, never()).onCompleted();
+        verify(centralAlertingService, never()).checkGaugeAndHeartbeatAlertsAsync(anyString(),
+                anyString(), anyLong(), anyListOf(GaugeValue.class));
+        collectorService.close();
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.stub.StreamObserver;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.central.repo.AgentConfigDao;
+import org.glowroot.central.repo.AgentRollupDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.EnvironmentDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldAggregateMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// load test harness for the aggregate/gauge ingest path, run manually, e.g.
+//
+// java org.glowroot.central.IngestLoadHarness <agents> <grpc threads> <store latency millis>
+//
+// the DAOs are stubbed with a local stand-in for cassandra that completes each store future after
+// the given latency, so that the harness measures how many concurrent agent collections the ingest
+// path can keep in flight with a small number of gRPC threads, independent of cassandra itself
+public class IngestLoadHarness {
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int agentCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int grpcThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int storeLatencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ScheduledExecutorService cassandraStandIn = Executors.newScheduledThreadPool(2);
+        Answer<SettableFuture<Void>> storeAnswer = new Answer<SettableFuture<Void>>() {
+            @Override
+            public SettableFuture<Void> answer(InvocationOnMock invocation) {
+                SettableFuture<Void> future = SettableFuture.create();
+                cassandraStandIn.schedule(() -> future.set(null), storeLatencyMillis,
+                        MILLISECONDS);
+                return future;
+            }
+        };
+        AgentRollupDao agentRollupDao = mock(AgentRollupDao.class);
+        when(agentRollupDao.readAgentRollupDisplay(anyString())).thenReturn("agent");
+        AggregateDao aggregateDao = mock(AggregateDao.class);
+        doAnswer(storeAnswer).when(aggregateDao).store(anyString(), anyLong(),
+                anyListOf(OldAggregatesByType.class), anyListOf(Aggregate.SharedQueryText.class));
+        GaugeValueDao gaugeValueDao = mock(GaugeValueDao.class);
+        doAnswer(storeAnswer).when(gaugeValueDao).store(anyString(),
+                anyListOf(GaugeValue.class));
+        HeartbeatDao heartbeatDao = mock(HeartbeatDao.class);
+        doAnswer(storeAnswer).when(heartbeatDao).store(anyString());
+
+        CollectorServiceImpl collectorService = new CollectorServiceImpl(agentRollupDao,
+                mock(AgentConfigDao.class), mock(EnvironmentDao.class), aggregateDao,
+                gaugeValueDao, heartbeatDao, mock(TraceDao.class),
+                mock(CentralAlertingService.class), mock(Clock.class), "0.0.1");
+        ExecutorService grpcExecutor = Executors.newFixedThreadPool(grpcThreads);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            CountDownLatch latch = new CountDownLatch(agentCount * 2);
+            AtomicInteger errorCount = new AtomicInteger();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            for (int i = 0; i < agentCount; i++) {
+                String agentId = "agent-" + i;
+                grpcExecutor.execute(() -> collectorService.collectAggregates(
+                        createAggregateMessage(agentId),
+                        new LatchObserver<AggregateResponseMessage>(latch, errorCount)));
+                grpcExecutor.execute(() -> collectorService.collectGaugeValues(
+                        createGaugeValueMessage(agentId),
+                        new LatchObserver<EmptyMessage>(latch, errorCount)));
+            }
+            latch.await();
+            long millis = stopwatch.elapsed(MILLISECONDS);
+            System.out.format("round %d: %d collections in %d ms (%.0f/sec), %d errors%n",
+                    round + 1, agentCount * 2, millis, agentCount * 2 * 1000.0 / millis,
+                    errorCount.get());
+        }
+
+        grpcExecutor.shutdown();
+        collectorService.close();
+        cassandraStandIn.shutdown();
+    }
+
+    private static OldAggregateMessage createAggregateMessage(String agentId) {
+        return OldAggregateMessage.newBuilder()
+                .setAgentId(agentId)
+                .setCaptureTime(60000)
+                .addAggregatesByType(OldAggregatesByType.newBuilder()
+                        .setTransactionType("Web")
+                        .setOverallAggregate(Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setTransactionCount(1)))
+                .build();
+    }
+
+    private static GaugeValueMessage createGaugeValueMessage(String agentId) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .addGaugeValues(GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                        .setCaptureTime(60000)
+                        .setValue(1))
+                .build();
+    }
+
+    private static class LatchObserver<T> implements StreamObserver<T> {
+
+        private final CountDownLatch latch;
+        private final AtomicInteger errorCount;
+
+        private LatchObserver(CountDownLatch latch, AtomicInteger errorCount) {
+            this.latch = latch;
+            this.errorCount = errorCount;
+        }
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            errorCount.incrementAndGet();
+            latch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            latch.countDown();
+        }
+    }
+}
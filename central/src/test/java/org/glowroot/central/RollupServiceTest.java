@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,58 @@
  */
 package org.glowroot.central;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import org.glowroot.central.repo.AgentRollupDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.util.Clock;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
+    private AgentRollupDao agentRollupDao;
+    private AggregateDao aggregateDao;
+    private GaugeValueDao gaugeValueDao;
+    private RollupService rollupService;
+
+    @Before
+    public void beforeEach() {
+        agentRollupDao = mock(AgentRollupDao.class);
+        aggregateDao = mock(AggregateDao.class);
+        gaugeValueDao = mock(GaugeValueDao.class);
+    }
+
+    @After
+    public void afterEach() throws InterruptedException {
+        if (rollupService != null) {
+            rollupService.close();
+        }
+    }
+
     @Test
     public void test() {
         assertThat(RollupService.millisUntilNextRollup(15000)).isEqualTo(55000);
@@ -28,4 +74,98 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldRollUpChildrenBeforeParentInParallel() throws Exception {
+        // given
+        when(agentRollupDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                createAgentRollup("p",
+                        createAgentRollup("c1", createAgentRollup("g1"), createAgentRollup("g2")),
+                        createAgentRollup("c2")),
+                createAgentRollup("other")));
+        List<String> rolledUpAgentRollupIds = Collections.synchronizedList(Lists.newArrayList());
+        doAnswer(invocation -> rolledUpAgentRollupIds.add(invocation.getArgument(0)))
+                .when(gaugeValueDao).rollup(anyString(), any(), anyBoolean());
+        rollupService = createRollupService(4);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        assertThat(rolledUpAgentRollupIds).containsOnly("p", "c1", "g1", "g2", "c2", "other");
+        assertThat(rolledUpAgentRollupIds).hasSize(6);
+        assertThat(rolledUpAgentRollupIds.indexOf("g1"))
+                .isLessThan(rolledUpAgentRollupIds.indexOf("c1"));
+        assertThat(rolledUpAgentRollupIds.indexOf("g2"))
+                .isLessThan(rolledUpAgentRollupIds.indexOf("c1"));
+        assertThat(rolledUpAgentRollupIds.indexOf("c1"))
+                .isLessThan(rolledUpAgentRollupIds.indexOf("p"));
+        assertThat(rolledUpAgentRollupIds.indexOf("c2"))
+                .isLessThan(rolledUpAgentRollupIds.indexOf("p"));
+        verify(gaugeValueDao).rollup("g1", "c1", true);
+        verify(gaugeValueDao).rollup("c1", "p", false);
+        verify(gaugeValueDao).rollup("p", null, false);
+        assertThat(rollupService.getBacklog()).isZero();
+        assertThat(rollupService.getLastPassAgentRollupCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldDecrementBacklogAsAgentRollupsComplete() throws Exception {
+        // given
+        when(agentRollupDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                createAgentRollup("p", createAgentRollup("c1"), createAgentRollup("c2"))));
+        Map<String, Integer> backlogs = Maps.newConcurrentMap();
+        doAnswer(invocation -> backlogs.put(invocation.getArgument(0), rollupService.getBacklog()))
+                .when(aggregateDao).rollup(anyString(), any(), anyBoolean());
+        rollupService = createRollupService(2);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        assertThat(backlogs.get("c1")).isBetween(2, 3);
+        assertThat(backlogs.get("c2")).isBetween(2, 3);
+        assertThat(backlogs.get("p")).isEqualTo(1);
+        assertThat(rollupService.getBacklog()).isZero();
+    }
+
+    @Test
+    public void shouldStillRollUpParentWhenChildFailsUnexpectedly() throws Exception {
+        // given
+        when(agentRollupDao.readAgentRollups()).thenReturn(ImmutableList.of(
+                createAgentRollup("p", createAgentRollup("c1"), createAgentRollup("c2"))));
+        Map<String, Integer> backlogs = Maps.newConcurrentMap();
+        doAnswer(invocation -> backlogs.put(invocation.getArgument(0), rollupService.getBacklog()))
+                .when(aggregateDao).rollup(anyString(), any(), anyBoolean());
+        doThrow(new LinkageError("test")).when(aggregateDao).rollup(eq("c1"), any(),
+                anyBoolean());
+        rollupService = createRollupService(2);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        assertThat(backlogs.get("p")).isEqualTo(1);
+        verify(gaugeValueDao).rollup("c2", "p", true);
+        verify(gaugeValueDao, never()).rollup(eq("p"), any(), anyBoolean());
+        assertThat(rollupService.getBacklog()).isZero();
+    }
+
+    private RollupService createRollupService(int rollupThreads) {
+        // the mocked clock keeps the background rollup loop sleeping for the entire test
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(10000L);
+        return new RollupService(agentRollupDao, aggregateDao, gaugeValueDao,
+                mock(SyntheticResultDao.class), mock(CentralAlertingService.class), clock,
+                rollupThreads);
+    }
+
+    private static AgentRollup createAgentRollup(String id, AgentRollup... children) {
+        return ImmutableAgentRollup.builder()
+                .id(id)
+                .display(id)
+                .agent(children.length == 0)
+                .addChildren(children)
+                .build();
+    }
 }
@@ -136,9 +136,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // check non-rolled up data
         OverallQuery overallQuery = ImmutableOverallQuery.builder()
@@ -300,6 +300,63 @@ public class AggregateDaoIT {
         assertThat(query.getExecutionCount()).isEqualTo(4);
     }
 
+    @Test
+    public void shouldReadInPartitions() throws Exception {
+
+        agentRollupDao.store("one", null);
+        agentConfigDao.store("one", null, AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build());
+
+        aggregateDao.truncateAll();
+        List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
+                .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
+        // one hour of one minute aggregates is read in multiple partitions
+        for (int i = 1; i <= 60; i++) {
+            aggregateDao.store("one", i * 60000, createData(), sharedQueryText).get();
+        }
+
+        OverallQuery overallQuery = ImmutableOverallQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(3600000)
+                .rollupLevel(0)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(3600000)
+                .rollupLevel(0)
+                .build();
+
+        TransactionSummaryCollector transactionSummaryCollector = new TransactionSummaryCollector();
+        SummarySortOrder sortOrder = SummarySortOrder.TOTAL_TIME;
+        aggregateDao.mergeTransactionSummariesInto("one", overallQuery, sortOrder, 10,
+                transactionSummaryCollector);
+        Result<TransactionSummary> result = transactionSummaryCollector.getResult(sortOrder, 10);
+        assertThat(result.records()).hasSize(2);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("tn2");
+        assertThat(result.records().get(0).totalDurationNanos()).isEqualTo(2345 * 60);
+        assertThat(result.records().get(0).transactionCount()).isEqualTo(2 * 60);
+        assertThat(result.records().get(1).transactionName()).isEqualTo("tn1");
+        assertThat(result.records().get(1).totalDurationNanos()).isEqualTo(1234 * 60);
+        assertThat(result.records().get(1).transactionCount()).isEqualTo(60);
+        assertThat(transactionSummaryCollector.getLastCaptureTime()).isEqualTo(3600000);
+
+        QueryCollector queryCollector = new QueryCollector(1000);
+        aggregateDao.mergeQueriesInto("one", transactionQuery, queryCollector);
+        Map<String, List<MutableQuery>> queries = queryCollector.getSortedAndTruncatedQueries();
+        assertThat(queries).hasSize(1);
+        List<MutableQuery> queriesByType = queries.get("sqlo");
+        assertThat(queriesByType).hasSize(1);
+        MutableQuery query = queriesByType.get(0);
+        assertThat(query.getTruncatedText()).isEqualTo("select 1");
+        assertThat(query.getTotalDurationNanos()).isEqualTo(7 * 60);
+        assertThat(query.getTotalRows()).isEqualTo(5 * 60);
+        assertThat(query.getExecutionCount()).isEqualTo(2 * 60);
+        assertThat(queryCollector.getLastCaptureTime()).isEqualTo(3600000);
+    }
+
     @Test
     public void shouldRollupFromChildren() throws Exception {
 
@@ -311,9 +368,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // rollup
         aggregateDao.rollup("the parent", null, false);
@@ -488,9 +545,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // rollup
         aggregateDao.rollup("the gp/the parent", "the gp", false);
@@ -226,6 +226,8 @@ public class ConfigRepositoryIT {
                 .setMaxTraceEntriesPerTransaction(OptionalInt32.newBuilder().setValue(5))
                 .setMaxStackTraceSamplesPerTransaction(OptionalInt32.newBuilder().setValue(6))
                 .setMbeanGaugeNotFoundDelaySeconds(OptionalInt32.newBuilder().setValue(7))
+                .setTraceCollectorThreads(OptionalInt32.newBuilder().setValue(8))
+                .setMaxPendingTraces(OptionalInt32.newBuilder().setValue(9))
                 .build();
 
         // when
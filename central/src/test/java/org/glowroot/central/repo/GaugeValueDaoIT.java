@@ -19,6 +19,7 @@ import java.util.List;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -80,9 +81,9 @@ public class GaugeValueDaoIT {
     @Test
     public void shouldRollup() throws Exception {
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // check non-rolled up data
         List<GaugeValue> gaugeValues =
@@ -108,15 +109,87 @@ public class GaugeValueDaoIT {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollupBatchesTogetherWithNonBatchValues() throws Exception {
+        gaugeValueDao.truncateAll();
+        // gauge value stored prior to gauge_value_batch, within the same minute as the batches
+        session.execute("insert into gauge_value_rollup_0 (agent_rollup, gauge_name,"
+                + " capture_time, value, weight) values ('one', 'the gauge:attr1', 62000, 800,"
+                + " 1)");
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        // separate message with the same capture time must not overwrite the prior batch
+        gaugeValueDao.store("one", ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName("another gauge:attr")
+                .setCaptureTime(65009)
+                .setValue(700)
+                .setWeight(1)
+                .build())).get();
+
+        // check non-rolled up data
+        List<GaugeValue> gaugeValues =
+                gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 300000, 0);
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(60013);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(62000);
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(800);
+        assertThat(gaugeValues.get(2).getCaptureTime()).isEqualTo(65009);
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "another gauge:attr", 0, 300000, 0);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(700);
+
+        // rollup
+        gaugeValueDao.rollup("one", null, true);
+
+        // check rolled-up data after rollup
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(600);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(3);
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "another gauge:attr", 0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(700);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCountResentMessageTwice() throws Exception {
+        gaugeValueDao.truncateAll();
+        List<GaugeValue> message = Lists.newArrayList(createData(60013));
+        message.addAll(createData(65009));
+        gaugeValueDao.store("one", message).get();
+        // e.g. retried after a timeout, or replayed from the agent's spool
+        gaugeValueDao.store("one", message).get();
+
+        // check non-rolled up data
+        List<GaugeValue> gaugeValues =
+                gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 300000, 0);
+        assertThat(gaugeValues).hasSize(2);
+
+        // rollup
+        gaugeValueDao.rollup("one", null, true);
+
+        // check rolled-up data after rollup
+        gaugeValues = gaugeValueDao.readGaugeValues("one", "the gauge:attr1", 0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(500);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
+        gaugeValues =
+                gaugeValueDao.readGaugeValues("one", "the gauge:attr2[counter]", 0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(600);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(10000);
+    }
+
     @Test
     public void shouldRollupFromChildren() throws Exception {
 
         agentRollupDao.store("one", "the parent");
 
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // rollup
         gaugeValueDao.rollup("one", "the parent", true);
@@ -136,9 +209,9 @@ public class GaugeValueDaoIT {
         agentRollupDao.store("one", "the gp/the parent");
 
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // rollup
         gaugeValueDao.rollup("one", "the gp/the parent", true);
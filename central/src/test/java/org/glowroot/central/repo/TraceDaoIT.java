@@ -34,6 +34,9 @@ import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -215,4 +218,38 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadSlowestTracesOverManyHours() throws Exception {
+        // given
+        // one trace every 10 minutes over 6 hours, with the slowest trace in the partial first
+        // hour of the query and the next slowest traces spread across the full hours
+        long tenMinutes = MINUTES.toMillis(10);
+        for (int i = 1; i <= 36; i++) {
+            Trace trace = TraceTestData.createTrace();
+            long durationMillis = i == 2 ? 1000 : (i % 6 == 0 ? 100 + i : i);
+            trace = trace.toBuilder()
+                    .setHeader(trace.getHeader().toBuilder()
+                            .setTransactionType("slowest test")
+                            .setStartTime(i * tenMinutes - durationMillis)
+                            .setCaptureTime(i * tenMinutes)
+                            .setDurationNanos(MILLISECONDS.toNanos(durationMillis)))
+                    .build();
+            traceDao.store(AGENT_ID, trace);
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("slowest test")
+                .from(tenMinutes)
+                .to(HOURS.toMillis(6) - tenMinutes)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 4);
+
+        // then
+        assertThat(queryResult.moreAvailable()).isTrue();
+        assertThat(queryResult.records()).extracting("captureTime").containsExactly(
+                2 * tenMinutes, 18 * tenMinutes, 24 * tenMinutes, 30 * tenMinutes);
+    }
 }
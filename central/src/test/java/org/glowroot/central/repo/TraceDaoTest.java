@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.datastax.driver.core.Row;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceDaoTest {
+
+    private static final long HOUR = HOURS.toMillis(1);
+
+    private static final TracePointFilter NO_FILTER = ImmutableTracePointFilter.builder().build();
+
+    @Test
+    public void shouldSplitRangeThatStartsAndEndsExactlyOnHour() {
+        // when
+        long firstFullHour = TraceDao.getFirstFullHour(10 * HOUR);
+        long lastFullHourEnd = TraceDao.getLastFullHourEnd(16 * HOUR);
+        List<TraceQuery> partialHourQueries =
+                TraceDao.getPartialHourQueries(createQuery(10 * HOUR, 16 * HOUR), firstFullHour,
+                        lastFullHourEnd);
+
+        // then
+        // "from" is excluded, so the hour starting at "from" is not a full hour, and "to" is
+        // included, so the hour ending at "to" is not a full hour either
+        assertThat(firstFullHour).isEqualTo(11 * HOUR);
+        assertThat(lastFullHourEnd).isEqualTo(16 * HOUR);
+        assertThat(TraceDao.isSlowestPointsRange(firstFullHour, lastFullHourEnd)).isTrue();
+        assertThat(partialHourQueries).hasSize(2);
+        assertThat(partialHourQueries.get(0).from()).isEqualTo(10 * HOUR);
+        assertThat(partialHourQueries.get(0).to()).isEqualTo(11 * HOUR - 1);
+        assertThat(partialHourQueries.get(1).from()).isEqualTo(16 * HOUR - 1);
+        assertThat(partialHourQueries.get(1).to()).isEqualTo(16 * HOUR);
+    }
+
+    @Test
+    public void shouldSplitRangeThatEndsJustBeforeHour() {
+        // when
+        long firstFullHour = TraceDao.getFirstFullHour(10 * HOUR - 1);
+        long lastFullHourEnd = TraceDao.getLastFullHourEnd(16 * HOUR - 1);
+        List<TraceQuery> partialHourQueries =
+                TraceDao.getPartialHourQueries(createQuery(10 * HOUR - 1, 16 * HOUR - 1),
+                        firstFullHour, lastFullHourEnd);
+
+        // then
+        assertThat(firstFullHour).isEqualTo(10 * HOUR);
+        assertThat(lastFullHourEnd).isEqualTo(16 * HOUR);
+        assertThat(partialHourQueries).isEmpty();
+    }
+
+    @Test
+    public void shouldNotUseDurationTablesForFewerThanMinHours() {
+        // exactly three full hours
+        assertThat(isSlowestPointsRange(10 * HOUR - 1, 13 * HOUR - 1)).isTrue();
+        assertThat(isSlowestPointsRange(10 * HOUR + 1, 14 * HOUR - 1)).isTrue();
+        // only two full hours
+        assertThat(isSlowestPointsRange(10 * HOUR, 13 * HOUR - 2)).isFalse();
+        assertThat(isSlowestPointsRange(10 * HOUR + 1, 13 * HOUR + 30)).isFalse();
+        assertThat(isSlowestPointsRange(10 * HOUR, 10 * HOUR + 1)).isFalse();
+        assertThat(isSlowestPointsRange(10 * HOUR, 10 * HOUR)).isFalse();
+    }
+
+    @Test
+    public void shouldMatchCaptureTimeReadWhenRangeStartsAndEndsExactlyOnHour() throws Exception {
+        // given
+        List<SlowPoint> slowPoints = Lists.newArrayList();
+        // excluded since "from" is excluded
+        slowPoints.add(new SlowPoint("a", 10 * HOUR, 5000));
+        slowPoints.add(new SlowPoint("b", 10 * HOUR + 1, 400));
+        slowPoints.add(new SlowPoint("c", 11 * HOUR - 1, 4000));
+        slowPoints.add(new SlowPoint("d", 11 * HOUR, 300));
+        slowPoints.add(new SlowPoint("e", 12 * HOUR + 1, 3000));
+        slowPoints.add(new SlowPoint("f", 16 * HOUR - 1, 200));
+        slowPoints.add(new SlowPoint("g", 16 * HOUR, 2000));
+        // excluded since after "to"
+        slowPoints.add(new SlowPoint("h", 16 * HOUR + 1, 6000));
+        addEveryTenMinutes(slowPoints, 10 * HOUR, 17 * HOUR);
+
+        // then
+        assertSameAsCaptureTimeRead(slowPoints, 10 * HOUR, 16 * HOUR);
+    }
+
+    @Test
+    public void shouldMatchCaptureTimeReadWhenRangeDoesNotStartOrEndOnHour() throws Exception {
+        // given
+        List<SlowPoint> slowPoints = Lists.newArrayList();
+        slowPoints.add(new SlowPoint("a", 10 * HOUR + MINUTES.toMillis(20), 5000));
+        slowPoints.add(new SlowPoint("b", 10 * HOUR + MINUTES.toMillis(40), 400));
+        slowPoints.add(new SlowPoint("c", 13 * HOUR + MINUTES.toMillis(50), 4000));
+        slowPoints.add(new SlowPoint("d", 15 * HOUR + MINUTES.toMillis(10), 3000));
+        addEveryTenMinutes(slowPoints, 10 * HOUR, 17 * HOUR);
+
+        // then
+        assertSameAsCaptureTimeRead(slowPoints, 10 * HOUR + MINUTES.toMillis(30),
+                15 * HOUR + MINUTES.toMillis(30));
+    }
+
+    @Test
+    public void shouldMatchCaptureTimeReadWhenPartialTraceWasUpdatedAcrossHours()
+            throws Exception {
+        // given
+        List<SlowPoint> slowPoints = Lists.newArrayList();
+        addEveryTenMinutes(slowPoints, 10 * HOUR, 17 * HOUR);
+        // partial trace stored in the partial first hour, and then updated (with a later capture
+        // time and longer duration) in a full hour, before the prior row was deleted
+        slowPoints.add(new SlowPoint("partial", 10 * HOUR + MINUTES.toMillis(45), 2500, true));
+        slowPoints.add(new SlowPoint("partial", 11 * HOUR + MINUTES.toMillis(15), 9000, true));
+        // partial trace stored in one full hour and then updated in another full hour
+        slowPoints.add(new SlowPoint("partial2", 12 * HOUR + MINUTES.toMillis(55), 2600, true));
+        slowPoints.add(new SlowPoint("partial2", 13 * HOUR + MINUTES.toMillis(5), 2700, true));
+
+        // then
+        assertSameAsCaptureTimeRead(slowPoints, 10 * HOUR + MINUTES.toMillis(30),
+                15 * HOUR + MINUTES.toMillis(30));
+    }
+
+    private static void assertSameAsCaptureTimeRead(List<SlowPoint> slowPoints, long from,
+            long to) throws Exception {
+        for (int limit : new int[] {1, 2, 3, 5, 10, 100}) {
+            Result<TracePoint> expected = readFromCaptureTimeTable(slowPoints, from, to, limit);
+            Result<TracePoint> actual = readFromDurationTables(slowPoints, from, to, limit);
+            assertThat(actual.records()).as("limit %s", limit)
+                    .containsExactlyElementsOf(expected.records());
+            assertThat(actual.moreAvailable()).as("limit %s", limit)
+                    .isEqualTo(expected.moreAvailable());
+        }
+    }
+
+    // same as TraceDao.readSlowPoints() when the time range is too short for the duration tables
+    private static Result<TracePoint> readFromCaptureTimeTable(List<SlowPoint> slowPoints,
+            long from, long to, int limit) throws Exception {
+        return TraceDao.processPoints(readCaptureTimeRange(slowPoints, from, to), NO_FILTER,
+                limit, false);
+    }
+
+    // same as TraceDao.readSlowPoints() when the time range is long enough for the duration tables
+    private static Result<TracePoint> readFromDurationTables(List<SlowPoint> slowPoints,
+            long from, long to, int limit) throws Exception {
+        long firstFullHour = TraceDao.getFirstFullHour(from);
+        long lastFullHourEnd = TraceDao.getLastFullHourEnd(to);
+        assertThat(TraceDao.isSlowestPointsRange(firstFullHour, lastFullHourEnd)).isTrue();
+        List<Iterator<Row>> fullHourRows = Lists.newArrayList();
+        for (long captureHour = firstFullHour; captureHour < lastFullHourEnd;
+                captureHour += TraceDao.SLOW_POINT_PARTITION_MILLIS) {
+            long hour = captureHour;
+            fullHourRows.add(slowPoints.stream()
+                    .filter(slowPoint -> TraceDao.getCaptureHour(slowPoint.captureTime) == hour)
+                    .sorted(Comparator
+                            .comparingLong((SlowPoint slowPoint) -> slowPoint.durationNanos)
+                            .reversed())
+                    .map(slowPoint -> slowPoint.row)
+                    .iterator());
+        }
+        List<List<Row>> partialHourRows = Lists.newArrayList();
+        for (TraceQuery partialHourQuery : TraceDao.getPartialHourQueries(createQuery(from, to),
+                firstFullHour, lastFullHourEnd)) {
+            partialHourRows.add(readCaptureTimeRange(slowPoints, partialHourQuery.from(),
+                    partialHourQuery.to()));
+        }
+        return TraceDao.mergeSlowestPoints(fullHourRows, partialHourRows, NO_FILTER, limit);
+    }
+
+    private static List<Row> readCaptureTimeRange(List<SlowPoint> slowPoints, long from,
+            long to) {
+        return slowPoints.stream()
+                .filter(slowPoint -> slowPoint.captureTime > from && slowPoint.captureTime <= to)
+                .sorted(Comparator.comparingLong(slowPoint -> slowPoint.captureTime))
+                .map(slowPoint -> slowPoint.row)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isSlowestPointsRange(long from, long to) {
+        return TraceDao.isSlowestPointsRange(TraceDao.getFirstFullHour(from),
+                TraceDao.getLastFullHourEnd(to));
+    }
+
+    private static TraceQuery createQuery(long from, long to) {
+        return ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    // distinct durations so that the slowest points are well defined
+    private static void addEveryTenMinutes(List<SlowPoint> slowPoints, long from, long to) {
+        int i = 0;
+        for (long captureTime = from + MINUTES.toMillis(5); captureTime < to;
+                captureTime += MINUTES.toMillis(10)) {
+            slowPoints.add(new SlowPoint("t" + i, captureTime, 100 + 7 * (i % 13) + i));
+            i++;
+        }
+    }
+
+    private static class SlowPoint {
+
+        private final long captureTime;
+        private final long durationNanos;
+        private final Row row;
+
+        private SlowPoint(String traceId, long captureTime, long durationNanos) {
+            this(traceId, captureTime, durationNanos, false);
+        }
+
+        private SlowPoint(String traceId, long captureTime, long durationNanos,
+                boolean partial) {
+            this.captureTime = captureTime;
+            this.durationNanos = durationNanos;
+            // see column order in TraceDao.readTracePoint()
+            row = mock(Row.class);
+            when(row.getString(0)).thenReturn("agent");
+            when(row.getString(1)).thenReturn(traceId);
+            when(row.getTimestamp(2)).thenReturn(new Date(captureTime));
+            when(row.getLong(3)).thenReturn(durationNanos);
+            when(row.getBool(4)).thenReturn(partial);
+            when(row.getBool(5)).thenReturn(false);
+            when(row.getString(6)).thenReturn("headline");
+            when(row.getString(7)).thenReturn("");
+            when(row.getLong("duration_nanos")).thenReturn(durationNanos);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.UUID;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// populates a week of traces into a local cassandra (the same one used by the integration tests)
+// and measures the latency of reading the slowest trace points, e.g.
+//
+// java org.glowroot.central.repo.TraceSlowestPointsPerformanceMain <trace count>
+//
+// the "full scan" timings read every slow point in the time range (which is what readSlowPoints()
+// did prior to the trace_*_slow_point_by_duration tables) for comparison
+public class TraceSlowestPointsPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(TraceSlowestPointsPerformanceMain.class);
+
+    private static final long WEEK_MILLIS = DAYS.toMillis(7);
+
+    private static final int ITERATIONS = 10;
+
+    private TraceSlowestPointsPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        int traceCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        CassandraWrapper.start();
+        Cluster cluster = Clusters.newCluster();
+        Session session = new Session(cluster.newSession());
+        session.createKeyspaceIfNotExists("glowroot_performance_test");
+        session.execute("use glowroot_performance_test");
+        ClusterManager clusterManager = ClusterManager.create();
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        TraceDao traceDao = new TraceDao(session, new AgentRollupDao(session, clusterManager),
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), configRepository, Clock.systemClock());
+
+        // capture times need to be recent so that the traces don't expire during the test
+        long to = System.currentTimeMillis();
+        long from = to - WEEK_MILLIS;
+        Random random = new Random(0);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < traceCount; i++) {
+            traceDao.store("xyz", createTrace(random, from + (i + 1) * WEEK_MILLIS / traceCount));
+            if ((i + 1) % 10000 == 0) {
+                logger.info("stored {} traces, elapsed time: {} ms", i + 1,
+                        stopwatch.elapsed(MILLISECONDS));
+            }
+        }
+        logger.info("stored {} traces, elapsed time: {} ms", traceCount,
+                stopwatch.elapsed(MILLISECONDS));
+
+        PreparedStatement fullScanPS = session.prepare("select duration_nanos from"
+                + " trace_tt_slow_point where agent_rollup = ? and transaction_type = ? and"
+                + " capture_time > ? and capture_time <= ?");
+        for (long rangeMillis : new long[] {WEEK_MILLIS, DAYS.toMillis(1)}) {
+            TraceQuery query = ImmutableTraceQuery.builder()
+                    .transactionType("Web")
+                    .from(to - rangeMillis)
+                    .to(to)
+                    .build();
+            String range = rangeMillis == WEEK_MILLIS ? "week" : "day";
+            for (int limit : new int[] {100, 500}) {
+                run(traceDao, session, fullScanPS, range, query, limit);
+            }
+        }
+        session.execute("drop keyspace glowroot_performance_test");
+        clusterManager.close();
+        session.close();
+        cluster.close();
+        CassandraWrapper.stop();
+    }
+
+    private static Trace createTrace(Random random, long captureTime) {
+        long durationMillis = random.nextInt(10000);
+        return Trace.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setHeader(Trace.Header.newBuilder()
+                        .setSlow(true)
+                        .setStartTime(captureTime - durationMillis)
+                        .setCaptureTime(captureTime)
+                        .setDurationNanos(MILLISECONDS.toNanos(durationMillis))
+                        .setTransactionType("Web")
+                        .setTransactionName("/api/orders/*")
+                        .setHeadline("GET /api/orders/" + random.nextInt(100000))
+                        .setUser("user" + random.nextInt(1000))
+                        .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                                .setName("http request")
+                                .setTotalNanos(MILLISECONDS.toNanos(durationMillis))
+                                .setCount(1)))
+                .build();
+    }
+
+    private static void run(TraceDao traceDao, Session session, PreparedStatement fullScanPS,
+            String range, TraceQuery query, int limit) throws Exception {
+        int count = 0;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Result<TracePoint> result = traceDao.readSlowPoints("xyz", query,
+                    ImmutableTracePointFilter.builder().build(), limit);
+            count = result.records().size();
+        }
+        long slowestMicros = stopwatch.elapsed(MILLISECONDS) * 1000 / ITERATIONS;
+        int fullScanCount = 0;
+        stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < ITERATIONS; i++) {
+            BoundStatement boundStatement = fullScanPS.bind();
+            boundStatement.setString(0, "xyz");
+            boundStatement.setString(1, query.transactionType());
+            boundStatement.setTimestamp(2, new Date(query.from()));
+            boundStatement.setTimestamp(3, new Date(query.to()));
+            fullScanCount = 0;
+            for (@SuppressWarnings("unused")
+            Row row : session.execute(boundStatement)) {
+                fullScanCount++;
+            }
+        }
+        long fullScanMicros = stopwatch.elapsed(MILLISECONDS) * 1000 / ITERATIONS;
+        logger.info("{} slowest {}: {} results, {} ms (full scan of {} points: {} ms)", range,
+                limit, count, slowestMicros / 1000.0, fullScanCount, fullScanMicros / 1000.0);
+    }
+}
@@ -23,6 +23,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.repo.TriggeredAlertRepository.TriggeredAlert;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
@@ -38,7 +39,8 @@ public class TriggeredAlertDaoIT {
 
     private static Cluster cluster;
     private static Session session;
-    private static TriggeredAlertDao triggeredAlertDao;
+    private static ClusterManager clusterManager;
+    private TriggeredAlertDao triggeredAlertDao;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -47,12 +49,12 @@ public class TriggeredAlertDaoIT {
         session = new Session(cluster.newSession());
         session.createKeyspaceIfNotExists("glowroot_unit_tests");
         session.execute("use glowroot_unit_tests");
-
-        triggeredAlertDao = new TriggeredAlertDao(session);
+        clusterManager = ClusterManager.create();
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        clusterManager.close();
         session.close();
         cluster.close();
         SharedSetupRunListener.stopCassandra();
@@ -61,6 +63,8 @@ public class TriggeredAlertDaoIT {
     @Before
     public void beforeEach() throws Exception {
         session.execute("truncate triggered_alert");
+        // new instance each time so that triggered alerts are not cached across tests
+        triggeredAlertDao = new TriggeredAlertDao(session, clusterManager);
     }
 
     @Test
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueBatch;
+
+// encodes gauge values into a gauge name dictionary plus per gauge columns of capture times, values
+// and weights, compressed similar to the Gorilla time series database
+// (http://www.vldb.org/pvldb/vol8/p1816-teller.pdf)
+//
+// encoded_values starts with the (varint) base capture time, followed by a segment for each gauge
+// name, consisting of the (varint) value count, the (varint) segment byte length, and then the bit
+// packed segment
+//
+// within a segment, capture times are encoded as delta of delta (the first capture time relative
+// to the base capture time), values are encoded as the xor with the prior value, and weights are
+// encoded as the delta from the prior weight
+//
+// since gauge values are captured at a fixed interval, and since non-counter gauge weights are
+// always 1 and counter gauge weights are typically the same as the prior weight, capture times and
+// weights usually take only a single bit per value
+public class GaugeValueBatches {
+
+    private GaugeValueBatches() {}
+
+    public static GaugeValueBatch encode(List<GaugeValue> gaugeValues) throws IOException {
+        Map<String, List<GaugeValue>> gaugeValuesByName = Maps.newLinkedHashMap();
+        long baseCaptureTime = Long.MAX_VALUE;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            List<GaugeValue> list = gaugeValuesByName.get(gaugeValue.getGaugeName());
+            if (list == null) {
+                list = Lists.newArrayList();
+                gaugeValuesByName.put(gaugeValue.getGaugeName(), list);
+            }
+            list.add(gaugeValue);
+            baseCaptureTime = Math.min(baseCaptureTime, gaugeValue.getCaptureTime());
+        }
+        if (gaugeValuesByName.isEmpty()) {
+            return GaugeValueBatch.getDefaultInstance();
+        }
+        ByteString.Output out = ByteString.newOutput();
+        CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+        codedOut.writeUInt64NoTag(baseCaptureTime);
+        GaugeValueBatch.Builder batch = GaugeValueBatch.newBuilder();
+        BitOutput bitOut = new BitOutput();
+        for (Entry<String, List<GaugeValue>> entry : gaugeValuesByName.entrySet()) {
+            batch.addGaugeName(entry.getKey());
+            List<GaugeValue> list = entry.getValue();
+            sortByCaptureTime(list);
+            bitOut.reset();
+            encodeSegment(list, baseCaptureTime, bitOut);
+            codedOut.writeUInt32NoTag(list.size());
+            codedOut.writeUInt32NoTag(bitOut.getByteLength());
+            codedOut.writeRawBytes(bitOut.getBytes(), 0, bitOut.getByteLength());
+        }
+        codedOut.flush();
+        return batch.setEncodedValues(out.toByteString())
+                .build();
+    }
+
+    public static List<GaugeValue> decode(GaugeValueBatch batch) throws IOException {
+        if (batch.getGaugeNameCount() == 0) {
+            return ImmutableList.of();
+        }
+        CodedInputStream codedIn = batch.getEncodedValues().newCodedInput();
+        long baseCaptureTime = codedIn.readUInt64();
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (String gaugeName : batch.getGaugeNameList()) {
+            int count = codedIn.readUInt32();
+            int byteLength = codedIn.readUInt32();
+            BitInput bitIn = new BitInput(codedIn.readRawBytes(byteLength));
+            decodeSegment(gaugeName, count, baseCaptureTime, bitIn, gaugeValues);
+        }
+        return gaugeValues;
+    }
+
+    // only decodes the segment for the given gauge name
+    public static List<GaugeValue> decode(GaugeValueBatch batch, String gaugeName)
+            throws IOException {
+        int index = batch.getGaugeNameList().indexOf(gaugeName);
+        if (index == -1) {
+            return ImmutableList.of();
+        }
+        CodedInputStream codedIn = batch.getEncodedValues().newCodedInput();
+        long baseCaptureTime = codedIn.readUInt64();
+        for (int i = 0; i < index; i++) {
+            codedIn.readUInt32();
+            codedIn.skipRawBytes(codedIn.readUInt32());
+        }
+        int count = codedIn.readUInt32();
+        int byteLength = codedIn.readUInt32();
+        BitInput bitIn = new BitInput(codedIn.readRawBytes(byteLength));
+        List<GaugeValue> gaugeValues = Lists.newArrayListWithCapacity(count);
+        decodeSegment(gaugeName, count, baseCaptureTime, bitIn, gaugeValues);
+        return gaugeValues;
+    }
+
+    private static void encodeSegment(List<GaugeValue> gaugeValues, long baseCaptureTime,
+            BitOutput bitOut) {
+        long priorCaptureTime = baseCaptureTime;
+        long priorCaptureTimeDelta = 0;
+        long priorValueBits = 0;
+        long priorWeight = 0;
+        XorState xorState = new XorState();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            long captureTimeDelta = gaugeValue.getCaptureTime() - priorCaptureTime;
+            writeDelta(bitOut, captureTimeDelta - priorCaptureTimeDelta);
+            priorCaptureTime = gaugeValue.getCaptureTime();
+            priorCaptureTimeDelta = captureTimeDelta;
+
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            writeXor(bitOut, valueBits ^ priorValueBits, xorState);
+            priorValueBits = valueBits;
+
+            writeDelta(bitOut, gaugeValue.getWeight() - priorWeight);
+            priorWeight = gaugeValue.getWeight();
+        }
+    }
+
+    private static void decodeSegment(String gaugeName, int count, long baseCaptureTime,
+            BitInput bitIn, List<GaugeValue> gaugeValues) {
+        long captureTime = baseCaptureTime;
+        long captureTimeDelta = 0;
+        long valueBits = 0;
+        long weight = 0;
+        XorState xorState = new XorState();
+        for (int i = 0; i < count; i++) {
+            captureTimeDelta += readDelta(bitIn);
+            captureTime += captureTimeDelta;
+            valueBits ^= readXor(bitIn, xorState);
+            weight += readDelta(bitIn);
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName(gaugeName)
+                    .setCaptureTime(captureTime)
+                    .setValue(Double.longBitsToDouble(valueBits))
+                    .setWeight(weight)
+                    .build());
+        }
+    }
+
+    // '0' for zero, otherwise a prefix of 1s (terminated by '0', except for the last bucket)
+    // followed by the two's complement value in the bucket's number of bits
+    private static void writeDelta(BitOutput bitOut, long delta) {
+        if (delta == 0) {
+            bitOut.writeBit(false);
+        } else if (fitsIn(delta, 7)) {
+            bitOut.writeBits(0x2, 2);
+            bitOut.writeBits(delta, 7);
+        } else if (fitsIn(delta, 9)) {
+            bitOut.writeBits(0x6, 3);
+            bitOut.writeBits(delta, 9);
+        } else if (fitsIn(delta, 12)) {
+            bitOut.writeBits(0xE, 4);
+            bitOut.writeBits(delta, 12);
+        } else if (fitsIn(delta, 32)) {
+            bitOut.writeBits(0x1E, 5);
+            bitOut.writeBits(delta, 32);
+        } else {
+            bitOut.writeBits(0x1F, 5);
+            bitOut.writeBits(delta, 64);
+        }
+    }
+
+    private static long readDelta(BitInput bitIn) {
+        if (!bitIn.readBit()) {
+            return 0;
+        } else if (!bitIn.readBit()) {
+            return signExtend(bitIn.readBits(7), 7);
+        } else if (!bitIn.readBit()) {
+            return signExtend(bitIn.readBits(9), 9);
+        } else if (!bitIn.readBit()) {
+            return signExtend(bitIn.readBits(12), 12);
+        } else if (!bitIn.readBit()) {
+            return signExtend(bitIn.readBits(32), 32);
+        } else {
+            return bitIn.readBits(64);
+        }
+    }
+
+    // '0' if same as prior value, otherwise '1' followed by either '0' and the meaningful bits (if
+    // they fall within the prior meaningful bit range), or '1' and 5 bits of leading zeros, 6 bits
+    // of meaningful bit length - 1, and the meaningful bits
+    private static void writeXor(BitOutput bitOut, long xor, XorState state) {
+        if (xor == 0) {
+            bitOut.writeBit(false);
+            return;
+        }
+        bitOut.writeBit(true);
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (state.leadingZeros != -1 && leadingZeros >= state.leadingZeros
+                && trailingZeros >= state.trailingZeros) {
+            bitOut.writeBit(false);
+            bitOut.writeBits(xor >>> state.trailingZeros,
+                    64 - state.leadingZeros - state.trailingZeros);
+        } else {
+            int meaningfulBits = 64 - leadingZeros - trailingZeros;
+            bitOut.writeBit(true);
+            bitOut.writeBits(leadingZeros, 5);
+            bitOut.writeBits(meaningfulBits - 1, 6);
+            bitOut.writeBits(xor >>> trailingZeros, meaningfulBits);
+            state.leadingZeros = leadingZeros;
+            state.trailingZeros = trailingZeros;
+        }
+    }
+
+    private static long readXor(BitInput bitIn, XorState state) {
+        if (!bitIn.readBit()) {
+            return 0;
+        }
+        if (bitIn.readBit()) {
+            state.leadingZeros = (int) bitIn.readBits(5);
+            int meaningfulBits = (int) bitIn.readBits(6) + 1;
+            state.trailingZeros = 64 - state.leadingZeros - meaningfulBits;
+        }
+        int meaningfulBits = 64 - state.leadingZeros - state.trailingZeros;
+        return bitIn.readBits(meaningfulBits) << state.trailingZeros;
+    }
+
+    private static boolean fitsIn(long value, int numBits) {
+        long min = -(1L << (numBits - 1));
+        long max = (1L << (numBits - 1)) - 1;
+        return value >= min && value <= max;
+    }
+
+    private static long signExtend(long value, int numBits) {
+        return (value << (64 - numBits)) >> (64 - numBits);
+    }
+
+    private static void sortByCaptureTime(List<GaugeValue> gaugeValues) {
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            if (gaugeValues.get(i).getCaptureTime() < gaugeValues.get(i - 1).getCaptureTime()) {
+                // stable sort
+                Collections.sort(gaugeValues, new Comparator<GaugeValue>() {
+                    @Override
+                    public int compare(GaugeValue left, GaugeValue right) {
+                        return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    private static class XorState {
+        private int leadingZeros = -1;
+        private int trailingZeros;
+    }
+
+    private static class BitOutput {
+
+        private byte[] bytes = new byte[64];
+        private int bitLength;
+
+        private void reset() {
+            Arrays.fill(bytes, 0, getByteLength(), (byte) 0);
+            bitLength = 0;
+        }
+
+        private void writeBit(boolean bit) {
+            int byteIndex = bitLength >>> 3;
+            if (byteIndex == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (bit) {
+                bytes[byteIndex] |= (byte) (0x80 >>> (bitLength & 7));
+            }
+            bitLength++;
+        }
+
+        // writes the low numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private byte[] getBytes() {
+            return bytes;
+        }
+
+        private int getByteLength() {
+            return (bitLength + 7) >>> 3;
+        }
+    }
+
+    private static class BitInput {
+
+        private final byte[] bytes;
+        private int bitIndex;
+
+        private BitInput(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean readBit() {
+            boolean bit = (bytes[bitIndex >>> 3] & (0x80 >>> (bitIndex & 7))) != 0;
+            bitIndex++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -19,6 +19,8 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
@@ -29,18 +31,33 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
-    private static final int MAX_VALUES = 1024;
+    private static final int HISTOGRAM_SIGNIFICANT_DIGITS =
+            Integer.getInteger("glowroot.histogram.significantDigits", 5);
+
+    // in compact mode, values are recorded directly into the (fixed precision) histogram instead of
+    // first being buffered as raw values, which gives up exact percentiles for small numbers of
+    // values, and is mostly useful in combination with lower significant digits above, since at 5
+    // significant digits the histogram is larger than the raw value buffer until there are many
+    // distinct values
+    private static final boolean COMPACT = Boolean.getBoolean("glowroot.histogram.compact");
+
+    private static final int MAX_VALUES = COMPACT ? 0 : 1024;
 
-    private long[] values = new long[8];
+    // HdrHistogram V2 encoding (see AbstractHistogram.encodeIntoByteBuffer())
+    private static final int V2_ENCODING_COOKIE_BASE = 0x1c849303;
+    private static final int V2_ENCODING_HEADER_SIZE = 40;
+
+    private long[] values = new long[COMPACT ? 0 : 8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
+
+    // histogram retained across reset() so that its counts array can be re-used
+    private @Nullable Histogram recycledHistogram;
 
     public LazyHistogram() {}
 
-    // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
@@ -51,7 +68,9 @@ public class LazyHistogram {
             }
             size = values.length;
         } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            Histogram histogram = createHistogram();
+            mergeEncoded(encodedBytes, histogram);
+            this.histogram = histogram;
         }
     }
 
@@ -87,7 +106,7 @@ public class LazyHistogram {
             if (histogram == null) {
                 convertValuesToHistogram();
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            mergeEncoded(encodedBytes, histogram);
         }
     }
 
@@ -122,6 +141,18 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    // clears all values, but retains the histogram counts array (if one has been allocated) so that
+    // a single instance can be re-used when reading percentiles from a list of histograms
+    public void reset() {
+        size = 0;
+        sorted = false;
+        if (histogram != null) {
+            histogram.reset();
+            recycledHistogram = histogram;
+            histogram = null;
+        }
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
@@ -151,15 +182,104 @@ public class LazyHistogram {
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+        if (recycledHistogram == null) {
+            histogram = createHistogram();
+        } else {
+            histogram = recycledHistogram;
+            recycledHistogram = null;
+        }
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
         values = new long[0];
     }
 
+    private static Histogram createHistogram() {
+        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
+        Histogram histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        histogram.setAutoResize(true);
+        return histogram;
+    }
+
+    private static void mergeEncoded(ByteString encodedBytes, Histogram target) {
+        if (!decodeInto(encodedBytes.asReadOnlyByteBuffer(), target)) {
+            target.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        }
+    }
+
+    // decodes the V2 encoding directly into the target histogram, which avoids allocating an
+    // intermediate histogram (and its counts array, which is large at 5 significant digits) for
+    // each histogram that is merged
+    //
+    // returns false (without recording anything) if the encoding is not one that can be decoded
+    // here, in which case the caller falls back to Histogram.decodeFromByteBuffer()
+    @VisibleForTesting
+    static boolean decodeInto(ByteBuffer buffer, Histogram target) {
+        if (buffer.remaining() < V2_ENCODING_HEADER_SIZE) {
+            return false;
+        }
+        int cookie = buffer.getInt();
+        if ((cookie & ~0xf0) != V2_ENCODING_COOKIE_BASE) {
+            return false;
+        }
+        int payloadLength = buffer.getInt();
+        int normalizingIndexOffset = buffer.getInt();
+        int significantDigits = buffer.getInt();
+        long lowestDiscernibleValue = buffer.getLong();
+        buffer.getLong(); // highest trackable value is not needed
+        double integerToDoubleValueConversionRatio = buffer.getDouble();
+        if (normalizingIndexOffset != 0 || integerToDoubleValueConversionRatio != 1.0
+                || lowestDiscernibleValue < 1 || significantDigits < 0 || significantDigits > 5
+                || payloadLength > buffer.remaining()) {
+            return false;
+        }
+        // same bucket geometry calculations as AbstractHistogram
+        int unitMagnitude = (int) Math.floor(Math.log(lowestDiscernibleValue) / Math.log(2));
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math
+                .ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        int subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+
+        int endPosition = buffer.position() + payloadLength;
+        int index = 0;
+        while (buffer.position() < endPosition) {
+            long count = getZigZagLong(buffer);
+            if (count < 0) {
+                // negative count is the length of a run of zero counts
+                index += (int) -count;
+                continue;
+            }
+            if (count > 0) {
+                int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+                int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+                if (bucketIndex < 0) {
+                    subBucketIndex -= subBucketHalfCount;
+                    bucketIndex = 0;
+                }
+                target.recordValueWithCount((long) subBucketIndex << (bucketIndex + unitMagnitude),
+                        count);
+            }
+            index++;
+        }
+        return true;
+    }
+
+    // LEB128-64b9B ZigZag decoding (see org.HdrHistogram.ZigZagEncoding.getLong())
+    private static long getZigZagLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            long b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        // 9th byte uses all 8 bits
+        value |= ((long) buffer.get()) << 56;
+        return (value >>> 1) ^ -(value & 1);
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
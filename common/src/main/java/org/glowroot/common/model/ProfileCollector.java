@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,11 @@ public class ProfileCollector {
         this.profile.merge(profile);
     }
 
+    public void merge(ProfileCollector collector) {
+        profile.merge(collector.profile);
+        lastCaptureTime = Math.max(lastCaptureTime, collector.lastCaptureTime);
+    }
+
     public void updateLastCaptureTime(long captureTime) {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
@@ -95,6 +95,27 @@ public class QueryCollector {
                 hasRows, totalRows, queriesForType);
     }
 
+    public void merge(QueryCollector collector) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : collector.queries.entrySet()) {
+            Map<String, MutableQuery> queriesForType = queries.get(outerEntry.getKey());
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                queries.put(outerEntry.getKey(), queriesForType);
+            }
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                MutableQuery query = entry.getValue();
+                MutableQuery aggregateQuery = queriesForType.get(entry.getKey());
+                if (aggregateQuery == null) {
+                    aggregateQuery =
+                            new MutableQuery(query.getTruncatedText(), query.getFullTextSha1());
+                    queriesForType.put(entry.getKey(), aggregateQuery);
+                }
+                aggregateQuery.addTo(query);
+            }
+        }
+        lastCaptureTime = Math.max(lastCaptureTime, collector.lastCaptureTime);
+    }
+
     private void mergeQuery(String truncatedText, @Nullable String fullTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
             Map<String, MutableQuery> queriesForType) {
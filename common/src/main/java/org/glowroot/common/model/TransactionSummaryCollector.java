@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -68,6 +68,20 @@ public class TransactionSummaryCollector {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
 
+    public void merge(TransactionSummaryCollector collector) {
+        for (Map.Entry<String, MutableTransactionSummary> entry : collector.transactionSummaries
+                .entrySet()) {
+            MutableTransactionSummary mts = transactionSummaries.get(entry.getKey());
+            if (mts == null) {
+                mts = new MutableTransactionSummary();
+                transactionSummaries.put(entry.getKey(), mts);
+            }
+            mts.totalDurationNanos += entry.getValue().totalDurationNanos;
+            mts.transactionCount += entry.getValue().transactionCount;
+        }
+        lastCaptureTime = Math.max(lastCaptureTime, collector.lastCaptureTime);
+    }
+
     public long getLastCaptureTime() {
         return lastCaptureTime;
     }
@@ -110,4 +110,9 @@ public interface AggregateRepository {
     // query.from() is non-inclusive
     boolean shouldHaveAuxThreadProfile(String agentRollupId, TransactionQuery query)
             throws Exception;
+
+    // returns the capture time up to which (inclusive) the aggregates at the given rollup level are
+    // not expected to change anymore, i.e. there are no pending rollups into (or out of) the given
+    // rollup level for capture times up to that point
+    long readLastCompleteCaptureTime(String agentRollupId, int rollupLevel) throws Exception;
 }
@@ -126,6 +126,15 @@ public class AlertingService {
         long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
         Number value =
                 metricService.getMetricValue(agentRollupId, metricCondition, startTime, endTime);
+        sendMetricAlertIfNeeded(agentRollupId, agentRollupDisplay, alertCondition, metricCondition,
+                alertNotification, endTime, value);
+    }
+
+    // only used by central (with the metric value calculated incrementally as data is collected)
+    public void sendMetricAlertIfNeeded(String agentRollupId, String agentRollupDisplay,
+            AlertCondition alertCondition, MetricCondition metricCondition,
+            AlertNotification alertNotification, long endTime, @Nullable Number value)
+            throws Exception {
         if (value == null) {
             // cannot calculate due to no data, e.g. error rate (but not error count, which can be
             // calculated - zero - when no data)
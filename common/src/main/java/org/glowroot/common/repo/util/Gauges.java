@@ -78,6 +78,9 @@ public class Gauges {
                 "bytes"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=[^:]+:PercentFull", "percent"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=TransactionConcurrency,name=[^:]+:(InFlight|Peak|Average)",
+                GROUPING_PREFIX + "transaction-concurrency"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
                 + "keyspace=[^,]+,scope=[^,]+,name=LiveDiskSpaceUsed:Count", "bytes"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueBatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBatchesTest {
+
+    @Test
+    public void shouldRoundTripGaugeValues() throws Exception {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        Random random = new Random(0);
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 12; i++) {
+            // capture times are not always exactly on the interval
+            captureTime += 5000 + random.nextInt(3);
+            gaugeValues.add(createGaugeValue("java.lang:type=Memory:HeapMemoryUsage.used",
+                    captureTime, 100000000 + random.nextInt(1000000), 1));
+            gaugeValues.add(createGaugeValue("java.lang:type=Threading:ThreadCount",
+                    captureTime, 50, 1));
+            // counter gauge
+            gaugeValues.add(createGaugeValue(
+                    "java.lang:type=GarbageCollector,name=PS Scavenge:CollectionCount[counter]",
+                    captureTime, random.nextInt(3), 5000000000L + random.nextInt(3000000)));
+        }
+
+        // when
+        GaugeValueBatch batch = GaugeValueBatches.encode(gaugeValues);
+        List<GaugeValue> decoded = GaugeValueBatches.decode(batch);
+
+        // then
+        assertThat(batch.getGaugeNameCount()).isEqualTo(3);
+        assertThat(decoded).containsOnlyElementsOf(gaugeValues);
+        assertThat(decoded).hasSameSizeAs(gaugeValues);
+        assertThat(batch.getSerializedSize())
+                .isLessThan(createMessageSize(gaugeValues) / 4);
+    }
+
+    @Test
+    public void shouldRoundTripUnusualValues() throws Exception {
+        // given
+        List<GaugeValue> gaugeValues = ImmutableList.of(
+                createGaugeValue("abc", 20000, Double.NaN, 1),
+                createGaugeValue("abc", 5000, -1.5, 1),
+                createGaugeValue("abc", 15000, Double.MAX_VALUE, Long.MAX_VALUE),
+                createGaugeValue("abc", 10000, Double.MIN_VALUE, Long.MIN_VALUE),
+                createGaugeValue("abc", 25000, 0, 0),
+                createGaugeValue("abc", Long.MAX_VALUE, Double.NEGATIVE_INFINITY, -1));
+
+        // when
+        List<GaugeValue> decoded =
+                GaugeValueBatches.decode(GaugeValueBatches.encode(gaugeValues));
+
+        // then
+        assertThat(decoded).containsExactly(gaugeValues.get(1), gaugeValues.get(3),
+                gaugeValues.get(2), gaugeValues.get(0), gaugeValues.get(4), gaugeValues.get(5));
+    }
+
+    @Test
+    public void shouldDecodeSingleGauge() throws Exception {
+        // given
+        List<GaugeValue> gaugeValues = ImmutableList.of(
+                createGaugeValue("abc", 5000, 1, 1),
+                createGaugeValue("xyz", 5000, 2, 1),
+                createGaugeValue("abc", 10000, 3, 1),
+                createGaugeValue("xyz", 10000, 4, 1));
+        GaugeValueBatch batch = GaugeValueBatches.encode(gaugeValues);
+
+        // when
+        List<GaugeValue> decoded = GaugeValueBatches.decode(batch, "xyz");
+
+        // then
+        assertThat(decoded).containsExactly(gaugeValues.get(1), gaugeValues.get(3));
+        assertThat(GaugeValueBatches.decode(batch, "other")).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripEmpty() throws Exception {
+        // when
+        GaugeValueBatch batch = GaugeValueBatches.encode(ImmutableList.<GaugeValue>of());
+
+        // then
+        assertThat(GaugeValueBatches.decode(batch)).isEmpty();
+        assertThat(GaugeValueBatches.decode(batch, "abc")).isEmpty();
+    }
+
+    private static GaugeValue createGaugeValue(String gaugeName, long captureTime, double value,
+            long weight) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+
+    private static int createMessageSize(List<GaugeValue> gaugeValues) {
+        int size = 0;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            size += gaugeValue.getSerializedSize();
+        }
+        return size;
+    }
+}
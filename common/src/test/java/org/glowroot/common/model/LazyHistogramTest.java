@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,77 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldDecodeSameAsHdrHistogram() {
+        Random random = new Random();
+        for (int significantDigits = 1; significantDigits <= 5; significantDigits++) {
+            // given
+            Histogram histogram = new Histogram(1000, 2000, significantDigits);
+            histogram.setAutoResize(true);
+            for (int i = 0; i < 10000; i++) {
+                histogram.recordValue((long) Math.abs(random.nextGaussian() * 1000000000));
+            }
+            // large count to exercise the full 9 byte encoding
+            histogram.recordValueWithCount(1234567, Long.MAX_VALUE / 2);
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            histogram.encodeIntoByteBuffer(buffer);
+            buffer.flip();
+            Histogram expected = new Histogram(1000, 2000, 5);
+            expected.setAutoResize(true);
+            expected.add(Histogram.decodeFromByteBuffer(buffer.duplicate(), 0));
+            Histogram decoded = new Histogram(1000, 2000, 5);
+            decoded.setAutoResize(true);
+            // when
+            boolean success = LazyHistogram.decodeInto(buffer.duplicate(), decoded);
+            // then
+            assertThat(success).isTrue();
+            assertThat(decoded).isEqualTo(expected);
+            assertThat(decoded.getTotalCount()).isEqualTo(expected.getTotalCount());
+        }
+    }
+
+    @Test
+    public void shouldNotDecodeCompressedEncoding() {
+        // given
+        Histogram histogram = new Histogram(1000, 2000, 5);
+        histogram.recordValue(1000);
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoCompressedByteBuffer(buffer);
+        buffer.flip();
+        Histogram decoded = new Histogram(1000, 2000, 5);
+        // when
+        boolean success = LazyHistogram.decodeInto(buffer, decoded);
+        // then
+        assertThat(success).isFalse();
+        assertThat(decoded.getTotalCount()).isZero();
+    }
+
+    @Test
+    public void shouldResetAndReuse() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        LazyHistogram other = new LazyHistogram();
+        for (int i = 2000000; i > 0; i -= 1000) {
+            other.add(i);
+        }
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+        // when
+        lazyHistogram.reset();
+        lazyHistogram.merge(histogram);
+        // then
+        assertPercentile(lazyHistogram, 2000000, 50);
+        assertPercentile(lazyHistogram, 2000000, 95);
+        assertPercentile(lazyHistogram, 2000000, 99);
+        // and when
+        lazyHistogram.reset();
+        lazyHistogram.add(5000);
+        // then
+        assertThat(lazyHistogram.getValueAtPercentile(50)).isEqualTo(5000);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
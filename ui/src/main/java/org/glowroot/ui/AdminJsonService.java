@@ -96,6 +96,7 @@ class AdminJsonService {
     private final ConfigRepository configRepository;
     private final RepoAdmin repoAdmin;
     private final LiveAggregateRepository liveAggregateRepository;
+    private final AggregateCache aggregateCache;
     private final MailService mailService;
     private final HttpClient httpClient;
 
@@ -104,14 +105,15 @@ class AdminJsonService {
 
     AdminJsonService(boolean central, File confDir, @Nullable File sharedConfDir,
             ConfigRepository configRepository, RepoAdmin repoAdmin,
-            LiveAggregateRepository liveAggregateRepository, MailService mailService,
-            HttpClient httpClient) {
+            LiveAggregateRepository liveAggregateRepository, AggregateCache aggregateCache,
+            MailService mailService, HttpClient httpClient) {
         this.central = central;
         this.confDir = confDir;
         this.sharedConfDir = sharedConfDir;
         this.configRepository = configRepository;
         this.repoAdmin = repoAdmin;
         this.liveAggregateRepository = liveAggregateRepository;
+        this.aggregateCache = aggregateCache;
         this.mailService = mailService;
         this.httpClient = httpClient;
     }
@@ -455,6 +457,7 @@ class AdminJsonService {
     void deleteAllData() throws Exception {
         repoAdmin.deleteAllData();
         liveAggregateRepository.clearInMemoryAggregate();
+        aggregateCache.invalidateAll();
     }
 
     @POST(path = "/backend/admin/defrag-data", permission = "admin:edit:storage")
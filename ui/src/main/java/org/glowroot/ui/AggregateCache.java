@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches chart aggregates read from the aggregate repository in fixed size chunks of capture time
+// (per rollup level), so that repeated chart refreshes only need to read the most recent (still
+// open) chunk from the repository
+//
+// a chunk is only cached once it is safely in the past, i.e. once all of the rollups for the chunk
+// are expected to have completed (rollup interval plus a settle period to account for rollup lag
+// and for agents sending aggregates late), and the aggregate repository reports no pending rollups
+// for the chunk, after which the aggregates in the chunk do not change
+//
+// a previously cached chunk is invalidated (and read from the repository instead) when rollups for
+// it are pending again (e.g. late aggregates from an agent that was disconnected from the central
+// collector), and when it reaches the end of the retention period (since its aggregates are then
+// being deleted), and all chunks are invalidated when all data is deleted
+//
+// cached chunks still expire after a while as a backstop
+class AggregateCache implements AggregateCacheMXBean {
+
+    // max number of aggregates (across all chunks)
+    private static final int MAX_WEIGHT =
+            Integer.getInteger("glowroot.ui.aggregateCacheSize", 10000);
+
+    private static final long SETTLE_MILLIS = MINUTES.toMillis(
+            Integer.getInteger("glowroot.ui.aggregateCacheSettleMinutes", 5));
+
+    // number of rollup intervals per chunk, e.g. 1 hour chunks for 1 minute rollup level
+    private static final int CHUNK_INTERVALS = 60;
+
+    private final AggregateRepository aggregateRepository;
+    private final ConfigRepository configRepository;
+    private final Clock clock;
+
+    private final Cache<ChunkKey, List<?>> chunks;
+
+    AggregateCache(AggregateRepository aggregateRepository, ConfigRepository configRepository,
+            Clock clock) {
+        this.aggregateRepository = aggregateRepository;
+        this.configRepository = configRepository;
+        this.clock = clock;
+        chunks = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .weigher(new Weigher<ChunkKey, List<?>>() {
+                    @Override
+                    public int weigh(ChunkKey key, List<?> value) {
+                        // empty chunks are cached too
+                        return Math.max(1, value.size());
+                    }
+                })
+                .expireAfterWrite(1, HOURS)
+                .recordStats()
+                .build();
+    }
+
+    // query.from() is INCLUSIVE
+    List<OverviewAggregate> readOverviewAggregates(String agentRollupId, TransactionQuery query)
+            throws Exception {
+        return read(agentRollupId, query, new ChunkReader<OverviewAggregate>() {
+            @Override
+            public List<OverviewAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+            }
+            @Override
+            public long getCaptureTime(OverviewAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        }, AggregateKind.OVERVIEW);
+    }
+
+    // query.from() is INCLUSIVE
+    List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, new ChunkReader<PercentileAggregate>() {
+            @Override
+            public List<PercentileAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+            }
+            @Override
+            public long getCaptureTime(PercentileAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        }, AggregateKind.PERCENTILE);
+    }
+
+    // query.from() is INCLUSIVE
+    List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, new ChunkReader<ThroughputAggregate>() {
+            @Override
+            public List<ThroughputAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+            }
+            @Override
+            public long getCaptureTime(ThroughputAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        }, AggregateKind.THROUGHPUT);
+    }
+
+    void invalidateAll() {
+        chunks.invalidateAll();
+    }
+
+    @Override
+    public long getSize() {
+        return chunks.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return chunks.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return chunks.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return chunks.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return chunks.stats().evictionCount();
+    }
+
+    private <T> List<T> read(String agentRollupId, TransactionQuery query,
+            ChunkReader<T> chunkReader, AggregateKind kind) throws Exception {
+        int rollupLevel = query.rollupLevel();
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long chunkMillis = intervalMillis * CHUNK_INTERVALS;
+        long currentTimeMillis = clock.currentTimeMillis();
+        long closedChunkEndLimit = currentTimeMillis - intervalMillis - SETTLE_MILLIS;
+        // chunk covers capture times (chunkEnd - chunkMillis, chunkEnd]
+        long chunkEnd = Utils.getRollupCaptureTime(query.from(), chunkMillis);
+        if (chunkEnd > closedChunkEndLimit) {
+            // fast path, nothing to cache
+            return chunkReader.read(agentRollupId, query);
+        }
+        long cacheableChunkEndLimit = Math.min(closedChunkEndLimit, aggregateRepository
+                .readLastCompleteCaptureTime(agentRollupId, rollupLevel));
+        long expirationMillis = HOURS.toMillis(
+                configRepository.getStorageConfig().rollupExpirationHours().get(rollupLevel));
+        long cacheableChunkStartLimit = currentTimeMillis - expirationMillis;
+        List<T> aggregates = Lists.newArrayList();
+        // start (inclusive) of the range that is not cached and still needs to be read from the
+        // repository, or -1 if none
+        long uncachedFrom = -1;
+        while (chunkEnd <= closedChunkEndLimit && chunkEnd - chunkMillis < query.to()) {
+            ChunkKey key = new ChunkKey(kind, agentRollupId, query.transactionType(),
+                    query.transactionName(), rollupLevel, chunkEnd);
+            long chunkFrom = Math.max(query.from(), chunkEnd - chunkMillis + 1);
+            if (chunkEnd > cacheableChunkEndLimit
+                    || chunkEnd - chunkMillis < cacheableChunkStartLimit) {
+                chunks.invalidate(key);
+                if (uncachedFrom == -1) {
+                    uncachedFrom = chunkFrom;
+                }
+            } else {
+                if (uncachedFrom != -1) {
+                    aggregates.addAll(readUncached(agentRollupId, query, uncachedFrom,
+                            chunkFrom - 1, chunkReader));
+                    uncachedFrom = -1;
+                }
+                List<T> chunk = getChunk(key, agentRollupId, query, chunkMillis, chunkReader);
+                for (T aggregate : chunk) {
+                    long captureTime = chunkReader.getCaptureTime(aggregate);
+                    if (captureTime >= query.from() && captureTime <= query.to()) {
+                        aggregates.add(aggregate);
+                    }
+                }
+            }
+            chunkEnd += chunkMillis;
+        }
+        if (uncachedFrom == -1) {
+            uncachedFrom = Math.max(query.from(), chunkEnd - chunkMillis + 1);
+        }
+        if (uncachedFrom <= query.to()) {
+            aggregates.addAll(
+                    readUncached(agentRollupId, query, uncachedFrom, query.to(), chunkReader));
+        }
+        return aggregates;
+    }
+
+    private static <T> List<T> readUncached(String agentRollupId, TransactionQuery query,
+            long from, long to, ChunkReader<T> chunkReader) throws Exception {
+        return chunkReader.read(agentRollupId, ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .build());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> getChunk(ChunkKey key, final String agentRollupId,
+            final TransactionQuery query, final long chunkMillis,
+            final ChunkReader<T> chunkReader) throws Exception {
+        final long chunkEnd = key.chunkEnd;
+        try {
+            return (List<T>) chunks.get(key, new Callable<List<?>>() {
+                @Override
+                public List<?> call() throws Exception {
+                    return ImmutableList.copyOf(readUncached(agentRollupId, query,
+                            chunkEnd - chunkMillis + 1, chunkEnd, chunkReader));
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private enum AggregateKind {
+        OVERVIEW, PERCENTILE, THROUGHPUT
+    }
+
+    private interface ChunkReader<T> {
+        List<T> read(String agentRollupId, TransactionQuery query) throws Exception;
+        long getCaptureTime(T aggregate);
+    }
+
+    private static class ChunkKey {
+
+        private final AggregateKind kind;
+        private final String agentRollupId;
+        private final String transactionType;
+        private final @Nullable String transactionName;
+        private final int rollupLevel;
+        private final long chunkEnd;
+
+        private ChunkKey(AggregateKind kind, String agentRollupId, String transactionType,
+                @Nullable String transactionName, int rollupLevel, long chunkEnd) {
+            this.kind = kind;
+            this.agentRollupId = agentRollupId;
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.rollupLevel = rollupLevel;
+            this.chunkEnd = chunkEnd;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey that = (ChunkKey) obj;
+            return kind == that.kind && agentRollupId.equals(that.agentRollupId)
+                    && transactionType.equals(that.transactionType)
+                    && Objects.equal(transactionName, that.transactionName)
+                    && rollupLevel == that.rollupLevel && chunkEnd == that.chunkEnd;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(kind, agentRollupId, transactionType, transactionName,
+                    rollupLevel, chunkEnd);
+        }
+    }
+}
@@ -387,6 +387,8 @@ class ConfigJsonService {
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
+        abstract @Nullable Integer traceCollectorThreads(); // null for rollup config
+        abstract @Nullable Integer maxPendingTraces(); // null for rollup config
         abstract String version();
 
         private AdvancedConfig convert(boolean agent) {
@@ -405,6 +407,8 @@ class ConfigJsonService {
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
                         .setMbeanGaugeNotFoundDelaySeconds(
                                 of(checkNotNull(mbeanGaugeNotFoundDelaySeconds())))
+                        .setTraceCollectorThreads(of(checkNotNull(traceCollectorThreads())))
+                        .setMaxPendingTraces(of(checkNotNull(maxPendingTraces())))
                         .build();
             } else {
                 return AdvancedConfig.newBuilder()
@@ -432,6 +436,8 @@ class ConfigJsonService {
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
                         .mbeanGaugeNotFoundDelaySeconds(
                                 config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                        .traceCollectorThreads(config.getTraceCollectorThreads().getValue())
+                        .maxPendingTraces(config.getMaxPendingTraces().getValue())
                         .version(Versions.getVersion(config))
                         .build();
             } else {
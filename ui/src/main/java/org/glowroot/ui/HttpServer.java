@@ -46,6 +46,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class HttpServer {
 
@@ -54,8 +55,15 @@ class HttpServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final int SERVICE_THREADS = Integer.getInteger("glowroot.ui.serviceThreads", 10);
+    private static final int SERVICE_QUEUE_SIZE =
+            Integer.getInteger("glowroot.ui.serviceQueueSize", 100);
+    private static final int SERVICE_TIMEOUT_SECONDS =
+            Integer.getInteger("glowroot.ui.serviceTimeoutSeconds", 300);
+
     private final ServerBootstrap bootstrap;
     private final HttpServerHandler handler;
+    private final HttpServiceExecutor serviceExecutor;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
 
@@ -84,7 +92,10 @@ class HttpServer {
         bossGroup = new NioEventLoopGroup(1, bossThreadFactory);
         workerGroup = new NioEventLoopGroup(numWorkerThreads, workerThreadFactory);
 
-        final HttpServerHandler handler = new HttpServerHandler(contextPathSupplier, commonHandler);
+        serviceExecutor = new HttpServiceExecutor(SERVICE_THREADS, SERVICE_QUEUE_SIZE,
+                SECONDS.toMillis(SERVICE_TIMEOUT_SECONDS));
+        final HttpServerHandler handler =
+                new HttpServerHandler(contextPathSupplier, commonHandler, serviceExecutor);
 
         if (https) {
             sslContext = SslContextBuilder
@@ -165,6 +176,10 @@ class HttpServer {
         return sslContext != null;
     }
 
+    HttpServiceExecutorMXBean getServiceExecutorStats() {
+        return serviceExecutor;
+    }
+
     void changePort(int newPort) throws Exception {
         checkNotNull(serverChannel);
         Channel previousServerChannel = serverChannel;
@@ -197,6 +212,7 @@ class HttpServer {
         logger.debug("close(): stopping http server");
         workerGroup.shutdownGracefully();
         bossGroup.shutdownGracefully();
+        serviceExecutor.close();
         logger.debug("close(): http server stopped");
     }
 
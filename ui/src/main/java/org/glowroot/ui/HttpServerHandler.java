@@ -18,6 +18,8 @@ package org.glowroot.ui;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -49,6 +51,7 @@ import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.stream.ChunkedInput;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,7 +62,9 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 @Sharable
 class HttpServerHandler extends ChannelInboundHandlerAdapter {
@@ -72,12 +77,16 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
 
     private final CommonHandler commonHandler;
 
+    private final HttpServiceExecutor serviceExecutor;
+
     private final ThreadLocal</*@Nullable*/ Channel> currentChannel =
             new ThreadLocal</*@Nullable*/ Channel>();
 
-    HttpServerHandler(Supplier<String> contextPathSupplier, CommonHandler commonHandler) {
+    HttpServerHandler(Supplier<String> contextPathSupplier, CommonHandler commonHandler,
+            HttpServiceExecutor serviceExecutor) {
         this.contextPathSupplier = contextPathSupplier;
         this.commonHandler = commonHandler;
+        this.serviceExecutor = serviceExecutor;
         allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     }
 
@@ -114,6 +123,7 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         logger.debug("channelRead(): request.uri={}", uri);
         Channel channel = ctx.channel();
         currentChannel.set(channel);
+        boolean dispatched = false;
         try {
             String contextPath = contextPathSupplier.get();
             boolean keepAlive = HttpUtil.isKeepAlive(request);
@@ -125,6 +135,12 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             }
             QueryStringDecoder decoder = new QueryStringDecoder(stripContextPath(uri, contextPath));
             CommonRequest commonRequest = new NettyRequest(request, contextPath, decoder);
+            if (decoder.path().startsWith("/backend/")) {
+                // request is released by the service task
+                dispatched = true;
+                dispatch(ctx, request, commonRequest, keepAlive);
+                return;
+            }
             CommonResponse response = commonHandler.handle(commonRequest);
             if (response.isCloseConnectionAfterPortChange()) {
                 response.setHeader("Connection", "close");
@@ -138,7 +154,30 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             sendResponse(ctx, request, response, false);
         } finally {
             currentChannel.remove();
-            request.release();
+            if (!dispatched) {
+                request.release();
+            }
+        }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, FullHttpRequest request,
+            CommonRequest commonRequest, boolean keepAlive) throws IOException {
+        ServiceTask task = new ServiceTask(ctx, request, commonRequest, keepAlive);
+        // need to watch before executing, otherwise the task can complete (and unwatch) before it
+        // is watched, which would leave the timeout and the close listener registered
+        task.watch();
+        try {
+            serviceExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug(e.getMessage(), e);
+            task.unwatch();
+            CommonResponse response = new CommonResponse(SERVICE_UNAVAILABLE,
+                    MediaType.PLAIN_TEXT_UTF_8, "Too many concurrent requests, try again later");
+            try {
+                sendResponse(ctx, request, response, keepAlive);
+            } finally {
+                request.release();
+            }
         }
     }
 
@@ -192,6 +231,13 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         ctx.close();
     }
 
+    private static void release(CommonResponse response) {
+        Object content = response.getContent();
+        if (content instanceof ByteBuf) {
+            ((ByteBuf) content).release();
+        }
+    }
+
     @VisibleForTesting
     static String stripContextPath(String path, String contextPath) {
         if (contextPath.equals("/")) {
@@ -203,6 +249,140 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         return path.substring(contextPath.length());
     }
 
+    // the service is executed on the service executor, and the response is sent from there, unless
+    // the request times out first (in which case a timeout response is sent from the event loop),
+    // or the browser disconnects first (in which case no response is sent)
+    //
+    // services that have already started executing are not interrupted (see comment in
+    // HttpServiceExecutor.close()), instead their response is discarded when they complete
+    private class ServiceTask implements Runnable, ChannelFutureListener {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int ABANDONED = 3;
+
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+        private final CommonRequest commonRequest;
+        private final boolean keepAlive;
+
+        private final long queuedTick = System.nanoTime();
+
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        private volatile @Nullable ScheduledFuture<?> timeoutFuture;
+
+        private ServiceTask(ChannelHandlerContext ctx, FullHttpRequest request,
+                CommonRequest commonRequest, boolean keepAlive) {
+            this.ctx = ctx;
+            this.request = request;
+            this.commonRequest = commonRequest;
+            this.keepAlive = keepAlive;
+        }
+
+        private void watch() {
+            timeoutFuture = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    abandon(true);
+                }
+            }, serviceExecutor.getTimeoutMillis(), MILLISECONDS);
+            ctx.channel().closeFuture().addListener(this);
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                request.release();
+                return;
+            }
+            long startTick = System.nanoTime();
+            currentChannel.set(ctx.channel());
+            try {
+                CommonResponse response;
+                boolean keepAlive = this.keepAlive;
+                try {
+                    response = commonHandler.handle(commonRequest);
+                    if (response.isCloseConnectionAfterPortChange()) {
+                        response.setHeader("Connection", "close");
+                        keepAlive = false;
+                    }
+                } catch (Exception e) {
+                    logger.error("error handling request {}: {}", request.uri(), e.getMessage(),
+                            e);
+                    response = CommonHandler.newHttpResponseWithStackTrace(e,
+                            INTERNAL_SERVER_ERROR, null);
+                    keepAlive = false;
+                }
+                if (state.compareAndSet(RUNNING, DONE)) {
+                    unwatch();
+                    serviceExecutor.onCompleted(startTick - queuedTick,
+                            System.nanoTime() - startTick);
+                    sendResponse(ctx, request, response, keepAlive);
+                    ctx.flush();
+                } else {
+                    // timed out or browser disconnected while the service was executing
+                    release(response);
+                }
+            } catch (Throwable t) {
+                logger.error("error sending response {}: {}", request.uri(), t.getMessage(), t);
+                ctx.close();
+            } finally {
+                currentChannel.remove();
+                request.release();
+            }
+        }
+
+        // called when the channel is closed
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            abandon(false);
+        }
+
+        private void abandon(boolean timedOut) {
+            int priorState = state.get();
+            while (priorState == QUEUED || priorState == RUNNING) {
+                if (state.compareAndSet(priorState, ABANDONED)) {
+                    break;
+                }
+                priorState = state.get();
+            }
+            if (priorState != QUEUED && priorState != RUNNING) {
+                // already completed or abandoned
+                return;
+            }
+            unwatch();
+            if (timedOut) {
+                serviceExecutor.onTimedOut();
+                logger.warn("request timed out after {} milliseconds: {}",
+                        serviceExecutor.getTimeoutMillis(), request.uri());
+                CommonResponse response = new CommonResponse(SERVICE_UNAVAILABLE,
+                        MediaType.PLAIN_TEXT_UTF_8, "Request timed out");
+                try {
+                    sendResponse(ctx, request, response, false);
+                    ctx.flush();
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            } else {
+                serviceExecutor.onCancelled();
+            }
+            if (priorState == QUEUED && serviceExecutor.remove(this)) {
+                // otherwise request is released by run()
+                request.release();
+            }
+        }
+
+        private void unwatch() {
+            ScheduledFuture<?> timeoutFuture = this.timeoutFuture;
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+            }
+            ctx.channel().closeFuture().removeListener(this);
+        }
+    }
+
     private static class NettyRequest implements CommonRequest {
 
         private final FullHttpRequest request;
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// bounded executor for /backend/ requests, so that slow services (e.g. a 30 day transaction query)
+// do not block the netty event loop thread, which is shared by all of the connections (including
+// static resource requests) that are multiplexed on it
+class HttpServiceExecutor implements HttpServiceExecutorMXBean {
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+
+    HttpServiceExecutor(int numThreads, int maxQueueSize, long timeoutMillis) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Http-Service-%d")
+                .build();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 60, SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueueSize), threadFactory);
+        // only keep threads around while the UI is being used
+        executor.allowCoreThreadTimeOut(true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // returns true if the task was removed before it started executing
+    boolean remove(Runnable task) {
+        return executor.remove(task);
+    }
+
+    void onCompleted(long queueNanos, long serviceNanos) {
+        completedCount.incrementAndGet();
+        totalQueueNanos.addAndGet(queueNanos);
+        totalServiceNanos.addAndGet(serviceNanos);
+    }
+
+    void onTimedOut() {
+        timedOutCount.incrementAndGet();
+    }
+
+    void onCancelled() {
+        cancelledCount.incrementAndGet();
+    }
+
+    void close() {
+        // not using shutdownNow() since interrupting a thread that is in the middle of H2 file
+        // access closes the underlying file channel
+        executor.shutdown();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    @Override
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    @Override
+    public double getAverageQueueMillis() {
+        return getAverageMillis(totalQueueNanos.get());
+    }
+
+    @Override
+    public double getAverageServiceMillis() {
+        return getAverageMillis(totalServiceNanos.get());
+    }
+
+    private double getAverageMillis(long totalNanos) {
+        long count = completedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return NANOSECONDS.toMicros(totalNanos) / (1000.0 * count);
+    }
+}
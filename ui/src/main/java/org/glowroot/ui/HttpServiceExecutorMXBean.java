@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+public interface HttpServiceExecutorMXBean {
+
+    int getQueueDepth();
+    int getActiveCount();
+    long getCompletedCount();
+    // requests that were rejected because the queue was full
+    long getRejectedCount();
+    long getTimedOutCount();
+    // requests that were abandoned because the browser disconnected
+    long getCancelledCount();
+    // average time completed requests spent waiting in the queue
+    double getAverageQueueMillis();
+    // average time completed requests spent executing
+    double getAverageServiceMillis();
+}
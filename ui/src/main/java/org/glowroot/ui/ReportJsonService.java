@@ -277,13 +277,15 @@ class ReportJsonService {
                     .build());
         }
         PercentileAggregate priorAggregate = null;
+        // re-using a single histogram avoids allocating a new counts array for each aggregate
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
         for (PercentileAggregate aggregate : aggregates) {
             if (priorAggregate != null
                     && aggregate.captureTime() - priorAggregate.captureTime() > gapMillis) {
                 dataSeries.addNull();
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(aggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
             dataSeries.add(getIntervalAverage(rollup, timeZone, aggregate.captureTime()),
                     durationNanosHistogram.getValueAtPercentile(percentile)
                             / NANOSECONDS_PER_MILLISECOND);
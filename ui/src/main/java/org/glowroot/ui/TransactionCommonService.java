@@ -58,14 +58,16 @@ class TransactionCommonService {
     private final AggregateRepository aggregateRepository;
     private final LiveAggregateRepository liveAggregateRepository;
     private final ConfigRepository configRepository;
+    private final AggregateCache aggregateCache;
     private final Clock clock;
 
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
-            Clock clock) {
+            AggregateCache aggregateCache, Clock clock) {
         this.aggregateRepository = aggregateRepository;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
+        this.aggregateCache = aggregateCache;
         this.clock = clock;
     }
 
@@ -145,7 +147,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readOverviewAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -203,7 +205,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readPercentileAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -261,7 +263,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readThroughputAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
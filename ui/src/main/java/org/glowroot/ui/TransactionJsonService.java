@@ -410,6 +410,8 @@ class TransactionJsonService {
         long transactionCount = 0;
         double totalDurationNanos = 0;
         LazyHistogram mergedHistogram = new LazyHistogram();
+        // re-using a single histogram avoids allocating a new counts array for each aggregate
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
 
         PercentileAggregate priorPercentileAggregate = null;
         for (PercentileAggregate percentileAggregate : percentileAggregates) {
@@ -422,8 +424,8 @@ class TransactionJsonService {
                 dataSeriesHelper.addGapIfNeeded(priorPercentileAggregate.captureTime(), captureTime,
                         dataSeriesList, null);
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(percentileAggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(percentileAggregate.durationNanosHistogram());
             for (int i = 0; i < percentiles.size(); i++) {
                 DataSeries dataSeries = dataSeriesList.get(i);
                 double percentile = percentiles.get(i);
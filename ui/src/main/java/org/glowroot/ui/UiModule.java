@@ -64,6 +64,8 @@ public class UiModule {
     // CommonHandler is non-null when using servlet container (applies to central only)
     private final @Nullable CommonHandler commonHandler;
 
+    private final AggregateCache aggregateCache;
+
     @Builder.Factory
     public static UiModule createUiModule(
             boolean central,
@@ -100,8 +102,11 @@ public class UiModule {
             int numWorkerThreads,
             String version) throws Exception {
 
+        AggregateCache aggregateCache =
+                new AggregateCache(aggregateRepository, configRepository, clock);
         TransactionCommonService transactionCommonService = new TransactionCommonService(
-                aggregateRepository, liveAggregateRepository, configRepository, clock);
+                aggregateRepository, liveAggregateRepository, configRepository, aggregateCache,
+                clock);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository, agentRollupRepository);
         ErrorCommonService errorCommonService =
@@ -109,7 +114,8 @@ public class UiModule {
         MailService mailService = new MailService();
 
         AdminJsonService adminJsonService = new AdminJsonService(central, confDir, sharedConfDir,
-                configRepository, repoAdmin, liveAggregateRepository, mailService, httpClient);
+                configRepository, repoAdmin, liveAggregateRepository, aggregateCache, mailService,
+                httpClient);
 
         List<Object> jsonServices = Lists.newArrayList();
         jsonServices.add(new TransactionJsonService(transactionCommonService, aggregateRepository,
@@ -190,7 +196,7 @@ public class UiModule {
                 httpSessionManager, jsonServices, clock);
 
         if (servlet) {
-            return new UiModule(commonHandler);
+            return new UiModule(commonHandler, aggregateCache);
         } else {
             HttpServer httpServer;
             int initialPort;
@@ -219,17 +225,19 @@ public class UiModule {
             }
             adminJsonService.setHttpServer(httpServer);
             httpServer.bindEventually(initialPort);
-            return new UiModule(httpServer);
+            return new UiModule(httpServer, aggregateCache);
         }
     }
 
-    private UiModule(HttpServer httpServer) {
+    private UiModule(HttpServer httpServer, AggregateCache aggregateCache) {
         this.httpServer = httpServer;
+        this.aggregateCache = aggregateCache;
         commonHandler = null;
     }
 
-    private UiModule(CommonHandler commonHandler) {
+    private UiModule(CommonHandler commonHandler, AggregateCache aggregateCache) {
         this.commonHandler = commonHandler;
+        this.aggregateCache = aggregateCache;
         httpServer = null;
     }
 
@@ -238,6 +246,15 @@ public class UiModule {
         return checkNotNull(commonHandler);
     }
 
+    // null when using servlet container
+    public @Nullable HttpServiceExecutorMXBean getHttpServiceExecutorStats() {
+        return httpServer == null ? null : httpServer.getServiceExecutorStats();
+    }
+
+    public AggregateCacheMXBean getAggregateCacheStats() {
+        return aggregateCache;
+    }
+
     // used by tests and by central ui
     public void close() {
         if (httpServer != null) {
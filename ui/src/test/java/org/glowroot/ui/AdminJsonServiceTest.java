@@ -45,7 +45,8 @@ public class AdminJsonServiceTest {
         httpClient = mock(HttpClient.class);
         adminJsonService = new AdminJsonService(false, new File("."), null,
                 mock(ConfigRepository.class), mock(RepoAdmin.class),
-                mock(LiveAggregateRepository.class), mailService, httpClient);
+                mock(LiveAggregateRepository.class), mock(AggregateCache.class), mailService,
+                httpClient);
     }
 
     @Test
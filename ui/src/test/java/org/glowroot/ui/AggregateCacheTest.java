@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AggregateCacheTest {
+
+    private static final long HOUR = 3600000;
+
+    private AggregateRepository aggregateRepository;
+    private StorageConfig storageConfig;
+    private Clock clock;
+    private AggregateCache aggregateCache;
+
+    @Before
+    public void beforeEach() throws Exception {
+        aggregateRepository = mock(AggregateRepository.class);
+        // one aggregate per minute
+        when(aggregateRepository.readThroughputAggregates(anyString(),
+                any(TransactionQuery.class))).thenAnswer(new Answer<List<ThroughputAggregate>>() {
+                    @Override
+                    public List<ThroughputAggregate> answer(InvocationOnMock invocation) {
+                        TransactionQuery query = (TransactionQuery) invocation.getArguments()[1];
+                        List<ThroughputAggregate> aggregates = Lists.newArrayList();
+                        long captureTime = (query.from() + 59999) / 60000 * 60000;
+                        for (; captureTime <= query.to(); captureTime += 60000) {
+                            aggregates.add(ImmutableThroughputAggregate.builder()
+                                    .captureTime(captureTime)
+                                    .transactionCount(1)
+                                    .build());
+                        }
+                        return aggregates;
+                    }
+                });
+        when(aggregateRepository.readLastCompleteCaptureTime(anyString(), anyInt()))
+                .thenReturn(Long.MAX_VALUE);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        storageConfig = mock(StorageConfig.class);
+        when(storageConfig.rollupExpirationHours())
+                .thenReturn(ImmutableList.of(1000, 1000, 1000, 1000));
+        when(configRepository.getStorageConfig()).thenReturn(storageConfig);
+        clock = mock(Clock.class);
+        aggregateCache = new AggregateCache(aggregateRepository, configRepository, clock);
+    }
+
+    @Test
+    public void shouldReadClosedChunksFromCache() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR + 30 * 60000);
+        TransactionQuery query = query(2 * HOUR + 60000, 10 * HOUR + 30 * 60000);
+
+        // when
+        List<ThroughputAggregate> first = aggregateCache.readThroughputAggregates("a", query);
+        List<ThroughputAggregate> second = aggregateCache.readThroughputAggregates("a", query);
+
+        // then
+        assertThat(first).hasSize(8 * 60 + 30);
+        assertThat(second).hasSize(8 * 60 + 30);
+        assertThat(second.get(0).captureTime()).isEqualTo(2 * HOUR + 60000);
+        assertThat(second.get(second.size() - 1).captureTime())
+                .isEqualTo(10 * HOUR + 30 * 60000);
+        assertThat(aggregateCache.getSize()).isEqualTo(8);
+        assertThat(aggregateCache.getMissCount()).isEqualTo(8);
+        assertThat(aggregateCache.getHitCount()).isEqualTo(8);
+        // 8 chunks plus 2 open tail reads
+        verify(aggregateRepository, times(10)).readThroughputAggregates(anyString(),
+                any(TransactionQuery.class));
+    }
+
+    @Test
+    public void shouldNotCacheChunkThatIsStillOpen() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR + 60000);
+        TransactionQuery query = query(9 * HOUR + 60000, 10 * HOUR + 60000);
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.readThroughputAggregates("a", query);
+
+        // then
+        assertThat(aggregates).hasSize(61);
+        // chunk ending at 10 hours is not closed until the settle period has passed
+        assertThat(aggregateCache.getSize()).isZero();
+    }
+
+    @Test
+    public void shouldFilterCachedChunkToQueryRange() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR);
+        aggregateCache.readThroughputAggregates("a", query(HOUR + 60000, 2 * HOUR));
+
+        // when
+        List<ThroughputAggregate> aggregates = aggregateCache.readThroughputAggregates("a",
+                query(HOUR + 10 * 60000, HOUR + 20 * 60000));
+
+        // then
+        assertThat(aggregates).hasSize(11);
+        assertThat(aggregates.get(0).captureTime()).isEqualTo(HOUR + 10 * 60000);
+        assertThat(aggregateCache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCacheChunkWithPendingRollup() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR);
+        TransactionQuery query = query(HOUR + 60000, 4 * HOUR);
+        aggregateCache.readThroughputAggregates("a", query);
+        assertThat(aggregateCache.getSize()).isEqualTo(3);
+        // late aggregates arrived for the chunk ending at 3 hours
+        when(aggregateRepository.readLastCompleteCaptureTime("a", 0))
+                .thenReturn(2 * HOUR + 30 * 60000);
+
+        // when
+        List<ThroughputAggregate> aggregates =
+                aggregateCache.readThroughputAggregates("a", query);
+
+        // then
+        assertThat(aggregates).hasSize(3 * 60);
+        assertThat(aggregates.get(0).captureTime()).isEqualTo(HOUR + 60000);
+        assertThat(aggregates.get(aggregates.size() - 1).captureTime()).isEqualTo(4 * HOUR);
+        assertThat(aggregateCache.getSize()).isEqualTo(1);
+        assertThat(aggregateCache.getHitCount()).isEqualTo(1);
+        // 3 chunks on first read, then 1 read for the 2 chunks that are no longer cacheable
+        verify(aggregateRepository, times(4)).readThroughputAggregates(anyString(),
+                any(TransactionQuery.class));
+    }
+
+    @Test
+    public void shouldNotCacheChunkAtEndOfRetention() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR);
+        when(storageConfig.rollupExpirationHours())
+                .thenReturn(ImmutableList.of(8, 1000, 1000, 1000));
+
+        // when
+        List<ThroughputAggregate> aggregates = aggregateCache.readThroughputAggregates("a",
+                query(HOUR + 60000, 4 * HOUR));
+
+        // then
+        assertThat(aggregates).hasSize(3 * 60);
+        // chunk ending at 2 hours starts before the retention cutoff (at 2 hours)
+        assertThat(aggregateCache.getSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldInvalidateAll() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * HOUR);
+        aggregateCache.readThroughputAggregates("a", query(HOUR + 60000, 4 * HOUR));
+
+        // when
+        aggregateCache.invalidateAll();
+
+        // then
+        assertThat(aggregateCache.getSize()).isZero();
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
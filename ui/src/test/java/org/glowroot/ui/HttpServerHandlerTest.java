@@ -15,12 +15,61 @@
  */
 package org.glowroot.ui;
 
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Suppliers;
+import com.google.common.net.MediaType;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.ui.CommonHandler.CommonRequest;
+import org.glowroot.ui.CommonHandler.CommonResponse;
 
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 public class HttpServerHandlerTest {
 
+    private CountDownLatch serviceStartedLatch;
+    private CountDownLatch serviceReleaseLatch;
+    private CountDownLatch serviceCompletedLatch;
+    private CommonHandler commonHandler;
+
+    @Before
+    public void beforeEach() throws Exception {
+        serviceStartedLatch = new CountDownLatch(1);
+        serviceReleaseLatch = new CountDownLatch(1);
+        serviceCompletedLatch = new CountDownLatch(1);
+        commonHandler = mock(CommonHandler.class);
+        doAnswer(new Answer<CommonResponse>() {
+            @Override
+            public CommonResponse answer(InvocationOnMock invocation) throws Exception {
+                serviceStartedLatch.countDown();
+                serviceReleaseLatch.await();
+                serviceCompletedLatch.countDown();
+                return new CommonResponse(OK, MediaType.JSON_UTF_8, "{}");
+            }
+        }).when(commonHandler).handle(any(CommonRequest.class));
+    }
+
+    @After
+    public void afterEach() {
+        serviceReleaseLatch.countDown();
+    }
+
     @Test
     public void shouldStripContextPath() {
         assertThat(HttpServerHandler.stripContextPath("/one", "/")).isEqualTo("/one");
@@ -30,4 +79,103 @@ public class HttpServerHandlerTest {
         assertThat(HttpServerHandler.stripContextPath("/one/two", "/one")).isEqualTo("/two");
         assertThat(HttpServerHandler.stripContextPath("/one/two/", "/one")).isEqualTo("/two/");
     }
+
+    @Test
+    public void shouldTimeOutSlowService() throws Exception {
+        // given
+        HttpServiceExecutor serviceExecutor = new HttpServiceExecutor(1, 10, 100);
+        EmbeddedChannel channel = createChannel(serviceExecutor);
+
+        // when
+        channel.writeInbound(createRequest());
+        serviceStartedLatch.await();
+        // wait for timeout
+        Thread.sleep(200);
+        channel.runScheduledPendingTasks();
+        serviceReleaseLatch.countDown();
+        serviceCompletedLatch.await();
+
+        // then
+        FullHttpResponse response = channel.readOutbound();
+        assertThat(response.status()).isEqualTo(SERVICE_UNAVAILABLE);
+        assertThat(serviceExecutor.getTimedOutCount()).isEqualTo(1);
+        serviceExecutor.close();
+    }
+
+    @Test
+    public void shouldCancelWhenChannelIsClosed() throws Exception {
+        // given
+        HttpServiceExecutor serviceExecutor = new HttpServiceExecutor(1, 10, 60000);
+        EmbeddedChannel channel = createChannel(serviceExecutor);
+
+        // when
+        channel.writeInbound(createRequest());
+        channel.writeInbound(createRequest());
+        serviceStartedLatch.await();
+        channel.close();
+
+        // then
+        assertThat(serviceExecutor.getCancelledCount()).isEqualTo(2);
+        // the second request was removed from the queue before it started
+        assertThat(serviceExecutor.getQueueDepth()).isZero();
+        assertThat(channel.outboundMessages()).isEmpty();
+        serviceExecutor.close();
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() throws Exception {
+        // given
+        HttpServiceExecutor serviceExecutor = new HttpServiceExecutor(1, 1, 60000);
+        EmbeddedChannel channel = createChannel(serviceExecutor);
+
+        // when
+        channel.writeInbound(createRequest());
+        serviceStartedLatch.await();
+        channel.writeInbound(createRequest());
+        channel.writeInbound(createRequest());
+
+        // then
+        FullHttpResponse response = channel.readOutbound();
+        assertThat(response.status()).isEqualTo(SERVICE_UNAVAILABLE);
+        assertThat(serviceExecutor.getRejectedCount()).isEqualTo(1);
+        assertThat(serviceExecutor.getQueueDepth()).isEqualTo(1);
+        channel.close();
+        // the rejected request is not watched, so only the running and queued requests are
+        // cancelled
+        assertThat(serviceExecutor.getCancelledCount()).isEqualTo(2);
+        serviceExecutor.close();
+    }
+
+    @Test
+    public void shouldUnwatchWhenServiceCompletes() throws Exception {
+        // given
+        HttpServiceExecutor serviceExecutor = new HttpServiceExecutor(1, 10, 60000);
+        EmbeddedChannel channel = createChannel(serviceExecutor);
+        serviceReleaseLatch.countDown();
+
+        // when
+        channel.writeInbound(createRequest());
+        // the response is sent after the service is unwatched
+        while (channel.outboundMessages().isEmpty()) {
+            Thread.sleep(1);
+        }
+
+        // then
+        FullHttpResponse response = channel.readOutbound();
+        assertThat(response.status()).isEqualTo(OK);
+        // the timeout is no longer scheduled
+        assertThat(channel.runScheduledPendingTasks()).isEqualTo(-1);
+        channel.close();
+        assertThat(serviceExecutor.getCancelledCount()).isZero();
+        serviceExecutor.close();
+    }
+
+    private EmbeddedChannel createChannel(HttpServiceExecutor serviceExecutor) {
+        return new EmbeddedChannel(new HttpServerHandler(Suppliers.ofInstance("/"),
+                commonHandler, serviceExecutor));
+    }
+
+    private static FullHttpRequest createRequest() {
+        return new DefaultFullHttpRequest(HTTP_1_1, GET, "/backend/transaction/average");
+    }
 }